@@ -0,0 +1,12 @@
+package ai.preferred.cerebro.handler;
+
+/**
+ * Cosine distance of float[] vectors kept as bfloat16, the upper half of
+ * their floats, for vectors of any range needing about two significant
+ * digits.
+ */
+public final class Bf16CosineHandler extends HalfFloatCosineHandler {
+    public Bf16CosineHandler() {
+        super(true);
+    }
+}
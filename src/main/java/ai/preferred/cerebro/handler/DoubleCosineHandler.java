@@ -1,4 +1,7 @@
 package ai.preferred.cerebro.handler;
+
+import java.nio.DoubleBuffer;
+
 /**
  * Child class of {@link VecDoubleHandler} with detailed implementation of
  * the distance function using cosine metric
@@ -10,16 +13,67 @@ package ai.preferred.cerebro.handler;
 public final class DoubleCosineHandler extends VecDoubleHandler {
     @Override
     public double distance(double[] a, double[] b) {
+        return distance(a, 0, b, 0, a.length);
+    }
+
+    @Override
+    public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double dot = 0.0f;
+        double nru = 0.0f;
+        double nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            double x = a[aOffset + i];
+            double y = b[bOffset + i];
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
+        }
+
+        double similarity = dot / (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    @Override
+    public double distance(double[] a, int aOffset, DoubleBuffer b, int bOffset, int length) {
         double dot = 0.0f;
         double nru = 0.0f;
         double nrv = 0.0f;
-        for (int i = 0; i < a.length; i++) {
-            dot += a[i] * b[i];
-            nru += a[i] * a[i];
-            nrv += b[i] * b[i];
+        for (int i = 0; i < length; i++) {
+            double x = a[aOffset + i];
+            double y = b.get(bOffset + i);
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
         }
 
         double similarity = dot / (Math.sqrt(nru) * Math.sqrt(nrv));
         return 1 - similarity;
     }
+
+    @Override
+    public double distance(DoubleBuffer a, int aOffset, DoubleBuffer b, int bOffset, int length) {
+        double dot = 0.0f;
+        double nru = 0.0f;
+        double nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            double x = a.get(aOffset + i);
+            double y = b.get(bOffset + i);
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
+        }
+
+        double similarity = dot / (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    @Override
+    public boolean isDotProductBased() {
+        return true;
+    }
+
+    @Override
+    public double distanceFromDotProduct(double dot, double squaredNormA, double squaredNormB) {
+        return 1 - dot / (Math.sqrt(squaredNormA) * Math.sqrt(squaredNormB));
+    }
 }
@@ -1,5 +1,7 @@
 package ai.preferred.cerebro.handler;
 
+import java.nio.FloatBuffer;
+
 /**
  * Child class of {@link VecFloatHandler} with detailed implementation of
  * the distance function using cosine metric
@@ -11,16 +13,67 @@ package ai.preferred.cerebro.handler;
 public final class FloatCosineHandler extends VecFloatHandler {
     @Override
     public double distance(float[] a, float[] b) {
+        return distance(a, 0, b, 0, a.length);
+    }
+
+    @Override
+    public double distance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float x = a[aOffset + i];
+            float y = b[bOffset + i];
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
+        }
+
+        float similarity = dot / (float) (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    @Override
+    public double distance(float[] a, int aOffset, FloatBuffer b, int bOffset, int length) {
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float x = a[aOffset + i];
+            float y = b.get(bOffset + i);
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
+        }
+
+        float similarity = dot / (float) (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    @Override
+    public double distance(FloatBuffer a, int aOffset, FloatBuffer b, int bOffset, int length) {
         float dot = 0.0f;
         float nru = 0.0f;
         float nrv = 0.0f;
-        for (int i = 0; i < a.length; i++) {
-            dot += a[i] * b[i];
-            nru += a[i] * a[i];
-            nrv += b[i] * b[i];
+        for (int i = 0; i < length; i++) {
+            float x = a.get(aOffset + i);
+            float y = b.get(bOffset + i);
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
         }
 
-        float similarity = dot / (float)(Math.sqrt(nru) * Math.sqrt(nrv));
+        float similarity = dot / (float) (Math.sqrt(nru) * Math.sqrt(nrv));
         return 1 - similarity;
     }
+
+    @Override
+    public boolean isDotProductBased() {
+        return true;
+    }
+
+    @Override
+    public double distanceFromDotProduct(double dot, double squaredNormA, double squaredNormB) {
+        return 1 - dot / (Math.sqrt(squaredNormA) * Math.sqrt(squaredNormB));
+    }
 }
@@ -0,0 +1,12 @@
+package ai.preferred.cerebro.handler;
+
+/**
+ * Cosine distance of float[] vectors kept as IEEE 754 half precision
+ * numbers, for vectors whose elements stay within 65504 and need about
+ * three significant digits.
+ */
+public final class Fp16CosineHandler extends HalfFloatCosineHandler {
+    public Fp16CosineHandler() {
+        super(false);
+    }
+}
@@ -0,0 +1,101 @@
+package ai.preferred.cerebro.handler;
+
+/**
+ * Child class of {@link VecHalfFloatHandler} with detailed implementation
+ * of the distance function using cosine metric, see {@link Fp16CosineHandler}
+ * and {@link Bf16CosineHandler} for the two formats of the halves.
+ */
+public abstract class HalfFloatCosineHandler extends VecHalfFloatHandler {
+    protected HalfFloatCosineHandler(boolean bfloat16) {
+        super(bfloat16);
+    }
+
+    @Override
+    public double distance(float[] a, float[] b) {
+        return distance(a, 0, b, 0, a.length);
+    }
+
+    @Override
+    public double distance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float x = a[aOffset + i];
+            float y = b[bOffset + i];
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
+        }
+
+        float similarity = dot / (float) (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    //one loop per format, so that the conversion is not decided element by element
+    @Override
+    public double distance(float[] a, int aOffset, short[] b, int bOffset, int length) {
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        if (isBfloat16()) {
+            for (int i = 0; i < length; i++) {
+                float x = a[aOffset + i];
+                float y = bf16(b[bOffset + i]);
+                dot += x * y;
+                nru += x * x;
+                nrv += y * y;
+            }
+        }
+        else {
+            for (int i = 0; i < length; i++) {
+                float x = a[aOffset + i];
+                float y = fp16(b[bOffset + i]);
+                dot += x * y;
+                nru += x * x;
+                nrv += y * y;
+            }
+        }
+
+        float similarity = dot / (float) (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    @Override
+    public double distance(short[] a, int aOffset, short[] b, int bOffset, int length) {
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        if (isBfloat16()) {
+            for (int i = 0; i < length; i++) {
+                float x = bf16(a[aOffset + i]);
+                float y = bf16(b[bOffset + i]);
+                dot += x * y;
+                nru += x * x;
+                nrv += y * y;
+            }
+        }
+        else {
+            for (int i = 0; i < length; i++) {
+                float x = fp16(a[aOffset + i]);
+                float y = fp16(b[bOffset + i]);
+                dot += x * y;
+                nru += x * x;
+                nrv += y * y;
+            }
+        }
+
+        float similarity = dot / (float) (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+
+    @Override
+    public boolean isDotProductBased() {
+        return true;
+    }
+
+    @Override
+    public double distanceFromDotProduct(double dot, double squaredNormA, double squaredNormB) {
+        return 1 - dot / (Math.sqrt(squaredNormA) * Math.sqrt(squaredNormB));
+    }
+}
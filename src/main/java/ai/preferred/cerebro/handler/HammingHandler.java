@@ -0,0 +1,47 @@
+package ai.preferred.cerebro.handler;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Child class of {@link VecLongHandler} for binary vectors, 64 bits packed
+ * in each element, with the Hamming distance: the number of bits that
+ * differ, counted a long at a time with {@link Long#bitCount(long)}.
+ */
+public final class HammingHandler extends VecLongHandler {
+    @Override
+    public double distance(long[] a, long[] b) {
+        return distance(a, 0, b, 0, a.length);
+    }
+
+    @Override
+    public double distance(long[] a, int aOffset, long[] b, int bOffset, int length) {
+        int distance = 0;
+        for (int i = 0; i < length; i++) {
+            distance += Long.bitCount(a[aOffset + i] ^ b[bOffset + i]);
+        }
+        return distance;
+    }
+
+    /**
+     * @return the vector with every bit set in more than half of vecs
+     */
+    @Override
+    public long[] mean(List<long[]> vecs) {
+        int length = vecs.get(0).length;
+        long[] mean = new long[length];
+        int[] counts = new int[Long.SIZE];
+        for (int i = 0; i < length; i++) {
+            Arrays.fill(counts, 0);
+            for (long[] vec : vecs) {
+                for (long bits = vec[i]; bits != 0; bits &= bits - 1)
+                    counts[Long.numberOfTrailingZeros(bits)]++;
+            }
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                if (counts[bit] * 2 > vecs.size())
+                    mean[i] |= 1L << bit;
+            }
+        }
+        return mean;
+    }
+}
@@ -9,7 +9,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
 
 /**
  * detailed implementation of saving and loading of double vectors.
@@ -71,4 +76,137 @@ public abstract class VecDoubleHandler implements VecHandler<double[]> {
         }
         return null;
     }
+
+    /**
+     * Writes the vectors as they come, in the layout kryo gives a {@code double[][]}
+     * with its references on: the marker of a new object and the length plus
+     * one, then for every vector either the marker of null or the marker of
+     * a new object, its length plus one and its elements.
+     */
+    @Override
+    public void save(String vecFilename, int count, IntFunction<double[]> vectors) {
+        try (Output output = new Output(new FileOutputStream(vecFilename), STREAM_BUFFER_SIZE)) {
+            output.writeVarInt(Kryo.NOT_NULL, true);
+            output.writeVarInt(count + 1, true);
+            for (int i = 0; i < count; i++) {
+                double[] vector = vectors.apply(i);
+                if (vector == null) {
+                    output.writeVarInt(Kryo.NULL, true);
+                    continue;
+                }
+                output.writeVarInt(Kryo.NOT_NULL, true);
+                output.writeVarInt(vector.length + 1, true);
+                output.writeDoubles(vector, 0, vector.length);
+            }
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the vectors as they come. A vector kryo saved as a reference to
+     * an earlier one, the same array having been added twice, is read again
+     * from the file rather than every vector being held on to for it.
+     */
+    @Override
+    public int load(File vecsFile, ObjIntConsumer<double[]> consumer) {
+        try (Input input = new Input(new FileInputStream(vecsFile), STREAM_BUFFER_SIZE)) {
+            input.readVarInt(true);
+            int count = input.readVarInt(true) - 1;
+            for (int i = 0; i < count; i++) {
+                int marker = input.readVarInt(true);
+                if (marker == Kryo.NULL)
+                    consumer.accept(null, i);
+                else if (marker == Kryo.NOT_NULL)
+                    consumer.accept(input.readDoubles(input.readVarInt(true) - 1), i);
+                else
+                    consumer.accept(loadReferenced(vecsFile, marker - 2), i);
+            }
+            return Math.max(count, 0);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+     * @param referenceId the id kryo gave the vector, the array of vectors being 0
+     */
+    private static double[] loadReferenced(File vecsFile, int referenceId) throws FileNotFoundException {
+        try (Input input = new Input(new FileInputStream(vecsFile), STREAM_BUFFER_SIZE)) {
+            input.readVarInt(true);
+            int count = input.readVarInt(true) - 1;
+            int id = 0;
+            for (int i = 0; i < count; i++) {
+                if (input.readVarInt(true) != Kryo.NOT_NULL)
+                    continue;
+                int length = input.readVarInt(true) - 1;
+                if (++id == referenceId)
+                    return input.readDoubles(length);
+                input.skip((long) length * Double.BYTES);
+            }
+        }
+        throw new IllegalArgumentException("Vector file " + vecsFile + " references a missing vector");
+    }
+
+    /**
+     * Distance between two vectors stored at some offset of larger arrays,
+     * used by the leaves keeping all their vectors in one contiguous slab.
+     * The default copies both vectors out and calls {@link #distance(Object, Object)},
+     * subclasses should override it with a kernel reading the arrays in place.
+     * @param a the array holding the first vector
+     * @param aOffset the index of the first element of the first vector
+     * @param b the array holding the second vector
+     * @param bOffset the index of the first element of the second vector
+     * @param length the number of elements of each vector
+     * @return distance between the two vectors
+     */
+    public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return distance(Arrays.copyOfRange(a, aOffset, aOffset + length),
+                Arrays.copyOfRange(b, bOffset, bOffset + length));
+    }
+
+    /**
+     * Distance between a vector stored in an array and one stored in a
+     * buffer, used by the leaves keeping their vectors off the heap.
+     * The default copies the second vector out and calls
+     * {@link #distance(double[], int, double[], int, int)}, subclasses should
+     * override it with a kernel reading the buffer in place.
+     * @param a the array holding the first vector
+     * @param aOffset the index of the first element of the first vector
+     * @param b the buffer holding the second vector
+     * @param bOffset the index of the first element of the second vector
+     * @param length the number of elements of each vector
+     * @return distance between the two vectors
+     */
+    public double distance(double[] a, int aOffset, DoubleBuffer b, int bOffset, int length) {
+        return distance(a, aOffset, copy(b, bOffset, length), 0, length);
+    }
+
+    /**
+     * Distance between two vectors stored in buffers, see
+     * {@link #distance(double[], int, DoubleBuffer, int, int)}.
+     */
+    public double distance(DoubleBuffer a, int aOffset, DoubleBuffer b, int bOffset, int length) {
+        return distance(copy(a, aOffset, length), 0, copy(b, bOffset, length), 0, length);
+    }
+
+    private static double[] copy(DoubleBuffer buffer, int offset, int length) {
+        double[] vector = new double[length];
+        for (int i = 0; i < length; i++)
+            vector[i] = buffer.get(offset + i);
+        return vector;
+    }
+
+    @Override
+    public double[] mean(List<double[]> vecs) {
+        double[] mean = new double[vecs.get(0).length];
+        for (double[] vec : vecs) {
+            for (int i = 0; i < mean.length; i++)
+                mean[i] += vec[i];
+        }
+        for (int i = 0; i < mean.length; i++)
+            mean[i] /= vecs.size();
+        return mean;
+    }
 }
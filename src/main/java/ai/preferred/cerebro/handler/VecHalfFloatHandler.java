@@ -0,0 +1,275 @@
+package ai.preferred.cerebro.handler;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
+
+
+/**
+ * float[] vectors kept with 16 bits per element, in the files of the index
+ * and in the leaves holding their vectors in a slab: either IEEE 754 half
+ * precision (fp16), 10 bits of mantissa for numbers up to 65504, or
+ * bfloat16 (bf16), the upper half of a float, 7 bits of mantissa for the
+ * whole range of floats. The vectors are rounded to the nearest when
+ * stored, queries and vectors handed out stay float[].
+ * </br>
+ * The distances between a float[] query and a vector of the slab are
+ * computed with {@link #distance(float[], int, short[], int, int)},
+ * which converts the elements as it reads them.
+ */
+public abstract class VecHalfFloatHandler extends VecFloatHandler {
+    //every fp16 as a float
+    private static final float[] FP16_TO_FLOAT = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < FP16_TO_FLOAT.length; i++) {
+            FP16_TO_FLOAT[i] = fp16ToFloat((short) i);
+        }
+    }
+
+    private final boolean bfloat16;
+
+    /**
+     * @param bfloat16 whether the elements are kept as bf16 rather than fp16
+     */
+    protected VecHalfFloatHandler(boolean bfloat16) {
+        this.bfloat16 = bfloat16;
+    }
+
+    /**
+     * @return whether the elements are kept as bf16 rather than fp16
+     */
+    public final boolean isBfloat16() {
+        return bfloat16;
+    }
+
+    /**
+     * @return the 16 bits of the element closest to x
+     */
+    public final short toHalf(float x) {
+        return bfloat16 ? floatToBf16(x) : floatToFp16(x);
+    }
+
+    public final float toFloat(short half) {
+        return bfloat16 ? bf16(half) : fp16(half);
+    }
+
+    public final short[] toHalves(float[] vector) {
+        short[] halves = new short[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            halves[i] = toHalf(vector[i]);
+        }
+        return halves;
+    }
+
+    public final float[] toFloats(short[] halves, int offset, int length) {
+        float[] vector = new float[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = toFloat(halves[offset + i]);
+        }
+        return vector;
+    }
+
+    /**
+     * @return the fp16 closest to x, ties to even, infinite past 65504
+     */
+    static short floatToFp16(float x) {
+        int bits = Float.floatToRawIntBits(x);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent == 0xFF)
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 | mantissa >>> 13 : 0));
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F)
+            return (short) (sign | 0x7C00);
+        int shift;
+        int half;
+        if (halfExponent <= 0) {
+            //subnormal, the implicit bit becoming part of the mantissa
+            if (halfExponent < -10)
+                return (short) sign;
+            mantissa |= 0x800000;
+            shift = 14 - halfExponent;
+            half = mantissa >>> shift;
+        }
+        else {
+            shift = 13;
+            half = halfExponent << 10 | mantissa >>> shift;
+        }
+        int rest = mantissa & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+        //a carry out of the mantissa goes up the exponent, up to infinity
+        if (rest > halfway || (rest == halfway && (half & 1) != 0))
+            half++;
+        return (short) (sign | half);
+    }
+
+    static float fp16ToFloat(short half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if (exponent == 0) {
+            float subnormal = mantissa * 0x1p-24f;
+            return sign != 0 ? -subnormal : subnormal;
+        }
+        if (exponent == 0x1F)
+            return Float.intBitsToFloat(sign | 0x7F800000 | mantissa << 13);
+        return Float.intBitsToFloat(sign | (exponent + 127 - 15) << 23 | mantissa << 13);
+    }
+
+    /**
+     * @return the bf16 closest to x, ties to even
+     */
+    static short floatToBf16(float x) {
+        int bits = Float.floatToRawIntBits(x);
+        if (Float.isNaN(x))
+            return (short) (bits >>> 16 | 0x40);
+        return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    /**
+     * Writes the elements of the vectors as halves, in the layout kryo
+     * gives a {@code short[][]}.
+     */
+    @Override
+    public void save(String vecFilename, float[][] vecs) {
+        save(vecFilename, vecs.length, i -> vecs[i]);
+    }
+
+    @Override
+    public float[][] load(File vecsFile) {
+        Kryo kryo = new Kryo();
+        kryo.register(short[].class);
+        kryo.register(short[][].class);
+        try (Input input = new Input(new FileInputStream(vecsFile))) {
+            short[][] halves = kryo.readObject(input, short[][].class);
+            float[][] vecs = new float[halves.length][];
+            for (int i = 0; i < halves.length; i++) {
+                if (halves[i] != null)
+                    vecs[i] = toFloats(halves[i], 0, halves[i].length);
+            }
+            return vecs;
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Writes the vectors as they come, in the layout kryo gives a
+     * {@code short[][]} with its references on, see
+     * {@link VecFloatHandler#save(String, int, IntFunction)}.
+     */
+    @Override
+    public void save(String vecFilename, int count, IntFunction<float[]> vectors) {
+        try (Output output = new Output(new FileOutputStream(vecFilename), STREAM_BUFFER_SIZE)) {
+            output.writeVarInt(Kryo.NOT_NULL, true);
+            output.writeVarInt(count + 1, true);
+            for (int i = 0; i < count; i++) {
+                float[] vector = vectors.apply(i);
+                if (vector == null) {
+                    output.writeVarInt(Kryo.NULL, true);
+                    continue;
+                }
+                output.writeVarInt(Kryo.NOT_NULL, true);
+                output.writeVarInt(vector.length + 1, true);
+                for (float x : vector)
+                    output.writeShort(toHalf(x));
+            }
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the vectors as they come, a vector written as a reference to
+     * an earlier one being read again from the file.
+     */
+    @Override
+    public int load(File vecsFile, ObjIntConsumer<float[]> consumer) {
+        try (Input input = new Input(new FileInputStream(vecsFile), STREAM_BUFFER_SIZE)) {
+            input.readVarInt(true);
+            int count = input.readVarInt(true) - 1;
+            for (int i = 0; i < count; i++) {
+                int marker = input.readVarInt(true);
+                if (marker == Kryo.NULL)
+                    consumer.accept(null, i);
+                else if (marker == Kryo.NOT_NULL)
+                    consumer.accept(readVector(input, input.readVarInt(true) - 1), i);
+                else
+                    consumer.accept(loadReferenced(vecsFile, marker - 2), i);
+            }
+            return Math.max(count, 0);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    private float[] readVector(Input input, int length) {
+        float[] vector = new float[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = toFloat(input.readShort());
+        }
+        return vector;
+    }
+
+    /**
+     * @param referenceId the id kryo gave the vector, the array of vectors being 0
+     */
+    private float[] loadReferenced(File vecsFile, int referenceId) throws FileNotFoundException {
+        try (Input input = new Input(new FileInputStream(vecsFile), STREAM_BUFFER_SIZE)) {
+            input.readVarInt(true);
+            int count = input.readVarInt(true) - 1;
+            int id = 0;
+            for (int i = 0; i < count; i++) {
+                if (input.readVarInt(true) != Kryo.NOT_NULL)
+                    continue;
+                int length = input.readVarInt(true) - 1;
+                if (++id == referenceId)
+                    return readVector(input, length);
+                input.skip((long) length * Short.BYTES);
+            }
+        }
+        throw new IllegalArgumentException("Vector file " + vecsFile + " references a missing vector");
+    }
+
+    /**
+     * Distance between a float[] query and a vector stored as halves at
+     * some offset of a larger array, used by the leaves keeping all their
+     * vectors in one slab of halves. The elements of the vector are
+     * converted as they are read.
+     * @param a the array holding the query
+     * @param aOffset the index of the first element of the query
+     * @param b the array holding the halves of the vector
+     * @param bOffset the index of the first element of the vector
+     * @param length the number of elements of each vector
+     * @return distance between the two vectors
+     */
+    public abstract double distance(float[] a, int aOffset, short[] b, int bOffset, int length);
+
+    /**
+     * Distance between two vectors stored as halves, see
+     * {@link #distance(float[], int, short[], int, int)}.
+     */
+    public abstract double distance(short[] a, int aOffset, short[] b, int bOffset, int length);
+
+    /**
+     * @return the float of an fp16, read off a table
+     */
+    protected static float fp16(short half) {
+        return FP16_TO_FLOAT[half & 0xFFFF];
+    }
+
+    protected static float bf16(short half) {
+        return Float.intBitsToFloat(half << 16);
+    }
+}
@@ -4,7 +4,11 @@ import ai.preferred.cerebro.hnsw.Node;
 import org.apache.lucene.document.Document;
 
 import java.io.File;
+import java.lang.reflect.Array;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
 
 /**
  * Interface to specify the functions that need detailed implementation
@@ -16,6 +20,11 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * @author hpminh@apcs.vn
  */
 public interface VecHandler<TVector> {
+    /**
+     * Buffer size of the files written and read one vector at a time.
+     */
+    int STREAM_BUFFER_SIZE = 1 << 16;
+
     /**
      * Extract vectors from an array of {@link Node} then calling the function
      * {@link #save(String, Object[])} to save the vectors. Used by
@@ -52,6 +61,44 @@ public interface VecHandler<TVector> {
      */
     TVector[] load(File vecsFile);
 
+    /**
+     * Saving vectors handed out one at a time, to the same file as
+     * {@link #save(String, Object[])}. Handlers able to write them as they come
+     * should override it, so that the vectors are not gathered in an array first.
+     * @param vecFilename path to the file.
+     * @param count the number of vectors.
+     * @param vectors the vector at each position, null for the empty ones.
+     */
+    @SuppressWarnings("unchecked")
+    default void save(String vecFilename, int count, IntFunction<TVector> vectors) {
+        TVector[] vecs = null;
+        for (int i = 0; i < count; i++) {
+            TVector vector = vectors.apply(i);
+            if (vector != null) {
+                if (vecs == null)
+                    vecs = (TVector[]) Array.newInstance(vector.getClass(), count);
+                vecs[i] = vector;
+            }
+        }
+        save(vecFilename, vecs != null ? vecs : (TVector[]) new Object[count]);
+    }
+
+    /**
+     * Loading vectors one at a time from a file saved by {@link #save(String, Object[])}.
+     * Handlers able to read them as they come should override it, so that
+     * they are not gathered in an array first.
+     * @param vecsFile a {@link File} object to containing vectors
+     * @param consumer called with every vector and its position in order, null for the empty ones
+     * @return the number of vectors
+     */
+    default int load(File vecsFile, ObjIntConsumer<TVector> consumer) {
+        TVector[] vecs = load(vecsFile);
+        for (int i = 0; i < vecs.length; i++) {
+            consumer.accept(vecs[i], i);
+        }
+        return vecs.length;
+    }
+
     /**
      * Function to define the way calculate the distance between two vectors
      * @param a
@@ -59,5 +106,34 @@ public interface VecHandler<TVector> {
      * @return distance between two vectors
      */
     double distance(TVector a, TVector b);
-}
 
+    /**
+     * @return whether {@link #distance(Object, Object)} only depends on the
+     * dot product of the vectors and their squared norms, in which case it
+     * is given by {@link #distanceFromDotProduct(double, double, double)}
+     */
+    default boolean isDotProductBased() {
+        return false;
+    }
+
+    /**
+     * The distance of two vectors from their dot product and squared norms,
+     * for the handlers {@link #isDotProductBased()}. Lets the leaves holding
+     * quantized vectors estimate the dot product with integers, see
+     * {@link ai.preferred.cerebro.hnsw.LeafLayout#QUANTIZED}.
+     */
+    default double distanceFromDotProduct(double dot, double squaredNormA, double squaredNormB) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not compute distances from dot products");
+    }
+
+    /**
+     * Function to define the mean of many vectors, used to compute
+     * the centroids of an index partitioned into clusters, see
+     * {@link ai.preferred.cerebro.hnsw.HnswConfiguration#setClustered(boolean)}
+     * @param vecs the vectors, there is at least one
+     * @return a new vector, the mean of vecs
+     */
+    default TVector mean(List<TVector> vecs) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support clustering");
+    }
+}
@@ -0,0 +1,83 @@
+package ai.preferred.cerebro.handler;
+
+import ai.preferred.cerebro.hnsw.Node;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * detailed implementation of saving and loading of long vectors, such as
+ * binary vectors packing 64 bits in each element.
+ * Using {@link Kryo} library.
+ */
+public abstract class VecLongHandler implements VecHandler<long[]> {
+    @Override
+    public void saveNodes(String vecFilename, Node<long[]>[] nodes, int nodeCount) {
+        long[][] vecs = new long[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            Node<long[]> t = nodes[i];
+            vecs[i] = t != null ? t.vector() : null;
+        }
+        this.save(vecFilename, vecs);
+    }
+
+    @Override
+    public void saveNodesBlocking(String vecFilename, AtomicReferenceArray<Node<long[]>> nodes, int nodeCount) {
+        long[][] vecs = new long[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            Node<long[]> t = nodes.get(i);
+            vecs[i] = t != null ? t.vector() : null;
+        }
+        this.save(vecFilename, vecs);
+    }
+
+    @Override
+    public void save(String vecFilename, long[][] vecs) {
+        Kryo kryo = new Kryo();
+        kryo.register(long[].class);
+        kryo.register(long[][].class);
+        try (Output output = new Output(new FileOutputStream(vecFilename))) {
+            kryo.writeObject(output, vecs);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public long[][] load(File vecsFile) {
+        Kryo kryo = new Kryo();
+        kryo.register(long[].class);
+        kryo.register(long[][].class);
+        try (Input input = new Input(new FileInputStream(vecsFile))) {
+            return kryo.readObject(input, long[][].class);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Distance between two vectors stored at some offset of larger arrays,
+     * used by the leaves keeping all their vectors in one contiguous slab.
+     * The default copies both vectors out and calls {@link #distance(Object, Object)},
+     * subclasses should override it with a kernel reading the arrays in place.
+     * @param a the array holding the first vector
+     * @param aOffset the index of the first element of the first vector
+     * @param b the array holding the second vector
+     * @param bOffset the index of the first element of the second vector
+     * @param length the number of elements of each vector
+     * @return distance between the two vectors
+     */
+    public double distance(long[] a, int aOffset, long[] b, int bOffset, int length) {
+        return distance(Arrays.copyOfRange(a, aOffset, aOffset + length),
+                Arrays.copyOfRange(b, bOffset, bOffset + length));
+    }
+}
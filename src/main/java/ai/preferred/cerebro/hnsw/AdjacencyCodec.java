@@ -0,0 +1,162 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of the connections of a node at a level: the list is
+ * sorted, then written as its length followed by the gaps between
+ * consecutive ids, all as varints of 7 bits per byte. Neighbors close in
+ * id take a byte or two instead of four, and lists shorter than the
+ * maximum number of connections take no room for the missing ones.
+ * </br>
+ * The order of the connections does not matter to a search, the
+ * candidates kept being the closest ones whatever the order they come in.
+ */
+final class AdjacencyCodec {
+    //a varint of 32 bits takes at most 5 bytes
+    static final int MAX_VARINT_BYTES = 5;
+
+    private AdjacencyCodec() {
+    }
+
+    /**
+     * @return the most bytes a list of count connections can take
+     */
+    static int maxLength(int count) {
+        return MAX_VARINT_BYTES * (count + 1);
+    }
+
+    /**
+     * Encode the first count connections of conns, which get sorted in place.
+     * @return the position following the encoded list
+     */
+    static int encode(int[] conns, int count, byte[] out, int position) {
+        Arrays.sort(conns, 0, count);
+        position = writeVarInt(count, out, position);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            position = writeVarInt(conns[i] - previous, out, position);
+            previous = conns[i];
+        }
+        return position;
+    }
+
+    private static int writeVarInt(int value, byte[] out, int position) {
+        while ((value & ~0x7F) != 0) {
+            out[position++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * @return the number of connections of the list starting at position
+     */
+    static int count(byte[] in, int position) {
+        int count = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[position++];
+            count |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return count;
+    }
+
+    /**
+     * Decode the list starting at position into buffer, which must have
+     * room for {@link #count(byte[], int)} ids.
+     * @return the number of connections decoded
+     */
+    static int decode(byte[] in, int position, int[] buffer) {
+        int count = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in[position++];
+            count |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            b = in[position++];
+            int gap = b & 0x7F;
+            for (shift = 7; b < 0; shift += 7) {
+                b = in[position++];
+                gap |= (b & 0x7F) << shift;
+            }
+            id += gap;
+            buffer[i] = id;
+        }
+        return count;
+    }
+
+    /**
+     * @return the position following the list starting at position
+     */
+    static int skip(byte[] in, int position) {
+        int count = count(in, position);
+        //one byte of the count and one of each gap end with the high bit unset
+        for (int ends = 0; ends <= count; ) {
+            if (in[position++] >= 0)
+                ends++;
+        }
+        return position;
+    }
+
+    /**
+     * {@link #count(byte[], int)} of a list held in a buffer.
+     */
+    static int count(ByteBuffer in, int position) {
+        int count = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get(position++);
+            count |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return count;
+    }
+
+    /**
+     * {@link #decode(byte[], int, int[])} of a list held in a buffer.
+     */
+    static int decode(ByteBuffer in, int position, int[] buffer) {
+        int count = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get(position++);
+            count |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            b = in.get(position++);
+            int gap = b & 0x7F;
+            for (shift = 7; b < 0; shift += 7) {
+                b = in.get(position++);
+                gap |= (b & 0x7F) << shift;
+            }
+            id += gap;
+            buffer[i] = id;
+        }
+        return count;
+    }
+
+    /**
+     * {@link #skip(byte[], int)} of a list held in a buffer.
+     */
+    static int skip(ByteBuffer in, int position) {
+        int count = count(in, position);
+        for (int ends = 0; ends <= count; ) {
+            if (in.get(position++) >= 0)
+                ends++;
+        }
+        return position;
+    }
+}
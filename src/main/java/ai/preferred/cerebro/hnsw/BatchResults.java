@@ -0,0 +1,71 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Results of {@link HnswIndexSearcher#searchBatch(Object[], int)} packed
+ * into flat primitive arrays: the results of the q-th query are stored
+ * closest first from index q * k, followed by unused slots if fewer than
+ * k results were found.
+ */
+public class BatchResults {
+    private final int k;
+    private final long[] ids;
+    private final float[] distances;
+    private final int[] counts;
+
+    BatchResults(int numQueries, int k) {
+        this.k = k;
+        this.ids = new long[Math.multiplyExact(numQueries, k)];
+        this.distances = new float[ids.length];
+        this.counts = new int[numQueries];
+    }
+
+    public int numQueries() {
+        return counts.length;
+    }
+
+    /**
+     * @return the number of results slots reserved for each query
+     */
+    public int k() {
+        return k;
+    }
+
+    /**
+     * @return the number of results found for the query
+     */
+    public int count(int query) {
+        return counts[query];
+    }
+
+    /**
+     * @return the external id of the i-th closest result of the query
+     */
+    public long id(int query, int i) {
+        return ids[query * k + i];
+    }
+
+    /**
+     * @return the distance of the i-th closest result to the query
+     */
+    public float distance(int query, int i) {
+        return distances[query * k + i];
+    }
+
+    /**
+     * @return the underlying array of external ids, indexed as described at {@link BatchResults}
+     */
+    public long[] ids() {
+        return ids;
+    }
+
+    /**
+     * @return the underlying array of distances, indexed as described at {@link BatchResults}
+     */
+    public float[] distances() {
+        return distances;
+    }
+
+    int[] counts() {
+        return counts;
+    }
+}
@@ -0,0 +1,156 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.HammingHandler;
+import ai.preferred.cerebro.handler.VecDoubleHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.lang.reflect.Array;
+
+/**
+ * The vectors of {@link LeafLayout#BINARY}: the sign of every element,
+ * 64 to a long laid one vector after another, which the graph is searched
+ * with, next to the exact vectors, which the results are ranked with.
+ * </br>
+ * The distance of the query to a node is the cosine distance of the angle
+ * the Hamming distance of their signs stands for, 1 - cos(pi * h / d) for
+ * h of the d signs differing, read off a table of every h. It goes up
+ * with the Hamming distance, so the graph is searched in the order of the
+ * Hamming distances, and is on the scale of the cosine distances the
+ * results are ranked with.
+ *
+ * @param <TVector> float[] or double[]
+ */
+final class BinaryVectorSlab<TVector> extends VectorSlab<TVector> {
+    private static final HammingHandler HAMMING = new HammingHandler();
+
+    private final VectorSlab<TVector> exact;
+    private final boolean rerank;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    private long[][] codePages;
+    //longs of the codes of a vector
+    private int words;
+    //estimated distance of every Hamming distance
+    private float[] distances;
+
+    /**
+     * The signs of the query of the thread.
+     */
+    private final class Scratch {
+        final long[] code = new long[words];
+        Object query;
+    }
+
+    /**
+     * @param exact the slab of the exact vectors, of the same capacity
+     * @param rerank whether the results are ranked again with the exact vectors
+     */
+    BinaryVectorSlab(VecHandler<TVector> handler, VectorSlab<TVector> exact, int capacity, boolean rerank) {
+        super(capacity, false);
+        if (!(handler instanceof VecFloatHandler) && !(handler instanceof VecDoubleHandler))
+            throw new IllegalArgumentException("Binary leaves need a VecFloatHandler or a VecDoubleHandler, got "
+                    + handler.getClass().getName());
+        this.exact = exact;
+        this.rerank = rerank;
+    }
+
+    @Override
+    int pageStride(int dimensions) {
+        return words(dimensions);
+    }
+
+    private static int words(int dimensions) {
+        return (dimensions + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    @Override
+    void set(int id, TVector vector) {
+        exact.set(id, vector);
+        ensurePage(id, Array.getLength(vector));
+        encode(vector, codePages[id >>> pageBits], (id & pageMask) * words);
+    }
+
+    //bit i set for the positive elements
+    private void encode(Object vector, long[] codes, int offset) {
+        for (int w = 0; w < words; w++)
+            codes[offset + w] = 0;
+        if (vector instanceof float[]) {
+            float[] floats = (float[]) vector;
+            for (int i = 0; i < dimensions; i++) {
+                if (floats[i] > 0)
+                    codes[offset + (i >>> 6)] |= 1L << i;
+            }
+        }
+        else {
+            double[] doubles = (double[]) vector;
+            for (int i = 0; i < dimensions; i++) {
+                if (doubles[i] > 0)
+                    codes[offset + (i >>> 6)] |= 1L << i;
+            }
+        }
+    }
+
+    @Override
+    TVector get(int id) {
+        return exact.get(id);
+    }
+
+    @Override
+    void prepare(TVector query, ProductQuantizer.Table table) {
+        Scratch scratch = this.scratch.get();
+        scratch.query = query;
+        encode(query, scratch.code, 0);
+    }
+
+    /**
+     * @return the distance of the angle the Hamming distance of the signs
+     * of the query and the node stands for
+     */
+    @Override
+    float distance(TVector query, int id) {
+        Scratch scratch = this.scratch.get();
+        if (scratch.query != query)
+            prepare(query, null);
+        int hamming = (int) HAMMING.distance(scratch.code, 0, codePages[id >>> pageBits],
+                (id & pageMask) * words, words);
+        return distances[hamming];
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return exact.distance(id1, id2);
+    }
+
+    @Override
+    boolean approximate() {
+        return rerank;
+    }
+
+    @Override
+    void exactDistances(TVector query, int[] ids, int count, float[] distances) {
+        for (int i = 0; i < count; i++) {
+            distances[i] = exact.distance(query, ids[i]);
+        }
+    }
+
+    @Override
+    void createPages(int numPages) {
+        words = words(dimensions);
+        distances = new float[dimensions + 1];
+        for (int h = 0; h <= dimensions; h++) {
+            distances[h] = (float) (1 - Math.cos(Math.PI * h / dimensions));
+        }
+        codePages = new long[numPages][];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return codePages[page] != null;
+    }
+
+    //length is in elements of the vectors, the page holding their signs instead
+    @Override
+    void allocatePage(int page, int length) {
+        codePages[page] = new long[length / dimensions * words];
+    }
+}
@@ -10,7 +10,7 @@ public class BitSet implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    private final int[] buffer;
+    private int[] buffer;
 
     /**
      * Initializes a new instance of the {@link BitSet} class.
@@ -28,6 +28,9 @@ public class BitSet implements Serializable {
      * @return True if the identifier is in the set.
      */
     boolean isTrue(int id) {
+        //bits past the buffer have never been set
+        if (id >> 5 >= this.buffer.length)
+            return false;
         int carrier = this.buffer[id >> 5];
         return ((1 << (id & 31)) & carrier) != 0;
     }
@@ -42,6 +45,18 @@ public class BitSet implements Serializable {
         this.buffer[id >> 5] |= mask;
     }
 
+    /**
+     * Grow the set to hold at least count bits, doubling its size
+     * so that growing one bit at a time stays cheap.
+     *
+     * @param count The number of bits the set must hold.
+     */
+    void ensureCapacity(int count) {
+        int length = (count >> 5) + 1;
+        if (length > this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(length, this.buffer.length << 1));
+    }
+
     /**
      * Set the bit at id-th position to 0.
      *
@@ -0,0 +1,221 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache of the fixed size blocks of a file read through a {@link FileChannel},
+ * evicting with the CLOCK algorithm: the hand sweeps the slots, sparing
+ * once the blocks read since it last went by, so that blocks read over
+ * and over stay while those read once go first.
+ * </br>
+ * The slots are guarded by a read/write lock. Hits share the read lock
+ * and are handed the block where it is cached, without copying it, while
+ * blocks are only put in and evicted under the write lock. The file is
+ * read outside of the lock so that threads missing the cache do not hold
+ * up those hitting it.
+ */
+final class BlockCache {
+    private static final int NO_SLOT = -1;
+
+    private final FileChannel channel;
+    //position of the first block in the file
+    private final long start;
+    private final int blockBytes;
+    private final long numBlocks;
+
+    private final LongIntHashMap slots;
+    private final long[] blocks;
+    private final boolean[] referenced;
+    private final ByteBuffer data;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    //guarded by the write lock
+    private int hand;
+    private int used;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+
+    /**
+     * @param cacheBytes the memory taken by the cached blocks, at least one block is cached
+     */
+    BlockCache(FileChannel channel, long start, int blockBytes, long numBlocks, long cacheBytes) {
+        this.channel = channel;
+        this.start = start;
+        this.blockBytes = blockBytes;
+        this.numBlocks = numBlocks;
+        int numSlots = (int) Math.max(1, Math.min(Math.min(numBlocks, cacheBytes / blockBytes),
+                LeafStorage.MAX_ARRAY_LENGTH / blockBytes));
+        slots = new LongIntHashMap(numSlots);
+        blocks = new long[numSlots];
+        referenced = new boolean[numSlots];
+        data = ByteBuffer.allocate(numSlots * blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int blockBytes() {
+        return blockBytes;
+    }
+
+    /**
+     * Receives the blocks read by {@link #read(long[], int, ByteBuffer, BlockReader)}.
+     */
+    interface BlockReader {
+        /**
+         * @param buffer holds the block from position on, only until the call
+         *               returns, and must not be modified, cached blocks being
+         *               handed over where they are kept
+         */
+        void read(long block, ByteBuffer buffer, int position);
+    }
+
+    /**
+     * Hand each of the blocks to the reader once, those cached first, then
+     * those missing as they are read, with one read for each run of
+     * consecutive blocks that fits in the buffer. Every block is read at
+     * most once however few of them the cache holds. The reader is handed
+     * the cached blocks under the read lock, so it should only take what
+     * it needs from them.
+     * @param blockIds the blocks, sorted without duplicates, overwritten
+     * @param buffer the buffer blocks are copied or read into, at least one block long
+     */
+    void read(long[] blockIds, int count, ByteBuffer buffer, BlockReader reader) {
+        int missing = 0;
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                int slot = slots.getIfAbsent(blockIds[i], NO_SLOT);
+                if (slot != NO_SLOT) {
+                    //set by every reader hitting it, seen by the hand once it takes the write lock
+                    referenced[slot] = true;
+                    reader.read(blockIds[i], data, slot * blockBytes);
+                }
+                else
+                    blockIds[missing++] = blockIds[i];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        int maxRun = buffer.capacity() / blockBytes;
+        for (int first = 0; first < missing; ) {
+            int run = 1;
+            while (first + run < missing && run < maxRun && blockIds[first + run] == blockIds[first] + run)
+                run++;
+            read(blockIds[first], run, buffer);
+            for (int i = 0; i < run; i++) {
+                reader.read(blockIds[first + i], buffer, i * blockBytes);
+            }
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < run; i++) {
+                    put(blockIds[first + i], buffer, i * blockBytes);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            first += run;
+        }
+    }
+
+    private static void copyBlock(ByteBuffer source, int position, int length, ByteBuffer destination,
+                                  int destinationPosition) {
+        ByteBuffer from = source.duplicate();
+        from.limit(Math.min(position + length, source.limit())).position(position);
+        ByteBuffer to = destination.duplicate();
+        to.position(destinationPosition);
+        to.put(from);
+    }
+
+    /**
+     * Copy floats out of a block, reading it if it is not cached.
+     * @param offset the position of the first float in the block
+     * @param buffer the buffer the block is read into on a miss, at least one block long
+     */
+    void copy(long block, int offset, float[] destination, int length, ByteBuffer buffer) {
+        lock.readLock().lock();
+        try {
+            int slot = slots.getIfAbsent(block, NO_SLOT);
+            if (slot != NO_SLOT) {
+                referenced[slot] = true;
+                copy(data, slot * blockBytes + offset, destination, length);
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        read(block, 1, buffer);
+        lock.writeLock().lock();
+        try {
+            put(block, buffer, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        copy(buffer, offset, destination, length);
+    }
+
+    private static void copy(ByteBuffer source, int position, float[] destination, int length) {
+        for (int i = 0; i < length; i++) {
+            destination[i] = source.getFloat(position + i * Float.BYTES);
+        }
+    }
+
+    private void read(long firstBlock, int count, ByteBuffer buffer) {
+        long bytes = Math.min((long) count * blockBytes, (numBlocks - firstBlock) * blockBytes);
+        buffer.clear();
+        buffer.limit((int) bytes);
+        try {
+            long position = start + firstBlock * blockBytes;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException("Unexpected end of the block file");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bytesRead.addAndGet(bytes);
+        reads.incrementAndGet();
+    }
+
+    //must hold the write lock
+    private void put(long block, ByteBuffer source, int position) {
+        if (slots.containsKey(block))
+            return;
+        int slot;
+        if (used < blocks.length)
+            slot = used++;
+        else {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % blocks.length;
+            }
+            slot = hand;
+            hand = (hand + 1) % blocks.length;
+            slots.remove(blocks[slot]);
+        }
+        blocks[slot] = block;
+        slots.put(block, slot);
+        copyBlock(source, position, blockBytes, data, slot * blockBytes);
+    }
+
+    /**
+     * @return the number of bytes read from the file
+     */
+    long bytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the number of reads issued, each of a run of blocks
+     */
+    long reads() {
+        return reads.get();
+    }
+}
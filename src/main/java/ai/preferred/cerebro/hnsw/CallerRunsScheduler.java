@@ -0,0 +1,37 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Implementation of {@link LeafScheduler} searching every leaf one after
+ * another on the thread calling search. There is no hand-off nor context
+ * switch at all, which gives the best throughput when there are already
+ * at least as many concurrent queries as cores.
+ */
+public class CallerRunsScheduler implements LeafScheduler {
+
+    /**
+     * Singleton instance of {@link CallerRunsScheduler}.
+     */
+    public static final CallerRunsScheduler INSTANCE = new CallerRunsScheduler();
+
+    private CallerRunsScheduler() {
+    }
+
+    @Override
+    public void run(int numTasks, IntConsumer task) {
+        for (int i = 0; i < numTasks; i++) {
+            task.accept(i);
+        }
+    }
+
+    @Override
+    public int parallelism() {
+        return 1;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+}
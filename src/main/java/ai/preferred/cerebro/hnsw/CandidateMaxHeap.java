@@ -0,0 +1,144 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Binary max heap of (internal node id, distance) pairs kept in two
+ * parallel primitive arrays, so that pushing and popping candidates
+ * never allocates nor boxes. The node farthest away from the query
+ * sits at the top.
+ * </br>
+ * The heap grows when pushed past its capacity, callers that want a
+ * bounded heap check {@link #size()} and use {@link #updateTop(int, float)}
+ * instead, the same way {@link LeafSegment#searchLayer} does.
+ */
+final class CandidateMaxHeap {
+    private int[] ids;
+    private float[] distances;
+    private int size;
+
+    CandidateMaxHeap(int initialCapacity) {
+        ids = new int[Math.max(1, initialCapacity)];
+        distances = new float[ids.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Make sure the heap can hold capacity elements without growing.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            int newLength = Math.max(capacity, ids.length << 1);
+            int[] newIds = new int[newLength];
+            float[] newDistances = new float[newLength];
+            System.arraycopy(ids, 0, newIds, 0, size);
+            System.arraycopy(distances, 0, newDistances, 0, size);
+            ids = newIds;
+            distances = newDistances;
+        }
+    }
+
+    void push(int id, float distance) {
+        if (size == ids.length)
+            ensureCapacity(size + 1);
+        int i = size++;
+        //sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (distances[parent] >= distance)
+                break;
+            ids[i] = ids[parent];
+            distances[i] = distances[parent];
+            i = parent;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+    }
+
+    int topId() {
+        return ids[0];
+    }
+
+    float topDistance() {
+        return distances[0];
+    }
+
+    /**
+     * Remove the farthest candidate.
+     * @return the internal id of the removed candidate
+     */
+    int pop() {
+        int top = ids[0];
+        size--;
+        if (size > 0)
+            siftDown(ids[size], distances[size], size);
+        return top;
+    }
+
+    /**
+     * Replace the farthest candidate by a new one, equivalent to
+     * a {@link #pop()} followed by a {@link #push(int, float)} but
+     * with a single sift.
+     */
+    void updateTop(int id, float distance) {
+        siftDown(id, distance, size);
+    }
+
+    private void siftDown(int id, float distance, int length) {
+        int i = 0;
+        int half = length >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            int right = child + 1;
+            if (right < length && distances[right] > distances[child])
+                child = right;
+            if (distance >= distances[child])
+                break;
+            ids[i] = ids[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+    }
+
+    /**
+     * Heap-sort the candidates in place so that they can be read in
+     * ascending order of distance through {@link #id(int)} and
+     * {@link #distance(int)}. The heap is empty afterwards.
+     * @return the number of sorted candidates
+     */
+    int drainAscending() {
+        int count = size;
+        for (int last = count - 1; last > 0; last--) {
+            int topId = ids[0];
+            float topDistance = distances[0];
+            siftDown(ids[last], distances[last], last);
+            ids[last] = topId;
+            distances[last] = topDistance;
+        }
+        size = 0;
+        return count;
+    }
+
+    /**
+     * Raw access to the i-th slot of the underlying array, in heap order
+     * unless {@link #drainAscending()} has just been called.
+     */
+    int id(int i) {
+        return ids[i];
+    }
+
+    float distance(int i) {
+        return distances[i];
+    }
+}
@@ -0,0 +1,97 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Binary min heap of (internal node id, distance) pairs kept in two
+ * parallel primitive arrays. Used as the set of candidates whose
+ * neighbors are yet to be checked during a layer search, the closest
+ * candidate sits at the top.
+ */
+final class CandidateMinHeap {
+    private int[] ids;
+    private float[] distances;
+    private int size;
+
+    CandidateMinHeap(int initialCapacity) {
+        ids = new int[Math.max(1, initialCapacity)];
+        distances = new float[ids.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            int newLength = Math.max(capacity, ids.length << 1);
+            int[] newIds = new int[newLength];
+            float[] newDistances = new float[newLength];
+            System.arraycopy(ids, 0, newIds, 0, size);
+            System.arraycopy(distances, 0, newDistances, 0, size);
+            ids = newIds;
+            distances = newDistances;
+        }
+    }
+
+    void push(int id, float distance) {
+        if (size == ids.length)
+            ensureCapacity(size + 1);
+        int i = size++;
+        //sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (distances[parent] <= distance)
+                break;
+            ids[i] = ids[parent];
+            distances[i] = distances[parent];
+            i = parent;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+    }
+
+    int topId() {
+        return ids[0];
+    }
+
+    float topDistance() {
+        return distances[0];
+    }
+
+    /**
+     * Remove the closest candidate.
+     * @return the internal id of the removed candidate
+     */
+    int pop() {
+        int top = ids[0];
+        size--;
+        if (size > 0) {
+            int id = ids[size];
+            float distance = distances[size];
+            int i = 0;
+            int half = size >>> 1;
+            //sift down
+            while (i < half) {
+                int child = (i << 1) + 1;
+                int right = child + 1;
+                if (right < size && distances[right] < distances[child])
+                    child = right;
+                if (distance <= distances[child])
+                    break;
+                ids[i] = ids[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        }
+        return top;
+    }
+}
@@ -0,0 +1,284 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+/**
+ * Storage of {@link LeafLayout#COLUMNAR}. Node records are kept in pages
+ * of flat arrays indexed by internal id:
+ * <ul>
+ *     <li>the vectors, in a {@link VectorSlab}</li>
+ *     <li>the base layer connections, maxM0 + 1 ints per node: the number
+ *     of connections, -1 if there is no node, then the connections</li>
+ *     <li>the external ids</li>
+ *     <li>the upper layers connections, null for the nodes only present at
+ *     the base layer, otherwise maxM + 1 ints per level laid out the same
+ *     way as the base layer</li>
+ *     <li>the incoming connections, kept as lists if the index supports removal</li>
+ * </ul>
+ * Like the vectors, the records of a leaf loaded for searching fit in a
+ * single page, those of a leaf being written are added a page at a time.
+ * Pages never move once allocated, so the connections of a node can be
+ * changed while other nodes are inserted.
+ */
+final class ColumnarLeafStorage<TVector> extends LeafStorage<TVector> {
+    //one monitor per LOCK_STRIPES nodes, enough for the threads of one leaf
+    private static final int LOCK_STRIPES = 1024;
+    private static final int MAX_PAGE_BITS = 30;
+
+    private final VectorSlab<TVector> vectors;
+    private final int maxM0;
+    private final int maxM;
+    private final int level0Stride;
+    private final int upperStride;
+    private final boolean inConnections;
+    private final int pageBits;
+    private final int pageMask;
+
+    private final int[][] level0Pages;
+    private final long[][] externalIdPages;
+    private final int[][][] upperPages;
+    private final IntArrayList[][][] inConnectionPages;
+    private final Object[] locks;
+
+    ColumnarLeafStorage(VecHandler<TVector> handler, VectorSlab<TVector> vectors, int capacity,
+                        int maxM0, int maxM, boolean inConnections, boolean growable) {
+        super(handler, capacity);
+        this.vectors = vectors;
+        this.maxM0 = maxM0;
+        this.maxM = maxM;
+        this.level0Stride = maxM0 + 1;
+        this.upperStride = maxM + 1;
+        this.inConnections = inConnections;
+        this.pageBits = pageBits(capacity, level0Stride,
+                growable ? VectorSlab.GROWABLE_PAGE_BITS : MAX_PAGE_BITS);
+        this.pageMask = (1 << pageBits) - 1;
+        int numPages = (int) ((capacity + (1L << pageBits) - 1) >>> pageBits);
+        level0Pages = new int[numPages][];
+        externalIdPages = new long[numPages][];
+        upperPages = new int[numPages][][];
+        inConnectionPages = inConnections ? new IntArrayList[numPages][][] : null;
+        if (growable) {
+            locks = new Object[LOCK_STRIPES];
+            for (int i = 0; i < LOCK_STRIPES; i++) {
+                locks[i] = new Object();
+            }
+        }
+        else
+            locks = null;
+    }
+
+    private synchronized void ensurePage(int id) {
+        int page = id >>> pageBits;
+        if (level0Pages[page] != null)
+            return;
+        int length = pageLength(capacity, pageBits, page, 1);
+        externalIdPages[page] = new long[length];
+        upperPages[page] = new int[length][];
+        if (inConnections)
+            inConnectionPages[page] = new IntArrayList[length][];
+        int[] level0 = new int[length * level0Stride];
+        for (int i = 0; i < length; i++) {
+            level0[i * level0Stride] = -1;
+        }
+        level0Pages[page] = level0;
+    }
+
+    @Override
+    void put(int id, long externalId, TVector vector, int[][] outConns, int[][] inConns) {
+        ensurePage(id);
+        vectors.set(id, vector);
+        int page = id >>> pageBits;
+        int index = id & pageMask;
+        externalIdPages[page][index] = externalId;
+        if (outConns.length > 1)
+            upperPages[page][index] = new int[(outConns.length - 1) * upperStride];
+        for (int level = 0; level < outConns.length; level++) {
+            if (outConns[level].length > (level == 0 ? maxM0 : maxM))
+                throw new IllegalArgumentException("Node " + id + " has more connections than allowed at level " + level);
+            setConnections(id, level, outConns[level], outConns[level].length);
+        }
+        if (inConnections) {
+            IntArrayList[] lists = new IntArrayList[inConns.length];
+            for (int level = 0; level < inConns.length; level++) {
+                lists[level] = new IntArrayList(inConns[level]);
+            }
+            inConnectionPages[page][index] = lists;
+        }
+    }
+
+    @Override
+    void insert(int id, long externalId, TVector vector, int maxLevel) {
+        ensurePage(id);
+        vectors.set(id, vector);
+        int page = id >>> pageBits;
+        int index = id & pageMask;
+        externalIdPages[page][index] = externalId;
+        upperPages[page][index] = maxLevel == 0 ? null : new int[maxLevel * upperStride];
+        if (inConnections) {
+            IntArrayList[] lists = new IntArrayList[maxLevel + 1];
+            for (int level = 0; level <= maxLevel; level++) {
+                lists[level] = new IntArrayList(maxLevel == 0 ? maxM0 : maxM);
+            }
+            inConnectionPages[page][index] = lists;
+        }
+        level0Pages[page][index * level0Stride] = 0;
+    }
+
+    @Override
+    void remove(int id) {
+        int page = id >>> pageBits;
+        int index = id & pageMask;
+        level0Pages[page][index * level0Stride] = -1;
+        upperPages[page][index] = null;
+        if (inConnections)
+            inConnectionPages[page][index] = null;
+        vectors.clear(id);
+    }
+
+    @Override
+    boolean contains(int id) {
+        int[] level0 = level0Pages[id >>> pageBits];
+        return level0 != null && level0[(id & pageMask) * level0Stride] >= 0;
+    }
+
+    @Override
+    long externalId(int id) {
+        return externalIdPages[id >>> pageBits][id & pageMask];
+    }
+
+    @Override
+    int maxLevel(int id) {
+        int[] upper = upperPages[id >>> pageBits][id & pageMask];
+        return upper == null ? 0 : upper.length / upperStride;
+    }
+
+    @Override
+    TVector vector(int id) {
+        return vectors.get(id);
+    }
+
+    @Override
+    Node<TVector> node(int id) {
+        int maxLevel = maxLevel(id);
+        IntArrayList[] outConns = new IntArrayList[maxLevel + 1];
+        for (int level = 0; level <= maxLevel; level++) {
+            int[] conns = new int[connectionCount(id, level)];
+            copyConnections(id, level, conns);
+            outConns[level] = new IntArrayList(conns);
+        }
+        IntArrayList[] inConns = inConnections ? inConnectionPages[id >>> pageBits][id & pageMask] : null;
+        return new Node<>(id, outConns, inConns, new Item<>(externalId(id), vectors.get(id)));
+    }
+
+    @Override
+    void prepare(TVector query, ProductQuantizer.Table table) {
+        vectors.prepare(query, table);
+    }
+
+    @Override
+    float distance(TVector query, int id) {
+        return vectors.distance(query, id);
+    }
+
+    @Override
+    float prefixDistance(TVector query, int id, int length) {
+        return vectors.prefixDistance(query, id, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return vectors.distance(id1, id2);
+    }
+
+    @Override
+    boolean approximate() {
+        return vectors.approximate();
+    }
+
+    @Override
+    void exactDistances(TVector query, int[] ids, int count, float[] distances) {
+        vectors.exactDistances(query, ids, count, distances);
+    }
+
+    @Override
+    void free() {
+        vectors.free();
+    }
+
+    //the array holding the connections of a node at a level
+    private int[] record(int id, int level) {
+        if (level == 0)
+            return level0Pages[id >>> pageBits];
+        return upperPages[id >>> pageBits][id & pageMask];
+    }
+
+    //where the connections of a node at a level start in its record, with their count
+    private int offset(int id, int level) {
+        if (level == 0)
+            return (id & pageMask) * level0Stride;
+        return (level - 1) * upperStride;
+    }
+
+    @Override
+    int connectionCount(int id, int level) {
+        return record(id, level)[offset(id, level)];
+    }
+
+    @Override
+    int connection(int id, int level, int index) {
+        return record(id, level)[offset(id, level) + 1 + index];
+    }
+
+    @Override
+    int copyConnections(int id, int level, int[] buffer) {
+        int[] record = record(id, level);
+        int offset = offset(id, level);
+        int count = record[offset];
+        System.arraycopy(record, offset + 1, buffer, 0, count);
+        return count;
+    }
+
+    @Override
+    void addConnection(int id, int level, int neighbour) {
+        int[] record = record(id, level);
+        int offset = offset(id, level);
+        int count = record[offset];
+        record[offset + 1 + count] = neighbour;
+        record[offset] = count + 1;
+    }
+
+    @Override
+    void setConnections(int id, int level, int[] neighbours, int count) {
+        int[] record = record(id, level);
+        int offset = offset(id, level);
+        System.arraycopy(neighbours, 0, record, offset + 1, count);
+        record[offset] = count;
+    }
+
+    @Override
+    void removeConnection(int id, int level, int neighbour) {
+        int[] record = record(id, level);
+        int offset = offset(id, level);
+        int count = record[offset];
+        for (int i = offset + 1; i <= offset + count; i++) {
+            if (record[i] == neighbour) {
+                System.arraycopy(record, i + 1, record, i, offset + count - i);
+                record[offset] = count - 1;
+                return;
+            }
+        }
+    }
+
+    @Override
+    IntArrayList inConnections(int id, int level) {
+        if (!inConnections)
+            return null;
+        return inConnectionPages[id >>> pageBits][id & pageMask][level];
+    }
+
+    @Override
+    Object lock(int id) {
+        return locks[id & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,222 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Storage of {@link LeafLayout#COMPRESSED}: the vectors in a
+ * {@link VectorSlab} as in {@link ColumnarLeafStorage}, the connections
+ * encoded by {@link AdjacencyCodec}:
+ * <ul>
+ *     <li>the base layer lists of {@link #PAGE_BITS} bits of ids one
+ *     after another in a byte array, with the offset of each list in it,
+ *     -1 if there is no node</li>
+ *     <li>the upper layers lists of a node in a byte array of its own,
+ *     starting with the level of the node, null for the nodes only
+ *     present at the base layer</li>
+ * </ul>
+ * The nodes have to be put in the order of their ids, and the leaf is
+ * read only once loaded.
+ */
+final class CompressedLeafStorage<TVector> extends LeafStorage<TVector> {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final VectorSlab<TVector> vectors;
+    private final int maxM0;
+    private final int maxM;
+    private final long[] externalIds;
+    private final int[] level0Offsets;
+    private final byte[][] level0Pages;
+    private final byte[][] upperRecords;
+
+    //the page being filled while loading
+    private int lastId = -1;
+    private byte[] pageBuffer;
+    private int pageLength;
+    private int[] sortBuffer;
+
+    CompressedLeafStorage(VecHandler<TVector> handler, VectorSlab<TVector> vectors, int capacity, int maxM0, int maxM) {
+        super(handler, capacity);
+        this.vectors = vectors;
+        this.maxM0 = maxM0;
+        this.maxM = maxM;
+        externalIds = new long[capacity];
+        level0Offsets = new int[capacity];
+        Arrays.fill(level0Offsets, -1);
+        level0Pages = new byte[(capacity + PAGE_MASK) >>> PAGE_BITS][];
+        upperRecords = new byte[capacity][];
+        pageBuffer = new byte[AdjacencyCodec.maxLength(maxM0) << 4];
+        sortBuffer = new int[Math.max(maxM0, maxM)];
+    }
+
+    @Override
+    void put(int id, long externalId, TVector vector, int[][] outConns, int[][] inConns) {
+        if (id <= lastId)
+            throw new IllegalArgumentException("Nodes must be put in the order of their ids");
+        if (lastId >= 0 && id >>> PAGE_BITS != lastId >>> PAGE_BITS)
+            finishPage(lastId >>> PAGE_BITS);
+        lastId = id;
+        for (int level = 0; level < outConns.length; level++) {
+            if (outConns[level].length > (level == 0 ? maxM0 : maxM))
+                throw new IllegalArgumentException("Node " + id + " has more connections than allowed at level " + level);
+        }
+        vectors.set(id, vector);
+        externalIds[id] = externalId;
+
+        int needed = pageLength + AdjacencyCodec.maxLength(outConns[0].length);
+        if (needed > pageBuffer.length)
+            pageBuffer = Arrays.copyOf(pageBuffer, Math.max(needed, pageBuffer.length * 2));
+        level0Offsets[id] = pageLength;
+        pageLength = encode(outConns[0], pageBuffer, pageLength);
+
+        if (outConns.length > 1) {
+            int maxLevel = outConns.length - 1;
+            if (maxLevel > Byte.MAX_VALUE)
+                throw new IllegalArgumentException("Node " + id + " has too many levels");
+            byte[] record = new byte[1 + maxLevel * AdjacencyCodec.maxLength(maxM)];
+            record[0] = (byte) maxLevel;
+            int length = 1;
+            for (int level = 1; level <= maxLevel; level++) {
+                length = encode(outConns[level], record, length);
+            }
+            upperRecords[id] = Arrays.copyOf(record, length);
+        }
+    }
+
+    private int encode(int[] conns, byte[] out, int position) {
+        //sorted on a copy, the lists of the caller are left as they are
+        System.arraycopy(conns, 0, sortBuffer, 0, conns.length);
+        return AdjacencyCodec.encode(sortBuffer, conns.length, out, position);
+    }
+
+    private void finishPage(int page) {
+        level0Pages[page] = Arrays.copyOf(pageBuffer, pageLength);
+        pageLength = 0;
+    }
+
+    @Override
+    void seal() {
+        if (lastId >= 0 && level0Pages[lastId >>> PAGE_BITS] == null)
+            finishPage(lastId >>> PAGE_BITS);
+        pageBuffer = null;
+        sortBuffer = null;
+    }
+
+    @Override
+    void insert(int id, long externalId, TVector vector, int maxLevel) {
+        throw new UnsupportedOperationException("Compressed leaves are read only");
+    }
+
+    @Override
+    void remove(int id) {
+        throw new UnsupportedOperationException("Compressed leaves are read only");
+    }
+
+    @Override
+    boolean contains(int id) {
+        return level0Offsets[id] >= 0;
+    }
+
+    @Override
+    long externalId(int id) {
+        return externalIds[id];
+    }
+
+    @Override
+    int maxLevel(int id) {
+        byte[] record = upperRecords[id];
+        return record == null ? 0 : record[0];
+    }
+
+    @Override
+    TVector vector(int id) {
+        return vectors.get(id);
+    }
+
+    @Override
+    Node<TVector> node(int id) {
+        int maxLevel = maxLevel(id);
+        IntArrayList[] outConns = new IntArrayList[maxLevel + 1];
+        for (int level = 0; level <= maxLevel; level++) {
+            int[] conns = new int[connectionCount(id, level)];
+            copyConnections(id, level, conns);
+            outConns[level] = new IntArrayList(conns);
+        }
+        return new Node<>(id, outConns, null, new Item<>(externalId(id), vectors.get(id)));
+    }
+
+    @Override
+    float distance(TVector query, int id) {
+        return vectors.distance(query, id);
+    }
+
+    @Override
+    float prefixDistance(TVector query, int id, int length) {
+        return vectors.prefixDistance(query, id, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return vectors.distance(id1, id2);
+    }
+
+    //where the list of an upper level starts in the record of a node
+    private static int upperPosition(byte[] record, int level) {
+        int position = 1;
+        for (int i = 1; i < level; i++) {
+            position = AdjacencyCodec.skip(record, position);
+        }
+        return position;
+    }
+
+    @Override
+    int connectionCount(int id, int level) {
+        if (level == 0)
+            return AdjacencyCodec.count(level0Pages[id >>> PAGE_BITS], level0Offsets[id]);
+        byte[] record = upperRecords[id];
+        return AdjacencyCodec.count(record, upperPosition(record, level));
+    }
+
+    @Override
+    int connection(int id, int level, int index) {
+        int[] conns = new int[connectionCount(id, level)];
+        copyConnections(id, level, conns);
+        return conns[index];
+    }
+
+    @Override
+    int copyConnections(int id, int level, int[] buffer) {
+        if (level == 0)
+            return AdjacencyCodec.decode(level0Pages[id >>> PAGE_BITS], level0Offsets[id], buffer);
+        byte[] record = upperRecords[id];
+        return AdjacencyCodec.decode(record, upperPosition(record, level), buffer);
+    }
+
+    @Override
+    void addConnection(int id, int level, int neighbour) {
+        throw new UnsupportedOperationException("Compressed leaves are read only");
+    }
+
+    @Override
+    void setConnections(int id, int level, int[] neighbours, int count) {
+        throw new UnsupportedOperationException("Compressed leaves are read only");
+    }
+
+    @Override
+    void removeConnection(int id, int level, int neighbour) {
+        throw new UnsupportedOperationException("Compressed leaves are read only");
+    }
+
+    @Override
+    IntArrayList inConnections(int id, int level) {
+        return null;
+    }
+
+    @Override
+    Object lock(int id) {
+        return this;
+    }
+}
@@ -0,0 +1,49 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Epoch-stamped visited set like {@link EpochVisitedSet} that many threads
+ * can visit nodes of at once, used by {@link ParallelBeamSearch}. Marking
+ * a node is a compare-and-set, so exactly one thread gets to visit it.
+ * </br>
+ * Only {@link #visit(int)} and {@link #isVisited(int)} may be called
+ * concurrently, growing and clearing happen between searches.
+ */
+final class ConcurrentVisitedSet implements VisitedSet {
+    private AtomicIntegerArray marks;
+    private int epoch = 1;
+
+    ConcurrentVisitedSet(int capacity) {
+        this.marks = new AtomicIntegerArray(capacity);
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > marks.length()) {
+            //stamps of past epochs do not need to be kept
+            marks = new AtomicIntegerArray(capacity);
+            epoch = 1;
+        }
+    }
+
+    @Override
+    public boolean visit(int id) {
+        int mark = marks.get(id);
+        return mark != epoch && marks.compareAndSet(id, mark, epoch);
+    }
+
+    @Override
+    public boolean isVisited(int id) {
+        return marks.get(id) == epoch;
+    }
+
+    @Override
+    public void clear() {
+        if (epoch == Integer.MAX_VALUE) {
+            marks = new AtomicIntegerArray(marks.length());
+            epoch = 1;
+        }
+        else
+            epoch++;
+    }
+}
@@ -0,0 +1,110 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes and reads the connection files of a leaf one node at a time, in
+ * the layout kryo gives an {@code int[][][]} of the connections of every
+ * node by level, with its references on: every array is written as the
+ * marker of a new object, its length plus one and its elements, a node
+ * absent from the leaf as the marker of null. Neither side needs the
+ * connections of the whole leaf copied into one array.
+ */
+final class ConnectionsFile {
+
+    private ConnectionsFile() {
+    }
+
+    /**
+     * @param inbound whether to write the incoming connections of the nodes, rather than their outgoing ones
+     * @param maxConnections the most outgoing connections a node has on a level
+     */
+    static void write(File file, LeafStorage<?> storage, int nodeCount, boolean inbound, int maxConnections) {
+        int[] buffer = new int[maxConnections];
+        try (Output output = new Output(new FileOutputStream(file), VecHandler.STREAM_BUFFER_SIZE)) {
+            output.writeVarInt(Kryo.NOT_NULL, true);
+            output.writeVarInt(nodeCount + 1, true);
+            for (int i = 0; i < nodeCount; i++) {
+                if (!storage.contains(i)) {
+                    output.writeVarInt(Kryo.NULL, true);
+                    continue;
+                }
+                int levels = storage.maxLevel(i) + 1;
+                output.writeVarInt(Kryo.NOT_NULL, true);
+                output.writeVarInt(levels + 1, true);
+                for (int level = 0; level < levels; level++) {
+                    int count;
+                    if (inbound) {
+                        IntArrayList connections = storage.inConnections(i, level);
+                        count = connections.size();
+                        if (buffer.length < count)
+                            buffer = new int[count];
+                        for (int j = 0; j < count; j++) {
+                            buffer[j] = connections.get(j);
+                        }
+                    }
+                    else
+                        count = storage.copyConnections(i, level, buffer);
+                    output.writeVarInt(Kryo.NOT_NULL, true);
+                    output.writeVarInt(count + 1, true);
+                    output.writeInts(buffer, 0, count, false);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the connections of the nodes in order.
+     */
+    static final class Reader implements Closeable {
+        private final Input input;
+        private final int nodeCount;
+
+        Reader(File file) {
+            try {
+                input = new Input(new FileInputStream(file), VecHandler.STREAM_BUFFER_SIZE);
+            } catch (FileNotFoundException e) {
+                throw new UncheckedIOException(e);
+            }
+            input.readVarInt(true);
+            nodeCount = input.readVarInt(true) - 1;
+        }
+
+        int nodeCount() {
+            return nodeCount;
+        }
+
+        /**
+         * @return the connections of the next node by level, null if it is absent
+         */
+        int[][] next() {
+            if (input.readVarInt(true) == Kryo.NULL)
+                return null;
+            int[][] connections = new int[input.readVarInt(true) - 1][];
+            for (int level = 0; level < connections.length; level++) {
+                //the arrays are never shared, so never written as references
+                if (input.readVarInt(true) != Kryo.NULL)
+                    connections[level] = input.readInts(input.readVarInt(true) - 1, false);
+            }
+            return connections;
+        }
+
+        @Override
+        public void close() {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocation and explicit release of the direct buffers holding
+ * the {@link LeafLayout#OFF_HEAP} leaves.
+ * </br>
+ * The memory of a direct buffer is otherwise only given back once the
+ * garbage collector finds the buffer unreachable, which for buffers
+ * living as long as the index may be never. Releasing goes through
+ * sun.misc.Unsafe#invokeCleaner, if the JVM does not give access to it
+ * the buffers are left to the garbage collector.
+ */
+final class DirectMemory {
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private DirectMemory() {
+    }
+
+    /**
+     * @param bytes the size of the buffer, at most {@link Integer#MAX_VALUE}
+     * @return a direct buffer in the native byte order, so that its int,
+     * float and double views are read without swapping bytes
+     */
+    static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Direct buffers hold at most 2GB, asked for " + bytes + " bytes");
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Give the memory of a buffer back right away. Reading the buffer or
+     * any of its views afterwards may crash the JVM, so every reference
+     * to them must be dropped before.
+     * @param buffer a buffer returned by {@link #allocate(long)}, or null
+     */
+    static void free(ByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            //left to the garbage collector
+        }
+    }
+}
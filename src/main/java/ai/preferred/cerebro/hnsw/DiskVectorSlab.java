@@ -0,0 +1,351 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecFloatHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The vectors of {@link LeafLayout#DISK}: the codes of a
+ * {@link ScalarQuantizer} in memory, which the graph is searched with,
+ * and the float[] vectors in a file read through a {@link BlockCache},
+ * which the results are ranked with.
+ * </br>
+ * The file is little endian, made of a header of {@link #HEADER_BYTES}:
+ * <pre>
+ *     int magic, int version, int dimensions, int node count,
+ *     int bytes per block, int vectors per block,
+ *     long start of the codes, long start of the vectors, long file length
+ * </pre>
+ * followed by the smallest value and the step of each dimension as floats,
+ * the codes of every node one after another, and from a multiple of
+ * {@link #BLOCK_BYTES} the vectors in blocks of the bytes per block,
+ * which hold as many whole vectors as fit. Absent nodes have zeros.
+ */
+final class DiskVectorSlab extends VectorSlab<float[]> {
+    static final int MAGIC = 0x4B534944; //"DISK"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    //the size of the pages of the file system and of the sectors of most drives
+    static final int BLOCK_BYTES = 4096;
+    //largest run of consecutive blocks read at once
+    private static final int MAX_RUN_BLOCKS = 32;
+
+    private final VecFloatHandler handler;
+    private final ScalarQuantizer quantizer;
+    private final byte[][] codePages;
+    private final FileChannel channel;
+    private final BlockCache cache;
+    private final int vectorsPerBlock;
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * The buffers of the thread, and the candidates being ranked as blocks come in.
+     */
+    private final class Scratch implements BlockCache.BlockReader {
+        final float[] decoded;
+        final float[] vector;
+        final ByteBuffer buffer;
+        long[] blocks = new long[64];
+        //block of each candidate in the high bits, its index in the low bits, sorted
+        long[] keys = new long[64];
+        float[] query;
+        int[] ids;
+        int count;
+        float[] distances;
+
+        Scratch(int blockBytes) {
+            decoded = new float[dimensions];
+            vector = new float[dimensions];
+            buffer = ByteBuffer.allocate(blockBytes * Math.max(1, MAX_RUN_BLOCKS * BLOCK_BYTES / blockBytes))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void read(long block, ByteBuffer buffer, int position) {
+            int first = Arrays.binarySearch(keys, 0, count, block << 32);
+            for (int j = first >= 0 ? first : -first - 1; j < count && keys[j] >>> 32 == block; j++) {
+                int i = (int) keys[j];
+                int offset = position + (ids[i] % vectorsPerBlock) * dimensions * Float.BYTES;
+                for (int d = 0; d < dimensions; d++) {
+                    vector[d] = buffer.getFloat(offset + d * Float.BYTES);
+                }
+                distances[i] = (float) handler.distance(query, 0, vector, 0, dimensions);
+            }
+        }
+    }
+
+    /**
+     * Open the vector file of a leaf.
+     * @param capacity the number of nodes of the leaf, which the file must hold
+     * @param cacheBytes the memory taken by the blocks of vectors cached
+     */
+    DiskVectorSlab(VecFloatHandler handler, File file, int capacity, long cacheBytes) {
+        super(capacity, false);
+        this.handler = handler;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            read(channel, header, 0);
+            if (header.getInt(0) != MAGIC)
+                throw new IllegalArgumentException(file + " is not a disk vector file");
+            if (header.getInt(4) != VERSION)
+                throw new IllegalArgumentException(file + " is of version " + header.getInt(4)
+                        + ", only version " + VERSION + " is supported");
+            dimensions = header.getInt(8);
+            if (header.getInt(12) != capacity)
+                throw new IllegalArgumentException(file + " does not match the configuration of its leaf");
+            int blockBytes = header.getInt(16);
+            vectorsPerBlock = header.getInt(20);
+            long codesStart = header.getLong(24);
+            long vectorsStart = header.getLong(32);
+            if (header.getLong(40) != channel.size())
+                throw new IllegalArgumentException(file + " is truncated");
+
+            ByteBuffer parameters = ByteBuffer.allocate(2 * dimensions * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            read(channel, parameters, HEADER_BYTES);
+            float[] min = new float[dimensions];
+            float[] step = new float[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                min[i] = parameters.getFloat(i * Float.BYTES);
+                step[i] = parameters.getFloat((dimensions + i) * Float.BYTES);
+            }
+            quantizer = new ScalarQuantizer(min, step);
+
+            pageBits = LeafStorage.pageBits(capacity, Math.max(1, dimensions), MAX_PAGE_BITS);
+            pageMask = (1 << pageBits) - 1;
+            codePages = new byte[(int) ((capacity + (1L << pageBits) - 1) >>> pageBits)][];
+            long position = codesStart;
+            for (int page = 0; page < codePages.length; page++) {
+                codePages[page] = new byte[LeafStorage.pageLength(capacity, pageBits, page, dimensions)];
+                ByteBuffer codes = ByteBuffer.wrap(codePages[page]);
+                read(channel, codes, position);
+                position += codePages[page].length;
+            }
+            long numBlocks = (capacity + vectorsPerBlock - 1) / vectorsPerBlock;
+            cache = new BlockCache(channel, vectorsStart, blockBytes, numBlocks, cacheBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int blockBytes = cache.blockBytes();
+        scratch = ThreadLocal.withInitial(() -> new Scratch(blockBytes));
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IllegalArgumentException("Unexpected end of the disk vector file");
+        }
+    }
+
+    /**
+     * Write the vectors of a leaf to a disk vector file, written next to
+     * it then moved over it. The quantizer is fitted to the range of the
+     * vectors of the leaf.
+     * @param source the nodes of the leaf, of float[] vectors
+     * @param nodeCount the number of ids of the leaf
+     */
+    static void write(LeafStorage<float[]> source, int nodeCount, File file) {
+        ScalarQuantizer quantizer = ScalarQuantizer.fit(source, nodeCount);
+        int dimensions = quantizer.dimensions();
+        int vectorBytes = Math.max(1, dimensions * Float.BYTES);
+        int blockBytes = (vectorBytes + BLOCK_BYTES - 1) / BLOCK_BYTES * BLOCK_BYTES;
+        int vectorsPerBlock = blockBytes / vectorBytes;
+        long codesStart = align(HEADER_BYTES + 2L * dimensions * Float.BYTES, Long.BYTES);
+        long vectorsStart = align(codesStart + (long) nodeCount * dimensions, BLOCK_BYTES);
+        long numBlocks = ((long) nodeCount + vectorsPerBlock - 1) / vectorsPerBlock;
+        long length = vectorsStart + numBlocks * blockBytes;
+
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate((int) codesStart).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(nodeCount)
+                    .putInt(blockBytes).putInt(vectorsPerBlock)
+                    .putLong(codesStart).putLong(vectorsStart).putLong(length);
+            header.position(HEADER_BYTES);
+            for (float value : quantizer.min)
+                header.putFloat(value);
+            for (float value : quantizer.step)
+                header.putFloat(value);
+            header.clear();
+            write(channel, header, 0);
+
+            byte[] codes = new byte[dimensions];
+            ByteBuffer codeBuffer = ByteBuffer.allocate(Math.max(dimensions, 1 << 16));
+            ByteBuffer block = ByteBuffer.allocate(blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+            long codePosition = codesStart;
+            long blockPosition = vectorsStart;
+            for (int id = 0; id < nodeCount; id++) {
+                if (source.contains(id)) {
+                    float[] vector = source.vector(id);
+                    quantizer.encode(vector, codes, 0);
+                    int offset = (id % vectorsPerBlock) * vectorBytes;
+                    for (int i = 0; i < dimensions; i++)
+                        block.putFloat(offset + i * Float.BYTES, vector[i]);
+                }
+                else
+                    Arrays.fill(codes, (byte) 0);
+                if (codeBuffer.remaining() < dimensions)
+                    codePosition = flush(channel, codeBuffer, codePosition);
+                codeBuffer.put(codes);
+                if (id % vectorsPerBlock == vectorsPerBlock - 1 || id == nodeCount - 1) {
+                    block.clear();
+                    blockPosition += write(channel, block, blockPosition);
+                    Arrays.fill(block.array(), (byte) 0);
+                }
+            }
+            flush(channel, codeBuffer, codePosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long align(long position, int alignment) {
+        return (position + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer, position + written);
+        return written;
+    }
+
+    /**
+     * @return the position following the bytes written
+     */
+    private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        position += write(channel, buffer, position);
+        buffer.clear();
+        return position;
+    }
+
+    @Override
+    void set(int id, float[] vector) {
+        throw new UnsupportedOperationException("Disk leaves are read only");
+    }
+
+    @Override
+    float[] get(int id) {
+        float[] vector = new float[dimensions];
+        read(id, vector, scratch.get().buffer);
+        return vector;
+    }
+
+    private void read(int id, float[] vector, ByteBuffer buffer) {
+        cache.copy(id / vectorsPerBlock, (id % vectorsPerBlock) * dimensions * Float.BYTES,
+                vector, dimensions, buffer);
+    }
+
+    /**
+     * @return the distance of the query to the decoded codes of the node
+     */
+    @Override
+    float distance(float[] query, int id) {
+        float[] decoded = scratch.get().decoded;
+        quantizer.decode(codePages[id >>> pageBits], (id & pageMask) * dimensions, decoded);
+        return (float) handler.distance(query, 0, decoded, 0, dimensions);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(get(id1), get(id2));
+    }
+
+    @Override
+    boolean approximate() {
+        return true;
+    }
+
+    /**
+     * Read the blocks holding the vectors of the nodes, in the order of
+     * the file so that those next to each other are read at once, and
+     * compute the exact distances as the blocks come in.
+     */
+    @Override
+    void exactDistances(float[] query, int[] ids, int count, float[] distances) {
+        Scratch scratch = this.scratch.get();
+        if (scratch.keys.length < count) {
+            scratch.keys = new long[Math.max(count, scratch.keys.length << 1)];
+            scratch.blocks = new long[scratch.keys.length];
+        }
+        long[] keys = scratch.keys;
+        for (int i = 0; i < count; i++) {
+            keys[i] = (long) (ids[i] / vectorsPerBlock) << 32 | i;
+        }
+        Arrays.sort(keys, 0, count);
+        long[] blocks = scratch.blocks;
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            long block = keys[i] >>> 32;
+            if (unique == 0 || blocks[unique - 1] != block)
+                blocks[unique++] = block;
+        }
+        scratch.query = query;
+        scratch.ids = ids;
+        scratch.count = count;
+        scratch.distances = distances;
+        cache.read(blocks, unique, scratch.buffer, scratch);
+        scratch.query = null;
+        scratch.ids = null;
+        scratch.distances = null;
+    }
+
+    /**
+     * @return the number of bytes of vectors read from the file
+     */
+    long bytesRead() {
+        return cache.bytesRead();
+    }
+
+    /**
+     * @return the number of reads of the file issued
+     */
+    long reads() {
+        return cache.reads();
+    }
+
+    @Override
+    void createPages(int numPages) {
+        throw new UnsupportedOperationException("Disk leaves are read only");
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return true;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        throw new UnsupportedOperationException("Disk leaves are read only");
+    }
+
+    @Override
+    void free() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
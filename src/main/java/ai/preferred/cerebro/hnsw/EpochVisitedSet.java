@@ -0,0 +1,53 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.Arrays;
+
+/**
+ * Visited set stamping each visited node with the number of the current
+ * search (its epoch). Clearing is just moving on to the next epoch, so
+ * unlike {@link BitSet} the array only needs to be reset once every
+ * {@link Short#MAX_VALUE} searches.
+ */
+final class EpochVisitedSet implements VisitedSet {
+    private short[] marks;
+    private short epoch = 1;
+
+    /**
+     * @param capacity the number of nodes of the largest leaf to be searched,
+     *                 ids past it make the set grow as they are visited
+     */
+    EpochVisitedSet(int capacity) {
+        this.marks = new short[capacity];
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > marks.length)
+            marks = Arrays.copyOf(marks, capacity);
+    }
+
+    @Override
+    public boolean visit(int id) {
+        //a node inserted while a writer searches may be past the capacity
+        if (id >= marks.length)
+            marks = Arrays.copyOf(marks, Math.max(id + 1, marks.length << 1));
+        if (marks[id] == epoch)
+            return false;
+        marks[id] = epoch;
+        return true;
+    }
+
+    @Override
+    public boolean isVisited(int id) {
+        return id < marks.length && marks[id] == epoch;
+    }
+
+    @Override
+    public void clear() {
+        if (epoch == Short.MAX_VALUE) {
+            Arrays.fill(marks, (short) 0);
+            epoch = 1;
+        }
+        else
+            epoch++;
+    }
+}
@@ -0,0 +1,190 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Implementation of {@link LeafScheduler} handing the tasks over to an
+ * executor so that the leaves are searched in parallel, the calling thread
+ * runs the first task itself instead of waiting idle. Gives the lowest
+ * latency for a single query as long as there are idle cores.
+ */
+public class FanOutScheduler implements LeafScheduler {
+    private static FanOutScheduler shared;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final boolean ownsExecutor;
+
+    /**
+     * Fan out to a new thread pool, which is shut down when the scheduler is closed.
+     * @param numThreads the number of threads of the pool
+     */
+    public FanOutScheduler(int numThreads) {
+        this(Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("searcher-%d")), numThreads, true);
+    }
+
+    /**
+     * Fan out to an executor managed by the caller, closing the scheduler
+     * does not shut it down.
+     * @param executor the executor to run the tasks
+     * @param parallelism the number of tasks the executor can run at once
+     */
+    public FanOutScheduler(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, false);
+    }
+
+    private FanOutScheduler(ExecutorService executor, int parallelism, boolean ownsExecutor) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * @return a scheduler over a daemon thread pool with one thread per core,
+     * shared by every searcher of the process and never shut down
+     */
+    public static synchronized FanOutScheduler shared() {
+        if (shared == null) {
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            shared = new FanOutScheduler(
+                    Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("shared-searcher-%d", true)),
+                    numThreads, false);
+        }
+        return shared;
+    }
+
+    /**
+     * @return true if the running JDK supports virtual threads (JDK 21 and later)
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return a scheduler starting a virtual thread per task, so that blocked
+     * queries do not hold on to platform threads
+     * @throws UnsupportedOperationException if the JDK does not support virtual threads
+     */
+    public static FanOutScheduler virtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new FanOutScheduler((ExecutorService) factory.invoke(null),
+                    Runtime.getRuntime().availableProcessors(), true);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void run(int numTasks, IntConsumer task) {
+        if (numTasks == 0)
+            return;
+        Future<?>[] futures = new Future<?>[numTasks - 1];
+        for (int i = 1; i < numTasks; i++) {
+            final int taskNum = i;
+            futures[i - 1] = executor.submit(() -> task.accept(taskNum));
+        }
+        Throwable failure = null;
+        try {
+            task.accept(0);
+        } catch (Throwable t) {
+            failure = t;
+        }
+        for (Future<?> future : futures) {
+            failure = await(future, failure);
+        }
+        rethrow(failure);
+    }
+
+    @Override
+    public void runCooperatively(int numTasks, IntConsumer task) {
+        //each helper is claimed either by the thread about to run it or,
+        //once task 0 is done, by the caller to skip it
+        AtomicIntegerArray claimed = new AtomicIntegerArray(numTasks);
+        Future<?>[] futures = new Future<?>[numTasks - 1];
+        for (int i = 1; i < numTasks; i++) {
+            final int taskNum = i;
+            futures[i - 1] = executor.submit(() -> {
+                if (claimed.compareAndSet(taskNum, 0, 1))
+                    task.accept(taskNum);
+            });
+        }
+        Throwable failure = null;
+        try {
+            task.accept(0);
+        } catch (Throwable t) {
+            failure = t;
+        }
+        for (int i = 1; i < numTasks; i++) {
+            if (claimed.compareAndSet(i, 0, 1))
+                continue;
+            //the helper is running, wait for it to be done with the shared work
+            failure = await(futures[i - 1], failure);
+        }
+        rethrow(failure);
+    }
+
+    /**
+     * Wait for a task to be done, also when interrupted, so that no task
+     * is still writing into the buffers of the caller once it returns.
+     * @param failure the first failure of the tasks so far, null if none
+     * @return the first failure including this task
+     */
+    private static Throwable await(Future<?> future, Throwable failure) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return failure;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (failure == null)
+                        failure = new ThreadInterruptedException(e);
+                } catch (ExecutionException e) {
+                    return failure != null ? failure : e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    //unchecked failures as they are, the others wrapped
+    private static void rethrow(Throwable failure) {
+        if (failure == null)
+            return;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        throw new RuntimeException(failure);
+    }
+
+    @Override
+    public int parallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+}
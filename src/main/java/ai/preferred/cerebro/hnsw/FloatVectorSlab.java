@@ -0,0 +1,62 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecFloatHandler;
+
+import java.util.Arrays;
+
+/**
+ * Slab of float[] vectors, distances being computed in place by
+ * {@link VecFloatHandler#distance(float[], int, float[], int, int)}.
+ */
+final class FloatVectorSlab extends VectorSlab<float[]> {
+    private final VecFloatHandler handler;
+    private float[][] pages;
+
+    FloatVectorSlab(VecFloatHandler handler, int capacity, boolean growable) {
+        super(capacity, growable);
+        this.handler = handler;
+    }
+
+    @Override
+    void set(int id, float[] vector) {
+        ensurePage(id, vector.length);
+        System.arraycopy(vector, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    float[] get(int id) {
+        int offset = (id & pageMask) * dimensions;
+        return Arrays.copyOfRange(pages[id >>> pageBits], offset, offset + dimensions);
+    }
+
+    @Override
+    float distance(float[] query, int id) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    float prefixDistance(float[] query, int id, int length) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(pages[id1 >>> pageBits], (id1 & pageMask) * dimensions,
+                pages[id2 >>> pageBits], (id2 & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    void createPages(int numPages) {
+        pages = new float[numPages][];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return pages[page] != null;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        pages[page] = new float[length];
+    }
+}
@@ -0,0 +1,64 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHalfFloatHandler;
+
+/**
+ * Slab of float[] vectors kept as halves, two bytes per element, distances
+ * being computed in place by
+ * {@link VecHalfFloatHandler#distance(float[], int, short[], int, int)}.
+ */
+final class HalfFloatVectorSlab extends VectorSlab<float[]> {
+    private final VecHalfFloatHandler handler;
+    private short[][] pages;
+
+    HalfFloatVectorSlab(VecHalfFloatHandler handler, int capacity, boolean growable) {
+        super(capacity, growable);
+        this.handler = handler;
+    }
+
+    @Override
+    void set(int id, float[] vector) {
+        ensurePage(id, vector.length);
+        short[] page = pages[id >>> pageBits];
+        int offset = (id & pageMask) * dimensions;
+        for (int i = 0; i < dimensions; i++) {
+            page[offset + i] = handler.toHalf(vector[i]);
+        }
+    }
+
+    @Override
+    float[] get(int id) {
+        return handler.toFloats(pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    float distance(float[] query, int id) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    float prefixDistance(float[] query, int id, int length) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(pages[id1 >>> pageBits], (id1 & pageMask) * dimensions,
+                pages[id2 >>> pageBits], (id2 & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    void createPages(int numPages) {
+        pages = new short[numPages][];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return pages[page] != null;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        pages[page] = new short[length];
+    }
+}
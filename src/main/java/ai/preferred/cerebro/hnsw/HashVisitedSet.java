@@ -0,0 +1,106 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Open-addressing (linear probing) hash set of node ids, sized to the
+ * number of nodes a search is expected to visit rather than to the
+ * capacity of the leaf. Meant for low ef searches on large leaves,
+ * where touching a few thousand slots of a small table is cheaper
+ * than stamping a large array. The slots taken are recorded so that
+ * clearing costs as much as the search before it, however large the
+ * table has grown for an earlier one.
+ */
+final class HashVisitedSet implements VisitedSet {
+    private static final int MIN_BITS = 6;
+    //ids are stored shifted by one so that 0 marks a free slot
+    private int[] table;
+    //slots taken since the last clear, in the order they were taken
+    private int[] taken;
+    private int bits;
+    private int size;
+    private int maxSize;
+
+    HashVisitedSet(int expectedSize) {
+        allocate(bitsFor(expectedSize));
+    }
+
+    private static int bitsFor(int expectedSize) {
+        //keep the load factor under 0.5
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, expectedSize * 2 - 1));
+        return Math.max(MIN_BITS, bits);
+    }
+
+    private void allocate(int bits) {
+        this.bits = bits;
+        this.table = new int[1 << bits];
+        this.maxSize = table.length >>> 1;
+        this.taken = new int[maxSize + 1];
+    }
+
+    /**
+     * Grow the table up front if a search is expected to visit more
+     * nodes than it can hold, to avoid rehashing in the middle of it.
+     */
+    void ensureExpectedSize(int expectedSize) {
+        int wanted = bitsFor(expectedSize);
+        if (wanted > bits && size == 0)
+            allocate(wanted);
+    }
+
+    private int slot(int key) {
+        return (key * 0x9E3779B9) >>> (32 - bits);
+    }
+
+    @Override
+    public boolean visit(int id) {
+        int key = id + 1;
+        int mask = table.length - 1;
+        int i = slot(key);
+        int current;
+        while ((current = table[i]) != 0) {
+            if (current == key)
+                return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+        taken[size] = i;
+        if (++size > maxSize)
+            rehash();
+        return true;
+    }
+
+    @Override
+    public boolean isVisited(int id) {
+        int key = id + 1;
+        int mask = table.length - 1;
+        int i = slot(key);
+        int current;
+        while ((current = table[i]) != 0) {
+            if (current == key)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private void rehash() {
+        int[] oldTable = table;
+        int[] oldTaken = taken;
+        allocate(bits + 1);
+        int mask = table.length - 1;
+        for (int n = 0; n < size; n++) {
+            int key = oldTable[oldTaken[n]];
+            int i = slot(key);
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = key;
+            taken[n] = i;
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int n = 0; n < size; n++)
+            table[taken[n]] = 0;
+        size = 0;
+    }
+}
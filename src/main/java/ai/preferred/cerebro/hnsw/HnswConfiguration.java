@@ -18,6 +18,8 @@ public class HnswConfiguration {
     private static final int DEFAULT_MAX_ITEM = 2_000_000;
     private static final boolean DEFAULT_MEMORY_MODE = false;
     private static final boolean DEFAULT_HEURISTIC_MODE = true;
+    private static final boolean DEFAULT_CLUSTERED = false;
+    private static final LeafLayout DEFAULT_LEAF_LAYOUT = LeafLayout.NODES;
 
     VecHandler handler;
     Comparator distanceComparator;
@@ -46,6 +48,8 @@ public class HnswConfiguration {
 
     boolean useHeuristic = DEFAULT_HEURISTIC_MODE;
     boolean lowMemoryMode = DEFAULT_MEMORY_MODE;
+    boolean clustered = DEFAULT_CLUSTERED;
+    LeafLayout leafLayout = DEFAULT_LEAF_LAYOUT;
 
     public HnswConfiguration(VecHandler handler) {
         this.handler = handler;
@@ -129,4 +133,51 @@ public class HnswConfiguration {
     public void setLowMemoryMode(boolean lowMemoryMode) {
         this.lowMemoryMode = lowMemoryMode;
     }
+
+    /**
+     * If {@link #clustered} is true, the first insert into the index trains
+     * k-means centroids on a sample of the items, one centroid per leaf, and
+     * every item goes to the leaf of its nearest centroid that has room left.
+     * Searchers can then probe only the leaves whose centroids are closest
+     * to a query, see {@link SearcherConfiguration#setLeafProbes(int)}.
+     * </br>
+     * Enough leaves are created to hold the first insert with some room to
+     * spare, later inserts are routed to the same leaves. Takes precedence
+     * over {@link #lowMemoryMode}.
+     * @return
+     */
+    public boolean isClustered() {
+        return clustered;
+    }
+
+    /**
+     * Setting value of {@link #clustered}
+     * @param clustered
+     */
+    public void setClustered(boolean clustered) {
+        this.clustered = clustered;
+    }
+
+    /**
+     * How the leaves being written lay out their nodes in memory, see
+     * {@link LeafLayout}. Not saved with the index, a searcher picks
+     * its own with {@link SearcherConfiguration#setLeafLayout(LeafLayout)}.
+     * Defaults to {@link LeafLayout#NODES}, {@link LeafLayout#COLUMNAR}
+     * takes less memory and builds faster.
+     * @return
+     */
+    public LeafLayout getLeafLayout() {
+        return leafLayout;
+    }
+
+    /**
+     * Setting value of {@link #leafLayout}, only {@link LeafLayout#NODES}
+     * and {@link LeafLayout#COLUMNAR} can be written to
+     * @param leafLayout
+     */
+    public void setLeafLayout(LeafLayout leafLayout) {
+        if (!leafLayout.writable())
+            throw new IllegalArgumentException(leafLayout + " leaves are read only, they can only be used by searchers");
+        this.leafLayout = leafLayout;
+    }
 }
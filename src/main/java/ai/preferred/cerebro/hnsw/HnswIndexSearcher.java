@@ -1,10 +1,13 @@
 package ai.preferred.cerebro.hnsw;
 
+import ai.preferred.cerebro.handler.VecHandler;
 import org.apache.lucene.search.*;
-import org.apache.lucene.util.ThreadInterruptedException;
 
-import java.util.*;
-import java.util.concurrent.*;
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 
 /**
@@ -15,60 +18,472 @@ import java.util.concurrent.*;
  *
  * @author hpminh@apcs.vn
  */
-public class HnswIndexSearcher<TVector> extends ParentHnsw<TVector> {
-    ExecutorService executor;
+public class HnswIndexSearcher<TVector> extends ParentHnsw<TVector> implements Closeable {
+    private final LeafScheduler scheduler;
+    private final float leafPruningSlack;
+    private final int leafProbes;
+    private final float leafProbeSlack;
+    private final int maxIntraLeafWorkers;
+    private final long intraLeafThreshold;
+    private final long diskCacheBytes;
+    //null unless the leaves are product quantized
+    private final ProductQuantizer productQuantizer;
+    private final boolean productQuantizationRerank;
+    private final boolean binaryRerank;
+    private final LeafResidency<TVector> residency;
+    //opened the first time it is asked for, searches do not need it
+    private IdLookup idLookup;
 
     /**
      * Load into memory all the leaf segments of an already existing index
      * @param idxDir
      */
     public HnswIndexSearcher(String idxDir){
+        this(idxDir, new SearcherConfiguration());
+    }
+
+    /**
+     * Load into memory all the leaf segments of an already existing index,
+     * or only open it if the leaves are loaded on first access, see
+     * {@link SearcherConfiguration#setMemoryBudget(long)}
+     * @param idxDir the directory containing the index
+     * @param searcherConfiguration runtime settings of the searcher
+     */
+    public HnswIndexSearcher(String idxDir, SearcherConfiguration searcherConfiguration){
         super(idxDir);
-        executor = Executors.newFixedThreadPool(nleaves);
-        int maxNodeCount = 0;
+        leafPruningSlack = searcherConfiguration.leafPruningSlack;
+        leafProbes = searcherConfiguration.leafProbes;
+        leafProbeSlack = searcherConfiguration.leafProbeSlack;
+        maxIntraLeafWorkers = searcherConfiguration.maxIntraLeafWorkers;
+        intraLeafThreshold = searcherConfiguration.intraLeafThreshold;
+        diskCacheBytes = searcherConfiguration.diskCacheBytes;
+        if (searcherConfiguration.leafLayout == LeafLayout.PRODUCT_QUANTIZED) {
+            File quantizerFile = new File(idxDir + globalProductQuantizerFileName);
+            if (!quantizerFile.exists())
+                throw new IllegalArgumentException("The index has no product quantizer, "
+                        + "train one with HnswIndexSearcher.trainProductQuantizer");
+            productQuantizer = ProductQuantizer.load(quantizerFile);
+        }
+        else
+            productQuantizer = null;
+        productQuantizationRerank = searcherConfiguration.productQuantizationRerank;
+        binaryRerank = searcherConfiguration.binaryRerank;
+        if (searcherConfiguration.scheduler != null)
+            scheduler = searcherConfiguration.scheduler;
+        else
+            //enough threads to search every leaf at once, and to keep
+            //every core busy when searching a batch of queries
+            scheduler = new FanOutScheduler(Math.max(nleaves, Runtime.getRuntime().availableProcessors()));
         leaves = new LeafSegmentSearcher[nleaves];
-        //load all leaves
+        residency = new LeafResidency<>(this, idxDir, searcherConfiguration.leafLayout,
+                searcherConfiguration.memoryBudget);
+        if (!searcherConfiguration.lazyLoading && searcherConfiguration.memoryBudget == 0) {
+            //load all leaves, in parallel
+            forEachLeaf(nleaves, residency::leaf);
+        }
+    }
+
+    /**
+     * Write the mapped leaf file of every leaf of a saved index, to be
+     * searched with {@link LeafLayout#MAPPED}, the connections as raw ints.
+     * @param idxDir the directory containing the index
+     * @see #writeMappedLeaves(String, boolean)
+     */
+    static public void writeMappedLeaves(String idxDir) {
+        writeMappedLeaves(idxDir, false);
+    }
+
+    /**
+     * Write the mapped leaf file of every leaf of a saved index, to be
+     * searched with {@link LeafLayout#MAPPED}. The leaves are loaded one
+     * at a time, so this takes the memory of the largest leaf. Writing
+     * the files again replaces them atomically, searchers having mapped
+     * the previous ones keep searching them until they are closed.
+     * @param idxDir the directory containing the index
+     * @param compressAdjacency whether to encode the connections as in
+     *                          {@link LeafLayout#COMPRESSED}, which makes the
+     *                          files smaller and the searches decode them
+     */
+    static public void writeMappedLeaves(String idxDir, boolean compressAdjacency) {
+        ParentHnsw<Object> index = new ParentHnsw<Object>(idxDir) {};
+        for (int i = 0; i < index.nleaves; i++) {
+            LeafSegmentSearcher<Object> leaf = new LeafSegmentSearcher<>(index, i, idxDir, LeafLayout.COLUMNAR);
+            leaf.writeMapped(idxDir, compressAdjacency);
+            leaf.release();
+        }
+    }
+
+    /**
+     * Write the graph and vector files of every leaf of a saved index, to be
+     * searched with {@link LeafLayout#DISK}. The leaves are loaded one at a
+     * time, so this takes the memory of the largest leaf. Writing the files
+     * again replaces them atomically.
+     * @param idxDir the directory containing the index
+     * @param compressAdjacency whether to encode the connections as in
+     *                          {@link LeafLayout#COMPRESSED}, which takes
+     *                          less memory once loaded
+     */
+    static public void writeDiskLeaves(String idxDir, boolean compressAdjacency) {
+        ParentHnsw<Object> index = new ParentHnsw<Object>(idxDir) {};
+        for (int i = 0; i < index.nleaves; i++) {
+            LeafSegmentSearcher<Object> leaf = new LeafSegmentSearcher<>(index, i, idxDir, LeafLayout.COLUMNAR);
+            leaf.writeDisk(idxDir, compressAdjacency);
+            leaf.release();
+        }
+    }
+
+    /**
+     * Train the product quantizer of a saved index on a sample of its
+     * vectors, to be searched with {@link LeafLayout#PRODUCT_QUANTIZED}.
+     * The vectors of the leaves are read one after another without loading
+     * the leaves, the sample being drawn uniformly from all of them. Training
+     * it again replaces it atomically, searchers having loaded the previous
+     * one keep it until they are closed.
+     * @param idxDir the directory containing the index
+     * @param subspaces the number of groups of consecutive elements, each
+     *                  quantized to one byte, at most the length of the vectors
+     * @param sampleSize the number of vectors the centroids are trained on
+     */
+    static public void trainProductQuantizer(String idxDir, int subspaces, int sampleSize) {
+        if (sampleSize < 1)
+            throw new IllegalArgumentException("Product quantizers are trained on at least one vector");
+        ParentHnsw<Object> index = new ParentHnsw<Object>(idxDir) {};
+        VecHandler<Object> handler = index.handler();
+        //reservoir sampling, every vector read has the same chance to be in the sample
+        List<float[]> sample = new ArrayList<>();
+        Random random = new Random(42);
+        long[] seen = new long[1];
+        for (int i = 0; i < index.nleaves; i++) {
+            handler.load(LeafSegment.vectorsFile(idxDir, i), (vector, id) -> {
+                if (vector == null)
+                    return;
+                long position = seen[0]++;
+                if (sample.size() < sampleSize)
+                    sample.add(ProductQuantizer.toFloats(vector));
+                else {
+                    long replaced = (long) (random.nextDouble() * (position + 1));
+                    if (replaced < sampleSize)
+                        sample.set((int) replaced, ProductQuantizer.toFloats(vector));
+                }
+            });
+        }
+        ProductQuantizer.train(sample, subspaces, 42).save(new File(idxDir + globalProductQuantizerFileName));
+    }
+
+    @Override
+    long diskCacheBytes() {
+        return diskCacheBytes;
+    }
+
+    @Override
+    ProductQuantizer productQuantizer() {
+        return productQuantizer;
+    }
+
+    @Override
+    boolean productQuantizationRerank() {
+        return productQuantizationRerank;
+    }
+
+    @Override
+    boolean binaryRerank() {
+        return binaryRerank;
+    }
+
+    /**
+     * @return the table of the dot products of the query filled once for
+     * all the leaves, null unless they are product quantized
+     */
+    private ProductQuantizer.Table productQuantizerTable(SearchContext context, TVector query) {
+        if (productQuantizer == null || !configuration.handler.isDotProductBased())
+            return null;
+        return context.productQuantizerTable(productQuantizer, query);
+    }
+
+    /**
+     * @return the number of bytes of vectors the leaves of
+     * {@link LeafLayout#DISK} have read from disk so far
+     */
+    public long getDiskBytesRead() {
+        long bytes = 0;
         for (int i = 0; i < nleaves; i++) {
-            leaves[i] = new LeafSegmentSearcher<>(this, i, idxDir);
-            if (leaves[i].getNodeCount() > maxNodeCount)
-                maxNodeCount = leaves[i].getNodeCount();
+            LeafSegment<TVector> leaf = leaves[i];
+            if (leaf != null)
+                bytes += leaf.diskBytesRead();
         }
-        int finalMaxNodeCount = maxNodeCount;
-        this.visitedBitSetPool = new GenericObjectPool<>(() -> new BitSet(finalMaxNodeCount), nleaves);
+        return bytes;
     }
 
     /**
-     * conduct search on all leaf segment then aggregate
+     * @return the map of the external ids of the items to their global ids,
+     * mapped from its file the first time it is asked for
+     */
+    @Override
+    public synchronized IdLookup getLookup() {
+        if (idLookup == null) {
+            File lookupFile = new File(idxDir + globalLookupFileName);
+            idLookup = lookupFile.exists() ? new SortedIdLookup(lookupFile) : loadLookup();
+        }
+        return idLookup;
+    }
+
+    /**
+     * @param leafNum the ordered id of the leaf
+     * @return the searcher of a single leaf segment, for callers that want
+     * to search the leaves on their own threads, loaded if need be
+     */
+    public LeafSegmentSearcher<TVector> getLeaf(int leafNum) {
+        return residency.leaf(leafNum);
+    }
+
+    @Override
+    LeafSegment<TVector> leaf(int leafNum) {
+        return residency.leaf(leafNum);
+    }
+
+    /**
+     * @return where the leaves live and how often they are searched,
+     * see {@link SearcherConfiguration#setMemoryBudget(long)}
+     */
+    public ResidencyStats getResidencyStats() {
+        return residency.stats();
+    }
+
+    /**
+     * conduct search on all leaf segment then aggregate their results,
+     * writing the ids and the distances of the top results into buffers
+     * supplied by the caller. The leaves are searched on the threads picked
+     * by the {@link LeafScheduler} of the searcher, apart from handing them
+     * over nothing is allocated.
      * @param query the query vectors
      * @param k the number of top results to be selected
-     * @return the internal Ids of the top results and their scores
+     * @param ids filled with the external ids of the top results, closest first,
+     *            must have room for at least k elements
+     * @param distances filled with the raw distances of the top results to the
+     *                  query as computed by the handler, must have room for at
+     *                  least k elements
+     * @return the number of results written, may be less than k
      */
-    public TopDocs search(TVector query, int k){
+    public int search(TVector query, int k, long[] ids, float[] distances){
+        return search(query, k, ids, distances, null);
+    }
+
+    /**
+     * Same as {@link #search(Object, int, long[], float[])} with per-query settings.
+     * @param options the settings of this search, null for those of the index
+     */
+    public int search(TVector query, int k, long[] ids, float[] distances, SearchOptions options){
         final int limit = Math.max(1, configuration.maxItemLeaf);
         final int cappedNumHits = Math.min(k, limit);
 
-        final List<Future<TopDocs>> topDocsFutures = new ArrayList<>(nleaves);
-        for (int i = 0; i < nleaves; ++i) {
-            LeafSegmentSearcher<TVector> leaf = (LeafSegmentSearcher<TVector>) leaves[i];
-            topDocsFutures.add(executor.submit(new Callable<TopDocs>() {
-                @Override
-                public TopDocs call() throws Exception {
-                    return leaf.findNearest(query, k);
-                }
-            }));
-        }
-        int i =0;
-        final TopDocs[] collectedTopdocs = new TopDocs[nleaves];
-        for (Future<TopDocs> future : topDocsFutures) {
-            try {
-                collectedTopdocs[i] = future.get();
-                i++;
-            } catch (InterruptedException e) {
-                throw new ThreadInterruptedException(e);
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
+        SearchContext context = getSearchContext();
+        final long[] leafIds = context.leafIdBuffer(nleaves * cappedNumHits);
+        final float[] leafDistances = context.leafDistanceBuffer(nleaves * cappedNumHits);
+        final int[] leafCounts = context.leafCountBuffer(nleaves);
+        final int[] probedLeaves = context.probedLeafBuffer(nleaves);
+        final int numProbes = selectLeaves(context, query, probedLeaves);
+        final SharedBound sharedBound = sharedBound(context, numProbes);
+        final ProductQuantizer.Table table = productQuantizerTable(context, query);
+
+        scheduler.run(numProbes, slot -> leafCounts[slot] = residency.search(probedLeaves[slot])
+                .findNearest(query, cappedNumHits, leafIds, leafDistances, slot * cappedNumHits,
+                        options, numProbes, sharedBound,
+                        intraLeafWorkers(probedLeaves[slot], numProbes, cappedNumHits, options), table));
+        return mergeLeafResults(context, numProbes, cappedNumHits, leafIds, leafDistances, leafCounts, ids, distances, 0);
+    }
+
+    /**
+     * Search many queries at once. The batch is split into one chunk of
+     * consecutive queries per thread of the scheduler, each chunk is
+     * searched on a single thread going through all the leaves one query
+     * after another, which keeps reusing that thread's scratch state and
+     * avoids handing every leaf search over to another thread.
+     * @param queries the query vectors
+     * @param k the number of top results to be selected for each query
+     * @return the external ids and distances of the top results of every query
+     */
+    public BatchResults searchBatch(TVector[] queries, int k) {
+        return searchBatch(queries, k, null);
+    }
+
+    /**
+     * Same as {@link #searchBatch(Object[], int)} with settings applying to every query.
+     * @param options the settings of the searches, null for those of the index
+     */
+    public BatchResults searchBatch(TVector[] queries, int k, SearchOptions options) {
+        final int cappedNumHits = Math.min(k, Math.max(1, configuration.maxItemLeaf));
+        final BatchResults results = new BatchResults(queries.length, cappedNumHits);
+        if (queries.length == 0)
+            return results;
+
+        int numChunks = Math.min(queries.length, scheduler.parallelism());
+        int chunkSize = (queries.length + numChunks - 1) / numChunks;
+        scheduler.run((queries.length + chunkSize - 1) / chunkSize, chunk -> {
+            int start = chunk * chunkSize;
+            searchChunk(queries, start, Math.min(queries.length, start + chunkSize), cappedNumHits, options, results);
+        });
+        return results;
+    }
+
+    private void searchChunk(TVector[] queries, int start, int end, int k, SearchOptions options,
+                             BatchResults results) {
+        SearchContext context = getSearchContext();
+        long[] leafIds = context.leafIdBuffer(nleaves * k);
+        float[] leafDistances = context.leafDistanceBuffer(nleaves * k);
+        int[] leafCounts = context.leafCountBuffer(nleaves);
+        int[] probedLeaves = context.probedLeafBuffer(nleaves);
+        for (int q = start; q < end; q++) {
+            int numProbes = selectLeaves(context, queries[q], probedLeaves);
+            SharedBound sharedBound = sharedBound(context, numProbes);
+            ProductQuantizer.Table table = productQuantizerTable(context, queries[q]);
+            for (int slot = 0; slot < numProbes; slot++) {
+                //the threads of the scheduler are all busy with other chunks
+                leafCounts[slot] = residency.search(probedLeaves[slot]).findNearest(queries[q], k,
+                        leafIds, leafDistances, slot * k, options, numProbes, sharedBound, 1, table);
             }
+            results.counts()[q] = mergeLeafResults(context, numProbes, k, leafIds, leafDistances, leafCounts,
+                    results.ids(), results.distances(), q * k);
+        }
+    }
+
+    /**
+     * Pick the leaves to search for a query: the leaves with the closest
+     * centroids if the index is clustered, closest first so that the
+     * shared bound tightens early, every leaf in order otherwise.
+     * @param probedLeaves filled with the numbers of the leaves to search
+     * @return the number of leaves to search
+     */
+    private int selectLeaves(SearchContext context, TVector query, int[] probedLeaves) {
+        if (centroids == null) {
+            for (int leafNum = 0; leafNum < nleaves; leafNum++)
+                probedLeaves[leafNum] = leafNum;
+            return nleaves;
+        }
+        VecHandler<TVector> handler = handler();
+        int maxProbes = leafProbes == 0 ? nleaves : Math.min(leafProbes, nleaves);
+        CandidateMaxHeap closest = context.closestCentroids;
+        closest.clear();
+        for (int leafNum = 0; leafNum < nleaves; leafNum++) {
+            float distance = (float) handler.distance(query, centroids[leafNum]);
+            if (closest.size() < maxProbes)
+                closest.push(leafNum, distance);
+            else if (distance < closest.topDistance())
+                closest.updateTop(leafNum, distance);
+        }
+        int count = closest.drainAscending();
+        float cutoff = closest.distance(0) + leafProbeSlack * Math.abs(closest.distance(0));
+        int numProbes = 0;
+        while (numProbes < count && closest.distance(numProbes) <= cutoff) {
+            probedLeaves[numProbes] = closest.id(numProbes);
+            numProbes++;
+        }
+        return numProbes;
+    }
+
+    /**
+     * @return the number of threads to search the base layer of a leaf
+     * with, more than 1 only if the leaf is large and the scheduler has
+     * threads left once every searched leaf has one
+     */
+    private int intraLeafWorkers(int leafNum, int numProbes, int k, SearchOptions options) {
+        int spareThreads = scheduler.parallelism() / numProbes;
+        if (maxIntraLeafWorkers == 1 || spareThreads <= 1)
+            return 1;
+        LeafSegment<TVector> leaf = residency.leaf(leafNum);
+        int ef = options == null ? Math.max(leaf.ef, k) : options.ef(leaf.ef, k);
+        if ((long) ef * leaf.nodeCount < intraLeafThreshold)
+            return 1;
+        return Math.min(spareThreads, maxIntraLeafWorkers);
+    }
+
+    @Override
+    LeafScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the bound of the context reset for a new query,
+     * or null if the leaves must not prune each other
+     */
+    private SharedBound sharedBound(SearchContext context, int numLeaves) {
+        if (numLeaves == 1 || leafPruningSlack == Float.POSITIVE_INFINITY)
+            return null;
+        context.sharedBound.reset(leafPruningSlack);
+        return context.sharedBound;
+    }
+
+    /**
+     * K-way merge of the sorted results of the searched leaves, the results
+     * of the i-th searched leaf being stored from index i * k of the leaf buffers.
+     * @param numLeaves the number of leaves searched
+     * @param offset where to start writing the merged results in ids and distances
+     * @return the number of merged results
+     */
+    private int mergeLeafResults(SearchContext context, int numLeaves, int k,
+                                 long[] leafIds, float[] leafDistances, int[] leafCounts,
+                                 long[] ids, float[] distances, int offset) {
+        //heap of the leaves, keyed by the distance of their best unmerged result
+        CandidateMinHeap heads = context.mergeHeads;
+        int[] cursors = context.mergeCursorBuffer(numLeaves);
+        heads.clear();
+        for (int leaf = 0; leaf < numLeaves; leaf++) {
+            cursors[leaf] = 0;
+            if (leafCounts[leaf] > 0)
+                heads.push(leaf, leafDistances[leaf * k]);
+        }
+        int count = 0;
+        while (count < k && !heads.isEmpty()) {
+            int leaf = heads.pop();
+            int pos = leaf * k + cursors[leaf];
+            ids[offset + count] = leafIds[pos];
+            distances[offset + count] = leafDistances[pos];
+            count++;
+            if (++cursors[leaf] < leafCounts[leaf])
+                heads.push(leaf, leafDistances[pos + 1]);
         }
-        return TopDocs.merge(0, cappedNumHits, collectedTopdocs, true);
+        return count;
+    }
+
+    /**
+     * conduct search on all leaf segment then aggregate, adapting the
+     * results of {@link #search(Object, int, long[], float[])} to lucene's
+     * classes. Scores are 1 - distance, which is only meaningful for
+     * the cosine handlers. Lucene's documents being ints, an
+     * ArithmeticException is thrown for an external id past them.
+     * @param query the query vectors
+     * @param k the number of top results to be selected
+     * @return the external Ids of the top results and their scores
+     */
+    public TopDocs search(TVector query, int k){
+        return search(query, k, (SearchOptions) null);
+    }
+
+    /**
+     * Same as {@link #search(Object, int)} with per-query settings.
+     * @param options the settings of this search, null for those of the index
+     */
+    public TopDocs search(TVector query, int k, SearchOptions options){
+        final int cappedNumHits = Math.min(k, Math.max(1, configuration.maxItemLeaf));
+        long[] ids = new long[cappedNumHits];
+        float[] distances = new float[cappedNumHits];
+        int count = search(query, cappedNumHits, ids, distances, options);
+
+        ScoreDoc[] hits = new ScoreDoc[count];
+        for (int i = 0; i < count; i++) {
+            hits[i] = new ScoreDoc(Math.toIntExact(ids[i]), 1 - distances[i]);
+        }
+        return new TopDocs(count, hits, count == 0 ? Float.NaN : hits[0].score);
+    }
+
+    /**
+     * Release the threads of the scheduler and the memory of the leaves
+     * kept off-heap, the searcher must not be used afterwards. No search,
+     * including those of leaves taken from {@link #getLeaf(int)}, may still
+     * be running.
+     */
+    @Override
+    public void close() {
+        scheduler.close();
+        residency.close();
     }
 }
@@ -1,11 +1,14 @@
 package ai.preferred.cerebro.hnsw;
 
 
+import ai.preferred.cerebro.handler.VecHandler;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Output;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -24,6 +27,11 @@ import java.util.concurrent.atomic.AtomicReference;
 public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
         implements ConcurrentWriter<TVector>{
 
+    //share of the leaf capacity filled by the first insert into a clustered
+    //index, leaving room for uneven clusters and for later inserts
+    private static final double CLUSTER_FILL_RATIO = 0.8;
+    private static final long CENTROID_SEED = 42;
+
     private final int OPTIMAL_NUM_LEAVES;
 
 
@@ -42,18 +50,16 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
         this.idxDir = dir;
         OPTIMAL_NUM_LEAVES = Runtime.getRuntime().availableProcessors();
 
-        this.visitedBitSetPool = new GenericObjectPool<>(() -> new BitSet(configuration.maxItemLeaf), Math.max(OPTIMAL_NUM_LEAVES, nleaves));
-
 
         if (configuration.lowMemoryMode)
             nleaves = 1;
         else
             //Initialize all leaves with default max num of nodes
             nleaves = OPTIMAL_NUM_LEAVES;
-        lookup = new ConcurrentHashMap<>(nleaves * configuration.maxItemLeaf);
+        lookup = new StripedIdLookup();
 
         leaves = new LeafSegmentWriter[nleaves];
-        int baseNewLeaf = 0;
+        long baseNewLeaf = 0;
         for (int i = 0; i < nleaves; i++) {
             if (configuration.lowMemoryMode)
                 leaves[i] = new LeafSegmentBlockingWriter<>(this, i, baseNewLeaf);
@@ -71,12 +77,16 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
      */
     public HnswIndexWriter(String dir){
         super(dir);
+        lookup = loadLookup();
         OPTIMAL_NUM_LEAVES = Runtime.getRuntime().availableProcessors();
-        this.visitedBitSetPool = new GenericObjectPool<>(() -> new BitSet(configuration.maxItemLeaf), nleaves);
+        leaves = newLeafArray(nleaves);
         //load all leaves
-        for (int i = 0; i < nleaves; i++) {
-            leaves[i] = new LeafSegmentWriter<>(this, i, idxDir);
-        }
+        forEachLeaf(nleaves, i -> {
+            if (configuration.lowMemoryMode)
+                leaves[i] = new LeafSegmentBlockingWriter<>(this, i, idxDir);
+            else
+                leaves[i] = new LeafSegmentWriter<>(this, i, idxDir);
+        });
     }
 
     private boolean isSafeToCreate(String idxDir){
@@ -94,9 +104,9 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
                 System.arraycopy(hold, 0, leaves, 0, hold.length);
             }
             if (isLeafBlocking)
-                leaves[nleaves] = new LeafSegmentBlockingWriter<>(this, nleaves,configuration.maxItemLeaf * nleaves++);
+                leaves[nleaves] = new LeafSegmentBlockingWriter<>(this, nleaves, (long) configuration.maxItemLeaf * nleaves++);
             else
-                leaves[nleaves] = new LeafSegmentWriter<>(this, nleaves,configuration.maxItemLeaf * nleaves++);
+                leaves[nleaves] = new LeafSegmentWriter<>(this, nleaves, (long) configuration.maxItemLeaf * nleaves++);
             return (LeafSegmentWriter) leaves[nleaves - 1];
         }
         else if(leafInAction.compareTo(leaves[nleaves - 1].leafName) < 0){
@@ -110,22 +120,28 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
      * removing a sample by its external ID
      * @param externalID external ID of the vector sample
      */
-    public void removeOnExternalID(int externalID) {
-        int globalID = lookup.get(externalID);
-        int leafNum = globalID / configuration.maxItemLeaf;
-        int internalID = globalID % configuration.maxItemLeaf;
-        lookup.remove(externalID);
+    public void removeOnExternalID(long externalID) {
+        long globalID = lookup.remove(externalID);
+        if (globalID == IdLookup.NO_ID)
+            throw new IllegalArgumentException("No item with external ID " + externalID);
+        int leafNum = (int) (globalID / configuration.maxItemLeaf);
+        int internalID = (int) (globalID % configuration.maxItemLeaf);
         ((LeafSegmentWriter)leaves[leafNum]).removeOnInternalID(internalID);
     }
 
 
     private String checkCapacity(int amountToInsert){
-        int remainingSlots = 0;
+        //a clustered index creates as many leaves as it needs on its first insert,
+        //then accounts for the room of its leaves as it routes the items, updates
+        //taking none
+        if (configuration.clustered)
+            return null;
+        long remainingSlots = 0;
         for (int i = 0; i < nleaves; i++) {
             remainingSlots += leaves[i].maxNodeCount - leaves[i].size();
         }
-        if(nleaves < OPTIMAL_NUM_LEAVES){
-            remainingSlots += (OPTIMAL_NUM_LEAVES - nleaves) * configuration.maxItemLeaf;
+        if(nleaves < OPTIMAL_NUM_LEAVES && !configuration.clustered){
+            remainingSlots += (long) (OPTIMAL_NUM_LEAVES - nleaves) * configuration.maxItemLeaf;
         }
         if (remainingSlots >= amountToInsert)
             return null;
@@ -138,8 +154,8 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
      * return the number of samples across all the leaf segments of the index
      * @return
      */
-    public int size() {
-        int size = 0;
+    public long size() {
+        long size = 0;
         for (int i = 0; i < nleaves; i++) {
             size += leaves[i].size();
         }
@@ -169,7 +185,9 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
     public void addAll(Collection<Item<TVector>> items) throws InterruptedException {
         String message = checkCapacity(items.size());
         if(message == null){
-            if (configuration.lowMemoryMode)
+            if (configuration.clustered)
+                clusteredAddAll(items, OPTIMAL_NUM_LEAVES, CLIProgressListener.INSTANCE, DEFAULT_PROGRESS_UPDATE_INTERVAL);
+            else if (configuration.lowMemoryMode)
                 singleSegmentAddAll(items, OPTIMAL_NUM_LEAVES, CLIProgressListener.INSTANCE, DEFAULT_PROGRESS_UPDATE_INTERVAL);
             else
                 addAll(items, nleaves, CLIProgressListener.INSTANCE, DEFAULT_PROGRESS_UPDATE_INTERVAL);
@@ -181,6 +199,10 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
 
     @Override
     public void addAll(Collection<Item<TVector>> items, int numThreads, ProgressListener listener, int progressUpdateInterval) throws InterruptedException {
+        if (configuration.clustered) {
+            clusteredAddAll(items, numThreads, listener, progressUpdateInterval);
+            return;
+        }
         AtomicReference<RuntimeException> throwableHolder = new AtomicReference<>();
 
         ExecutorService executorService = Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("indexer-%d"));
@@ -269,9 +291,166 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
         }
     }
 
+    /**
+     * Insert the samples into the leaves of their nearest centroids, see
+     * {@link HnswConfiguration#setClustered(boolean)}. The centroids are
+     * trained on the first call, then every leaf is built by a single thread.
+     * @param items the items to add to the index
+     * @param numThreads the number of threads routing the items and building the leaves
+     * @throws InterruptedException
+     */
+    public void clusteredAddAll(Collection<Item<TVector>> items, int numThreads, ProgressListener listener, int progressUpdateInterval) throws InterruptedException {
+        List<Item<TVector>> itemList = new ArrayList<>(items);
+        if (itemList.isEmpty())
+            return;
+        if (centroids == null)
+            trainCentroids(itemList);
+
+        AtomicReference<RuntimeException> throwableHolder = new AtomicReference<>();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads,
+                new NamedThreadFactory("indexer-%d"));
+
+        AtomicInteger workDone = new AtomicInteger();
+
+        try {
+            List<Item<TVector>>[] routed = route(itemList, numThreads, executorService);
+
+            CountDownLatch latch = new CountDownLatch(nleaves);
+            for (int leafNum = 0; leafNum < nleaves; leafNum++) {
+                LeafSegmentWriter<TVector> leaf = (LeafSegmentWriter<TVector>) leaves[leafNum];
+                List<Item<TVector>> leafItems = routed[leafNum];
+                executorService.submit(() -> {
+                    try {
+                        for (Item<TVector> item : leafItems) {
+                            if (throwableHolder.get() != null)
+                                break;
+                            //false means the id already resides in the index and
+                            //cannot be replaced, there is nothing to insert then
+                            if (leaf.add(item)) {
+                                int done = workDone.incrementAndGet();
+                                if (done % progressUpdateInterval == 0) {
+                                    listener.updateProgress(done, itemList.size());
+                                }
+                            }
+                        }
+                    } catch (RuntimeException t) {
+                        throwableHolder.set(t);
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+
+            latch.await();
+
+            RuntimeException throwable = throwableHolder.get();
+            if (throwable != null) {
+                throw throwable;
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    //train one centroid per leaf and create the leaves needed to hold the items
+    private synchronized void trainCentroids(List<Item<TVector>> items) {
+        int numClusters = Math.max(nleaves,
+                (int) Math.ceil(items.size() / (CLUSTER_FILL_RATIO * configuration.maxItemLeaf)));
+        List<TVector> vecs = new ArrayList<>(items.size());
+        for (Item<TVector> item : items)
+            vecs.add(item.vector);
+        centroids = KMeans.train(handler(), vecs, numClusters, CENTROID_SEED);
+
+        LeafSegment<TVector>[] hold = leaves;
+        leaves = newLeafArray(numClusters);
+        System.arraycopy(hold, 0, leaves, 0, nleaves);
+        for (int i = nleaves; i < numClusters; i++)
+            leaves[i] = new LeafSegmentWriter<>(this, i, (long) configuration.maxItemLeaf * i);
+        nleaves = numClusters;
+    }
+
+    /**
+     * Split the items by the leaf they go to: the leaf already holding their
+     * id if any, the leaf of their nearest centroid otherwise, or of the
+     * nearest centroid whose leaf still has room if that one is full.
+     */
+    private List<Item<TVector>>[] route(List<Item<TVector>> items, int numThreads, ExecutorService executorService)
+            throws InterruptedException {
+        VecHandler<TVector> handler = handler();
+
+        //the nearest centroids are computed in parallel...
+        int[] nearest = new int[items.size()];
+        int chunkSize = (items.size() + numThreads - 1) / numThreads;
+        List<Callable<Void>> tasks = new ArrayList<>(numThreads);
+        for (int from = 0; from < items.size(); from += chunkSize) {
+            int start = from;
+            int end = Math.min(items.size(), from + chunkSize);
+            tasks.add(() -> {
+                for (int i = start; i < end; i++)
+                    nearest[i] = KMeans.nearest(handler, centroids, items.get(i).vector);
+                return null;
+            });
+        }
+        for (Future<Void> future : executorService.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        //...while the capacity of the leaves is accounted for sequentially
+        int[] room = new int[nleaves];
+        @SuppressWarnings("unchecked")
+        List<Item<TVector>>[] routed = (List<Item<TVector>>[]) new List<?>[nleaves];
+        for (int leafNum = 0; leafNum < nleaves; leafNum++) {
+            room[leafNum] = leaves[leafNum].maxNodeCount - leaves[leafNum].size();
+            routed[leafNum] = new ArrayList<>();
+        }
+        for (int i = 0; i < items.size(); i++) {
+            Item<TVector> item = items.get(i);
+            long globalId = lookup.get(item.externalId);
+            //an update takes the place of the node it replaces, in the leaf holding it
+            if (globalId != IdLookup.NO_ID) {
+                routed[(int) (globalId / configuration.maxItemLeaf)].add(item);
+                continue;
+            }
+            int leafNum = nearest[i];
+            if (room[leafNum] == 0)
+                leafNum = nearestWithRoom(handler, item.vector, room);
+            if (leafNum < 0)
+                throw new IllegalArgumentException("Not enough space in the leaves of the clustered index. Operation failed.");
+            room[leafNum]--;
+            routed[leafNum].add(item);
+        }
+        return routed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private LeafSegment<TVector>[] newLeafArray(int length) {
+        return (LeafSegment<TVector>[]) new LeafSegment<?>[length];
+    }
+
+    private int nearestWithRoom(VecHandler<TVector> handler, TVector vec, int[] room) {
+        int nearest = -1;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids.length; c++) {
+            if (room[c] == 0)
+                continue;
+            double distance = handler.distance(vec, centroids[c]);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
     /**
      * save the index into concrete files. Make sure to call this function before
-     * terminating. Otherwise all information is lost.
+     * terminating. Otherwise all information is lost. The leaves are saved
+     * in parallel, each writing its nodes to its files one at a time.
      * @throws IOException
      */
     @Override
@@ -294,21 +473,12 @@ public final class HnswIndexWriter<TVector> extends ParentHnsw<TVector>
                 e.printStackTrace();
             }
         }
-        synchronized (lookup){
-            Kryo kryo = new Kryo();
-            kryo.register(Integer.class);
-            kryo.register(ConcurrentHashMap.class);
-            try {
-                Output output = new Output(new FileOutputStream(idxDir + globalLookupFileName));
-                kryo.writeObject(output, lookup);
-                output.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
-        }
-        for (int i = 0; i < nleaves; i++) {
-            ((LeafSegmentWriter)leaves[i]).save(idxDir);
-        }
+        SortedIdLookup.write(lookup, new File(idxDir + globalLookupFileName));
+        //the lookup saved in the previous format would be stale
+        new File(idxDir + legacyLookupFileName).delete();
+        if (centroids != null)
+            handler().save(idxDir + globalCentroidsFileName, centroids);
+        forEachLeaf(nleaves, i -> ((LeafSegmentWriter) leaves[i]).save(idxDir));
     }
 
     static private class InsertItemTask implements Runnable{
@@ -0,0 +1,74 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Implementation of {@link LeafScheduler} fanning the leaves of a query
+ * out while the searcher is lightly loaded, and searching them on the
+ * calling thread once there are enough concurrent queries to keep every
+ * thread busy anyway. Gets the latency of {@link FanOutScheduler} at low
+ * load and the throughput of {@link CallerRunsScheduler} at high load.
+ */
+public class HybridScheduler implements LeafScheduler {
+    private final FanOutScheduler fanOut;
+    private final int maxFanOutQueries;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Fan out only while the tasks of all the queries in flight
+     * fit in the parallelism of the fan out scheduler.
+     */
+    public HybridScheduler(FanOutScheduler fanOut) {
+        this(fanOut, 0);
+    }
+
+    /**
+     * @param maxFanOutQueries fan out only while there are at most this many
+     *                         queries in flight, 0 to derive it from the
+     *                         parallelism of fanOut and the number of leaves
+     */
+    public HybridScheduler(FanOutScheduler fanOut, int maxFanOutQueries) {
+        this.fanOut = fanOut;
+        this.maxFanOutQueries = maxFanOutQueries;
+    }
+
+    @Override
+    public void run(int numTasks, IntConsumer task) {
+        int running = inFlight.incrementAndGet();
+        try {
+            boolean lightLoad = maxFanOutQueries > 0 ?
+                    running <= maxFanOutQueries :
+                    (long) running * numTasks <= fanOut.parallelism();
+            if (lightLoad)
+                fanOut.run(numTasks, task);
+            else
+                CallerRunsScheduler.INSTANCE.run(numTasks, task);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void runCooperatively(int numTasks, IntConsumer task) {
+        int running = inFlight.get();
+        boolean lightLoad = maxFanOutQueries > 0 ?
+                running <= maxFanOutQueries :
+                (long) Math.max(1, running) * numTasks <= fanOut.parallelism();
+        //helpers are only worth handing over while threads are idle
+        if (lightLoad)
+            fanOut.runCooperatively(numTasks, task);
+        else
+            task.accept(0);
+    }
+
+    @Override
+    public int parallelism() {
+        return fanOut.parallelism();
+    }
+
+    @Override
+    public void close() {
+        fanOut.close();
+    }
+}
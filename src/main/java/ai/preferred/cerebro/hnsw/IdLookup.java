@@ -0,0 +1,26 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Map of the external ids of the items of an index to their global ids,
+ * the global id of a node being its internal id plus the base id of its leaf.
+ */
+public interface IdLookup {
+    /**
+     * Returned for external ids that are not in the index.
+     */
+    long NO_ID = -1;
+
+    /**
+     * @return the global id of the item, {@link #NO_ID} if there is none
+     */
+    long get(long externalId);
+
+    default boolean contains(long externalId) {
+        return get(externalId) != NO_ID;
+    }
+
+    /**
+     * @return the number of items in the index
+     */
+    long size();
+}
@@ -5,10 +5,10 @@ package ai.preferred.cerebro.hnsw;
  * @param <TVector>
  */
 public class Item<TVector> {
-    final int externalId;
+    final long externalId;
     final TVector vector;
 
-    public Item(int externalId, TVector vector) {
+    public Item(long externalId, TVector vector) {
         this.externalId = externalId;
         this.vector = vector;
     }
@@ -0,0 +1,124 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * K-means clustering of a sample of the items of an index, giving the
+ * centroids a clustered index routes its items to leaves with. Works
+ * with any vector type through the distance and mean of the handler.
+ */
+final class KMeans {
+    //the centroids are trained on at most this many items per centroid
+    private static final int SAMPLE_PER_CENTROID = 256;
+    private static final int MAX_ITERATIONS = 10;
+
+    private KMeans() {
+    }
+
+    /**
+     * @param handler computes the distances and the means
+     * @param vecs the vectors to cluster, a random sample of them is used
+     * @param k the number of centroids
+     * @param seed seed of the sampling and of the initialization
+     * @return k centroids, initialized with k-means++ then refined with Lloyd's iterations
+     */
+    @SuppressWarnings("unchecked")
+    static <TVector> TVector[] train(VecHandler<TVector> handler, List<TVector> vecs, int k, long seed) {
+        Random random = new Random(seed);
+        List<TVector> sample = sample(vecs, Math.min(vecs.size(), k * SAMPLE_PER_CENTROID), random);
+        int n = sample.size();
+        TVector[] centroids = (TVector[]) Array.newInstance(sample.get(0).getClass(), k);
+
+        //k-means++: pick each new centroid with a probability growing
+        //with its distance to the closest centroid picked so far
+        double[] closest = new double[n];
+        Arrays.fill(closest, Double.POSITIVE_INFINITY);
+        centroids[0] = sample.get(random.nextInt(n));
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                closest[i] = Math.min(closest[i], Math.max(0, handler.distance(sample.get(i), centroids[c - 1])));
+                total += closest[i];
+            }
+            int picked = random.nextInt(n);
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int i = 0; i < n; i++) {
+                    target -= closest[i];
+                    if (target <= 0) {
+                        picked = i;
+                        break;
+                    }
+                }
+            }
+            centroids[c] = sample.get(picked);
+        }
+
+        int[] assignment = new int[n];
+        Arrays.fill(assignment, -1);
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            boolean changed = false;
+            List<List<TVector>> members = new ArrayList<>(k);
+            for (int c = 0; c < k; c++)
+                members.add(new ArrayList<>());
+            for (int i = 0; i < n; i++) {
+                int nearest = nearest(handler, centroids, sample.get(i));
+                if (nearest != assignment[i]) {
+                    assignment[i] = nearest;
+                    changed = true;
+                }
+                members.get(nearest).add(sample.get(i));
+            }
+            if (!changed)
+                break;
+            for (int c = 0; c < k; c++) {
+                if (members.get(c).isEmpty())
+                    //restart an empty cluster from a random item
+                    centroids[c] = sample.get(random.nextInt(n));
+                else
+                    centroids[c] = handler.mean(members.get(c));
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * @return the position in centroids of the centroid closest to vec
+     */
+    static <TVector> int nearest(VecHandler<TVector> handler, TVector[] centroids, TVector vec) {
+        int nearest = 0;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids.length; c++) {
+            double distance = handler.distance(vec, centroids[c]);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    private static <TVector> List<TVector> sample(List<TVector> vecs, int size, Random random) {
+        if (size == vecs.size())
+            return vecs;
+        //partial Fisher-Yates shuffle of the positions
+        int[] positions = new int[vecs.size()];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = i;
+        List<TVector> sample = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(positions.length - i);
+            int swap = positions[i];
+            positions[i] = positions[j];
+            positions[j] = swap;
+            sample.add(vecs.get(positions[i]));
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,120 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * How the nodes of a leaf segment are laid out in memory. The layout
+ * is not saved with the index, the files of a leaf are the same either
+ * way, so an index can be loaded with a different layout than it was
+ * built with, see {@link HnswConfiguration#setLeafLayout(LeafLayout)}
+ * and {@link SearcherConfiguration#setLeafLayout(LeafLayout)}.
+ */
+public enum LeafLayout {
+    /**
+     * One {@link Node} per node, pointing to an {@link Item} holding its
+     * vector and to one list of connections per level.
+     */
+    NODES,
+    /**
+     * Flat arrays indexed by internal id: every vector in one slab, the
+     * base layer connections at a fixed stride with their count inline,
+     * and lists of the upper layers only for the nodes reaching them.
+     * Saves the headers and pointers of the per-node objects, and
+     * neighbors stored next to each other are read without chasing
+     * pointers. Vectors other than float[] and double[] are still held
+     * by reference.
+     */
+    COLUMNAR,
+    /**
+     * The arrays of {@link #COLUMNAR} kept in direct buffers outside the
+     * heap, so that the garbage collector never goes through them and the
+     * heap taken by a searcher does not grow with the index. Only for
+     * searchers, as the leaves are read only once loaded, and only for
+     * float[] and double[] vectors. The memory is given back when the
+     * searcher is closed.
+     */
+    OFF_HEAP,
+    /**
+     * The leaves searched straight from their mapped leaf file, written
+     * from the saved index by {@link HnswIndexSearcher#writeMappedLeaves(String, boolean)}:
+     * vectors at a fixed stride and connections in compressed sparse rows,
+     * optionally encoded as in {@link #COMPRESSED}.
+     * Opening a leaf reads nothing but the header of its file, the pages
+     * are read as searches first touch them and are shared by all the
+     * JVMs searching the index. Only for searchers and float[] or double[]
+     * vectors. Saving a leaf from a writer deletes its mapped file, which
+     * has to be written again.
+     */
+    MAPPED,
+    /**
+     * The vectors of {@link #COLUMNAR} with the connections sorted and
+     * encoded as varint gaps between ids, see {@link AdjacencyCodec}.
+     * Takes less memory than any other layout kept on the heap, at the
+     * cost of decoding the connections of every node expanded. Only for
+     * searchers, as the leaves are read only once loaded.
+     */
+    COMPRESSED,
+    /**
+     * The graph of {@link #MAPPED} on the heap with each vector quantized
+     * to one byte per element, the float[] vectors staying in a file on
+     * disk. The graph is searched with the quantized vectors, then the
+     * candidates found are ranked again with their vectors read from the
+     * file, in blocks of 4KB going through a cache, see
+     * {@link SearcherConfiguration#setDiskCacheBytes(long)}. Takes about a
+     * quarter of the memory of the vectors for indexes whose vectors do
+     * not fit in memory at all. The files are written from the saved index
+     * by {@link HnswIndexSearcher#writeDiskLeaves(String, boolean)}. Only
+     * for searchers and float[] vectors.
+     */
+    DISK,
+    /**
+     * The layout of {@link #COLUMNAR} with each vector also quantized to
+     * one byte per element, in a slab of its own. The graph is searched
+     * with the quantized vectors, a quarter of the bytes to read for each
+     * distance, the dot product of cosine distances being summed with ints,
+     * then the candidates found are ranked again with their exact vectors.
+     * Takes a quarter more memory than {@link #COLUMNAR}. The range of each
+     * dimension quantized is written next to the files of a leaf the first
+     * time it is loaded quantized, and deleted when the leaf is saved again.
+     * Only for searchers and float[] or double[] vectors.
+     */
+    QUANTIZED,
+    /**
+     * The graph of {@link #COLUMNAR} with each vector replaced by the codes
+     * of the {@link ProductQuantizer} of the index, a byte for each group
+     * of consecutive elements, and its norm. The quantizer is trained on a
+     * sample of the vectors of the saved index by
+     * {@link HnswIndexSearcher#trainProductQuantizer(String, int, int)},
+     * the leaves are encoded as they are loaded. A query is searched with
+     * its dot products with the centroids of the quantizer, computed once
+     * for all the leaves, a few lookups giving the distance to a node.
+     * Takes the least memory of all the layouts kept on the heap. The
+     * results are ranked with the estimated distances, or again with the
+     * vectors of the mapped leaf files, see
+     * {@link SearcherConfiguration#setProductQuantizationRerank(boolean)}.
+     * Only for searchers and float[] or double[] vectors.
+     */
+    PRODUCT_QUANTIZED,
+    /**
+     * The layout of {@link #COLUMNAR} with the sign of every element of
+     * each vector also kept as one bit, in a slab of its own. The graph is
+     * searched with the Hamming distances of the signs, a couple of
+     * {@link Long#bitCount(long)} for vectors of a hundred elements, then
+     * the candidates found are ranked again with their exact vectors, see
+     * {@link SearcherConfiguration#setBinaryRerank(boolean)}. The more
+     * candidates are kept, see {@link SearchOptions#setEf(int)}, the more
+     * of the neighbors the signs miss are found back by the ranking. Suits
+     * vectors whose elements are centered on zero, the signs telling the
+     * angle between them. Takes a 32nd more memory than {@link #COLUMNAR}
+     * for float[] vectors. Only for searchers and float[] or double[]
+     * vectors, binary vectors themselves are searched as long[] in any
+     * layout with {@link ai.preferred.cerebro.handler.HammingHandler}.
+     */
+    BINARY;
+
+    /**
+     * @return whether the leaves of this layout can be changed once
+     * loaded, and so be used by writers
+     */
+    boolean writable() {
+        return this == NODES || this == COLUMNAR;
+    }
+}
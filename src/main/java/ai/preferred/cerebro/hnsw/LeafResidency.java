@@ -0,0 +1,403 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decides where the leaves of a {@link HnswIndexSearcher} live, see
+ * {@link SearcherConfiguration#setMemoryBudget(long)}. A leaf is loaded the
+ * first time it is searched, in the layout of the searcher as long as the
+ * resident leaves fit in the budget, otherwise it is searched from its
+ * mapped leaf file with the connections of its upper layers on the heap,
+ * the files missing being written when the searcher is opened.
+ * The memory of a resident leaf is accounted for as the size of the files
+ * it is loaded from.
+ * </br>
+ * Every leaf counts the queries searching it, halved every
+ * {@link #REBALANCE_INTERVAL} leaf searches so that the counts follow the
+ * queries of late. At those times a thread of the residency makes the
+ * hottest mapped leaf resident if room can be made for it by mapping
+ * leaves searched less than half as often, the margin keeping two leaves
+ * of about the same heat from taking each other's place over and over.
+ * </br>
+ * Only the accounting of the budget is done under the monitor of the
+ * residency. The leaves are loaded outside of it, in their new layout
+ * while the searches keep going through their old one, and a leaf being
+ * moved is left alone until it is published.
+ * </br>
+ * Searches hold on to the leaf they started with, so a leaf taken out is
+ * only let go once the searcher is closed if it keeps memory outside the
+ * heap, the garbage collector takes care of the others.
+ */
+final class LeafResidency<TVector> {
+    //leaf searches between two rebalances
+    static final int REBALANCE_INTERVAL = 1024;
+
+    private final ParentHnsw<TVector> index;
+    private final String idxDir;
+    private final LeafLayout layout;
+    private final long budget;
+    private final AtomicReferenceArray<LeafSegmentSearcher<TVector>> leaves;
+    //queries of each leaf since the searcher was opened, and halved at every rebalance
+    private final AtomicLongArray queries;
+    private final AtomicLongArray heat;
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicBoolean rebalancing = new AtomicBoolean();
+    //held while loading a leaf the first time, so that it is loaded once
+    private final Object[] opening;
+    //size of the files of every leaf, with a budget
+    private final long[] savedBytes;
+    //runs the rebalances off the threads of the queries, with a budget
+    private final ExecutorService rebalancer;
+
+    //guarded by this
+    private final ResidencyStats.State[] states;
+    private final long[] residentBytes;
+    //set from the accounting of a move of the leaf until its new leaf is published
+    private final boolean[] moving;
+    private final List<LeafSegment<TVector>> retired = new ArrayList<>();
+    private long totalResidentBytes;
+    private long loads;
+    private long demotions;
+    private long promotions;
+
+    /**
+     * @param layout the layout of the resident leaves
+     * @param budget the memory the resident leaves may take, 0 for no limit
+     */
+    LeafResidency(ParentHnsw<TVector> index, String idxDir, LeafLayout layout, long budget) {
+        this.index = index;
+        this.idxDir = idxDir;
+        this.layout = layout;
+        this.budget = budget;
+        int nleaves = index.nleaves;
+        leaves = new AtomicReferenceArray<>(nleaves);
+        queries = new AtomicLongArray(nleaves);
+        heat = new AtomicLongArray(nleaves);
+        states = new ResidencyStats.State[nleaves];
+        Arrays.fill(states, ResidencyStats.State.UNLOADED);
+        residentBytes = new long[nleaves];
+        moving = new boolean[nleaves];
+        opening = new Object[nleaves];
+        for (int i = 0; i < nleaves; i++) {
+            opening[i] = new Object();
+        }
+        savedBytes = new long[nleaves];
+        if (tiered()) {
+            writeMissingMapped();
+            for (int i = 0; i < nleaves; i++) {
+                savedBytes[i] = LeafSegment.savedBytes(idxDir, i);
+            }
+            rebalancer = Executors.newSingleThreadExecutor(new NamedThreadFactory("leaf-residency-%d", true));
+        }
+        else
+            rebalancer = null;
+    }
+
+    /**
+     * A leaf going from one state to another, accounted for under the
+     * monitor and carried out outside of it.
+     */
+    private static final class Move {
+        final int leafNum;
+        final ResidencyStats.State from;
+        final ResidencyStats.State to;
+        //the budget the leaf takes while resident
+        final long bytes;
+
+        Move(int leafNum, ResidencyStats.State from, ResidencyStats.State to, long bytes) {
+            this.leafNum = leafNum;
+            this.from = from;
+            this.to = to;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Write the mapped leaf files missing, one leaf at a time, so that
+     * leaves can be mapped without a search converting them while the
+     * others wait.
+     */
+    private void writeMissingMapped() {
+        for (int i = 0; i < states.length; i++) {
+            if (!LeafSegment.hasMapped(idxDir, i)) {
+                LeafSegmentSearcher<TVector> source = new LeafSegmentSearcher<>(index, i, idxDir,
+                        LeafLayout.COLUMNAR);
+                source.writeMapped(idxDir, false);
+                source.release();
+            }
+        }
+    }
+
+    //whether the leaves move between the heap and their mapped files
+    private boolean tiered() {
+        return budget > 0 && layout != LeafLayout.MAPPED && layout != LeafLayout.DISK
+                && layout != LeafLayout.PRODUCT_QUANTIZED;
+    }
+
+    /**
+     * @return the leaf, loaded if need be
+     */
+    LeafSegmentSearcher<TVector> leaf(int leafNum) {
+        LeafSegmentSearcher<TVector> leaf = leaves.get(leafNum);
+        if (leaf != null)
+            return leaf;
+        return tiered() ? load(leafNum) : open(leafNum);
+    }
+
+    /**
+     * Same as {@link #leaf(int)}, counting a query searching the leaf.
+     * Every {@link #REBALANCE_INTERVAL} leaf searches a rebalance is handed
+     * to the thread of the residency, unless one is still running.
+     */
+    LeafSegmentSearcher<TVector> search(int leafNum) {
+        queries.incrementAndGet(leafNum);
+        heat.incrementAndGet(leafNum);
+        if (tiered() && searches.incrementAndGet() % REBALANCE_INTERVAL == 0
+                && rebalancing.compareAndSet(false, true)) {
+            try {
+                rebalancer.execute(this::rebalance);
+            } catch (RejectedExecutionException e) {
+                //closed
+                rebalancing.set(false);
+            }
+        }
+        return leaf(leafNum);
+    }
+
+    /**
+     * Open a leaf in the layout of the searcher, different leaves being
+     * opened at the same time by the threads asking for them.
+     */
+    private LeafSegmentSearcher<TVector> open(int leafNum) {
+        synchronized (opening[leafNum]) {
+            LeafSegmentSearcher<TVector> leaf = leaves.get(leafNum);
+            if (leaf != null)
+                return leaf;
+            leaf = new LeafSegmentSearcher<>(index, leafNum, idxDir, layout);
+            synchronized (this) {
+                states[leafNum] = layout == LeafLayout.MAPPED ? ResidencyStats.State.MAPPED
+                        : ResidencyStats.State.RESIDENT;
+                loads++;
+                publish(leafNum, leaf);
+            }
+            return leaf;
+        }
+    }
+
+    /**
+     * Load a leaf the first time it is searched, resident if room can be
+     * made for it, mapped otherwise. Different leaves are loaded at the
+     * same time by the threads asking for them, the leaves mapped to make
+     * room being loaded first.
+     */
+    private LeafSegmentSearcher<TVector> load(int leafNum) {
+        synchronized (opening[leafNum]) {
+            LeafSegmentSearcher<TVector> leaf = leaves.get(leafNum);
+            if (leaf != null)
+                return leaf;
+            List<Move> moves = new ArrayList<>();
+            synchronized (this) {
+                long bytes = savedBytes[leafNum];
+                if (makeRoom(leafNum, bytes, moves)) {
+                    residentBytes[leafNum] = bytes;
+                    totalResidentBytes += bytes;
+                    moves.add(begin(leafNum, ResidencyStats.State.RESIDENT, bytes));
+                }
+                else
+                    moves.add(begin(leafNum, ResidencyStats.State.MAPPED, bytes));
+                loads++;
+            }
+            return carryOut(moves);
+        }
+    }
+
+    //must hold the monitor
+    private Move begin(int leafNum, ResidencyStats.State to, long bytes) {
+        Move move = new Move(leafNum, states[leafNum], to, bytes);
+        states[leafNum] = to;
+        moving[leafNum] = true;
+        return move;
+    }
+
+    /**
+     * Load the leaf in the layout it moves to and publish it, or undo the
+     * accounting of the move if it cannot be loaded.
+     * @return the leaf loaded
+     */
+    private LeafSegmentSearcher<TVector> carryOut(Move move) {
+        boolean published = false;
+        try {
+            LeafSegmentSearcher<TVector> leaf = move.to == ResidencyStats.State.RESIDENT
+                    ? new LeafSegmentSearcher<>(index, move.leafNum, idxDir, layout)
+                    : new LeafSegmentSearcher<>(index, move.leafNum, idxDir, LeafLayout.MAPPED, true);
+            synchronized (this) {
+                publish(move.leafNum, leaf);
+            }
+            published = true;
+            return leaf;
+        } finally {
+            if (!published)
+                undo(move);
+        }
+    }
+
+    /**
+     * Carry out the moves in order, undoing those left if one fails.
+     * @return the leaf of the last move
+     */
+    private LeafSegmentSearcher<TVector> carryOut(List<Move> moves) {
+        LeafSegmentSearcher<TVector> leaf = null;
+        int done = 0;
+        try {
+            for (Move move : moves) {
+                leaf = carryOut(move);
+                done++;
+            }
+            return leaf;
+        } finally {
+            //the move that failed undid itself
+            for (int i = done + 1; i < moves.size(); i++) {
+                undo(moves.get(i));
+            }
+        }
+    }
+
+    private synchronized void undo(Move move) {
+        int leafNum = move.leafNum;
+        states[leafNum] = move.from;
+        moving[leafNum] = false;
+        if (move.to == ResidencyStats.State.RESIDENT) {
+            totalResidentBytes -= residentBytes[leafNum];
+            residentBytes[leafNum] = 0;
+            if (move.from == ResidencyStats.State.MAPPED)
+                promotions--;
+        }
+        else if (move.from == ResidencyStats.State.RESIDENT) {
+            residentBytes[leafNum] = move.bytes;
+            totalResidentBytes += move.bytes;
+            demotions--;
+        }
+        if (move.from == ResidencyStats.State.UNLOADED)
+            loads--;
+    }
+
+    //must hold the monitor
+    private void publish(int leafNum, LeafSegmentSearcher<TVector> leaf) {
+        LeafSegmentSearcher<TVector> previous = leaves.get(leafNum);
+        leaves.set(leafNum, leaf);
+        index.leaves[leafNum] = leaf;
+        moving[leafNum] = false;
+        if (previous != null)
+            retire(previous);
+    }
+
+    /**
+     * Account for mapping the resident leaves searched less than half as
+     * often as a leaf until it fits in the budget, coldest first, leaving
+     * alone those being moved.
+     * @param moves receives the leaves to map
+     * @return whether the leaf fits
+     */
+    private boolean makeRoom(int leafNum, long bytes, List<Move> moves) {
+        if (bytes > budget)
+            return false;
+        while (totalResidentBytes + bytes > budget) {
+            int coldest = -1;
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == ResidencyStats.State.RESIDENT && !moving[i] && i != leafNum
+                        && (coldest == -1 || heat.get(i) < heat.get(coldest)))
+                    coldest = i;
+            }
+            if (coldest == -1 || heat.get(coldest) * 2 >= heat.get(leafNum))
+                return false;
+            moves.add(begin(coldest, ResidencyStats.State.MAPPED, residentBytes[coldest]));
+            totalResidentBytes -= residentBytes[coldest];
+            residentBytes[coldest] = 0;
+            demotions++;
+        }
+        return true;
+    }
+
+    private void retire(LeafSegmentSearcher<TVector> leaf) {
+        if (leaf.storage instanceof OffHeapLeafStorage || leaf.storage instanceof MappedLeafStorage)
+            retired.add(leaf);
+    }
+
+    /**
+     * Make the hottest mapped leaf resident if room can be made for it,
+     * then halve the heat of every leaf. Run by the thread of the residency.
+     */
+    private void rebalance() {
+        try {
+            List<Move> moves = new ArrayList<>();
+            synchronized (this) {
+                int hottest = -1;
+                for (int i = 0; i < states.length; i++) {
+                    if (states[i] == ResidencyStats.State.MAPPED && !moving[i]
+                            && (hottest == -1 || heat.get(i) > heat.get(hottest)))
+                        hottest = i;
+                }
+                if (hottest != -1) {
+                    long bytes = savedBytes[hottest];
+                    if (makeRoom(hottest, bytes, moves)) {
+                        residentBytes[hottest] = bytes;
+                        totalResidentBytes += bytes;
+                        moves.add(begin(hottest, ResidencyStats.State.RESIDENT, bytes));
+                        promotions++;
+                    }
+                }
+                for (int i = 0; i < states.length; i++) {
+                    heat.getAndUpdate(i, h -> h / 2);
+                }
+            }
+            carryOut(moves);
+        } finally {
+            rebalancing.set(false);
+        }
+    }
+
+    synchronized ResidencyStats stats() {
+        long[] queryCounts = new long[states.length];
+        for (int i = 0; i < queryCounts.length; i++) {
+            queryCounts[i] = queries.get(i);
+        }
+        return new ResidencyStats(states.clone(), queryCounts, residentBytes.clone(), budget,
+                loads, demotions, promotions);
+    }
+
+    /**
+     * Release the leaves, including those taken out, once the rebalance
+     * running if any is done.
+     */
+    void close() {
+        if (rebalancer != null) {
+            rebalancer.shutdown();
+            try {
+                rebalancer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < leaves.length(); i++) {
+                LeafSegmentSearcher<TVector> leaf = leaves.get(i);
+                if (leaf != null)
+                    leaf.release();
+            }
+            for (LeafSegment<TVector> leaf : retired) {
+                leaf.release();
+            }
+            retired.clear();
+        }
+    }
+}
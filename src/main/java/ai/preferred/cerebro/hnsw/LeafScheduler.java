@@ -0,0 +1,52 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.io.Closeable;
+import java.util.function.IntConsumer;
+
+/**
+ * Strategy deciding on which threads {@link HnswIndexSearcher} runs the
+ * searches of its leaves, see {@link FanOutScheduler}, {@link CallerRunsScheduler}
+ * and {@link HybridScheduler}.
+ */
+public interface LeafScheduler extends Closeable {
+
+    /**
+     * Run task.accept(i) for every i from 0 to numTasks - 1 and return
+     * once all of them are done. If a task throws, the exception is
+     * rethrown after the other tasks are done.
+     *
+     * @param numTasks the number of tasks, usually one per leaf
+     * @param task the task to run
+     */
+    void run(int numTasks, IntConsumer task);
+
+    /**
+     * Run tasks cooperating on shared work, where task 0 alone is enough
+     * to finish the work and the others only help it along. Task 0 runs on
+     * the calling thread, the helpers run if there are threads to spare and
+     * those not started by the time task 0 returns are skipped. Since no
+     * thread ever waits for a helper that has not started, this can be
+     * called from a task of {@link #run(int, IntConsumer)} without the risk
+     * of running out of threads.
+     * </br>
+     * By default only task 0 runs.
+     *
+     * @param numTasks the number of tasks, task 0 included
+     * @param task the task to run
+     */
+    default void runCooperatively(int numTasks, IntConsumer task) {
+        task.accept(0);
+    }
+
+    /**
+     * @return the number of tasks that can make progress at the same time
+     */
+    int parallelism();
+
+    /**
+     * Release the threads owned by the scheduler, called when
+     * the searcher using it is closed.
+     */
+    @Override
+    void close();
+}
@@ -1,16 +1,16 @@
 package ai.preferred.cerebro.hnsw;
 
 
+import ai.preferred.cerebro.handler.VecFloatHandler;
 import ai.preferred.cerebro.handler.VecHandler;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
-import org.eclipse.collections.api.list.primitive.MutableIntList;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.stack.mutable.primitive.IntArrayStack;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import static ai.preferred.cerebro.hnsw.IndexConst.Sp;
 
@@ -33,21 +33,33 @@ import static ai.preferred.cerebro.hnsw.IndexConst.Sp;
  * @author hpminh@apcs.vn
  */
 abstract class LeafSegment<TVector> {
+    //a search expected to visit more nodes than this always uses an EpochVisitedSet
+    private static final int HASH_VISITED_MAX_VISITS = 1 << 14;
+    //and so does a search expected to visit more than 1/8 of the leaf
+    private static final int HASH_VISITED_LEAF_RATIO = 8;
+    static final int NO_ENTRY = -1;
     //constants
     protected final String LOCAL_CONFIG;
     protected final String LOCAL_DELETED;
     protected final String LOCAL_INCONN;
     protected final String LOCAL_OUTCONN;
+    //external ids of the nodes as ints, saved before they were longs
     protected final String LOCAL_INVERT;
+    protected final String LOCAL_EXTERNAL_IDS;
     protected final String LOCAL_VECS;
+    protected final String LOCAL_MAPPED;
+    protected final String LOCAL_GRAPH;
+    protected final String LOCAL_DISK;
+    protected final String LOCAL_QUANT;
     //local
     final protected String leafName;
-    protected int baseID;
+    protected long baseID;
 
     protected volatile int nodeCount;
     protected IntArrayStack freedIds;
-    protected volatile Node<TVector> entryPoint;
-    protected Node<TVector>[] nodes;
+    //internal id of the entry node, NO_ENTRY while the leaf is empty
+    protected volatile int entryId = NO_ENTRY;
+    protected LeafStorage<TVector> storage;
 
 
     //global - same across all leaves
@@ -62,9 +74,9 @@ abstract class LeafSegment<TVector> {
     protected boolean removeEnabled;
     protected int maxNodeCount;
 
-    final protected ParentHnsw parent;
+    final protected ParentHnsw<TVector> parent;
     //<external id, internal id>
-    protected ConcurrentHashMap<Integer, Integer> lookup;
+    protected StripedIdLookup lookup;
 
     //runtime specific
     public enum Mode{
@@ -73,11 +85,11 @@ abstract class LeafSegment<TVector> {
         SEARCH
     }
     Mode mode;
-    private LeafSegment(ParentHnsw parent,
+    private LeafSegment(ParentHnsw<TVector> parent,
                         int numName){
         HnswConfiguration configuration = parent.getConfiguration();
         this.maxNodeCount = configuration.maxItemLeaf;
-        this.handler = configuration.handler;
+        this.handler = parent.handler();
         this.distanceComparator = configuration.distanceComparator;
         this.m = configuration.m;
         this.maxM = configuration.m;
@@ -87,15 +99,21 @@ abstract class LeafSegment<TVector> {
         this.ef = configuration.ef;
         this.removeEnabled = configuration.removeEnabled;
         this.parent = parent;
-        this.lookup = parent.getLookup();
+        this.lookup = parent.lookup;
         this.leafName = numName + "_";
+        this.baseID = (long) numName * maxNodeCount;
 
         LOCAL_CONFIG = Sp + leafName + "config.o";
         LOCAL_DELETED = Sp + leafName + "deleted.o";
         LOCAL_INCONN = Sp + leafName + "inconns.o";
         LOCAL_OUTCONN = Sp + leafName + "outconns.o";
         LOCAL_INVERT = Sp + leafName + "invert.o";
+        LOCAL_EXTERNAL_IDS = Sp + leafName + "ids.o";
         LOCAL_VECS = Sp + leafName + "vecs.o";
+        LOCAL_MAPPED = Sp + leafName + "mapped.bin";
+        LOCAL_GRAPH = Sp + leafName + "graph.bin";
+        LOCAL_DISK = Sp + leafName + "disk.bin";
+        LOCAL_QUANT = Sp + leafName + "quant.o";
 
     }
 
@@ -113,10 +131,11 @@ abstract class LeafSegment<TVector> {
      *               baseID = sum of maximum capacity of all leaf segments with
      *               numName less than this segment's numName
      */
-    LeafSegment(ParentHnsw parent,
-                int numName, int baseID) {
+    LeafSegment(ParentHnsw<TVector> parent,
+                int numName, long baseID) {
         this(parent, numName);
-        this.nodes = new Node[this.maxNodeCount];
+        this.storage = LeafStorage.create(parent.getConfiguration().leafLayout, handler, maxNodeCount,
+                maxM0, maxM, removeEnabled, true);
         this.freedIds = new IntArrayStack();
         this.baseID = baseID;
         mode = Mode.CREATE;
@@ -129,13 +148,25 @@ abstract class LeafSegment<TVector> {
      * @param numName
      * @param idxDir
      * @param mode
+     * @param layout how to lay out the nodes in memory
      */
-     LeafSegment(ParentHnsw parent,
+     LeafSegment(ParentHnsw<TVector> parent,
                  int numName,
-                 String idxDir, Mode mode){
+                 String idxDir, Mode mode, LeafLayout layout){
+        this(parent, numName, idxDir, mode, layout, false);
+    }
+
+    /**
+     * @param residentUpperLayers whether a {@link LeafLayout#MAPPED} leaf
+     *                            copies the connections of its upper layers
+     *                            to the heap
+     */
+    LeafSegment(ParentHnsw<TVector> parent,
+                int numName,
+                String idxDir, Mode mode, LeafLayout layout, boolean residentUpperLayers){
         this(parent, numName);
         this.mode = mode;
-        load(idxDir);
+        load(idxDir, layout, residentUpperLayers);
         /*
         if(mode == Mode.SEARCH)
             this.visitedBitSetPool = new GenericObjectPool<>(() -> new ai.preferred.cerebro.hnsw.BitSet(this.nodeCount), Runtime.getRuntime().availableProcessors());
@@ -144,7 +175,7 @@ abstract class LeafSegment<TVector> {
          */
     }
 
-    public int getBaseID() {
+    public long getBaseID() {
         return baseID;
     }
 
@@ -155,11 +186,11 @@ abstract class LeafSegment<TVector> {
     }
 
     public Optional<TVector> getVector(int internalID) {
-        return Optional.ofNullable(nodes[internalID]).map(Node::vector);
+        return storage.contains(internalID) ? Optional.of(storage.vector(internalID)) : Optional.empty();
     }
 
     public Optional<Node<TVector>> getNode(int internalID) {
-        return Optional.ofNullable(nodes[internalID]);
+        return storage.contains(internalID) ? Optional.of(storage.node(internalID)) : Optional.empty();
     }
 
     public int getNodeCount() {
@@ -177,67 +208,177 @@ abstract class LeafSegment<TVector> {
 
      */
 
-    protected BoundedMaxHeap searchLayer(Node<TVector> entryPointNode, TVector destination, int k, int layer){
-        BitSet visitedBitSet = parent.getBitsetFromPool();
-        try {
-            //a priority queue which can not grow past the initial capacity
-            BoundedMaxHeap topCandidates =
-                    new BoundedMaxHeap(k, ()-> null);
+    /**
+     * Release the memory the nodes hold outside the heap, if they are
+     * kept there. The leaf must not be used afterwards.
+     */
+    void release() {
+        storage.free();
+    }
 
-            PriorityQueue<Candidate> checkNeighborSet = new PriorityQueue<>();
+    /**
+     * @return an exclusive upper bound of the internal ids of this leaf
+     * when called, nodes inserted concurrently may take ids past it
+     * (which {@link EpochVisitedSet} makes room for as they are visited)
+     */
+    protected int idCapacity() {
+        return nodeCount;
+    }
 
-            double distance = handler.distance(destination, entryPointNode.vector());
+    /**
+     * Copy the outward connections of a node at a layer into the
+     * neighbor buffer of the search context, so that the caller can
+     * iterate over them without holding on to the node's own list.
+     * @return the number of neighbors copied into {@link SearchContext#neighbours}
+     */
+    protected int copyNeighbours(int internalID, int layer, SearchContext context) {
+        int[] buffer = context.neighbourBuffer(storage.connectionCount(internalID, layer));
+        return storage.copyConnections(internalID, layer, buffer);
+    }
 
-            Candidate firstCandidade = new Candidate(entryPointNode.internalId, distance, distanceComparator);
+    /**
+     * Decide which kind of {@link VisitedSet} a search of this leaf should use.
+     * A search visits in the order of ef * maxM0 nodes, when that is small
+     * compared to the number of nodes of the leaf a {@link HashVisitedSet}
+     * sized to the visits is cheaper than an array sized to the leaf.
+     * @param ef the number of closest candidates kept by the search
+     */
+    protected boolean useHashVisitedSet(int ef) {
+        long expectedVisits = (long) ef * maxM0;
+        return expectedVisits <= HASH_VISITED_MAX_VISITS
+                && expectedVisits * HASH_VISITED_LEAF_RATIO <= nodeCount;
+    }
 
-            topCandidates.add(firstCandidade);
-            checkNeighborSet.add(firstCandidade);
-            visitedBitSet.flipTrue(entryPointNode.internalId);
+    /**
+     * Best-first search of a layer starting from the given entry node.
+     * All the scratch state comes from the context, no candidate object
+     * is created along the way.
+     * @return the k (or less) closest nodes found, kept in
+     * {@link SearchContext#topCandidates} until the next search
+     * on the same context
+     */
+    protected CandidateMaxHeap searchLayer(SearchContext context, int entryId, TVector destination, int k, int layer){
+        return searchLayer(context, entryId, destination, k, layer, null, k, 0, 0, 0);
+    }
 
-            double lowerBound = distance;
+    /**
+     * Same as {@link #searchLayer(SearchContext, int, Object, int, int)}, with
+     * the ways of stopping early a query can ask for: once no candidate can
+     * beat the bound shared with the searches of the other leaves (which the
+     * search lowers as it finds closer nodes), once the budget of distance
+     * computations is spent, or once the k best results have not improved
+     * for patience expansions in a row.
+     * @param ef the size of the dynamic list of candidates
+     * @param sharedBound the bound of the query, null to search on its own
+     * @param k the number of results the caller is after, at most ef
+     * @param maxDistances the maximum number of distances to compute, 0 for no limit
+     * @param patience the number of expansions without improvement to stop after, 0 to never stop early
+     * @param prefix the number of leading elements the distances are computed with, 0 for all of them
+     */
+    protected CandidateMaxHeap searchLayer(SearchContext context, int entryId, TVector destination, int ef, int layer,
+                                           SharedBound sharedBound, int k, int maxDistances, int patience,
+                                           int prefix){
+        VisitedSet visitedSet;
+        if (useHashVisitedSet(ef))
+            visitedSet = context.hashVisitedSet(ef * maxM0);
+        else
+            visitedSet = context.epochVisitedSet(idCapacity());
+        try {
+            //a max heap which is never allowed to grow past ef
+            CandidateMaxHeap topCandidates = context.topCandidates;
+            CandidateMinHeap checkNeighborSet = context.frontier;
+            topCandidates.clear();
+            checkNeighborSet.clear();
+            //the k best of the candidates, to tell when the results stop improving
+            CandidateMaxHeap results = null;
+            if (patience > 0 && k < ef) {
+                results = context.resultCandidates;
+                results.clear();
+            }
 
-            while (!checkNeighborSet.isEmpty()) {
-                Candidate nodeWithNeighbors = checkNeighborSet.poll();
+            float distance = distance(destination, entryId, prefix);
+            int computed = 1;
+            int withoutImprovement = 0;
 
-                if (nodeWithNeighbors.distance > lowerBound) {
-                    break;
-                }
+            topCandidates.push(entryId, distance);
+            checkNeighborSet.push(entryId, distance);
+            if (results != null)
+                results.push(entryId, distance);
+            visitedSet.visit(entryId);
 
-                MutableIntList candidates = nodes[nodeWithNeighbors.nodeId].outConns[layer];
+            float lowerBound = distance;
 
-                for (int i = 0; i < candidates.size(); i++) {
+            expansion:
+            while (!checkNeighborSet.isEmpty()) {
+                float closest = checkNeighborSet.topDistance();
+                if (closest > lowerBound) {
+                    break;
+                }
+                if (sharedBound != null && closest > sharedBound.get()) {
+                    break;
+                }
+                int nodeWithNeighbors = checkNeighborSet.pop();
 
-                    int candidateId = candidates.get(i);
+                int count = copyNeighbours(nodeWithNeighbors, layer, context);
+                int[] candidates = context.neighbours;
+                boolean improved = false;
 
-                    if (!visitedBitSet.isTrue(candidateId)) {
+                for (int i = 0; i < count; i++) {
 
-                        visitedBitSet.flipTrue(candidateId);
+                    int candidateId = candidates[i];
 
-                        double candidateDistance = handler.distance(destination,
-                                nodes[candidateId].vector());
+                    if (visitedSet.visit(candidateId)) {
 
-                        if (topCandidates.top().distance > candidateDistance || topCandidates.size() < k) {
+                        if (maxDistances > 0 && computed == maxDistances)
+                            break expansion;
+                        computed++;
+                        float candidateDistance = distance(destination, candidateId, prefix);
 
-                            Candidate newCandidate = new Candidate(candidateId, candidateDistance, distanceComparator);
+                        if (topCandidates.topDistance() > candidateDistance || topCandidates.size() < ef) {
 
-                            checkNeighborSet.add(newCandidate);
-                            if (topCandidates.size() == k)
-                                topCandidates.updateTop(newCandidate);
+                            checkNeighborSet.push(candidateId, candidateDistance);
+                            if (topCandidates.size() == ef)
+                                topCandidates.updateTop(candidateId, candidateDistance);
                             else
-                                topCandidates.add(newCandidate);
-
-                            lowerBound = topCandidates.top().distance;
+                                topCandidates.push(candidateId, candidateDistance);
+
+                            lowerBound = topCandidates.topDistance();
+                            if (sharedBound != null && topCandidates.size() == ef)
+                                sharedBound.offer(lowerBound);
+
+                            if (results == null)
+                                improved = true;
+                            else if (results.size() < k) {
+                                results.push(candidateId, candidateDistance);
+                                improved = true;
+                            }
+                            else if (candidateDistance < results.topDistance()) {
+                                results.updateTop(candidateId, candidateDistance);
+                                improved = true;
+                            }
                         }
                     }
                 }
+                if (patience > 0) {
+                    withoutImprovement = improved ? 0 : withoutImprovement + 1;
+                    if (withoutImprovement == patience)
+                        break;
+                }
             }
             return topCandidates;
         } finally {
-            visitedBitSet.clear();
-            parent.returnBitsetToPool(visitedBitSet);
+            visitedSet.clear();
         }
     }
 
+    /**
+     * @return the distance of the query to a node, of their first prefix
+     * elements unless prefix is 0
+     */
+    final float distance(TVector query, int id, int prefix) {
+        return prefix == 0 ? storage.distance(query, id) : storage.prefixDistance(query, id, prefix);
+    }
+
     private boolean checkCorruptedIndex(File configFile, File deletedIdFile,
                                         File inConnectionFile, File outConnectionFile,
                                         File vecsFile, File invertLookUp){
@@ -254,13 +395,24 @@ abstract class LeafSegment<TVector> {
         return false;
     }
 
-    private void load(String dir){
+    private void load(String dir, LeafLayout layout, boolean residentUpperLayers){
+        if (layout == LeafLayout.MAPPED) {
+            loadMapped(dir, residentUpperLayers);
+            return;
+        }
+        if (layout == LeafLayout.DISK) {
+            loadDisk(dir);
+            return;
+        }
         File configFile = new File(dir + LOCAL_CONFIG);
         File deletedIdFile = new File(dir + LOCAL_DELETED);
         File inConnectionFile = new File(dir + LOCAL_INCONN);
         File outConnectionFile = new File(dir + LOCAL_OUTCONN);
         File vecsFile = new File(dir + LOCAL_VECS);
-        File invertLookUpFile = new File(dir + LOCAL_INVERT);
+        File invertLookUpFile = new File(dir + LOCAL_EXTERNAL_IDS);
+        boolean longIds = invertLookUpFile.exists();
+        if (!longIds)
+            invertLookUpFile = new File(dir + LOCAL_INVERT);
 
         if (checkCorruptedIndex(configFile, deletedIdFile,
                 inConnectionFile, outConnectionFile,
@@ -269,92 +421,217 @@ abstract class LeafSegment<TVector> {
 
 
         int entryID = loadConfig(configFile);
-        TVector[] vecs = handler.load(vecsFile);
-        IntArrayList[][] outConns = loadConns(outConnectionFile);
-        IntArrayList[][] inConns = null;
-
         int numToLoad = nodeCount;
-
-
+        boolean withInConns = false;
         if(mode == Mode.MODIFY){
-            loadDeletedId(deletedIdFile);
-            inConns = loadConns(inConnectionFile);
+            withInConns = removeEnabled;
             numToLoad = maxNodeCount;
         }
+        //deleted nodes are the ones without vector, kept track of for size()
+        //and for writers to reuse, the deleted id file kryo writes holds none
+        freedIds = new IntArrayStack();
+
+        long[] invertLookUp = loadLookup(invertLookUpFile, longIds);
+        if (layout == LeafLayout.QUANTIZED)
+            this.storage = LeafStorage.createQuantized(handler, numToLoad, maxM0, maxM,
+                    loadQuantizer(dir, vecsFile));
+        else if (layout == LeafLayout.PRODUCT_QUANTIZED)
+            this.storage = LeafStorage.createProductQuantized(handler, numToLoad, maxM0, maxM,
+                    productQuantizer(), rerankSource(dir));
+        else if (layout == LeafLayout.BINARY) {
+            if (mode != Mode.SEARCH)
+                throw new IllegalArgumentException("Binary leaves can only be loaded for searching");
+            this.storage = LeafStorage.createBinary(handler, numToLoad, maxM0, maxM, parent.binaryRerank());
+        }
+        else
+            this.storage = LeafStorage.create(layout, handler, numToLoad, maxM0, maxM,
+                    withInConns, mode == Mode.MODIFY);
+
+        //the vectors and connections are read side by side, one node at a time
+        try (ConnectionsFile.Reader outConns = new ConnectionsFile.Reader(outConnectionFile);
+             ConnectionsFile.Reader inConns = withInConns ? new ConnectionsFile.Reader(inConnectionFile) : null) {
+            assert nodeCount == outConns.nodeCount();
+            handler.load(vecsFile, (vector, i) -> {
+                int[][] out = outConns.next();
+                int[][] in = inConns == null ? null : inConns.next();
+                if (vector != null)
+                    storage.put(i, invertLookUp[i], vector, out, in);
+                else
+                    freedIds.push(i);
+            });
+        }
+        storage.seal();
+        this.entryId = entryID;
+    }
+
+    /**
+     * @return the quantizer of the leaf, fitted to its vectors and saved
+     * the first time it is asked for
+     */
+    private ScalarQuantizer loadQuantizer(String dir, File vecsFile) {
+        if (mode != Mode.SEARCH)
+            throw new IllegalArgumentException("Quantized leaves can only be loaded for searching");
+        File quantFile = new File(dir + LOCAL_QUANT);
+        if (quantFile.exists())
+            return ScalarQuantizer.load(quantFile);
+        ScalarQuantizer.Range range = new ScalarQuantizer.Range();
+        handler.load(vecsFile, (vector, i) -> {
+            if (vector != null)
+                range.add(vector);
+        });
+        ScalarQuantizer quantizer = range.quantizer();
+        quantizer.save(quantFile);
+        return quantizer;
+    }
+
+    private ProductQuantizer productQuantizer() {
+        ProductQuantizer quantizer = parent.productQuantizer();
+        if (mode != Mode.SEARCH || quantizer == null)
+            throw new IllegalArgumentException("Product quantized leaves can only be loaded by searchers "
+                    + "of an index with a product quantizer");
+        return quantizer;
+    }
 
-        int [] invertLookUp = loadLookup(invertLookUpFile);
-        this.nodes = new Node[numToLoad];
+    /**
+     * @return opens the mapped leaf file the results are ranked again with,
+     * null if they are not
+     */
+    private Supplier<LeafStorage<TVector>> rerankSource(String dir) {
+        if (!parent.productQuantizationRerank())
+            return null;
+        File mappedFile = new File(dir + LOCAL_MAPPED);
+        if (!mappedFile.exists())
+            throw new IllegalArgumentException("Leaf " + leafName + " has no mapped file to rank its results with, "
+                    + "write them with HnswIndexSearcher.writeMappedLeaves");
+        return () -> new MappedLeafStorage<>(handler, mappedFile, nodeCount, maxM0, maxM);
+    }
 
+    private void loadMapped(String dir, boolean residentUpperLayers) {
+        if (mode != Mode.SEARCH)
+            throw new IllegalArgumentException("Mapped leaves are read only, they can only be used by searchers");
+        File configFile = new File(dir + LOCAL_CONFIG);
+        File mappedFile = new File(dir + LOCAL_MAPPED);
+        if (!IndexUtils.checkFileExist(configFile))
+            throw new IllegalArgumentException("Index is corrupted");
+        if (!mappedFile.exists())
+            throw new IllegalArgumentException("Leaf " + leafName + " has no mapped file, "
+                    + "write them with HnswIndexSearcher.writeMappedLeaves");
+        loadConfig(configFile);
+        MappedLeafStorage<TVector> mapped = new MappedLeafStorage<>(handler, mappedFile, nodeCount, maxM0, maxM,
+                residentUpperLayers);
+        this.storage = mapped;
+        freedIds = new IntArrayStack();
         for (int i = 0; i < nodeCount; i++) {
-            IntArrayList[] inconn = null;
-            if(removeEnabled && mode == Mode.MODIFY)
-                inconn = inConns[i];
-            if(vecs[i] != null){
-                this.nodes[i] = new Node<>(i,
-                                outConns[i],
-                                inconn,
-                                new Item<>(invertLookUp[i], vecs[i]));
-            }
+            if (!storage.contains(i))
+                freedIds.push(i);
         }
-        this.entryPoint = nodes[entryID];
+        this.entryId = mapped.entryId;
     }
 
-    //To be handled by parent
-    private int[] loadLookup(File lookupFile) {
-        int [] lookup = null;
-        Kryo kryo = new Kryo();
-        kryo.register(int[].class);
-        try {
-            Input input = new Input(new FileInputStream(lookupFile));
-            lookup = kryo.readObject(input, int[].class);
-            input.close();
-
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+    private void loadDisk(String dir) {
+        if (mode != Mode.SEARCH)
+            throw new IllegalArgumentException("Disk leaves are read only, they can only be used by searchers");
+        File configFile = new File(dir + LOCAL_CONFIG);
+        File graphFile = new File(dir + LOCAL_GRAPH);
+        File diskFile = new File(dir + LOCAL_DISK);
+        if (!IndexUtils.checkFileExist(configFile))
+            throw new IllegalArgumentException("Index is corrupted");
+        if (!graphFile.exists() || !diskFile.exists())
+            throw new IllegalArgumentException("Leaf " + leafName + " has no disk files, "
+                    + "write them with HnswIndexSearcher.writeDiskLeaves");
+        loadConfig(configFile);
+        MappedLeafStorage<TVector> disk = new MappedLeafStorage<>(handler, graphFile, nodeCount, maxM0, maxM,
+                diskFile, parent.diskCacheBytes());
+        this.storage = disk;
+        freedIds = new IntArrayStack();
+        for (int i = 0; i < nodeCount; i++) {
+            if (!storage.contains(i))
+                freedIds.push(i);
         }
-        assert nodeCount == lookup.length;
-        return lookup;
+        this.entryId = disk.entryId;
     }
 
-    private IntArrayList[][] loadConns(File connFile) {
-        IntArrayList[][] conns = null;
-        int[][][] data = null;
+    /**
+     * Write the graph and the vector files of this leaf, see {@link LeafLayout#DISK}.
+     * @param dir the directory of the index
+     * @param compressed whether to encode the connections with {@link AdjacencyCodec}
+     */
+    @SuppressWarnings("unchecked")
+    void writeDisk(String dir, boolean compressed) {
+        if (!(handler instanceof VecFloatHandler))
+            throw new IllegalArgumentException("Disk leaves need a VecFloatHandler, got "
+                    + handler.getClass().getName());
+        DiskVectorSlab.write((LeafStorage<float[]>) storage, nodeCount, new File(dir + LOCAL_DISK));
+        MappedLeafStorage.write(storage, nodeCount, maxM0, maxM, entryId, compressed, false,
+                new File(dir + LOCAL_GRAPH));
+    }
 
-        Kryo kryo = new Kryo();
-        kryo.register(int[].class);
-        kryo.register(int[][].class);
-        kryo.register(int[][][].class);
-        try{
-            Input input = new Input(new FileInputStream(connFile));
-            data = kryo.readObject(input, int[][][].class);
-            input.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
-        assert nodeCount == data.length;
-        conns = new IntArrayList[data.length][];
-        for (int i = 0; i < data.length; i++) {
-            conns[i] = new IntArrayList[data[i].length];
-            for (int j = 0; j < data[i].length; j++) {
-                conns[i][j] = new IntArrayList(data[i][j]);
-            }
-        }
-        return conns;
+    /**
+     * @return the number of bytes of vectors read from disk by a
+     * {@link LeafLayout#DISK} leaf, 0 for the other layouts
+     */
+    long diskBytesRead() {
+        return storage instanceof MappedLeafStorage ? ((MappedLeafStorage<TVector>) storage).diskBytesRead() : 0;
+    }
+
+    /**
+     * @return the file the vectors of a saved leaf are saved in
+     */
+    static File vectorsFile(String dir, int numName) {
+        return new File(dir + Sp + (numName + "_vecs.o"));
+    }
+
+    /**
+     * @return whether the mapped leaf file of a saved leaf has been written
+     */
+    static boolean hasMapped(String dir, int numName) {
+        return new File(dir + Sp + (numName + "_mapped.bin")).exists();
+    }
+
+    /**
+     * @return the size of the files the nodes of a saved leaf are loaded
+     * from, about the memory they take once loaded on the heap
+     */
+    static long savedBytes(String dir, int numName) {
+        String leafName = Sp + (numName + "_");
+        String ids = new File(dir + leafName + "ids.o").exists() ? "ids.o" : "invert.o";
+        return new File(dir + leafName + "vecs.o").length()
+                + new File(dir + leafName + "outconns.o").length()
+                + new File(dir + leafName + ids).length();
     }
 
-    private void loadDeletedId(File deletedIdFile) {
+    /**
+     * Write the nodes of this leaf into its mapped leaf file,
+     * see {@link LeafLayout#MAPPED}.
+     * @param dir the directory of the index
+     * @param compressed whether to encode the connections with {@link AdjacencyCodec}
+     */
+    void writeMapped(String dir, boolean compressed) {
+        MappedLeafStorage.write(storage, nodeCount, maxM0, maxM, entryId, compressed, new File(dir + LOCAL_MAPPED));
+    }
+
+    //To be handled by parent
+    /**
+     * @param longIds whether the file holds longs, or the ints of the indexes saved before
+     */
+    private long[] loadLookup(File lookupFile, boolean longIds) {
+        long[] lookup = null;
         Kryo kryo = new Kryo();
         kryo.register(int[].class);
-        kryo.register(IntArrayList.class);
-        kryo.register(IntArrayStack.class);
+        kryo.register(long[].class);
         try {
-            Input input = new Input(new FileInputStream(deletedIdFile));
-            freedIds = kryo.readObject(input, IntArrayStack.class);
+            Input input = new Input(new FileInputStream(lookupFile));
+            if (longIds)
+                lookup = kryo.readObject(input, long[].class);
+            else
+                lookup = Arrays.stream(kryo.readObject(input, int[].class)).asLongStream().toArray();
             input.close();
 
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
+        assert nodeCount == lookup.length;
+        return lookup;
     }
 
     //To be handle by parent
@@ -366,7 +643,8 @@ abstract class LeafSegment<TVector> {
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
-        baseID = kryo.readObject(input, int.class);
+        //the saved base id overflows past 2^31 nodes, the one set from the leaf number is used instead
+        kryo.readObject(input, int.class);
         nodeCount = kryo.readObject(input, int.class);
         //Save the id of entry node
         int entryId = kryo.readObject(input, int.class);
@@ -1,15 +1,9 @@
 package ai.preferred.cerebro.hnsw;
 
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Output;
 import org.eclipse.collections.api.list.primitive.MutableIntList;
-import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.StampedLock;
 
@@ -25,37 +19,30 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
     private ReentrantLock globalLock;
     private StampedLock stampedLock;
     private BitSet activeConstruction;
-    private AtomicReferenceArray<Node<TVector>> nodes;
 
     //Create constructor
-    public LeafSegmentBlockingWriter(HnswIndexWriter parent, int numName, int base) {
+    public LeafSegmentBlockingWriter(HnswIndexWriter<TVector> parent, int numName, long base) {
         super(parent, numName, base);
         this.globalLock = new ReentrantLock();
         this.stampedLock = new StampedLock();
-        this.activeConstruction = new BitSet(this.maxNodeCount);
-        nodes = new AtomicReferenceArray<>(super.nodes);
-        super.nodes = null;
+        this.activeConstruction = new BitSet(0);
     }
 
     //Load constructor
-    public LeafSegmentBlockingWriter(HnswIndexWriter parent, int numName , String idxDir) {
+    public LeafSegmentBlockingWriter(HnswIndexWriter<TVector> parent, int numName , String idxDir) {
         super(parent, numName, idxDir);
 
         this.globalLock = new ReentrantLock();
         this.stampedLock = new StampedLock();
-        this.activeConstruction = new BitSet(this.maxNodeCount);
-        nodes = new AtomicReferenceArray<>(super.nodes);
-        super.nodes = null;
+        this.activeConstruction = new BitSet(0);
     }
 
     @Override
-    public Optional<TVector> getVector(int internalID) {
-        return Optional.ofNullable(nodes.get(internalID)).map(Node::vector);
-    }
-
-    @Override
-    public Optional<Node<TVector>> getNode(int internalID) {
-        return Optional.ofNullable(nodes.get(internalID));
+    protected int copyNeighbours(int internalID, int layer, SearchContext context) {
+        //connections of a node are only ever modified while holding its lock
+        synchronized (storage.lock(internalID)) {
+            return super.copyNeighbours(internalID, layer, context);
+        }
     }
 
     @Override
@@ -65,46 +52,12 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
         }
         globalLock.lock();
         try {
-
-            Node node = nodes.get(internalID);
-
-            for (int level = node.maxLevel(); level >= 0; level--) {
-                final int thisLevel = level;
-                node.inConns[level].forEach(neighbourId ->
-                        nodes.get(neighbourId).outConns[thisLevel].remove(internalID));
-
-                node.outConns[level].forEach(neighbourId ->
-                        nodes.get(neighbourId).inConns[thisLevel].remove(internalID));
-            }
-
-            // change the entry point to the first outgoing connection at the highest level
-            if (entryPoint == node) {
-                for (int level = node.maxLevel(); level >= 0; level--) {
-                    IntArrayList outgoingConnections = node.outConns[level];
-                    if (!outgoingConnections.isEmpty()) {
-                        entryPoint = nodes.get(outgoingConnections.getFirst());
-                        break;
-                    }
-                }
-
-            }
-
-            // if we could not change the outgoing connection it means we are the last node
-            if (entryPoint == node) {
-                entryPoint = null;
-            }
-            if(lookup.contains(node.item.externalId))
-                lookup.remove(node.item.externalId);
-            nodes.set(internalID, null);
-
             //no need to put freedIds inside a synchronized block because
             //other other code sections that write to freedIds are also inside
             //global lock
-            freedIds.push(internalID);
+            return super.removeOnInternalID(internalID);
         }
         finally { globalLock.unlock(); }
-
-        return true;
     }
 
     //to be handled by parent
@@ -118,11 +71,11 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
     public boolean add(Item<TVector> item) {
         globalLock.lock();
         try {
-            Integer globalId = lookup.get(item.externalId);
+            long globalId = lookup.get(item.externalId);
 
 
             //check if there is nodes with similar id in the graph
-            if(globalId != null){
+            if(globalId != IdLookup.NO_ID){
                 //if there is similar id but index does not support removal then abort operation
                 if (!removeEnabled) {
                     return false;
@@ -130,14 +83,13 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
                 //if there is already this id in the index, it means this is an update
                 //so only handle if this is the leaf that the id was already residing
                 if(globalId >= baseID && globalId < baseID + maxNodeCount){
-                    Node<TVector> node = nodes.get(globalId - baseID);
-                    if (Objects.deepEquals(node.vector(), item.vector)) {
+                    if (Objects.deepEquals(storage.vector((int) (globalId - baseID)), item.vector)) {
                         //object already added
                         return true;
                     } else {
                         //similar id but different vector means different object
                         //so remove the object to insert the current new one
-                        removeOnInternalID(item.externalId);
+                        removeOnInternalID((int) (globalId - baseID));
                     }
                 }
                 else
@@ -159,24 +111,10 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
             //randomize level
             int randomLevel = assignLevel(item.externalId, this.levelLambda);
 
-            IntArrayList[] outConns = new IntArrayList[randomLevel + 1];
-
-            for (int level = 0; level <= randomLevel; level++) {
-                int levelM = randomLevel == 0 ? maxM0 : maxM;
-                outConns[level] = new IntArrayList(levelM);
-            }
-
-            IntArrayList[] inConns = removeEnabled ? new IntArrayList[randomLevel + 1] : null;
-            if (removeEnabled) {
-                for (int level = 0; level <= randomLevel; level++) {
-                    int levelM = randomLevel == 0 ? maxM0 : maxM;
-                    inConns[level] = new IntArrayList(levelM);
-                }
-            }
-
-            Node<TVector> entryPointCopy = entryPoint;
+            int entryIdCopy = entryId;
+            int entryLevel = entryIdCopy == NO_ENTRY ? -1 : storage.maxLevel(entryIdCopy);
 
-            if (entryPoint != null && randomLevel <= entryPoint.maxLevel()) {
+            if (entryIdCopy != NO_ENTRY && randomLevel <= entryLevel) {
                 globalLock.unlock();
             }
 
@@ -192,68 +130,62 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
                 //setting aside nodes that are being inserted
 
                 synchronized (activeConstruction) {
-
+                    //grown with the ids handed out rather than sized to the leaf capacity
+                    activeConstruction.ensureCapacity(internalId + 1);
                     activeConstruction.flipTrue(internalId);
                 }
 
-                Node<TVector> newNode = new Node<>(internalId, outConns, inConns, item);
-                nodes.set(internalId, newNode);
+                storage.insert(internalId, item.externalId, item.vector, randomLevel);
                 lookup.put(item.externalId, internalId + baseID);
 
-                Node<TVector> curNode = entryPointCopy;
+                int curId = entryIdCopy;
 
-                //entry point is null if this is the first node inserted into the graph
-                if (curNode != null) {
+                //there is no entry point if this is the first node inserted into the graph
+                if (curId != NO_ENTRY) {
+                    SearchContext context = parent.getSearchContext();
 
                     //if no layer added
-                    if (newNode.maxLevel() < entryPointCopy.maxLevel()) {
+                    if (randomLevel < entryLevel) {
 
-                        double curDist = handler.distance(newNode.vector(), curNode.vector());
+                        float curDist = storage.distance(item.vector, curId);
                         //sequentially zoom in until reach the layer next to
                         // the highest layer that the new node has to be inserted
-                        for (int curLevel = entryPointCopy.maxLevel(); curLevel > newNode.maxLevel(); curLevel--) {
+                        for (int curLevel = entryLevel; curLevel > randomLevel; curLevel--) {
 
                             boolean changed = true;
                             while (changed){
                                 changed = false;
-                                IntArrayList candidateConns = curNode.outConns[curLevel];
-                                synchronized (candidateConns) {
-
+                                int count = copyNeighbours(curId, curLevel, context);
+                                int[] candidateConns = context.neighbours;
 
-                                    for (int i = 0; i < candidateConns.size(); i++) {
+                                for (int i = 0; i < count; i++) {
 
-                                        int candidateId = candidateConns.get(i);
+                                    int candidateId = candidateConns[i];
 
-                                        Node<TVector> candidateNode = nodes.get(candidateId);
+                                    float candidateDistance = storage.distance(item.vector, candidateId);
 
-                                        double candidateDistance = handler.distance(newNode.vector(), candidateNode.vector());
-
-                                        //updating the starting node to be used at lower level
-                                        if (candidateDistance < curDist) {
-                                            curDist = candidateDistance;
-                                            curNode = candidateNode;
-                                            changed = true;
-                                        }
+                                    //updating the starting node to be used at lower level
+                                    if (candidateDistance < curDist) {
+                                        curDist = candidateDistance;
+                                        curId = candidateId;
+                                        changed = true;
                                     }
                                 }
                             }
                         }
                     }
                     //insert the new node starting from its highest layer by setting up connections
-                    for (int level = Math.min(randomLevel, entryPointCopy.maxLevel()); level >= 0; level--) {
-                        BoundedMaxHeap topCandidates = searchLayer(curNode, newNode.vector(), efConstruction, level);
-                        synchronized (newNode) {
-                            mutuallyConnectNewElement(newNode, topCandidates, level);
-                        }
-
+                    for (int level = Math.min(randomLevel, entryLevel); level >= 0; level--) {
+                        CandidateMaxHeap topCandidates = searchLayer(context, curId, item.vector, efConstruction, level);
+                        mutuallyConnectNewElement(context, internalId, item.vector, topCandidates, level);
                     }
                 }
 
                 // if this is the first node inserted or its highest layer is higher than that
                 // of the current entry node, then we have to update the entry node
-                if (entryPoint == null || newNode.maxLevel() > entryPointCopy.maxLevel()) {
+                if (entryId == NO_ENTRY || randomLevel > entryLevel) {
                     // this is thread safe because we get the global lock when we add a level
-                    this.entryPoint = newNode;
+                    this.entryId = internalId;
                 }
             } finally {
                 //upon insert completion signal that the node is ready
@@ -275,21 +207,26 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
         }
     }
 
+    /**
+     * Same as the single threaded version, except that the connections of
+     * a node are only read or changed while holding {@link LeafStorage#lock(int)}
+     * of that node. No two of these locks are ever held at once, since the
+     * columnar layout shares them between nodes.
+     */
     @Override
-    protected void mutuallyConnectNewElement(Node<TVector> newNode,
-                                             BoundedMaxHeap topCandidates,
+    protected void mutuallyConnectNewElement(SearchContext context,
+                                             int newNodeId,
+                                             TVector newNodeVector,
+                                             CandidateMaxHeap topCandidates,
                                              int level) {
 
         int bestN = level == 0 ? this.maxM0 : this.maxM;
 
-        int newNodeId = newNode.internalId;
-        TVector newNodeVector = newNode.vector();
-        IntArrayList outNewNodeConns = newNode.outConns[level];
-
-        Iterator<Candidate> iteratorSelected = getNeighborsByHeuristic2(topCandidates, null, bestN);
+        int[] selected = context.selectedBuffer(topCandidates.size());
+        int selectedCount = getNeighborsByHeuristic2(topCandidates, null, bestN, selected);
 
-        while (iteratorSelected.hasNext()) {
-            int selectedNeighbourId = iteratorSelected.next().nodeId;
+        for (int s = 0; s < selectedCount; s++) {
+            int selectedNeighbourId = selected[s];
 
             synchronized (activeConstruction) {
                 if (activeConstruction.isTrue(selectedNeighbourId)) {
@@ -297,266 +234,55 @@ public class LeafSegmentBlockingWriter<TVector> extends LeafSegmentWriter<TVecto
                 }
             }
 
-            outNewNodeConns.add(selectedNeighbourId);
+            synchronized (storage.lock(newNodeId)) {
+                storage.addConnection(newNodeId, level, selectedNeighbourId);
+            }
 
-            Node<TVector> neighbourNode = nodes.get(selectedNeighbourId);
+            MutableIntList prunedConnections = null;
+            if (removeEnabled) {
+                prunedConnections = context.pruned;
+                prunedConnections.clear();
+            }
 
-            synchronized (neighbourNode) {
+            synchronized (storage.lock(selectedNeighbourId)) {
 
                 if (removeEnabled) {
-                    neighbourNode.inConns[level].add(newNodeId);
+                    storage.inConnections(selectedNeighbourId, level).add(newNodeId);
                 }
 
-                TVector neighbourVector = neighbourNode.vector();
-
-                IntArrayList outNeighbourConnsAtLevel = neighbourNode.outConns[level];
+                int neighbourConnCount = storage.connectionCount(selectedNeighbourId, level);
 
-                if (outNeighbourConnsAtLevel.size() < bestN) {
-
-                    if (removeEnabled) {
-                        newNode.inConns[level].add(selectedNeighbourId);
-                    }
-
-                    outNeighbourConnsAtLevel.add(newNodeId);
+                if (neighbourConnCount < bestN) {
+                    storage.addConnection(selectedNeighbourId, level, newNodeId);
                 } else {
                     // finding the "weakest" element to replace it with the new one
 
-                    double dMax = handler.distance(newNodeVector, neighbourNode.vector());
-
-                    BoundedMaxHeap candidates = new BoundedMaxHeap(bestN + 1, ()-> null);
-                    candidates.add(new Candidate(newNodeId, dMax, distanceComparator));
+                    CandidateMaxHeap candidates = context.pruneCandidates;
+                    candidates.clear();
+                    candidates.push(newNodeId, storage.distance(newNodeVector, selectedNeighbourId));
 
-                    outNeighbourConnsAtLevel.forEach(id -> {
-                        double dist = handler.distance(neighbourVector, nodes.get(id).vector());
-                        candidates.add(new Candidate(id, dist, distanceComparator));
-                    });
-
-                    MutableIntList prunedConnections = removeEnabled ? new IntArrayList() : null;
-
-                    Iterator<Candidate> selecteds = getNeighborsByHeuristic2(candidates, prunedConnections, bestN);
-
-                    if (removeEnabled) {
-                        newNode.inConns[level].add(selectedNeighbourId);
+                    for (int i = 0; i < neighbourConnCount; i++) {
+                        int id = storage.connection(selectedNeighbourId, level, i);
+                        candidates.push(id, storage.distance(selectedNeighbourId, id));
                     }
 
-                    outNeighbourConnsAtLevel.clear();
-                    while (selecteds.hasNext()) {
-                        outNeighbourConnsAtLevel.add(selecteds.next().nodeId);
-                    }
+                    int[] pruneSelected = context.pruneSelectedBuffer(candidates.size());
+                    int keptCount = getNeighborsByHeuristic2(candidates, prunedConnections, bestN, pruneSelected);
 
-                    if (removeEnabled) {
-                        prunedConnections.forEach(id -> {
-                            Node node = nodes.get(id);
-                            synchronized (node.inConns) {
-                                node.inConns[level].remove(selectedNeighbourId);
-                            }
-                        });
-                    }
+                    storage.setConnections(selectedNeighbourId, level, pruneSelected, keptCount);
                 }
             }
-        }
-    }
 
-    @Override
-    protected Iterator<Candidate> getNeighborsByHeuristic2(BoundedMaxHeap topCandidates,
-                                                           MutableIntList prunedConnections,
-                                                           int m) {
-
-        if (topCandidates.size() < m) {
-            topCandidates.iterator();
-        }
-
-        Stack<Candidate> queueClosest = new Stack<Candidate>(topCandidates.size());
-        List<Candidate> returnList = new ArrayList<>();
-
-        while (topCandidates.size() != 0) {
-            queueClosest.push(topCandidates.pop());
-        }
-
-        while (!queueClosest.isEmpty()) {
-            Candidate currentPair = queueClosest.pop();
-
-            boolean good;
-            if (returnList.size() >= m) {
-                good = false;
-            } else {
-                double distToQuery = currentPair.distance;
-
-                good = true;
-                for (Candidate secondPair : returnList) {
-
-                    double curdist = handler.distance(
-                            nodes.get(secondPair.nodeId).vector(),
-                            nodes.get(currentPair.nodeId).vector()
-                    );
-
-                    if (curdist < distToQuery) {
-                        good = false;
-                        break;
-                    }
-
-                }
-            }
-            if (good) {
-                returnList.add(currentPair);
-            } else {
-                if (prunedConnections != null) {
-                    prunedConnections.add(currentPair.nodeId);
-                }
-            }
-        }
-
-        return returnList.iterator();
-    }
-
-    @Override
-    protected BoundedMaxHeap searchLayer(
-            Node<TVector> entryPointNode, TVector destination, int k, int layer) {
-
-        BitSet visitedBitSet = parent.getBitsetFromPool();
-
-        try {
-            BoundedMaxHeap topCandidates = new BoundedMaxHeap(k, ()-> null);
-            PriorityQueue<Candidate> checkNeighborSet = new PriorityQueue<>();
-
-            double distance = handler.distance(destination, entryPointNode.vector());
-
-            Candidate firstCandidade = new Candidate(entryPointNode.internalId, distance, distanceComparator);
-
-            topCandidates.add(firstCandidade);
-            checkNeighborSet.add(firstCandidade);
-            visitedBitSet.flipTrue(entryPointNode.internalId);
-
-            double lowerBound = distance;
-
-            while (!checkNeighborSet.isEmpty()) {
-
-                Candidate nodeWithNeighbors = checkNeighborSet.poll();
-
-                if (nodeWithNeighbors.distance > lowerBound) {
-                    break;
-                }
-
-                Node node = nodes.get(nodeWithNeighbors.nodeId);
-
-                synchronized (node) {
-
-                    MutableIntList candidates = node.outConns[layer];
-
-                    for (int i = 0; i < candidates.size(); i++) {
-
-                        int candidateId = candidates.get(i);
-
-                        if (!visitedBitSet.isTrue(candidateId)) {
-
-                            visitedBitSet.flipTrue(candidateId);
-
-                            double candidateDistance = handler.distance(destination,
-                                    nodes.get(candidateId).vector());
-
-                            if (topCandidates.top().distance > candidateDistance || topCandidates.size() < k) {
-
-                                Candidate newCandidate = new Candidate(candidateId, candidateDistance, distanceComparator);
-                                checkNeighborSet.add(newCandidate);
-                                if (topCandidates.size() == k)
-                                    topCandidates.updateTop(newCandidate);
-                                else
-                                    topCandidates.add(newCandidate);
-
-                                lowerBound = topCandidates.top().distance;
-                            }
-                        }
-                    }
-
-                }
-            }
-
-            return topCandidates;
-        } finally {
-            visitedBitSet.clear();
-            parent.returnBitsetToPool(visitedBitSet);
-        }
-    }
-
-
-
-    @Override
-    protected void saveVecs(String dirPath)  {
-        synchronized(nodes){
-            handler.saveNodesBlocking(dirPath + LOCAL_VECS, this.nodes, nodeCount);
-        }
-    }
-    @Override
-    protected void saveOutConns(String dirPath) {
-        synchronized(nodes){
-            int[][][] outConns = new int[nodeCount][][];
-            Node t;
-            for (int i = 0; i < nodeCount; i++) {
-                t = this.nodes.get(i);
-                if(t != null){
-                    outConns[i] = new int[t.outConns.length][];
-                    for (int j = 0; j < t.outConns.length; j++) {
-                        outConns[i][j] = t.outConns[j].toArray();
-                    }
+            if (removeEnabled) {
+                synchronized (storage.lock(newNodeId)) {
+                    storage.inConnections(newNodeId, level).add(selectedNeighbourId);
                 }
-                else outConns[i] = null;
-            }
-            Kryo kryo = new Kryo();
-            kryo.register(int[].class);
-            kryo.register(int[][].class);
-            kryo.register(int[][][].class);
-            try {
-                Output outputOutconns = new Output(new FileOutputStream(dirPath + LOCAL_OUTCONN));
-                kryo.writeObject(outputOutconns, outConns);
-                outputOutconns.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-    @Override
-    protected void saveInConns(String dirPath) {
-        synchronized(nodes){
-            int[][][] inConns = new int[nodeCount][][];
-            Node t;
-            for (int i = 0; i < nodeCount; i++) {
-                t = this.nodes.get(i);
-                if(t != null){
-                    inConns[i] = new int[t.inConns.length][];
-                    for (int j = 0; j < t.inConns.length; j++) {
-                        inConns[i][j] = t.inConns[j].toArray();
+                for (int i = 0; i < prunedConnections.size(); i++) {
+                    int prunedId = prunedConnections.get(i);
+                    synchronized (storage.lock(prunedId)) {
+                        storage.inConnections(prunedId, level).remove(selectedNeighbourId);
                     }
                 }
-                else inConns[i] = null;
-            }
-            Kryo kryo = new Kryo();
-            kryo.register(int[].class);
-            kryo.register(int[][].class);
-            kryo.register(int[][][].class);
-            try {
-                Output outputInconns = new Output(new FileOutputStream(dirPath + LOCAL_INCONN));
-                kryo.writeObject(outputInconns, inConns);
-                outputInconns.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    protected void saveInvertLookUp(String dirPath){
-        synchronized (nodes){
-            int[] invertLookUp = new int[nodeCount];
-            for (int i = 0; i < nodeCount; i++) {
-                invertLookUp[i] = nodes.get(i).item.externalId;
-            }
-            Kryo kryo = new Kryo();
-            kryo.register(int[].class);
-            try {
-                Output outputInvert = new Output(new FileOutputStream(dirPath + LOCAL_INVERT));
-                kryo.writeObject(outputInvert, invertLookUp);
-                outputInvert.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
             }
         }
     }
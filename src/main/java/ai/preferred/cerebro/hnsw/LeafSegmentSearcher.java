@@ -2,7 +2,6 @@ package ai.preferred.cerebro.hnsw;
 
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
-import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 
 /**
  * Primary class to conduct search on each segment, optimized to load only information necessary for searching.
@@ -14,55 +13,165 @@ import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
  */
 public class LeafSegmentSearcher<TVector> extends LeafSegment<TVector> {
 
-    LeafSegmentSearcher(ParentHnsw parent, int numName, String idxDir) {
-        super(parent, numName, idxDir, Mode.SEARCH);
+    LeafSegmentSearcher(ParentHnsw<TVector> parent, int numName, String idxDir, LeafLayout layout) {
+        super(parent, numName, idxDir, Mode.SEARCH, layout);
     }
 
-    public TopDocs findNearest(TVector query, int k) {
+    LeafSegmentSearcher(ParentHnsw<TVector> parent, int numName, String idxDir, LeafLayout layout,
+                        boolean residentUpperLayers) {
+        super(parent, numName, idxDir, Mode.SEARCH, layout, residentUpperLayers);
+    }
 
-        if (entryPoint == null) {
-            return new TopDocs(0, null, Float.NaN);
-        }
+    /**
+     * Search this segment without creating any object, the results are
+     * written into buffers supplied by the caller.
+     * @param query the query vector
+     * @param k the number of nearest neighbors to look for
+     * @param ids filled with the external ids of the results, closest first,
+     *            must have room for at least k elements
+     * @param distances filled with the distances of the results to the query,
+     *                  must have room for at least k elements
+     * @return the number of results written, may be less than k
+     */
+    public int findNearest(TVector query, int k, long[] ids, float[] distances) {
+        return findNearest(query, k, ids, distances, 0);
+    }
 
-        Node<TVector> entryPointCopy = entryPoint;
+    /**
+     * Same as {@link #findNearest(Object, int, long[], float[])} but writing
+     * the results from the given offset of the buffers.
+     */
+    public int findNearest(TVector query, int k, long[] ids, float[] distances, int offset) {
+        return findNearest(query, k, ids, distances, offset, null, 1, null, 1, null);
+    }
 
-        Node<TVector> currObj = entryPointCopy;
+    /**
+     * Same as {@link #findNearest(Object, int, long[], float[])} with per-query settings.
+     * @param options the settings of this search, null for those of the index
+     */
+    public int findNearest(TVector query, int k, long[] ids, float[] distances, SearchOptions options) {
+        return findNearest(query, k, ids, distances, 0, options, 1, null, 1, null);
+    }
+
+    /**
+     * Search this segment as part of a search over all the leaves, pruning
+     * with and publishing to the bound shared by the leaves.
+     * @param options the settings of the query, null for those of the index
+     * @param numLeaves the number of leaves searched for the query, sharing its budget
+     * @param sharedBound the bound of the query, null to search on its own,
+     *                    ignored when the leaf searches with prefixes or
+     *                    estimated distances
+     * @param workers the number of threads searching the base layer, helpers
+     *                being taken from the scheduler of the index searcher
+     * @param table the dot products of the query with the centroids of the
+     *              product quantizer of the index, null if there are none
+     */
+    int findNearest(TVector query, int k, long[] ids, float[] distances, int offset,
+                    SearchOptions options, int numLeaves, SharedBound sharedBound, int workers,
+                    ProductQuantizer.Table table) {
+        int currId = entryId;
+
+        if (currId == NO_ENTRY) {
+            return 0;
+        }
 
-        double curDist = handler.distance(query, currObj.vector());
+        SearchContext context = parent.getSearchContext();
 
-        for (int activeLevel = entryPointCopy.maxLevel(); activeLevel > 0; activeLevel--) {
+        int prefix = options != null ? options.prefix(query) : 0;
+        //the distances of the prefixes, and the estimated distances of leaves
+        //ranked again afterwards, do not compare with those of the other leaves
+        if (prefix > 0 || storage.approximate())
+            sharedBound = null;
+        storage.prepare(query, table);
+        float curDist = distance(query, currId, prefix);
+
+        for (int activeLevel = storage.maxLevel(currId); activeLevel > 0; activeLevel--) {
 
             boolean changed = true;
             while (changed){
                 changed = false;
-                IntArrayList candidateConnections = currObj.outConns[activeLevel];
+                int count = copyNeighbours(currId, activeLevel, context);
+                int[] candidateConnections = context.neighbours;
 
-                for (int i = 0; i < candidateConnections.size(); i++) {
+                for (int i = 0; i < count; i++) {
 
-                    int candidateId = candidateConnections.get(i);
+                    int candidateId = candidateConnections[i];
 
-                    double candidateDistance = handler.distance(query, nodes[candidateId].vector());
+                    float candidateDistance = distance(query, candidateId, prefix);
                     if (candidateDistance < curDist) {
                         curDist = candidateDistance;
-                        currObj = nodes[candidateId];
+                        currId = candidateId;
                         changed = true;
                     }
                 }
             }
         }
 
-        BoundedMaxHeap topCandidates = searchLayer(currObj, query, Math.max(ef, k), 0);
-
+        int efSearch = Math.max(ef, k);
+        int maxDistances = 0;
+        int patience = 0;
+        if (options != null) {
+            efSearch = options.ef(ef, k);
+            maxDistances = options.maxDistances(numLeaves);
+            patience = options.patience;
+        }
+        CandidateMaxHeap topCandidates;
+        if (workers > 1)
+            topCandidates = context.parallelBeamSearch().search(this, context, currId, query, table, prefix, efSearch,
+                    sharedBound, k, maxDistances, patience,
+                    parent.scheduler(), workers);
+        else
+            topCandidates = searchLayer(context, currId, query, efSearch, 0, sharedBound, k, maxDistances, patience,
+                    prefix);
+
+        if (storage.approximate() || prefix > 0)
+            rerank(context, topCandidates, query);
         while (topCandidates.size() > k) {
             topCandidates.pop();
         }
-        ScoreDoc[] hits = new ScoreDoc[topCandidates.size()];
-        for (int i = topCandidates.size() - 1; i >= 0; i--) {
-            Candidate h = topCandidates.pop();
-            hits[i] = new ScoreDoc(nodes[h.nodeId].item.externalId, (float) (1 - h.distance));
+        int count = topCandidates.drainAscending();
+        for (int i = 0; i < count; i++) {
+            ids[offset + i] = storage.externalId(topCandidates.id(i));
+            distances[offset + i] = topCandidates.distance(i);
         }
+        //the k-th result of a single leaf already bounds the k-th result overall
+        if (sharedBound != null && count == k)
+            sharedBound.offer(distances[offset + k - 1]);
+        return count;
+    }
 
+    /**
+     * Replace the estimated distances of the candidates found, or those of
+     * the prefixes of the vectors, by their exact distances, which the
+     * storage computes all at once.
+     */
+    private void rerank(SearchContext context, CandidateMaxHeap topCandidates, TVector query) {
+        int count = topCandidates.size();
+        int[] candidates = context.rerankIdBuffer(count);
+        float[] distances = context.rerankDistanceBuffer(count);
+        for (int i = 0; i < count; i++) {
+            candidates[i] = topCandidates.id(i);
+        }
+        storage.exactDistances(query, candidates, count, distances);
+        topCandidates.clear();
+        for (int i = 0; i < count; i++) {
+            topCandidates.push(candidates[i], distances[i]);
+        }
+    }
 
-        return new TopDocs(topCandidates.size(), hits, hits[0].score);
+    public TopDocs findNearest(TVector query, int k) {
+        long[] ids = new long[k];
+        float[] distances = new float[k];
+        int count = findNearest(query, k, ids, distances);
+
+        if (count == 0) {
+            return new TopDocs(0, null, Float.NaN);
+        }
+
+        ScoreDoc[] hits = new ScoreDoc[count];
+        for (int i = 0; i < count; i++) {
+            hits[i] = new ScoreDoc(Math.toIntExact(ids[i]), 1 - distances[i]);
+        }
+        return new TopDocs(count, hits, hits[0].score);
     }
 }
@@ -6,6 +6,7 @@ import org.eclipse.collections.api.list.primitive.MutableIntList;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.stack.mutable.primitive.IntArrayStack;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.util.*;
@@ -22,28 +23,25 @@ import java.util.*;
 public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
 
     //Creation Constructor
-    protected LeafSegmentWriter(HnswIndexWriter parent, int numName , int baseID) {
+    protected LeafSegmentWriter(HnswIndexWriter<TVector> parent, int numName , long baseID) {
         super(parent, numName, baseID);
     }
 
     //Load Constructor
-    protected LeafSegmentWriter(HnswIndexWriter parent, int numName , String idxDir){
-        super(parent, numName, idxDir, Mode.MODIFY);
+    protected LeafSegmentWriter(HnswIndexWriter<TVector> parent, int numName , String idxDir){
+        super(parent, numName, idxDir, Mode.MODIFY, parent.getConfiguration().leafLayout);
     }
 
-    protected int assignLevel(Integer value, double lambda) {
+    protected int assignLevel(long value, double lambda) {
 
         // by relying on the external id to come up with the level, the graph construction should be a lot more stable
         // see : https://github.com/nmslib/hnswlib/issues/28
 
-        int hashCode = value;
-
-        byte[] bytes = new byte[]{
-                (byte) (hashCode >> 24),
-                (byte) (hashCode >> 16),
-                (byte) (hashCode >> 8),
-                (byte) hashCode
-        };
+        //ids fitting in an int keep the levels they had when ids were ints
+        byte[] bytes = value == (int) value ? new byte[Integer.BYTES] : new byte[Long.BYTES];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (value >> (bytes.length - 1 - i) * 8);
+        }
 
         double random = Math.abs((double) Murmur3.hash32(bytes) / (double) Integer.MAX_VALUE);
 
@@ -56,34 +54,33 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
         if (!removeEnabled) {
             return false;
         }
-        Node node = nodes[internalID];
-        for (int level = node.maxLevel(); level >= 0; level--) {
+        for (int level = storage.maxLevel(internalID); level >= 0; level--) {
             final int thisLevel = level;
-            node.inConns[level].forEach(neighbourId ->
-                    nodes[neighbourId].outConns[thisLevel].remove(internalID));
+            storage.inConnections(internalID, level).forEach(neighbourId ->
+                    storage.removeConnection(neighbourId, thisLevel, internalID));
 
-            node.outConns[level].forEach(neighbourId ->
-                    nodes[neighbourId].inConns[thisLevel].remove(internalID));
+            int count = storage.connectionCount(internalID, level);
+            for (int i = 0; i < count; i++) {
+                storage.inConnections(storage.connection(internalID, level, i), level).remove(internalID);
+            }
         }
 
         // change the entry point to the first outgoing connection at the highest level
-        if (entryPoint == node) {
-            for (int level = node.maxLevel(); level >= 0; level--) {
-                IntArrayList outgoingConnections = node.outConns[level];
-                if (!outgoingConnections.isEmpty()) {
-                    entryPoint = nodes[outgoingConnections.getFirst()];
+        if (entryId == internalID) {
+            for (int level = storage.maxLevel(internalID); level >= 0; level--) {
+                if (storage.connectionCount(internalID, level) > 0) {
+                    entryId = storage.connection(internalID, level, 0);
                     break;
                 }
             }
 
         }
         // if we could not change the outgoing connection it means we are the last node
-        if (entryPoint == node) {
-            entryPoint = null;
+        if (entryId == internalID) {
+            entryId = NO_ENTRY;
         }
-        if (lookup.contains(node.item.externalId))
-            lookup.remove(node.item.externalId);
-        nodes[internalID] = null;
+        lookup.remove(storage.externalId(internalID));
+        storage.remove(internalID);
         freedIds.push(internalID);
         return true;
     }
@@ -91,10 +88,10 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
     public boolean add(Item<TVector> item) {
         //System.out.println(item.externalId);
         //globalID is internalID + baseID of the segment
-        Integer globalId = lookup.get(item.externalId);
+        long globalId = lookup.get(item.externalId);
 
         //check if there is nodes with similar id in the graph
-        if(globalId != null){
+        if(globalId != IdLookup.NO_ID){
             //if there is similar id but index does not support removal then abort operation
             if (!removeEnabled) {
                 return false;
@@ -102,14 +99,13 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
             //if there is already this id in the index, it means this is an update
             //so only handle if this is the leaf that the id was already residing
             if(globalId >= baseID && globalId < baseID + maxNodeCount){
-                Node node = nodes[globalId - baseID];
-                if (Objects.deepEquals(node.vector(), item.vector)) {
+                if (Objects.deepEquals(storage.vector((int) (globalId - baseID)), item.vector)) {
                     //object already added
                     return true;
                 } else {
                     //similar id but different vector means different object
                     //so remove the object to insert the current new one
-                    removeOnInternalID(item.externalId);
+                    removeOnInternalID((int) (globalId - baseID));
                 }
             }
             else
@@ -130,54 +126,39 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
         //randomize level
         int randomLevel = assignLevel(item.externalId, this.levelLambda);
 
-        IntArrayList[] outConns = new IntArrayList[randomLevel + 1];
-
-        for (int level = 0; level <= randomLevel; level++) {
-            int levelM = randomLevel == 0 ? maxM0 : maxM;
-            outConns[level] = new IntArrayList(levelM);
-        }
-
-        IntArrayList[] inConns = removeEnabled ? new IntArrayList[randomLevel + 1] : null;
-        if (removeEnabled) {
-            for (int level = 0; level <= randomLevel; level++) {
-                int levelM = randomLevel == 0 ? maxM0 : maxM;
-                inConns[level] = new IntArrayList(levelM);
-            }
-        }
-
-        Node<TVector> newNode = new Node<>(internalId, outConns, inConns, item);
-        nodes[internalId] = newNode;
+        storage.insert(internalId, item.externalId, item.vector, randomLevel);
         lookup.put(item.externalId, internalId + baseID);
 
-        Node<TVector> curNode = entryPoint;
+        int curId = entryId;
 
-        //entry point is null if this is the first node inserted into the graph
-        if (curNode != null) {
+        //there is no entry point if this is the first node inserted into the graph
+        if (curId != NO_ENTRY) {
+            SearchContext context = parent.getSearchContext();
+            int entryLevel = storage.maxLevel(curId);
 
             //if no layer added
-            if (newNode.maxLevel() < entryPoint.maxLevel()) {
+            if (randomLevel < entryLevel) {
 
-                double curDist = handler.distance(newNode.vector(), curNode.vector());
+                float curDist = storage.distance(item.vector, curId);
                 //sequentially zoom in until reach the layer next to
                 // the highest layer that the new node has to be inserted
-                for (int curLevel = entryPoint.maxLevel(); curLevel > newNode.maxLevel(); curLevel--) {
+                for (int curLevel = entryLevel; curLevel > randomLevel; curLevel--) {
 
                     boolean changed = true;
                     while (changed){
                         changed = false;
-                        IntArrayList candidateConns = curNode.outConns[curLevel];
-                        for (int i = 0; i < candidateConns.size(); i++) {
+                        int count = copyNeighbours(curId, curLevel, context);
+                        int[] candidateConns = context.neighbours;
+                        for (int i = 0; i < count; i++) {
 
-                            int candidateId = candidateConns.get(i);
+                            int candidateId = candidateConns[i];
 
-                            Node<TVector> candidateNode = nodes[candidateId];
-
-                            double candidateDistance = handler.distance(newNode.vector(), candidateNode.vector());
+                            float candidateDistance = storage.distance(item.vector, candidateId);
 
                             //updating the starting node to be used at lower level
                             if (candidateDistance < curDist) {
                                 curDist = candidateDistance;
-                                curNode = candidateNode;
+                                curId = candidateId;
                                 changed = true;
                             }
                         }
@@ -185,127 +166,89 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
                 }
             }
             //insert the new node starting from its highest layer by setting up connections
-            for (int level = Math.min(randomLevel, entryPoint.maxLevel()); level >= 0; level--) {
+            for (int level = Math.min(randomLevel, entryLevel); level >= 0; level--) {
                 //topCandidates hold efConstruction number of nodes closest to the new node in this layer
                 //at the top of the heap is the node farthest away from the new node compared to the rest
                 //of the heap
-                BoundedMaxHeap topCandidates = searchLayer(curNode, newNode.vector(), efConstruction, level);
-                mutuallyConnectNewElement(newNode, topCandidates, level);
+                CandidateMaxHeap topCandidates = searchLayer(context, curId, item.vector, efConstruction, level);
+                mutuallyConnectNewElement(context, internalId, item.vector, topCandidates, level);
 
             }
         }
 
         // if this is the first node inserted or its highest layer is higher than that
         // of the current entry node, then we have to update the entry node
-        if (entryPoint == null || newNode.maxLevel() > entryPoint.maxLevel()) {
+        if (entryId == NO_ENTRY || randomLevel > storage.maxLevel(entryId)) {
             // this is thread safe because we get the global lock when we add a level
-            this.entryPoint = newNode;
+            this.entryId = internalId;
         }
 
         return true;
     }
 
 
-    protected void mutuallyConnectNewElement(Node<TVector> newNode,
-                                           BoundedMaxHeap topCandidates,
-                                           int level) {
+    protected void mutuallyConnectNewElement(SearchContext context,
+                                             int newNodeId,
+                                             TVector newNodeVector,
+                                             CandidateMaxHeap topCandidates,
+                                             int level) {
 
         int bestN = level == 0 ? this.maxM0 : this.maxM;
 
-        int newNodeId = newNode.internalId;
-        TVector newNodeVector = newNode.vector();
-        IntArrayList outNewNodeConns = newNode.outConns[level];
-
         //the idea of getNeighborsByHeuristic2() is to introduce a bit of change in which nodes
         //get to connect with our new nodes - not necessary the closest ones. As the authors say
         // in their paper "to make the graph more robust"
-        Iterator<Candidate> iteratorSelected = getNeighborsByHeuristic2(topCandidates, null, bestN);
-        while(iteratorSelected.hasNext()){
-        //for (Candidate selected : selectedNeighbors) {
-            int selectedNeighbourId = iteratorSelected.next().nodeId;
+        int[] selected = context.selectedBuffer(topCandidates.size());
+        int selectedCount = getNeighborsByHeuristic2(topCandidates, null, bestN, selected);
+        for (int s = 0; s < selectedCount; s++) {
+            int selectedNeighbourId = selected[s];
 
-            outNewNodeConns.add(selectedNeighbourId);
-            Node<TVector> neighbourNode = nodes[selectedNeighbourId];
+            storage.addConnection(newNodeId, level, selectedNeighbourId);
 
             if (removeEnabled) {
-                neighbourNode.inConns[level].add(newNodeId);
+                storage.inConnections(selectedNeighbourId, level).add(newNodeId);
             }
 
-            TVector neighbourVector = neighbourNode.vector();
-
-            IntArrayList outNeighbourConnsAtLevel = neighbourNode.outConns[level];
+            int neighbourConnCount = storage.connectionCount(selectedNeighbourId, level);
             //if neighbor also has lower than limit number of connections than just add
             //new connections, no update needed.
-            if (outNeighbourConnsAtLevel.size() < bestN) {
+            if (neighbourConnCount < bestN) {
                 if (removeEnabled) {
-                    newNode.inConns[level].add(selectedNeighbourId);
+                    storage.inConnections(newNodeId, level).add(selectedNeighbourId);
                 }
-                outNeighbourConnsAtLevel.add(newNodeId);
+                storage.addConnection(selectedNeighbourId, level, newNodeId);
             }
             // if update is needed:
             // add the new connection to the set of existing ones,
             // then pick out the top limited number allowed, the
             // new conn may be left out or not.
             else {
-                double dMax = handler.distance(newNodeVector, neighbourNode.vector());
-                BoundedMaxHeap candidates = new BoundedMaxHeap(bestN + 1, ()-> null);
-                candidates.add(new Candidate(newNodeId, dMax, distanceComparator));
-                outNeighbourConnsAtLevel.forEach(id -> {
-                    double dist = handler.distance(neighbourVector, nodes[id].vector());
-                    candidates.add(new Candidate(id, dist, distanceComparator));
-                });
+                CandidateMaxHeap candidates = context.pruneCandidates;
+                candidates.clear();
+                candidates.push(newNodeId, storage.distance(newNodeVector, selectedNeighbourId));
+                for (int i = 0; i < neighbourConnCount; i++) {
+                    int id = storage.connection(selectedNeighbourId, level, i);
+                    candidates.push(id, storage.distance(selectedNeighbourId, id));
+                }
 
                 if (removeEnabled) {
-                    newNode.inConns[level].add(selectedNeighbourId);
+                    storage.inConnections(newNodeId, level).add(selectedNeighbourId);
                 }
 
                 //I don't think we need more robustness at this point as the set is now reduced
                 //to bestN + 1 already, and we need to pick out the top bestN. The difference of
                 //one candidate doesn't justify calling the costly getNeighborsByHeuristic2() !
-                Candidate rejected = candidates.pop();
+                int rejected = candidates.pop();
 
-                outNeighbourConnsAtLevel.clear();
-                Iterator<Candidate> iterator = candidates.iterator();
-                while (iterator.hasNext()){
-                    outNeighbourConnsAtLevel.add(iterator.next().nodeId);
+                int[] kept = context.pruneSelectedBuffer(candidates.size());
+                for (int i = 0; i < candidates.size(); i++) {
+                    kept[i] = candidates.id(i);
                 }
+                storage.setConnections(selectedNeighbourId, level, kept, candidates.size());
 
                 if (removeEnabled) {
-                    Node node = nodes[rejected.nodeId];
-                    node.inConns[level].remove(selectedNeighbourId);
+                    storage.inConnections(rejected, level).remove(selectedNeighbourId);
                 }
-
-
-                /* In case every breaks or accuracy plummets, uncomment this section
-                and delete everything above up till the start of the else clause
-
-                double dMax = handler.distance(newNodeVector, neighbourNode.vector());
-                BoundedMaxHeap candidates = new BoundedMaxHeap(bestN + 1, ()-> null);
-                candidates.add(new Candidate(newNodeId, dMax, distanceComparator));
-                outNeighbourConnsAtLevel.forEach(id -> {
-                    double dist = handler.distance(neighbourVector, nodes[id].vector());
-                    candidates.add(new Candidate(id, dist, distanceComparator));
-                });
-
-                MutableIntList prunedConnections = removeEnabled ? new IntArrayList() : null;
-
-                List<Candidate> selectedConns = getNeighborsByHeuristic2(candidates, prunedConnections, bestN);
-
-                if (removeEnabled) {
-                    newNode.inConns[level].add(selectedNeighbourId);
-                }
-
-                outNeighbourConnsAtLevel.clear();
-                for (Candidate candidate: selectedConns) {
-                    outNeighbourConnsAtLevel.add(candidate.nodeId);
-                }
-
-                if (removeEnabled) {
-                    prunedConnections.forEach(id -> {
-                        Node node = nodes[id];
-                        node.inConns[level].remove(selectedNeighbourId);
-                    });
-                }*/
             }
         }
     }
@@ -313,40 +256,41 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
     //Originally the function return void, we get the selected neighbors in updated
     //topCandidates, this is wasteful as we don't need the data returned to be in the
     //format of a MaxHeap, simply an array will do.
-    protected Iterator<Candidate> getNeighborsByHeuristic2(BoundedMaxHeap topCandidates,
-                                                           MutableIntList prunedConnections,
-                                                           int m) {
-        if (topCandidates.size() <= m) {
-            return topCandidates.iterator();
-        }
-
-        Stack<Candidate> stackClosest = new Stack<>(topCandidates.size());
-        List<Candidate> returnList = new ArrayList<>(m);
-
-        //empty the entire MaxHeap by calling pop() will return the elements in descending order.
+    /**
+     * Select at most m neighbors out of the candidates, the candidates
+     * heap is emptied in the process.
+     * @param selected filled with the internal ids of the selected neighbors,
+     *                 must have room for min(m, topCandidates.size()) elements
+     * @return the number of selected neighbors
+     */
+    protected int getNeighborsByHeuristic2(CandidateMaxHeap topCandidates,
+                                           MutableIntList prunedConnections,
+                                           int m, int[] selected) {
         //The original algorithm use a MinHeap to pop out the element in ascending order with each
-        //call taking O(log(size)). The same can be achieved if we use a stack but even better as
-        //stack has constant time.
-        while (topCandidates.size() != 0) {
-            stackClosest.push(topCandidates.pop());
+        //call taking O(log(size)). Here the MaxHeap is heap-sorted in place instead, which
+        //requires no extra storage.
+        int count = topCandidates.drainAscending();
+        if (count <= m) {
+            for (int i = 0; i < count; i++) {
+                selected[i] = topCandidates.id(i);
+            }
+            return count;
         }
 
-        while (!stackClosest.isEmpty()) {
-            Candidate candidate = stackClosest.pop();
+        int selectedCount = 0;
+        for (int i = 0; i < count; i++) {
+            int candidateId = topCandidates.id(i);
 
             boolean good;
-            if (returnList.size() >= m) {
+            if (selectedCount >= m) {
                 good = false;
             } else {
-                double distToQuery = candidate.distance;
+                float distToQuery = topCandidates.distance(i);
 
                 good = true;
-                for (Candidate chosen : returnList) {
+                for (int j = 0; j < selectedCount; j++) {
 
-                    double curdist = handler.distance(
-                            nodes[chosen.nodeId].vector(),
-                            nodes[candidate.nodeId].vector()
-                    );
+                    float curdist = storage.distance(selected[j], candidateId);
 
                     if (curdist < distToQuery) {
                         good = false;
@@ -356,17 +300,24 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
                 }
             }
             if (good) {
-                returnList.add(candidate);
+                selected[selectedCount++] = candidateId;
             } else {
                 if (prunedConnections != null) {
-                    prunedConnections.add(candidate.nodeId);
+                    prunedConnections.add(candidateId);
                 }
             }
         }
-        return returnList.iterator();
+        return selectedCount;
     }
 
     public void save(String dir){
+        //the mapped, disk and quantizer files written before no longer match the leaf
+        new File(dir + LOCAL_MAPPED).delete();
+        new File(dir + LOCAL_GRAPH).delete();
+        new File(dir + LOCAL_DISK).delete();
+        new File(dir + LOCAL_QUANT).delete();
+        //and so do the int external ids of an index saved before they were longs
+        new File(dir + LOCAL_INVERT).delete();
         saveConfig(dir);
         saveVecs(dir);
         saveOutConns(dir);
@@ -378,15 +329,15 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
     }
 
     protected void saveInvertLookUp(String dirPath){
-        synchronized (nodes){
-            int[] invertLookUp = new int[nodeCount];
+        synchronized (storage){
+            long[] invertLookUp = new long[nodeCount];
             for (int i = 0; i < nodeCount; i++) {
-                invertLookUp[i] = nodes[i].item.externalId;
+                invertLookUp[i] = storage.contains(i) ? storage.externalId(i) : -1;
             }
             Kryo kryo = new Kryo();
-            kryo.register(int[].class);
+            kryo.register(long[].class);
             try {
-                Output outputInvert = new Output(new FileOutputStream(dirPath + LOCAL_INVERT));
+                Output outputInvert = new Output(new FileOutputStream(dirPath + LOCAL_EXTERNAL_IDS));
                 kryo.writeObject(outputInvert, invertLookUp);
                 outputInvert.close();
             } catch (FileNotFoundException e) {
@@ -396,64 +347,20 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
     }
 
     protected void saveOutConns(String dirPath) {
-        synchronized(nodes){
-            int[][][] outConns = new int[nodeCount][][];
-            Node t;
-            for (int i = 0; i < nodeCount; i++) {
-                t = this.nodes[i];
-                if(t != null){
-                    outConns[i] = new int[t.outConns.length][];
-                    for (int j = 0; j < t.outConns.length; j++) {
-                        outConns[i][j] = t.outConns[j].toArray();
-                    }
-                }
-                else outConns[i] = null;
-            }
-            Kryo kryo = new Kryo();
-            kryo.register(int[].class);
-            kryo.register(int[][].class);
-            kryo.register(int[][][].class);
-            try {
-                Output outputOutconns = new Output(new FileOutputStream(dirPath + LOCAL_OUTCONN));
-                kryo.writeObject(outputOutconns, outConns);
-                outputOutconns.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+        synchronized(storage){
+            ConnectionsFile.write(new File(dirPath + LOCAL_OUTCONN), storage, nodeCount, false, maxM0);
         }
     }
 
     protected void saveInConns(String dirPath) {
-        synchronized(nodes){
-            int[][][] inConns = new int[nodeCount][][];
-            Node t;
-            for (int i = 0; i < nodeCount; i++) {
-                t = this.nodes[i];
-                if(t != null){
-                    inConns[i] = new int[t.inConns.length][];
-                    for (int j = 0; j < t.inConns.length; j++) {
-                        inConns[i][j] = t.inConns[j].toArray();
-                    }
-                }
-                else inConns[i] = null;
-            }
-            Kryo kryo = new Kryo();
-            kryo.register(int[].class);
-            kryo.register(int[][].class);
-            kryo.register(int[][][].class);
-            try {
-                Output outputInconns = new Output(new FileOutputStream(dirPath + LOCAL_INCONN));
-                kryo.writeObject(outputInconns, inConns);
-                outputInconns.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+        synchronized(storage){
+            ConnectionsFile.write(new File(dirPath + LOCAL_INCONN), storage, nodeCount, true, maxM0);
         }
     }
 
     protected void saveVecs(String dirPath)  {
-        synchronized(nodes){
-            handler.saveNodes(dirPath + LOCAL_VECS, this.nodes, nodeCount);
+        synchronized(storage){
+            storage.saveVectors(dirPath + LOCAL_VECS, nodeCount);
         }
     }
 
@@ -479,10 +386,11 @@ public class LeafSegmentWriter<TVector> extends LeafSegment<TVector> {
             Kryo kryo = new Kryo();
             try {
                 Output output = new Output(new FileOutputStream(dirPath + LOCAL_CONFIG));
-                kryo.writeObject(output, baseID);
+                //only read by the versions of before global ids were longs
+                kryo.writeObject(output, baseID <= Integer.MAX_VALUE ? (int) baseID : -1);
                 kryo.writeObject(output, nodeCount);
                 //Save the id of entry node
-                kryo.writeObject(output, entryPoint.internalId);
+                kryo.writeObject(output, entryId);
                 output.close();
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
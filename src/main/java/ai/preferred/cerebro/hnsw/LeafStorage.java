@@ -0,0 +1,283 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecDoubleHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import ai.preferred.cerebro.handler.VecHalfFloatHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+import ai.preferred.cerebro.handler.VecLongHandler;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import java.util.function.Supplier;
+
+/**
+ * The nodes of a leaf segment: their vectors, external ids, levels and
+ * connections, laid out as chosen by {@link LeafLayout}. The leaves only
+ * ever go through this class, never through the layout itself.
+ * </br>
+ * Nothing here is synchronized: the writers inserting concurrently hold
+ * {@link #lock(int)} of a node while reading or changing its connections,
+ * everything else about a node is written before the node is reachable
+ * by the other threads.
+ *
+ * @param <TVector> the type of the vectors
+ */
+abstract class LeafStorage<TVector> {
+    //largest array length supported by every JVM
+    static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    final VecHandler<TVector> handler;
+    final int capacity;
+
+    LeafStorage(VecHandler<TVector> handler, int capacity) {
+        this.handler = handler;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param layout the layout of the nodes
+     * @param capacity exclusive upper bound of the internal ids
+     * @param maxM0 the maximum number of connections of a node at the base layer
+     * @param maxM the maximum number of connections of a node at the upper layers
+     * @param inConnections whether to keep the incoming connections, needed to remove nodes
+     * @param growable whether nodes get inserted after loading, in which case the
+     *                 memory is taken a page at a time as nodes come in
+     */
+    static <TVector> LeafStorage<TVector> create(LeafLayout layout, VecHandler<TVector> handler, int capacity,
+                                                 int maxM0, int maxM, boolean inConnections, boolean growable) {
+        if (layout == LeafLayout.NODES)
+            return new NodeLeafStorage<>(handler, capacity, maxM0, maxM, inConnections, growable);
+        if (layout == LeafLayout.MAPPED || layout == LeafLayout.DISK)
+            throw new IllegalArgumentException(layout + " leaves are opened from their files");
+        if (layout == LeafLayout.QUANTIZED || layout == LeafLayout.PRODUCT_QUANTIZED || layout == LeafLayout.BINARY)
+            throw new IllegalArgumentException(layout + " leaves are created with their quantizer");
+        if (!layout.writable() && (growable || inConnections))
+            throw new IllegalArgumentException(layout + " leaves can only be loaded for searching");
+        if (layout == LeafLayout.OFF_HEAP)
+            return new OffHeapLeafStorage<>(handler, createOffHeapSlab(handler, capacity), capacity, maxM0, maxM);
+        if (layout == LeafLayout.COMPRESSED)
+            return new CompressedLeafStorage<>(handler, createSlab(handler, capacity, false), capacity, maxM0, maxM);
+        return new ColumnarLeafStorage<>(handler, createSlab(handler, capacity, growable), capacity,
+                maxM0, maxM, inConnections, growable);
+    }
+
+    /**
+     * @return the storage of a leaf of {@link LeafLayout#QUANTIZED} loaded for searching
+     * @param quantizer fitted to the vectors of the leaf
+     */
+    static <TVector> LeafStorage<TVector> createQuantized(VecHandler<TVector> handler, int capacity,
+                                                          int maxM0, int maxM, ScalarQuantizer quantizer) {
+        VectorSlab<TVector> vectors = new QuantizedVectorSlab<>(handler, createSlab(handler, capacity, false),
+                quantizer, capacity);
+        return new ColumnarLeafStorage<>(handler, vectors, capacity, maxM0, maxM, false, false);
+    }
+
+    /**
+     * @return the storage of a leaf of {@link LeafLayout#PRODUCT_QUANTIZED} loaded for searching
+     * @param quantizer the product quantizer of the index
+     * @param exactSource opens the storage the vectors are read from to rank
+     *                    the results, null to return the estimated distances
+     */
+    static <TVector> LeafStorage<TVector> createProductQuantized(VecHandler<TVector> handler, int capacity,
+                                                                 int maxM0, int maxM, ProductQuantizer quantizer,
+                                                                 Supplier<LeafStorage<TVector>> exactSource) {
+        VectorSlab<TVector> vectors = new ProductQuantizedVectorSlab<>(handler, quantizer, capacity, exactSource);
+        return new ColumnarLeafStorage<>(handler, vectors, capacity, maxM0, maxM, false, false);
+    }
+
+    /**
+     * @return the storage of a leaf of {@link LeafLayout#BINARY} loaded for searching
+     * @param rerank whether the results are ranked again with the exact vectors
+     */
+    static <TVector> LeafStorage<TVector> createBinary(VecHandler<TVector> handler, int capacity,
+                                                       int maxM0, int maxM, boolean rerank) {
+        VectorSlab<TVector> vectors = new BinaryVectorSlab<>(handler, createSlab(handler, capacity, false),
+                capacity, rerank);
+        return new ColumnarLeafStorage<>(handler, vectors, capacity, maxM0, maxM, false, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <TVector> VectorSlab<TVector> createSlab(VecHandler<TVector> handler, int capacity,
+                                                           boolean growable) {
+        if (handler instanceof VecHalfFloatHandler)
+            return (VectorSlab<TVector>) new HalfFloatVectorSlab((VecHalfFloatHandler) handler, capacity, growable);
+        if (handler instanceof VecFloatHandler)
+            return (VectorSlab<TVector>) new FloatVectorSlab((VecFloatHandler) handler, capacity, growable);
+        if (handler instanceof VecDoubleHandler)
+            return (VectorSlab<TVector>) new DoubleVectorSlab((VecDoubleHandler) handler, capacity, growable);
+        if (handler instanceof VecLongHandler)
+            return (VectorSlab<TVector>) new LongVectorSlab((VecLongHandler) handler, capacity, growable);
+        return new ObjectVectorSlab<>(handler, capacity, growable);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <TVector> VectorSlab<TVector> createOffHeapSlab(VecHandler<TVector> handler, int capacity) {
+        if (handler instanceof VecFloatHandler)
+            return (VectorSlab<TVector>) new OffHeapFloatVectorSlab((VecFloatHandler) handler, capacity);
+        if (handler instanceof VecDoubleHandler)
+            return (VectorSlab<TVector>) new OffHeapDoubleVectorSlab((VecDoubleHandler) handler, capacity);
+        throw new IllegalArgumentException("Off-heap leaves need a VecFloatHandler or a VecDoubleHandler, got "
+                + handler.getClass().getName());
+    }
+
+    /**
+     * @return the number of bits of the ids of a page holding records of
+     * stride elements: as few pages as possible for arrays loaded once,
+     * pages of up to 2^maxPageBits records for arrays that grow
+     */
+    static int pageBits(int capacity, int stride, int maxPageBits) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity - 1));
+        bits = Math.min(bits, maxPageBits);
+        while (bits > 0 && (long) stride << bits > MAX_ARRAY_LENGTH)
+            bits--;
+        return bits;
+    }
+
+    /**
+     * @return the length of the page number page of records of stride
+     * elements, the last page holding only what is left of the capacity
+     */
+    static int pageLength(int capacity, int pageBits, int page, int stride) {
+        long first = (long) page << pageBits;
+        return (int) (Math.min(1L << pageBits, capacity - first) * stride);
+    }
+
+    /**
+     * Add a node with the given connections, used while loading a leaf.
+     * @param inConns the incoming connections of the node, ignored if they are not kept
+     */
+    abstract void put(int id, long externalId, TVector vector, int[][] outConns, int[][] inConns);
+
+    /**
+     * Called once every node of a leaf being loaded has been put,
+     * before the leaf is searched.
+     */
+    void seal() {
+    }
+
+    /**
+     * Add a node without connections, which will then be added by the writer.
+     */
+    abstract void insert(int id, long externalId, TVector vector, int maxLevel);
+
+    /**
+     * Forget a node, whose id may then be given to another node.
+     */
+    abstract void remove(int id);
+
+    abstract boolean contains(int id);
+
+    abstract long externalId(int id);
+
+    abstract int maxLevel(int id);
+
+    /**
+     * @return the vector of a node, a copy if the layout does not keep vector objects
+     */
+    abstract TVector vector(int id);
+
+    /**
+     * @return the node, built on the fly from the flat arrays if the layout
+     * does not keep node objects
+     */
+    abstract Node<TVector> node(int id);
+
+    /**
+     * Called by every thread about to compute the distances of a query to
+     * the nodes, before the first one, for storages preparing the query.
+     * The same array may be passed again holding another query.
+     * @param table the dot products of the query with the centroids of the
+     *              {@link ProductQuantizer} of the index, filled once for
+     *              every leaf searched, null if there is none
+     */
+    void prepare(TVector query, ProductQuantizer.Table table) {
+    }
+
+    abstract float distance(TVector query, int id);
+
+    /**
+     * @return the distance of the first length elements of the query to
+     * the first length elements of the vector of the node, without copying
+     * either, see {@link SearchOptions#setPrefixDimensions(int)}
+     * @throws UnsupportedOperationException for layouts not holding the
+     * elements of the vectors, or for vectors other than float[] and double[]
+     */
+    float prefixDistance(TVector query, int id, int length) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not compute distances "
+                + "of prefixes of the vectors");
+    }
+
+    abstract float distance(int id1, int id2);
+
+    /**
+     * @return whether {@link #distance(Object, int)} only estimates the
+     * distance, the results of a search then being ranked again with
+     * {@link #exactDistances(Object, int[], int, float[])}
+     */
+    boolean approximate() {
+        return false;
+    }
+
+    /**
+     * Compute the exact distances of the query to the first count nodes of ids.
+     */
+    void exactDistances(TVector query, int[] ids, int count, float[] distances) {
+        for (int i = 0; i < count; i++) {
+            distances[i] = distance(query, ids[i]);
+        }
+    }
+
+    abstract int connectionCount(int id, int level);
+
+    abstract int connection(int id, int level, int index);
+
+    /**
+     * Copy the outward connections of a node at a level into buffer,
+     * which must have room for {@link #connectionCount(int, int)} ids.
+     * @return the number of connections copied
+     */
+    abstract int copyConnections(int id, int level, int[] buffer);
+
+    /**
+     * Append an outward connection, the node must have room left for it.
+     */
+    abstract void addConnection(int id, int level, int neighbour);
+
+    /**
+     * Replace the outward connections of a node at a level with the first count of neighbours.
+     */
+    abstract void setConnections(int id, int level, int[] neighbours, int count);
+
+    /**
+     * Remove the first occurrence of neighbour from the outward connections
+     * of a node at a level, keeping the order of the others.
+     */
+    abstract void removeConnection(int id, int level, int neighbour);
+
+    /**
+     * @return the live list of the incoming connections of a node at a level,
+     * null if they are not kept
+     */
+    abstract IntArrayList inConnections(int id, int level);
+
+    /**
+     * @return the monitor guarding the connections of a node
+     * against concurrent writers
+     */
+    abstract Object lock(int id);
+
+    /**
+     * Release the memory held outside the heap, for layouts keeping
+     * the nodes there. The storage must not be used afterwards.
+     */
+    void free() {
+    }
+
+    /**
+     * Save the vectors of the first count ids, absent nodes saved as null.
+     * The vectors are handed to the handler one at a time, the storage
+     * is not copied into an array first.
+     */
+    void saveVectors(String vecFilename, int count) {
+        handler.save(vecFilename, count, id -> contains(id) ? vector(id) : null);
+    }
+}
@@ -0,0 +1,57 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecLongHandler;
+
+import java.util.Arrays;
+
+/**
+ * Slab of long[] vectors, distances being computed in place by
+ * {@link VecLongHandler#distance(long[], int, long[], int, int)}.
+ */
+final class LongVectorSlab extends VectorSlab<long[]> {
+    private final VecLongHandler handler;
+    private long[][] pages;
+
+    LongVectorSlab(VecLongHandler handler, int capacity, boolean growable) {
+        super(capacity, growable);
+        this.handler = handler;
+    }
+
+    @Override
+    void set(int id, long[] vector) {
+        ensurePage(id, vector.length);
+        System.arraycopy(vector, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    long[] get(int id) {
+        int offset = (id & pageMask) * dimensions;
+        return Arrays.copyOfRange(pages[id >>> pageBits], offset, offset + dimensions);
+    }
+
+    @Override
+    float distance(long[] query, int id) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(pages[id1 >>> pageBits], (id1 & pageMask) * dimensions,
+                pages[id2 >>> pageBits], (id2 & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    void createPages(int numPages) {
+        pages = new long[numPages][];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return pages[page] != null;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        pages[page] = new long[length];
+    }
+}
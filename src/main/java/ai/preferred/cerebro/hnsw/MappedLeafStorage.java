@@ -0,0 +1,740 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecDoubleHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage of {@link LeafLayout#MAPPED}: a leaf file mapped in memory and
+ * searched in place, so that opening a leaf reads nothing but its header
+ * and the JVMs searching the same index share the page cache.
+ * </br>
+ * The file is little endian, made of a header of {@link #HEADER_BYTES}:
+ * <pre>
+ *     int magic, int version, int bytes per element (4 for float, 8 for double),
+ *     int dimensions, int node count, int maxM0, int maxM, int entry id,
+ *     long start of each of the sections below in that order, long file length,
+ *     int encoding of the connections (since version 2, version 1 being {@link #ENCODING_INTS})
+ * </pre>
+ * followed by the sections, each aligned on 8 bytes:
+ * <ul>
+ *     <li>vectors: node count times dimensions elements, zeros for absent nodes</li>
+ *     <li>levels: one int per node, its level or -1 if there is no node</li>
+ *     <li>external ids: one long per node (one int before version 3)</li>
+ *     <li>base layer offsets: node count + 1 longs, the connections of node i
+ *     are the base layer connections from offsets[i] to offsets[i + 1]</li>
+ *     <li>upper layers offsets: node count + 1 longs, same for the upper layers</li>
+ *     <li>base layer connections: ints</li>
+ *     <li>upper layers connections: ints, for each level from 1 up the
+ *     number of connections followed by the connections</li>
+ * </ul>
+ * With {@link #ENCODING_VARINT_GAPS} the connections sections are made of
+ * the lists encoded by {@link AdjacencyCodec} instead, the offsets being
+ * in bytes, and no list crosses a boundary of 1GB from the start of its
+ * section so that it can be decoded from a single mapped region.
+ * A leaf saved in the usual files is turned into this format by
+ * {@link HnswIndexSearcher#writeMappedLeaves(String, boolean)}.
+ * </br>
+ * A leaf of {@link LeafLayout#DISK} is opened from a file of the same
+ * format without vectors, the graph file, copied to the heap, its vectors
+ * being those of a {@link DiskVectorSlab}.
+ */
+final class MappedLeafStorage<TVector> extends LeafStorage<TVector> {
+    static final int MAGIC = 0x57534E48; //"HNSW"
+    static final int VERSION = 3;
+    //connections as raw ints, the only encoding of version 1
+    static final int ENCODING_INTS = 0;
+    //connections encoded by AdjacencyCodec
+    static final int ENCODING_VARINT_GAPS = 1;
+    static final int HEADER_BYTES = 128;
+    private static final int SECTIONS = 7;
+    //sections other than the vectors are mapped in regions of 1GB
+    private static final int REGION_BITS = 30;
+
+    private final VectorSlab<TVector> vectors;
+    private final List<ByteBuffer> regions = new ArrayList<>();
+    private Section levels;
+    private Section externalIds;
+    private Section level0Offsets;
+    private Section upperOffsets;
+    private Section level0Connections;
+    private Section upperConnections;
+    //whether the connections are encoded by AdjacencyCodec
+    private final boolean compressed;
+    //whether the external ids are longs, they are ints before version 3
+    private final boolean longExternalIds;
+    final int entryId;
+
+    /**
+     * Map a leaf file.
+     * @param capacity the number of nodes of the leaf, which the file must hold
+     */
+    MappedLeafStorage(VecHandler<TVector> handler, File file, int capacity, int maxM0, int maxM) {
+        this(handler, file, capacity, maxM0, maxM, false);
+    }
+
+    /**
+     * Map a leaf file.
+     * @param capacity the number of nodes of the leaf, which the file must hold
+     * @param residentUpperLayers whether to copy the connections of the upper
+     *                            layers to the heap, every search going through
+     *                            them whereas the base layer is mostly cold
+     */
+    MappedLeafStorage(VecHandler<TVector> handler, File file, int capacity, int maxM0, int maxM,
+                      boolean residentUpperLayers) {
+        this(handler, file, capacity, maxM0, maxM, residentUpperLayers, null, 0);
+    }
+
+    /**
+     * Open a leaf file for {@link LeafLayout#DISK}: every section but the
+     * vectors is copied to the heap, the vectors are those of the disk
+     * vector file instead, see {@link DiskVectorSlab}.
+     * @param capacity the number of nodes of the leaf, which the files must hold
+     * @param diskFile the disk vector file of the leaf
+     * @param cacheBytes the memory taken by the blocks of vectors cached
+     */
+    MappedLeafStorage(VecHandler<TVector> handler, File file, int capacity, int maxM0, int maxM,
+                      File diskFile, long cacheBytes) {
+        this(handler, file, capacity, maxM0, maxM, true, diskFile, cacheBytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private MappedLeafStorage(VecHandler<TVector> handler, File file, int capacity, int maxM0, int maxM,
+                              boolean residentUpperLayers, File diskFile, long cacheBytes) {
+        super(handler, capacity);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+            if (header.hasRemaining() || header.getInt(0) != MAGIC)
+                throw new IllegalArgumentException(file + " is not a mapped leaf file");
+            int version = header.getInt(4);
+            if (version < 1 || version > VERSION)
+                throw new IllegalArgumentException(file + " is of version " + version
+                        + ", only versions up to " + VERSION + " are supported");
+            int elementBytes = header.getInt(8);
+            int dimensions = header.getInt(12);
+            if (header.getInt(16) != capacity || header.getInt(20) != maxM0 || header.getInt(24) != maxM)
+                throw new IllegalArgumentException(file + " does not match the configuration of its leaf");
+            entryId = header.getInt(28);
+            long[] starts = new long[SECTIONS + 1];
+            for (int i = 0; i <= SECTIONS; i++) {
+                starts[i] = header.getLong(32 + i * Long.BYTES);
+            }
+            int encoding = version == 1 ? ENCODING_INTS : header.getInt(32 + (SECTIONS + 1) * Long.BYTES);
+            if (encoding != ENCODING_INTS && encoding != ENCODING_VARINT_GAPS)
+                throw new IllegalArgumentException(file + " has connections of unknown encoding " + encoding);
+            compressed = encoding == ENCODING_VARINT_GAPS;
+            longExternalIds = version >= 3;
+            if (starts[SECTIONS] != channel.size())
+                throw new IllegalArgumentException(file + " is truncated");
+
+            if (diskFile != null) {
+                if (!(handler instanceof VecFloatHandler))
+                    throw new IllegalArgumentException("Disk leaves need a VecFloatHandler, got "
+                            + handler.getClass().getName());
+                vectors = (VectorSlab<TVector>) new DiskVectorSlab((VecFloatHandler) handler, diskFile,
+                        capacity, cacheBytes);
+            }
+            else
+                vectors = createSlab(handler, capacity, elementBytes);
+            if (dimensions > 0 && diskFile == null) {
+                int pageBits = pageBits(capacity, dimensions * elementBytes, VectorSlab.MAX_PAGE_BITS);
+                ByteBuffer[] pages = new ByteBuffer[(int) ((capacity + (1L << pageBits) - 1) >>> pageBits)];
+                long start = starts[0];
+                for (int page = 0; page < pages.length; page++) {
+                    long length = (long) pageLength(capacity, pageBits, page, dimensions) * elementBytes;
+                    pages[page] = map(channel, start, length);
+                    start += length;
+                }
+                vectors.attach(dimensions, pages);
+            }
+            levels = new Section(channel, starts[1], starts[2]);
+            externalIds = new Section(channel, starts[2], starts[3]);
+            level0Offsets = new Section(channel, starts[3], starts[4]);
+            upperOffsets = new Section(channel, starts[4], starts[5]);
+            level0Connections = new Section(channel, starts[5], starts[6]);
+            upperConnections = new Section(channel, starts[6], starts[7]);
+            if (residentUpperLayers)
+                upperConnections = new Section(upperConnections);
+            if (diskFile != null) {
+                levels = new Section(levels);
+                externalIds = new Section(externalIds);
+                level0Offsets = new Section(level0Offsets);
+                upperOffsets = new Section(upperOffsets);
+                level0Connections = new Section(level0Connections);
+                //the sections are copied, the file need not stay mapped
+                for (ByteBuffer region : regions) {
+                    DirectMemory.free(region);
+                }
+                regions.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <TVector> VectorSlab<TVector> createSlab(VecHandler<TVector> handler, int capacity, int elementBytes) {
+        if (handler instanceof VecFloatHandler && elementBytes == Float.BYTES)
+            return (VectorSlab<TVector>) new OffHeapFloatVectorSlab((VecFloatHandler) handler, capacity);
+        if (handler instanceof VecDoubleHandler && elementBytes == Double.BYTES)
+            return (VectorSlab<TVector>) new OffHeapDoubleVectorSlab((VecDoubleHandler) handler, capacity);
+        throw new IllegalArgumentException("Vectors of " + elementBytes + " bytes per element cannot be read by "
+                + handler.getClass().getName());
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * A section of the file, mapped in as many regions as needed.
+     */
+    private final class Section {
+        private final ByteBuffer[] regions;
+
+        Section(FileChannel channel, long start, long end) throws IOException {
+            long length = end - start;
+            regions = new ByteBuffer[(int) ((length + (1L << REGION_BITS) - 1) >>> REGION_BITS)];
+            for (int i = 0; i < regions.length; i++) {
+                long offset = (long) i << REGION_BITS;
+                regions[i] = map(channel, start + offset, Math.min(1L << REGION_BITS, length - offset));
+                MappedLeafStorage.this.regions.add(regions[i]);
+            }
+        }
+
+        /**
+         * Copy of a section on the heap, its regions stay mapped until the file is unmapped.
+         */
+        Section(Section mapped) {
+            regions = new ByteBuffer[mapped.regions.length];
+            for (int i = 0; i < regions.length; i++) {
+                ByteBuffer region = mapped.regions[i].duplicate();
+                region.clear();
+                regions[i] = ByteBuffer.allocate(region.capacity()).order(ByteOrder.LITTLE_ENDIAN).put(region);
+                regions[i].clear();
+            }
+        }
+
+        //position of a byte in its region
+        int inRegion(long position) {
+            return (int) (position & ((1 << REGION_BITS) - 1));
+        }
+
+        int getInt(long index) {
+            long position = index * Integer.BYTES;
+            return regions[(int) (position >>> REGION_BITS)].getInt((int) (position & ((1 << REGION_BITS) - 1)));
+        }
+
+        ByteBuffer region(long position) {
+            return regions[(int) (position >>> REGION_BITS)];
+        }
+
+        long getLong(long index) {
+            long position = index * Long.BYTES;
+            return regions[(int) (position >>> REGION_BITS)].getLong((int) (position & ((1 << REGION_BITS) - 1)));
+        }
+    }
+
+    /**
+     * Write a leaf to a mapped leaf file. The file is written next to its
+     * destination then moved over it, so that searchers never map half a file.
+     * @param source the nodes of the leaf
+     * @param nodeCount the number of ids of the leaf
+     * @param entryId the internal id of the entry node
+     * @param compressed whether to encode the connections with {@link AdjacencyCodec}
+     */
+    static <TVector> void write(LeafStorage<TVector> source, int nodeCount, int maxM0, int maxM,
+                                int entryId, boolean compressed, File file) {
+        write(source, nodeCount, maxM0, maxM, entryId, compressed, true, file);
+    }
+
+    /**
+     * Same as {@link #write(LeafStorage, int, int, int, int, boolean, File)},
+     * leaving out the vectors if they are not wanted: the graph file of a
+     * {@link LeafLayout#DISK} leaf, whose vectors are in another file.
+     */
+    static <TVector> void write(LeafStorage<TVector> source, int nodeCount, int maxM0, int maxM,
+                                int entryId, boolean compressed, boolean withVectors, File file) {
+        Lists lists = new Lists(source, Math.max(maxM0, maxM), compressed);
+        //first pass for the size of the sections
+        int dimensions = 0;
+        int elementBytes = 0;
+        long level0Size = 0;
+        long upperSize = 0;
+        for (int id = 0; id < nodeCount; id++) {
+            if (!source.contains(id))
+                continue;
+            if (dimensions == 0 && withVectors) {
+                Object vector = source.vector(id);
+                if (vector instanceof float[]) {
+                    dimensions = ((float[]) vector).length;
+                    elementBytes = Float.BYTES;
+                }
+                else if (vector instanceof double[]) {
+                    dimensions = ((double[]) vector).length;
+                    elementBytes = Double.BYTES;
+                }
+                else
+                    throw new IllegalArgumentException("Only leaves of float[] or double[] vectors can be mapped");
+            }
+            level0Size = lists.next(level0Size, lists.size(id, 0, 0));
+            upperSize = lists.next(upperSize, lists.size(id, 1, source.maxLevel(id)));
+        }
+        int unit = compressed ? 1 : Integer.BYTES;
+        long[] starts = new long[SECTIONS + 1];
+        starts[0] = HEADER_BYTES;
+        starts[1] = align(starts[0] + (long) nodeCount * dimensions * elementBytes);
+        starts[2] = align(starts[1] + (long) nodeCount * Integer.BYTES);
+        starts[3] = align(starts[2] + (long) nodeCount * Long.BYTES);
+        starts[4] = align(starts[3] + (nodeCount + 1L) * Long.BYTES);
+        starts[5] = align(starts[4] + (nodeCount + 1L) * Long.BYTES);
+        starts[6] = align(starts[5] + level0Size * unit);
+        starts[7] = align(starts[6] + upperSize * unit);
+
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try (Output output = new Output(FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            output.putInt(MAGIC);
+            output.putInt(VERSION);
+            output.putInt(elementBytes);
+            output.putInt(dimensions);
+            output.putInt(nodeCount);
+            output.putInt(maxM0);
+            output.putInt(maxM);
+            output.putInt(entryId);
+            for (long start : starts) {
+                output.putLong(start);
+            }
+            output.putInt(compressed ? ENCODING_VARINT_GAPS : ENCODING_INTS);
+
+            output.padTo(starts[0]);
+            for (int id = 0; id < nodeCount; id++) {
+                Object vector = source.contains(id) ? source.vector(id) : null;
+                for (int i = 0; i < dimensions; i++) {
+                    if (elementBytes == Float.BYTES)
+                        output.putFloat(vector == null ? 0 : ((float[]) vector)[i]);
+                    else
+                        output.putDouble(vector == null ? 0 : ((double[]) vector)[i]);
+                }
+            }
+            output.padTo(starts[1]);
+            for (int id = 0; id < nodeCount; id++) {
+                output.putInt(source.contains(id) ? source.maxLevel(id) : -1);
+            }
+            output.padTo(starts[2]);
+            for (int id = 0; id < nodeCount; id++) {
+                output.putLong(source.contains(id) ? source.externalId(id) : -1);
+            }
+            output.padTo(starts[3]);
+            long position = 0;
+            for (int id = 0; id < nodeCount; id++) {
+                int size = source.contains(id) ? lists.size(id, 0, 0) : 0;
+                position = lists.start(position, size);
+                output.putLong(position);
+                position += size;
+            }
+            output.putLong(position);
+            output.padTo(starts[4]);
+            position = 0;
+            for (int id = 0; id < nodeCount; id++) {
+                int size = source.contains(id) ? lists.size(id, 1, source.maxLevel(id)) : 0;
+                position = lists.start(position, size);
+                output.putLong(position);
+                position += size;
+            }
+            output.putLong(position);
+            output.padTo(starts[5]);
+            position = 0;
+            for (int id = 0; id < nodeCount; id++) {
+                if (source.contains(id))
+                    position = lists.write(output, starts[5], position, id, 0, 0);
+            }
+            output.padTo(starts[6]);
+            position = 0;
+            for (int id = 0; id < nodeCount; id++) {
+                if (source.contains(id))
+                    position = lists.write(output, starts[6], position, id, 1, source.maxLevel(id));
+            }
+            output.padTo(starts[7]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The connections of a node from one level to another as they are
+     * written, raw ints or encoded, their size counted in ints or bytes.
+     */
+    private static final class Lists {
+        private final LeafStorage<?> source;
+        private final boolean compressed;
+        private final int[] conns;
+        private byte[] encoded;
+
+        Lists(LeafStorage<?> source, int maxConnections, boolean compressed) {
+            this.source = source;
+            this.compressed = compressed;
+            this.conns = new int[maxConnections];
+            this.encoded = new byte[AdjacencyCodec.maxLength(maxConnections)];
+        }
+
+        //encode the lists of a node into encoded, returning their length in bytes
+        private int encode(int id, int fromLevel, int toLevel) {
+            int needed = (toLevel - fromLevel + 1) * AdjacencyCodec.maxLength(conns.length);
+            if (needed > encoded.length)
+                encoded = new byte[needed];
+            int length = 0;
+            for (int level = fromLevel; level <= toLevel; level++) {
+                int count = source.copyConnections(id, level, conns);
+                length = AdjacencyCodec.encode(conns, count, encoded, length);
+            }
+            return length;
+        }
+
+        int size(int id, int fromLevel, int toLevel) {
+            if (compressed)
+                return encode(id, fromLevel, toLevel);
+            int size = 0;
+            for (int level = fromLevel; level <= toLevel; level++) {
+                //upper levels are prefixed by their count
+                size += (level == 0 ? 0 : 1) + source.connectionCount(id, level);
+            }
+            return size;
+        }
+
+        /**
+         * @return where lists of the given size go at or after position,
+         * encoded lists being moved to the next region rather than
+         * straddling two of them
+         */
+        long start(long position, int size) {
+            if (compressed && size > 0 && position >>> REGION_BITS != (position + size - 1) >>> REGION_BITS)
+                return (position >>> REGION_BITS) + 1 << REGION_BITS;
+            return position;
+        }
+
+        long next(long position, int size) {
+            return start(position, size) + size;
+        }
+
+        long write(Output output, long sectionStart, long position, int id, int fromLevel, int toLevel)
+                throws IOException {
+            if (compressed) {
+                int length = encode(id, fromLevel, toLevel);
+                position = start(position, length);
+                output.padTo(sectionStart + position);
+                output.putBytes(encoded, length);
+                return position + length;
+            }
+            for (int level = fromLevel; level <= toLevel; level++) {
+                int count = source.copyConnections(id, level, conns);
+                if (level > 0)
+                    output.putInt(count);
+                for (int i = 0; i < count; i++) {
+                    output.putInt(conns[i]);
+                }
+                position += (level == 0 ? 0 : 1) + count;
+            }
+            return position;
+        }
+    }
+
+    private static long align(long position) {
+        return (position + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    /**
+     * Little endian writes to a channel, through a buffer of 1MB.
+     */
+    private static final class Output implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+            position += Integer.BYTES;
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+            position += Long.BYTES;
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(Float.BYTES);
+            buffer.putFloat(value);
+            position += Float.BYTES;
+        }
+
+        void putBytes(byte[] bytes, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                ensure(1);
+                buffer.put(bytes[i]);
+            }
+            position += length;
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(Double.BYTES);
+            buffer.putDouble(value);
+            position += Double.BYTES;
+        }
+
+        void padTo(long start) throws IOException {
+            while (position < start) {
+                ensure(1);
+                buffer.put((byte) 0);
+                position++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    @Override
+    void put(int id, long externalId, TVector vector, int[][] outConns, int[][] inConns) {
+        throw new UnsupportedOperationException("Mapped leaves are read only");
+    }
+
+    @Override
+    void insert(int id, long externalId, TVector vector, int maxLevel) {
+        throw new UnsupportedOperationException("Mapped leaves are read only");
+    }
+
+    @Override
+    void remove(int id) {
+        throw new UnsupportedOperationException("Mapped leaves are read only");
+    }
+
+    @Override
+    boolean contains(int id) {
+        return levels.getInt(id) >= 0;
+    }
+
+    @Override
+    long externalId(int id) {
+        return longExternalIds ? externalIds.getLong(id) : externalIds.getInt(id);
+    }
+
+    @Override
+    int maxLevel(int id) {
+        return levels.getInt(id);
+    }
+
+    @Override
+    TVector vector(int id) {
+        return vectors.get(id);
+    }
+
+    @Override
+    Node<TVector> node(int id) {
+        int maxLevel = maxLevel(id);
+        IntArrayList[] outConns = new IntArrayList[maxLevel + 1];
+        for (int level = 0; level <= maxLevel; level++) {
+            int[] conns = new int[connectionCount(id, level)];
+            copyConnections(id, level, conns);
+            outConns[level] = new IntArrayList(conns);
+        }
+        return new Node<>(id, outConns, null, new Item<>(externalId(id), vectors.get(id)));
+    }
+
+    @Override
+    float distance(TVector query, int id) {
+        return vectors.distance(query, id);
+    }
+
+    @Override
+    float prefixDistance(TVector query, int id, int length) {
+        return vectors.prefixDistance(query, id, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return vectors.distance(id1, id2);
+    }
+
+    @Override
+    boolean approximate() {
+        return vectors.approximate();
+    }
+
+    @Override
+    void prepare(TVector query, ProductQuantizer.Table table) {
+        vectors.prepare(query, table);
+    }
+
+    @Override
+    void exactDistances(TVector query, int[] ids, int count, float[] distances) {
+        vectors.exactDistances(query, ids, count, distances);
+    }
+
+    /**
+     * @return the number of bytes of vectors read from the disk vector file,
+     * 0 unless the leaf is of {@link LeafLayout#DISK}
+     */
+    long diskBytesRead() {
+        return vectors instanceof DiskVectorSlab ? ((DiskVectorSlab) vectors).bytesRead() : 0;
+    }
+
+    //where the count of the connections of a node at an upper level is
+    private long upperPosition(int id, int level) {
+        long position = upperOffsets.getLong(id);
+        for (int i = 1; i < level; i++) {
+            position += 1 + upperConnections.getInt(position);
+        }
+        return position;
+    }
+
+    //where the encoded list of a node at a level starts in its region
+    private int encodedPosition(ByteBuffer region, long position, int level) {
+        int inRegion = level0Connections.inRegion(position);
+        for (int i = 1; i < level; i++) {
+            inRegion = AdjacencyCodec.skip(region, inRegion);
+        }
+        return inRegion;
+    }
+
+    @Override
+    int connectionCount(int id, int level) {
+        if (compressed) {
+            Section connections = level == 0 ? level0Connections : upperConnections;
+            long position = (level == 0 ? level0Offsets : upperOffsets).getLong(id);
+            ByteBuffer region = connections.region(position);
+            return AdjacencyCodec.count(region, encodedPosition(region, position, level));
+        }
+        if (level == 0)
+            return (int) (level0Offsets.getLong(id + 1) - level0Offsets.getLong(id));
+        return upperConnections.getInt(upperPosition(id, level));
+    }
+
+    @Override
+    int connection(int id, int level, int index) {
+        if (compressed) {
+            int[] conns = new int[connectionCount(id, level)];
+            copyConnections(id, level, conns);
+            return conns[index];
+        }
+        if (level == 0)
+            return level0Connections.getInt(level0Offsets.getLong(id) + index);
+        return upperConnections.getInt(upperPosition(id, level) + 1 + index);
+    }
+
+    @Override
+    int copyConnections(int id, int level, int[] buffer) {
+        if (compressed) {
+            Section connections = level == 0 ? level0Connections : upperConnections;
+            long position = (level == 0 ? level0Offsets : upperOffsets).getLong(id);
+            ByteBuffer region = connections.region(position);
+            return AdjacencyCodec.decode(region, encodedPosition(region, position, level), buffer);
+        }
+        Section connections;
+        long first;
+        int count;
+        if (level == 0) {
+            connections = level0Connections;
+            first = level0Offsets.getLong(id);
+            count = (int) (level0Offsets.getLong(id + 1) - first);
+        }
+        else {
+            connections = upperConnections;
+            long position = upperPosition(id, level);
+            count = upperConnections.getInt(position);
+            first = position + 1;
+        }
+        for (int i = 0; i < count; i++) {
+            buffer[i] = connections.getInt(first + i);
+        }
+        return count;
+    }
+
+    @Override
+    void addConnection(int id, int level, int neighbour) {
+        throw new UnsupportedOperationException("Mapped leaves are read only");
+    }
+
+    @Override
+    void setConnections(int id, int level, int[] neighbours, int count) {
+        throw new UnsupportedOperationException("Mapped leaves are read only");
+    }
+
+    @Override
+    void removeConnection(int id, int level, int neighbour) {
+        throw new UnsupportedOperationException("Mapped leaves are read only");
+    }
+
+    @Override
+    IntArrayList inConnections(int id, int level) {
+        return null;
+    }
+
+    @Override
+    Object lock(int id) {
+        return this;
+    }
+
+    /**
+     * Unmap the file. The page cache keeps it for the other JVMs searching it.
+     */
+    @Override
+    synchronized void free() {
+        //fail on the null sections rather than read unmapped memory
+        levels = null;
+        externalIds = null;
+        level0Offsets = null;
+        upperOffsets = null;
+        level0Connections = null;
+        upperConnections = null;
+        vectors.free();
+        for (ByteBuffer region : regions) {
+            DirectMemory.free(region);
+        }
+        regions.clear();
+    }
+}
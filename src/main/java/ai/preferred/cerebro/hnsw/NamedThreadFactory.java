@@ -7,14 +7,22 @@ public class NamedThreadFactory implements ThreadFactory {
 
     private final String namingPattern;
     private final AtomicInteger counter;
+    private final boolean daemon;
 
     public NamedThreadFactory(String namingPattern) {
+        this(namingPattern, false);
+    }
+
+    public NamedThreadFactory(String namingPattern, boolean daemon) {
         this.namingPattern = namingPattern;
         this.counter = new AtomicInteger(0);
+        this.daemon = daemon;
     }
 
     @Override
     public Thread newThread(Runnable r) {
-        return new Thread(r, String.format(namingPattern, counter.incrementAndGet()));
+        Thread thread = new Thread(r, String.format(namingPattern, counter.incrementAndGet()));
+        thread.setDaemon(daemon);
+        return thread;
     }
 }
@@ -24,7 +24,7 @@ public class Node<TVector> {
         return this.outConns.length - 1;
     }
 
-    int externalID(){
+    long externalID(){
         return item.externalId;
     }
 
@@ -0,0 +1,184 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecDoubleHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage of {@link LeafLayout#NODES}: one {@link Node} object per node,
+ * in pages of references indexed by internal id. As in
+ * {@link ColumnarLeafStorage}, a leaf loaded for searching takes a single
+ * page, a leaf being written takes a page at a time as nodes come in.
+ */
+final class NodeLeafStorage<TVector> extends LeafStorage<TVector> {
+    private static final int MAX_PAGE_BITS = 30;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<Node<TVector>>> pages;
+    private final int pageBits;
+    private final int pageMask;
+    private final int maxM0;
+    private final int maxM;
+    private final boolean inConnections;
+
+    NodeLeafStorage(VecHandler<TVector> handler, int capacity, int maxM0, int maxM,
+                    boolean inConnections, boolean growable) {
+        super(handler, capacity);
+        this.pageBits = pageBits(capacity, 1, growable ? VectorSlab.GROWABLE_PAGE_BITS : MAX_PAGE_BITS);
+        this.pageMask = (1 << pageBits) - 1;
+        this.pages = new AtomicReferenceArray<>((int) ((capacity + (1L << pageBits) - 1) >>> pageBits));
+        this.maxM0 = maxM0;
+        this.maxM = maxM;
+        this.inConnections = inConnections;
+    }
+
+    private Node<TVector> get(int id) {
+        AtomicReferenceArray<Node<TVector>> page = pages.get(id >>> pageBits);
+        return page == null ? null : page.get(id & pageMask);
+    }
+
+    private void set(int id, Node<TVector> node) {
+        int index = id >>> pageBits;
+        AtomicReferenceArray<Node<TVector>> page = pages.get(index);
+        if (page == null) {
+            //several threads may race for a new page, only the first one's is kept
+            pages.compareAndSet(index, null, new AtomicReferenceArray<>(pageLength(capacity, pageBits, index, 1)));
+            page = pages.get(index);
+        }
+        page.set(id & pageMask, node);
+    }
+
+    @Override
+    void put(int id, long externalId, TVector vector, int[][] outConns, int[][] inConns) {
+        set(id, new Node<>(id, toLists(outConns),
+                inConnections ? toLists(inConns) : null, new Item<>(externalId, vector)));
+    }
+
+    private static IntArrayList[] toLists(int[][] conns) {
+        IntArrayList[] lists = new IntArrayList[conns.length];
+        for (int level = 0; level < conns.length; level++) {
+            lists[level] = new IntArrayList(conns[level]);
+        }
+        return lists;
+    }
+
+    @Override
+    void insert(int id, long externalId, TVector vector, int maxLevel) {
+        IntArrayList[] outConns = new IntArrayList[maxLevel + 1];
+        for (int level = 0; level <= maxLevel; level++) {
+            int levelM = maxLevel == 0 ? maxM0 : maxM;
+            outConns[level] = new IntArrayList(levelM);
+        }
+
+        IntArrayList[] inConns = inConnections ? new IntArrayList[maxLevel + 1] : null;
+        if (inConnections) {
+            for (int level = 0; level <= maxLevel; level++) {
+                int levelM = maxLevel == 0 ? maxM0 : maxM;
+                inConns[level] = new IntArrayList(levelM);
+            }
+        }
+        set(id, new Node<>(id, outConns, inConns, new Item<>(externalId, vector)));
+    }
+
+    @Override
+    void remove(int id) {
+        set(id, null);
+    }
+
+    @Override
+    boolean contains(int id) {
+        return get(id) != null;
+    }
+
+    @Override
+    long externalId(int id) {
+        return get(id).item.externalId;
+    }
+
+    @Override
+    int maxLevel(int id) {
+        return get(id).maxLevel();
+    }
+
+    @Override
+    TVector vector(int id) {
+        return get(id).vector();
+    }
+
+    @Override
+    Node<TVector> node(int id) {
+        return get(id);
+    }
+
+    @Override
+    float distance(TVector query, int id) {
+        return (float) handler.distance(query, get(id).vector());
+    }
+
+    @Override
+    float prefixDistance(TVector query, int id, int length) {
+        Object vector = get(id).vector();
+        if (handler instanceof VecFloatHandler)
+            return (float) ((VecFloatHandler) handler).distance((float[]) query, 0, (float[]) vector, 0, length);
+        if (handler instanceof VecDoubleHandler)
+            return (float) ((VecDoubleHandler) handler).distance((double[]) query, 0, (double[]) vector, 0, length);
+        return super.prefixDistance(query, id, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(get(id1).vector(), get(id2).vector());
+    }
+
+    @Override
+    int connectionCount(int id, int level) {
+        return get(id).outConns[level].size();
+    }
+
+    @Override
+    int connection(int id, int level, int index) {
+        return get(id).outConns[level].get(index);
+    }
+
+    @Override
+    int copyConnections(int id, int level, int[] buffer) {
+        IntArrayList conns = get(id).outConns[level];
+        int size = conns.size();
+        for (int i = 0; i < size; i++) {
+            buffer[i] = conns.get(i);
+        }
+        return size;
+    }
+
+    @Override
+    void addConnection(int id, int level, int neighbour) {
+        get(id).outConns[level].add(neighbour);
+    }
+
+    @Override
+    void setConnections(int id, int level, int[] neighbours, int count) {
+        IntArrayList conns = get(id).outConns[level];
+        conns.clear();
+        for (int i = 0; i < count; i++) {
+            conns.add(neighbours[i]);
+        }
+    }
+
+    @Override
+    void removeConnection(int id, int level, int neighbour) {
+        get(id).outConns[level].remove(neighbour);
+    }
+
+    @Override
+    IntArrayList inConnections(int id, int level) {
+        IntArrayList[] inConns = get(id).inConns;
+        return inConns == null ? null : inConns[level];
+    }
+
+    @Override
+    Object lock(int id) {
+        return get(id);
+    }
+}
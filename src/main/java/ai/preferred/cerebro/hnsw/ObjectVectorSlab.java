@@ -0,0 +1,61 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+
+
+/**
+ * Slab of references to vectors of a type it knows nothing about, for
+ * handlers other than the float[] and double[] ones. Only saves the
+ * per-node objects, the vectors themselves stay where they are.
+ */
+final class ObjectVectorSlab<TVector> extends VectorSlab<TVector> {
+    private final VecHandler<TVector> handler;
+    private Object[][] pages;
+
+    ObjectVectorSlab(VecHandler<TVector> handler, int capacity, boolean growable) {
+        super(capacity, growable);
+        this.handler = handler;
+    }
+
+    @Override
+    void set(int id, TVector vector) {
+        ensurePage(id, 1);
+        pages[id >>> pageBits][id & pageMask] = vector;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    TVector get(int id) {
+        return (TVector) pages[id >>> pageBits][id & pageMask];
+    }
+
+    @Override
+    void clear(int id) {
+        pages[id >>> pageBits][id & pageMask] = null;
+    }
+
+    @Override
+    float distance(TVector query, int id) {
+        return (float) handler.distance(query, get(id));
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(get(id1), get(id2));
+    }
+
+    @Override
+    void createPages(int numPages) {
+        pages = new Object[numPages][];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return pages[page] != null;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        pages[page] = new Object[length];
+    }
+}
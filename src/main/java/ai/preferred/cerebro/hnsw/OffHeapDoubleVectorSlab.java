@@ -0,0 +1,96 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecDoubleHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * Slab of double[] vectors kept in direct buffers, distances being computed
+ * in place by {@link VecDoubleHandler#distance(double[], int, DoubleBuffer, int, int)}.
+ */
+final class OffHeapDoubleVectorSlab extends VectorSlab<double[]> {
+    private final VecDoubleHandler handler;
+    private ByteBuffer[] buffers;
+    private DoubleBuffer[] pages;
+
+    OffHeapDoubleVectorSlab(VecDoubleHandler handler, int capacity) {
+        super(capacity, false);
+        this.handler = handler;
+    }
+
+    @Override
+    void set(int id, double[] vector) {
+        ensurePage(id, vector.length);
+        DoubleBuffer page = pages[id >>> pageBits];
+        int offset = (id & pageMask) * dimensions;
+        for (int i = 0; i < dimensions; i++)
+            page.put(offset + i, vector[i]);
+    }
+
+    @Override
+    double[] get(int id) {
+        DoubleBuffer page = pages[id >>> pageBits];
+        int offset = (id & pageMask) * dimensions;
+        double[] vector = new double[dimensions];
+        for (int i = 0; i < dimensions; i++)
+            vector[i] = page.get(offset + i);
+        return vector;
+    }
+
+    @Override
+    float distance(double[] query, int id) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    float prefixDistance(double[] query, int id, int length) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(pages[id1 >>> pageBits], (id1 & pageMask) * dimensions,
+                pages[id2 >>> pageBits], (id2 & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    int pageStride(int dimensions) {
+        return dimensions * Double.BYTES;
+    }
+
+    @Override
+    void createPages(int numPages) {
+        buffers = new ByteBuffer[numPages];
+        pages = new DoubleBuffer[numPages];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return pages[page] != null;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        buffers[page] = DirectMemory.allocate((long) length * Double.BYTES);
+        pages[page] = buffers[page].asDoubleBuffer();
+    }
+
+    @Override
+    void attachPage(int page, ByteBuffer buffer) {
+        buffers[page] = buffer;
+        pages[page] = buffer.asDoubleBuffer();
+    }
+
+    @Override
+    void free() {
+        ByteBuffer[] released = buffers;
+        //fail on the null pages rather than read freed memory
+        buffers = null;
+        pages = null;
+        if (released != null) {
+            for (ByteBuffer buffer : released)
+                DirectMemory.free(buffer);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecFloatHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Slab of float[] vectors kept in direct buffers, distances being computed
+ * in place by {@link VecFloatHandler#distance(float[], int, FloatBuffer, int, int)}.
+ */
+final class OffHeapFloatVectorSlab extends VectorSlab<float[]> {
+    private final VecFloatHandler handler;
+    private ByteBuffer[] buffers;
+    private FloatBuffer[] pages;
+
+    OffHeapFloatVectorSlab(VecFloatHandler handler, int capacity) {
+        super(capacity, false);
+        this.handler = handler;
+    }
+
+    @Override
+    void set(int id, float[] vector) {
+        ensurePage(id, vector.length);
+        FloatBuffer page = pages[id >>> pageBits];
+        int offset = (id & pageMask) * dimensions;
+        for (int i = 0; i < dimensions; i++)
+            page.put(offset + i, vector[i]);
+    }
+
+    @Override
+    float[] get(int id) {
+        FloatBuffer page = pages[id >>> pageBits];
+        int offset = (id & pageMask) * dimensions;
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < dimensions; i++)
+            vector[i] = page.get(offset + i);
+        return vector;
+    }
+
+    @Override
+    float distance(float[] query, int id) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    float prefixDistance(float[] query, int id, int length) {
+        return (float) handler.distance(query, 0, pages[id >>> pageBits], (id & pageMask) * dimensions, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(pages[id1 >>> pageBits], (id1 & pageMask) * dimensions,
+                pages[id2 >>> pageBits], (id2 & pageMask) * dimensions, dimensions);
+    }
+
+    @Override
+    int pageStride(int dimensions) {
+        return dimensions * Float.BYTES;
+    }
+
+    @Override
+    void createPages(int numPages) {
+        buffers = new ByteBuffer[numPages];
+        pages = new FloatBuffer[numPages];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return pages[page] != null;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        buffers[page] = DirectMemory.allocate((long) length * Float.BYTES);
+        pages[page] = buffers[page].asFloatBuffer();
+    }
+
+    @Override
+    void attachPage(int page, ByteBuffer buffer) {
+        buffers[page] = buffer;
+        pages[page] = buffer.asFloatBuffer();
+    }
+
+    @Override
+    void free() {
+        ByteBuffer[] released = buffers;
+        //fail on the null pages rather than read freed memory
+        buffers = null;
+        pages = null;
+        if (released != null) {
+            for (ByteBuffer buffer : released)
+                DirectMemory.free(buffer);
+        }
+    }
+}
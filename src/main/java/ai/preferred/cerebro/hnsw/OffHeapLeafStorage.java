@@ -0,0 +1,265 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecHandler;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage of {@link LeafLayout#OFF_HEAP}. The records are laid out as in
+ * {@link ColumnarLeafStorage}, but in direct buffers:
+ * <ul>
+ *     <li>the vectors, in an off-heap {@link VectorSlab}</li>
+ *     <li>the base layer connections, maxM0 + 1 ints per node: the number
+ *     of connections, -1 if there is no node, then the connections</li>
+ *     <li>the external ids</li>
+ *     <li>where the upper layers record of each node starts, -1 for the
+ *     nodes only present at the base layer</li>
+ *     <li>the upper layers records, appended one after another as the
+ *     leaf is loaded: the level of the node, then maxM + 1 ints per
+ *     level laid out the same way as the base layer</li>
+ * </ul>
+ * The leaf is read only once loaded, and its memory stays outside the
+ * heap until {@link #free()} is called.
+ */
+final class OffHeapLeafStorage<TVector> extends LeafStorage<TVector> {
+    private static final int MAX_PAGE_BITS = 30;
+    //upper layers records go in pages of 4MB
+    private static final int UPPER_PAGE_BITS = 20;
+    private static final int UPPER_PAGE_MASK = (1 << UPPER_PAGE_BITS) - 1;
+
+    private final VectorSlab<TVector> vectors;
+    private final int maxM0;
+    private final int maxM;
+    private final int level0Stride;
+    private final int upperStride;
+    private final int pageBits;
+    private final int pageMask;
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private IntBuffer[] level0Pages;
+    private LongBuffer[] externalIdPages;
+    private IntBuffer[] upperOffsetPages;
+    private List<IntBuffer> upperPages = new ArrayList<>();
+    //where the next upper layers record goes in the last upper page
+    private int upperPosition = 1 << UPPER_PAGE_BITS;
+
+    OffHeapLeafStorage(VecHandler<TVector> handler, VectorSlab<TVector> vectors, int capacity, int maxM0, int maxM) {
+        super(handler, capacity);
+        this.vectors = vectors;
+        this.maxM0 = maxM0;
+        this.maxM = maxM;
+        this.level0Stride = maxM0 + 1;
+        this.upperStride = maxM + 1;
+        this.pageBits = pageBits(capacity, level0Stride * Integer.BYTES, MAX_PAGE_BITS);
+        this.pageMask = (1 << pageBits) - 1;
+        int numPages = (int) ((capacity + (1L << pageBits) - 1) >>> pageBits);
+        level0Pages = new IntBuffer[numPages];
+        externalIdPages = new LongBuffer[numPages];
+        upperOffsetPages = new IntBuffer[numPages];
+        for (int page = 0; page < numPages; page++) {
+            int length = pageLength(capacity, pageBits, page, 1);
+            level0Pages[page] = allocate(length * level0Stride);
+            externalIdPages[page] = allocateLongs(length);
+            upperOffsetPages[page] = allocate(length);
+            for (int i = 0; i < length; i++) {
+                level0Pages[page].put(i * level0Stride, -1);
+                upperOffsetPages[page].put(i, -1);
+            }
+        }
+    }
+
+    private IntBuffer allocate(long length) {
+        ByteBuffer buffer = DirectMemory.allocate(length * Integer.BYTES);
+        buffers.add(buffer);
+        return buffer.asIntBuffer();
+    }
+
+    private LongBuffer allocateLongs(long length) {
+        ByteBuffer buffer = DirectMemory.allocate(length * Long.BYTES);
+        buffers.add(buffer);
+        return buffer.asLongBuffer();
+    }
+
+    @Override
+    void put(int id, long externalId, TVector vector, int[][] outConns, int[][] inConns) {
+        vectors.set(id, vector);
+        int page = id >>> pageBits;
+        int index = id & pageMask;
+        externalIdPages[page].put(index, externalId);
+        for (int level = 0; level < outConns.length; level++) {
+            if (outConns[level].length > (level == 0 ? maxM0 : maxM))
+                throw new IllegalArgumentException("Node " + id + " has more connections than allowed at level " + level);
+        }
+        write(level0Pages[page], index * level0Stride, outConns[0]);
+        if (outConns.length > 1) {
+            int maxLevel = outConns.length - 1;
+            int length = 1 + maxLevel * upperStride;
+            if (length > 1 << UPPER_PAGE_BITS)
+                throw new IllegalArgumentException("Node " + id + " has too many levels to be kept off-heap");
+            if (upperPosition + length > 1 << UPPER_PAGE_BITS) {
+                if (upperPages.size() == 1 << (31 - UPPER_PAGE_BITS))
+                    throw new IllegalArgumentException("Too many upper layers connections to be kept off-heap");
+                upperPages.add(allocate(1 << UPPER_PAGE_BITS));
+                upperPosition = 0;
+            }
+            IntBuffer upper = upperPages.get(upperPages.size() - 1);
+            upper.put(upperPosition, maxLevel);
+            for (int level = 1; level <= maxLevel; level++) {
+                write(upper, upperPosition + 1 + (level - 1) * upperStride, outConns[level]);
+            }
+            upperOffsetPages[page].put(index, (upperPages.size() - 1) << UPPER_PAGE_BITS | upperPosition);
+            upperPosition += length;
+        }
+    }
+
+    private static void write(IntBuffer buffer, int offset, int[] conns) {
+        buffer.put(offset, conns.length);
+        for (int i = 0; i < conns.length; i++) {
+            buffer.put(offset + 1 + i, conns[i]);
+        }
+    }
+
+    @Override
+    void insert(int id, long externalId, TVector vector, int maxLevel) {
+        throw new UnsupportedOperationException("Off-heap leaves are read only");
+    }
+
+    @Override
+    void remove(int id) {
+        throw new UnsupportedOperationException("Off-heap leaves are read only");
+    }
+
+    @Override
+    boolean contains(int id) {
+        return level0Pages[id >>> pageBits].get((id & pageMask) * level0Stride) >= 0;
+    }
+
+    @Override
+    long externalId(int id) {
+        return externalIdPages[id >>> pageBits].get(id & pageMask);
+    }
+
+    //where the upper layers record of a node starts, -1 if there is none
+    private int upperOffset(int id) {
+        return upperOffsetPages[id >>> pageBits].get(id & pageMask);
+    }
+
+    @Override
+    int maxLevel(int id) {
+        int upperOffset = upperOffset(id);
+        if (upperOffset < 0)
+            return 0;
+        return upperPages.get(upperOffset >>> UPPER_PAGE_BITS).get(upperOffset & UPPER_PAGE_MASK);
+    }
+
+    @Override
+    TVector vector(int id) {
+        return vectors.get(id);
+    }
+
+    @Override
+    Node<TVector> node(int id) {
+        int maxLevel = maxLevel(id);
+        IntArrayList[] outConns = new IntArrayList[maxLevel + 1];
+        for (int level = 0; level <= maxLevel; level++) {
+            int[] conns = new int[connectionCount(id, level)];
+            copyConnections(id, level, conns);
+            outConns[level] = new IntArrayList(conns);
+        }
+        return new Node<>(id, outConns, null, new Item<>(externalId(id), vectors.get(id)));
+    }
+
+    @Override
+    float distance(TVector query, int id) {
+        return vectors.distance(query, id);
+    }
+
+    @Override
+    float prefixDistance(TVector query, int id, int length) {
+        return vectors.prefixDistance(query, id, length);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return vectors.distance(id1, id2);
+    }
+
+    //the buffer holding the connections of a node at a level
+    private IntBuffer record(int id, int level) {
+        if (level == 0)
+            return level0Pages[id >>> pageBits];
+        return upperPages.get(upperOffset(id) >>> UPPER_PAGE_BITS);
+    }
+
+    //where the connections of a node at a level start in its buffer, with their count
+    private int offset(int id, int level) {
+        if (level == 0)
+            return (id & pageMask) * level0Stride;
+        return (upperOffset(id) & UPPER_PAGE_MASK) + 1 + (level - 1) * upperStride;
+    }
+
+    @Override
+    int connectionCount(int id, int level) {
+        return record(id, level).get(offset(id, level));
+    }
+
+    @Override
+    int connection(int id, int level, int index) {
+        return record(id, level).get(offset(id, level) + 1 + index);
+    }
+
+    @Override
+    int copyConnections(int id, int level, int[] buffer) {
+        IntBuffer record = record(id, level);
+        int offset = offset(id, level);
+        int count = record.get(offset);
+        for (int i = 0; i < count; i++) {
+            buffer[i] = record.get(offset + 1 + i);
+        }
+        return count;
+    }
+
+    @Override
+    void addConnection(int id, int level, int neighbour) {
+        throw new UnsupportedOperationException("Off-heap leaves are read only");
+    }
+
+    @Override
+    void setConnections(int id, int level, int[] neighbours, int count) {
+        throw new UnsupportedOperationException("Off-heap leaves are read only");
+    }
+
+    @Override
+    void removeConnection(int id, int level, int neighbour) {
+        throw new UnsupportedOperationException("Off-heap leaves are read only");
+    }
+
+    @Override
+    IntArrayList inConnections(int id, int level) {
+        return null;
+    }
+
+    @Override
+    Object lock(int id) {
+        return this;
+    }
+
+    @Override
+    synchronized void free() {
+        vectors.free();
+        //fail on the null pages rather than read freed memory
+        level0Pages = null;
+        externalIdPages = null;
+        upperOffsetPages = null;
+        upperPages = null;
+        for (ByteBuffer buffer : buffers) {
+            DirectMemory.free(buffer);
+        }
+        buffers.clear();
+    }
+}
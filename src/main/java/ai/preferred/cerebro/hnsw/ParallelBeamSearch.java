@@ -0,0 +1,185 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Best-first search of the base layer of a single leaf run by several
+ * threads at once, for queries whose search of one large leaf would
+ * otherwise keep a single core busy while the others sit idle.
+ * </br>
+ * The workers share the frontier and the top candidates under a lock,
+ * and a {@link ConcurrentVisitedSet}. Each worker takes the closest
+ * candidate of the frontier, computes the distances of its unvisited
+ * neighbors outside of the lock, then merges them back. The search ends
+ * when no candidate left can beat the top candidates and no worker is
+ * still expanding one.
+ * </br>
+ * An instance is owned by the {@link SearchContext} of the thread
+ * coordinating the search and reused across queries.
+ */
+final class ParallelBeamSearch {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ConcurrentVisitedSet visitedSet = new ConcurrentVisitedSet(64);
+
+    //state of the current search, guarded by lock
+    private CandidateMinHeap frontier;
+    private CandidateMaxHeap topCandidates;
+    private CandidateMaxHeap results;
+    private SharedBound sharedBound;
+    private int ef;
+    private int k;
+    private int maxDistances;
+    private int patience;
+    private int computed;
+    private int withoutImprovement;
+    private int expanding;
+    private boolean done;
+
+    /**
+     * Search the base layer of leaf, helped by up to workers - 1 threads of the
+     * scheduler, stopping early the same ways as
+     * {@link LeafSegment#searchLayer(SearchContext, int, Object, int, int, SharedBound, int, int, int, int)}.
+     * The budget of distance computations is checked before each expansion,
+     * so it may be exceeded by the expansions already running.
+     * @param context the context of the calling thread, whose heaps hold the shared state
+     * @param table the table of the query handed to the storage of the leaf on every thread
+     * @param prefix the number of leading elements the distances are computed with, 0 for all of them
+     * @return the ef (or less) closest nodes found, kept in
+     * {@link SearchContext#topCandidates} until the next search on the same context
+     */
+    <TVector> CandidateMaxHeap search(LeafSegment<TVector> leaf, SearchContext context, int entryId,
+                                      TVector query, ProductQuantizer.Table table, int prefix, int ef,
+                                      SharedBound sharedBound,
+                                      int k, int maxDistances, int patience,
+                                      LeafScheduler scheduler, int workers) {
+        visitedSet.ensureCapacity(leaf.idCapacity());
+        frontier = context.frontier;
+        topCandidates = context.topCandidates;
+        frontier.clear();
+        topCandidates.clear();
+        this.sharedBound = sharedBound;
+        this.ef = ef;
+        this.k = k;
+        this.maxDistances = maxDistances;
+        this.patience = patience;
+        results = null;
+        if (patience > 0 && k < ef) {
+            results = context.resultCandidates;
+            results.clear();
+        }
+        computed = 1;
+        withoutImprovement = 0;
+        expanding = 0;
+        done = false;
+        try {
+            float distance = leaf.distance(query, entryId, prefix);
+            visitedSet.visit(entryId);
+            frontier.push(entryId, distance);
+            topCandidates.push(entryId, distance);
+            if (results != null)
+                results.push(entryId, distance);
+
+            //helpers starting after the search is over have nothing to do,
+            //so the scheduler may skip them
+            scheduler.runCooperatively(workers, worker -> work(leaf, query, table, prefix,
+                    leaf.parent.getSearchContext()));
+            return topCandidates;
+        } finally {
+            visitedSet.clear();
+            this.sharedBound = null;
+        }
+    }
+
+    private <TVector> void work(LeafSegment<TVector> leaf, TVector query, ProductQuantizer.Table table,
+                                int prefix, SearchContext own) {
+        leaf.storage.prepare(query, table);
+        while (true) {
+            int nodeWithNeighbors;
+            lock.lock();
+            try {
+                while (!done && !canExpand()) {
+                    if (expanding == 0) {
+                        //nothing left to expand and nobody can add more
+                        done = true;
+                        changed.signalAll();
+                    }
+                    else
+                        changed.awaitUninterruptibly();
+                }
+                if (done)
+                    return;
+                nodeWithNeighbors = frontier.pop();
+                expanding++;
+            } finally {
+                lock.unlock();
+            }
+
+            int count = leaf.copyNeighbours(nodeWithNeighbors, 0, own);
+            int[] candidates = own.neighbours;
+            int[] ids = own.expandIdBuffer(count);
+            float[] distances = own.expandDistanceBuffer(count);
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                int candidateId = candidates[i];
+                if (visitedSet.visit(candidateId)) {
+                    ids[found] = candidateId;
+                    distances[found++] = leaf.distance(query, candidateId, prefix);
+                }
+            }
+
+            lock.lock();
+            try {
+                expanding--;
+                computed += found;
+                boolean improved = false;
+                for (int i = 0; i < found; i++) {
+                    if (topCandidates.size() < ef || distances[i] < topCandidates.topDistance()) {
+                        frontier.push(ids[i], distances[i]);
+                        if (topCandidates.size() == ef)
+                            topCandidates.updateTop(ids[i], distances[i]);
+                        else
+                            topCandidates.push(ids[i], distances[i]);
+                        if (sharedBound != null && topCandidates.size() == ef)
+                            sharedBound.offer(topCandidates.topDistance());
+                        improved |= improveResults(ids[i], distances[i]);
+                    }
+                }
+                if (patience > 0) {
+                    withoutImprovement = improved ? 0 : withoutImprovement + 1;
+                    if (withoutImprovement >= patience)
+                        done = true;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //whether the k best results changed with a candidate entering the top candidates
+    private boolean improveResults(int id, float distance) {
+        if (results == null)
+            return true;
+        if (results.size() < k) {
+            results.push(id, distance);
+            return true;
+        }
+        if (distance < results.topDistance()) {
+            results.updateTop(id, distance);
+            return true;
+        }
+        return false;
+    }
+
+    //whether the closest candidate of the frontier can still improve the top candidates
+    private boolean canExpand() {
+        if (frontier.isEmpty() || (maxDistances > 0 && computed >= maxDistances))
+            return false;
+        float closest = frontier.topDistance();
+        if (topCandidates.size() == ef && closest > topCandidates.topDistance())
+            return false;
+        return sharedBound == null || closest <= sharedBound.get();
+    }
+}
@@ -3,28 +3,39 @@ package ai.preferred.cerebro.hnsw;
 import ai.preferred.cerebro.handler.VecHandler;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
 import static ai.preferred.cerebro.hnsw.IndexConst.Sp;
 
 abstract public class ParentHnsw<TVector> {
     protected static final String globalConfigFileName = Sp + "global_config.o";
-    protected static final String globalLookupFileName = Sp + "global_lookup.o";
+    //lookup of the indexes saved before it was kept in sorted arrays
+    protected static final String legacyLookupFileName = Sp + "global_lookup.o";
+    protected static final String globalLookupFileName = Sp + "global_lookup.bin";
+    protected static final String globalCentroidsFileName = Sp + "global_centroids.o";
+    protected static final String globalProductQuantizerFileName = Sp + "global_pq.o";
 
     protected String idxDir;
     protected HnswConfiguration configuration;
     protected int nleaves;
-    protected ConcurrentHashMap<Integer, Integer> lookup;
-    protected GenericObjectPool<BitSet> visitedBitSetPool;
+    //external ids of the items to their global ids, kept by writers only
+    protected StripedIdLookup lookup;
     protected LeafSegment<TVector>[] leaves;
+    //centroid of each leaf if the index is clustered, null otherwise
+    protected TVector[] centroids;
+    private final ThreadLocal<SearchContext> searchContexts = ThreadLocal.withInitial(SearchContext::new);
 
     ParentHnsw(){
     }
 
-    //Load Up configuration and lookup table
+    //Load Up configuration
     ParentHnsw(String dir){
         idxDir = dir;
         Kryo kryo = new Kryo();
@@ -65,33 +76,134 @@ abstract public class ParentHnsw<TVector> {
         configuration.setMaxItemLeaf(kryo.readObject(input, int.class));
         nleaves = kryo.readObject(input, int.class);
         input.close();
-        //Load up lookup table
-        try {
-            input = new Input(new FileInputStream(idxDir + globalLookupFileName));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        //Load up centroids, only saved by clustered indexes
+        File centroidsFile = new File(idxDir + globalCentroidsFileName);
+        if (centroidsFile.exists()) {
+            centroids = handler().load(centroidsFile);
+            configuration.setClustered(true);
         }
-        lookup = kryo.readObject(input, ConcurrentHashMap.class);
-        input.close();
     }
 
     public HnswConfiguration getConfiguration() {
         return configuration;
     }
-    public ConcurrentHashMap<Integer, Integer> getLookup(){
+    /**
+     * @return the map of the external ids of the items to their global ids
+     */
+    public IdLookup getLookup(){
         return lookup;
     }
-    public BitSet getBitsetFromPool(){
-        return visitedBitSetPool.borrowObject();
+
+    /**
+     * Read the lookup of the index into a map that can be changed, from
+     * the format it was saved in.
+     */
+    protected StripedIdLookup loadLookup() {
+        File lookupFile = new File(idxDir + globalLookupFileName);
+        if (lookupFile.exists())
+            return SortedIdLookup.read(lookupFile);
+        StripedIdLookup lookup = new StripedIdLookup();
+        File legacyFile = new File(idxDir + legacyLookupFileName);
+        if (legacyFile.exists()) {
+            Kryo kryo = new Kryo();
+            kryo.register(Integer.class);
+            kryo.register(ConcurrentHashMap.class);
+            try (Input input = new Input(new FileInputStream(legacyFile))) {
+                ConcurrentHashMap<Integer, Integer> legacy = kryo.readObject(input, ConcurrentHashMap.class);
+                legacy.forEach(lookup::put);
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+        return lookup;
+    }
+    /**
+     * @return the scratch state owned by the calling thread, to be
+     * used by any leaf of this index. Since no two threads share a
+     * context, concurrent searches never wait on each other for it.
+     */
+    SearchContext getSearchContext(){
+        return searchContexts.get();
+    }
+
+    /**
+     * @return the handler of the configuration, typed by the vectors of
+     * this index. The configuration keeps it raw, the cast holds as the
+     * index is only ever built and loaded with that same handler.
+     */
+    @SuppressWarnings("unchecked")
+    VecHandler<TVector> handler() {
+        return (VecHandler<TVector>) configuration.handler;
+    }
+    public Node getNodeGlobally(long globalID){
+        int leafNum = (int) (globalID / configuration.maxItemLeaf);
+        int internalID = (int) (globalID % configuration.maxItemLeaf);
+        return leaf(leafNum).getNode(internalID).get();
+    }
+
+    /**
+     * @return the memory each {@link LeafLayout#DISK} leaf caches its vectors in
+     */
+    long diskCacheBytes() {
+        return SearcherConfiguration.DEFAULT_DISK_CACHE_BYTES;
     }
 
-    public void returnBitsetToPool(BitSet bitSet){
-        visitedBitSetPool.returnObject(bitSet);
+    /**
+     * @return the quantizer of the {@link LeafLayout#PRODUCT_QUANTIZED} leaves, null if there is none
+     */
+    ProductQuantizer productQuantizer() {
+        return null;
     }
-    public Node getNodeGlobally(int globalID){
-        int leafNum = globalID / configuration.maxItemLeaf;
-        int internalID = globalID % configuration.maxItemLeaf;
-        return leaves[leafNum].getNode(internalID).get();
+
+    /**
+     * @return whether the {@link LeafLayout#PRODUCT_QUANTIZED} leaves rank their results again with the vectors
+     */
+    boolean productQuantizationRerank() {
+        return false;
+    }
+
+    /**
+     * @return whether the {@link LeafLayout#BINARY} leaves rank their results again with the vectors
+     */
+    boolean binaryRerank() {
+        return true;
+    }
+
+    /**
+     * @return the scheduler the workers of a search within one leaf run on,
+     * null if each leaf is searched by a single thread
+     */
+    LeafScheduler scheduler() {
+        return null;
+    }
+
+    /**
+     * @return the leaf of the given ordered id, loaded if need be
+     */
+    LeafSegment<TVector> leaf(int leafNum) {
+        return leaves[leafNum];
+    }
+
+    /**
+     * Run a task for each leaf, on as many threads as there are leaves or
+     * cores, whichever is fewer. Used to save and load the leaves, which
+     * share no files.
+     */
+    static void forEachLeaf(int nleaves, IntConsumer task) {
+        int numThreads = Math.min(nleaves, Runtime.getRuntime().availableProcessors());
+        if (numThreads <= 1) {
+            for (int i = 0; i < nleaves; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        //the calling thread takes one of the leaves
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads - 1, new NamedThreadFactory("leaf-io-%d"));
+        try {
+            new FanOutScheduler(executor, numThreads - 1).run(nleaves, task);
+        } finally {
+            executor.shutdown();
+        }
     }
 
     static public void printIndexInfo(String idxFolder){
@@ -122,6 +234,7 @@ abstract public class ParentHnsw<TVector> {
         System.out.println("Node insert modes: " + (addSegmentOneByOne ? "fill up one segment at a time" : "many segments at a time"));
         System.out.println("Maximum capacity of each leaf segment: " + maxNodeCount);
         System.out.println("Number of leaf segment: " + numleaves);
+        System.out.println("Leaves partitioned by clusters: " + (new File(idxFolder + globalCentroidsFileName).exists() ? "Yes" : "No"));
         System.out.println("Leaf segment info: ");
         for (int i = 0; i < numleaves; i++) {
             System.out.println(LeafSegment.capacityInfo(i, maxNodeCount, idxFolder));
@@ -0,0 +1,199 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecDoubleHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.lang.reflect.Array;
+import java.util.function.Supplier;
+
+/**
+ * The vectors of {@link LeafLayout#PRODUCT_QUANTIZED}: the codes of the
+ * {@link ProductQuantizer} of the index, one byte per subspace laid one
+ * vector after another, and the exact squared norm of every vector.
+ * </br>
+ * For the handlers {@link VecHandler#isDotProductBased()}, the distance
+ * to a node comes from the dot product read off the table of the query,
+ * one lookup per subspace. The table is the one filled by the index
+ * searcher for every leaf when there is one, see
+ * {@link #prepare(Object, ProductQuantizer.Table)}, otherwise the thread
+ * fills one of its own. Other handlers get the distance to the decoded
+ * codes.
+ * </br>
+ * The vectors themselves are only read to rank the results again, from
+ * another storage of the leaf opened the first time they are needed.
+ *
+ * @param <TVector> float[] or double[]
+ */
+final class ProductQuantizedVectorSlab<TVector> extends VectorSlab<TVector> {
+    private final VecHandler<TVector> handler;
+    private final ProductQuantizer quantizer;
+    private final boolean dotProduct;
+    private final float[] squaredNorms;
+    private final ThreadLocal<Scratch> scratch;
+    private final Supplier<LeafStorage<TVector>> exactSource;
+    private volatile LeafStorage<TVector> exact;
+    private byte[][] codePages;
+
+    /**
+     * The table the thread computes distances with.
+     */
+    private final class Scratch {
+        ProductQuantizer.Table table;
+        ProductQuantizer.Table own;
+        final float[] decodedFloats = new float[quantizer.dimensions];
+        final double[] decodedDoubles = new double[quantizer.dimensions];
+    }
+
+    /**
+     * @param exactSource opens the storage the vectors are read from to rank
+     *                    the results, null to return the estimated distances
+     */
+    ProductQuantizedVectorSlab(VecHandler<TVector> handler, ProductQuantizer quantizer, int capacity,
+                               Supplier<LeafStorage<TVector>> exactSource) {
+        super(capacity, false);
+        if (!(handler instanceof VecFloatHandler) && !(handler instanceof VecDoubleHandler))
+            throw new IllegalArgumentException("Product quantized leaves need a VecFloatHandler or a "
+                    + "VecDoubleHandler, got " + handler.getClass().getName());
+        this.handler = handler;
+        this.quantizer = quantizer;
+        this.dotProduct = handler.isDotProductBased();
+        this.squaredNorms = new float[capacity];
+        this.scratch = ThreadLocal.withInitial(Scratch::new);
+        this.exactSource = exactSource;
+    }
+
+    @Override
+    int pageStride(int dimensions) {
+        return quantizer.subspaces;
+    }
+
+    @Override
+    void set(int id, TVector vector) {
+        int length = Array.getLength(vector);
+        if (length != quantizer.dimensions)
+            throw new IllegalArgumentException("The product quantizer is for vectors of " + quantizer.dimensions
+                    + " elements, got " + length);
+        ensurePage(id, length);
+        quantizer.encode(vector, codePages[id >>> pageBits], (id & pageMask) * quantizer.subspaces);
+        double squaredNorm = 0;
+        for (int i = 0; i < length; i++) {
+            double x = vector instanceof float[] ? ((float[]) vector)[i] : ((double[]) vector)[i];
+            squaredNorm += x * x;
+        }
+        squaredNorms[id] = (float) squaredNorm;
+    }
+
+    /**
+     * @return the vector of the node read from the exact storage
+     * @throws UnsupportedOperationException if the leaf has none
+     */
+    @Override
+    TVector get(int id) {
+        return exact().vector(id);
+    }
+
+    private LeafStorage<TVector> exact() {
+        LeafStorage<TVector> exact = this.exact;
+        if (exact == null) {
+            if (exactSource == null)
+                throw new UnsupportedOperationException("Product quantized leaves keep the codes of their vectors, "
+                        + "not the vectors");
+            synchronized (this) {
+                exact = this.exact;
+                if (exact == null)
+                    this.exact = exact = exactSource.get();
+            }
+        }
+        return exact;
+    }
+
+    /**
+     * Use the table filled for the query if it is of the quantizer of the leaf.
+     */
+    @Override
+    void prepare(TVector query, ProductQuantizer.Table table) {
+        if (!dotProduct)
+            return;
+        Scratch scratch = this.scratch.get();
+        if (table != null && table.quantizer == quantizer && table.query == query)
+            scratch.table = table;
+        else
+            fill(query, scratch);
+    }
+
+    private void fill(Object query, Scratch scratch) {
+        if (scratch.own == null)
+            scratch.own = quantizer.newTable();
+        quantizer.fill(scratch.own, query);
+        scratch.table = scratch.own;
+    }
+
+    /**
+     * @return the distance of the query to the codes of the node
+     */
+    @Override
+    float distance(TVector query, int id) {
+        Scratch scratch = this.scratch.get();
+        byte[] page = codePages[id >>> pageBits];
+        int offset = (id & pageMask) * quantizer.subspaces;
+        if (dotProduct) {
+            ProductQuantizer.Table table = scratch.table;
+            if (table == null || table.query != query) {
+                fill(query, scratch);
+                table = scratch.table;
+            }
+            return (float) handler.distanceFromDotProduct(table.dot(page, offset), table.squaredNorm,
+                    squaredNorms[id]);
+        }
+        if (handler instanceof VecFloatHandler) {
+            quantizer.decode(page, offset, scratch.decodedFloats);
+            return (float) ((VecFloatHandler) handler).distance((float[]) query, 0, scratch.decodedFloats, 0,
+                    quantizer.dimensions);
+        }
+        quantizer.decode(page, offset, scratch.decodedDoubles);
+        return (float) ((VecDoubleHandler) handler).distance((double[]) query, 0, scratch.decodedDoubles, 0,
+                quantizer.dimensions);
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return (float) handler.distance(get(id1), get(id2));
+    }
+
+    /**
+     * @return whether the results are ranked again with the vectors
+     */
+    @Override
+    boolean approximate() {
+        return exactSource != null;
+    }
+
+    @Override
+    void exactDistances(TVector query, int[] ids, int count, float[] distances) {
+        exact().exactDistances(query, ids, count, distances);
+    }
+
+    @Override
+    void free() {
+        LeafStorage<TVector> exact = this.exact;
+        if (exact != null)
+            exact.free();
+    }
+
+    @Override
+    void createPages(int numPages) {
+        codePages = new byte[numPages][];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return codePages[page] != null;
+    }
+
+    //length is in elements of the vectors, the page holding a byte per subspace instead
+    @Override
+    void allocatePage(int page, int length) {
+        codePages[page] = new byte[length / dimensions * quantizer.subspaces];
+    }
+}
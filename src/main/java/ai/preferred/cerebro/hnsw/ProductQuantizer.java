@@ -0,0 +1,264 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the elements of a vector into subspaces of consecutive elements
+ * and maps the part of the vector in each subspace to the closest of up
+ * to 256 centroids, trained with k-means on a sample of the vectors. A
+ * vector is then one byte per subspace.
+ * </br>
+ * One quantizer serves every leaf of an index, so that the dot products
+ * of a query with every centroid of every subspace, see {@link Table}, are
+ * computed once per query whichever leaves are searched. The dot product
+ * of the query with a vector is then the sum of one entry of the table
+ * per subspace.
+ */
+final class ProductQuantizer {
+    static final int MAX_CENTROIDS = 256;
+
+    //k-means of the parts of the vectors in a subspace
+    private static final VecFloatHandler SQUARED_EUCLIDEAN = new VecFloatHandler() {
+        @Override
+        public double distance(float[] a, float[] b) {
+            return squaredDistance(a, 0, b, 0, a.length);
+        }
+    };
+
+    final int dimensions;
+    final int subspaces;
+    final int centroids;
+    //centroids of each subspace, one after another
+    private final float[][] codebooks;
+
+    private ProductQuantizer(int dimensions, int subspaces, int centroids, float[][] codebooks) {
+        this.dimensions = dimensions;
+        this.subspaces = subspaces;
+        this.centroids = centroids;
+        this.codebooks = codebooks;
+    }
+
+    /**
+     * @param sample the vectors the centroids are trained on, at least one
+     * @param subspaces the number of subspaces, so of bytes per vector
+     * @param seed seed of the initialization of k-means
+     */
+    static ProductQuantizer train(List<float[]> sample, int subspaces, long seed) {
+        if (sample.isEmpty())
+            throw new IllegalArgumentException("Product quantizers are trained on at least one vector");
+        int dimensions = sample.get(0).length;
+        if (subspaces < 1 || subspaces > dimensions)
+            throw new IllegalArgumentException("The number of subspaces must be between 1 and the "
+                    + dimensions + " elements of the vectors, got " + subspaces);
+        int centroids = Math.min(MAX_CENTROIDS, sample.size());
+        float[][] codebooks = new float[subspaces][];
+        for (int s = 0; s < subspaces; s++) {
+            int start = start(dimensions, subspaces, s);
+            int length = start(dimensions, subspaces, s + 1) - start;
+            List<float[]> parts = new ArrayList<>(sample.size());
+            for (float[] vector : sample) {
+                float[] part = new float[length];
+                System.arraycopy(vector, start, part, 0, length);
+                parts.add(part);
+            }
+            float[][] trained = KMeans.train(SQUARED_EUCLIDEAN, parts, centroids, seed + s);
+            codebooks[s] = new float[centroids * length];
+            for (int c = 0; c < centroids; c++) {
+                System.arraycopy(trained[c], 0, codebooks[s], c * length, length);
+            }
+        }
+        return new ProductQuantizer(dimensions, subspaces, centroids, codebooks);
+    }
+
+    /**
+     * @return a float[] copy of a float[] or double[] vector
+     */
+    static float[] toFloats(Object vector) {
+        if (vector instanceof float[])
+            return ((float[]) vector).clone();
+        double[] doubles = (double[]) vector;
+        float[] floats = new float[doubles.length];
+        for (int i = 0; i < doubles.length; i++) {
+            floats[i] = (float) doubles[i];
+        }
+        return floats;
+    }
+
+    //first element of a subspace
+    private static int start(int dimensions, int subspaces, int subspace) {
+        return (int) ((long) subspace * dimensions / subspaces);
+    }
+
+    private static double squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        double distance = 0;
+        for (int i = 0; i < length; i++) {
+            double difference = a[aOffset + i] - b[bOffset + i];
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    /**
+     * @param vector a float[] or double[] vector
+     */
+    void encode(Object vector, byte[] codes, int offset) {
+        float[] part = new float[dimensions / subspaces + 1];
+        for (int s = 0; s < subspaces; s++) {
+            int start = start(dimensions, subspaces, s);
+            int length = start(dimensions, subspaces, s + 1) - start;
+            for (int i = 0; i < length; i++) {
+                part[i] = vector instanceof float[] ? ((float[]) vector)[start + i]
+                        : (float) ((double[]) vector)[start + i];
+            }
+            int nearest = 0;
+            double nearestDistance = Double.POSITIVE_INFINITY;
+            for (int c = 0; c < centroids; c++) {
+                double distance = squaredDistance(part, 0, codebooks[s], c * length, length);
+                if (distance < nearestDistance) {
+                    nearestDistance = distance;
+                    nearest = c;
+                }
+            }
+            codes[offset + s] = (byte) nearest;
+        }
+    }
+
+    void decode(byte[] codes, int offset, float[] vector) {
+        for (int s = 0; s < subspaces; s++) {
+            int start = start(dimensions, subspaces, s);
+            int length = start(dimensions, subspaces, s + 1) - start;
+            System.arraycopy(codebooks[s], (codes[offset + s] & 0xFF) * length, vector, start, length);
+        }
+    }
+
+    void decode(byte[] codes, int offset, double[] vector) {
+        for (int s = 0; s < subspaces; s++) {
+            int start = start(dimensions, subspaces, s);
+            int length = start(dimensions, subspaces, s + 1) - start;
+            int centroid = (codes[offset + s] & 0xFF) * length;
+            for (int i = 0; i < length; i++) {
+                vector[start + i] = codebooks[s][centroid + i];
+            }
+        }
+    }
+
+    /**
+     * The dot products of a query with the centroids of every subspace.
+     */
+    static final class Table {
+        final ProductQuantizer quantizer;
+        final float[] dots;
+        //the query the table was filled for, and its elements
+        Object query;
+        private final double[] elements;
+        double squaredNorm;
+
+        private Table(ProductQuantizer quantizer) {
+            this.quantizer = quantizer;
+            this.dots = new float[quantizer.subspaces * quantizer.centroids];
+            this.elements = new double[quantizer.dimensions];
+        }
+
+        /**
+         * @return the dot product of the query with the vector of the codes
+         */
+        float dot(byte[] codes, int offset) {
+            float dot = 0;
+            int centroids = quantizer.centroids;
+            for (int s = 0, row = 0; s < quantizer.subspaces; s++, row += centroids) {
+                dot += dots[row + (codes[offset + s] & 0xFF)];
+            }
+            return dot;
+        }
+    }
+
+    Table newTable() {
+        return new Table(this);
+    }
+
+    /**
+     * Fill the table with the dot products of a float[] or double[] query.
+     */
+    void fill(Table table, Object query) {
+        int length = Array.getLength(query);
+        if (length != dimensions)
+            throw new IllegalArgumentException("The product quantizer is for vectors of " + dimensions
+                    + " elements, got " + length);
+        double[] elements = table.elements;
+        double squaredNorm = 0;
+        for (int i = 0; i < dimensions; i++) {
+            elements[i] = query instanceof float[] ? ((float[]) query)[i] : ((double[]) query)[i];
+            squaredNorm += elements[i] * elements[i];
+        }
+        for (int s = 0; s < subspaces; s++) {
+            int start = start(dimensions, subspaces, s);
+            int subLength = start(dimensions, subspaces, s + 1) - start;
+            float[] codebook = codebooks[s];
+            for (int c = 0; c < centroids; c++) {
+                double dot = 0;
+                for (int i = 0; i < subLength; i++) {
+                    dot += elements[start + i] * codebook[c * subLength + i];
+                }
+                table.dots[s * centroids + c] = (float) dot;
+            }
+        }
+        table.squaredNorm = squaredNorm;
+        table.query = query;
+    }
+
+    /**
+     * Write the centroids, next to the file then moved over it.
+     */
+    void save(File file) {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        Kryo kryo = new Kryo();
+        kryo.register(float[].class);
+        try (Output output = new Output(new FileOutputStream(temp.toFile()))) {
+            kryo.writeObject(output, dimensions);
+            kryo.writeObject(output, subspaces);
+            kryo.writeObject(output, centroids);
+            for (float[] codebook : codebooks)
+                kryo.writeObject(output, codebook);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static ProductQuantizer load(File file) {
+        Kryo kryo = new Kryo();
+        kryo.register(float[].class);
+        try (Input input = new Input(new FileInputStream(file))) {
+            int dimensions = kryo.readObject(input, int.class);
+            int subspaces = kryo.readObject(input, int.class);
+            int centroids = kryo.readObject(input, int.class);
+            float[][] codebooks = new float[subspaces][];
+            for (int s = 0; s < subspaces; s++)
+                codebooks[s] = kryo.readObject(input, float[].class);
+            return new ProductQuantizer(dimensions, subspaces, centroids, codebooks);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
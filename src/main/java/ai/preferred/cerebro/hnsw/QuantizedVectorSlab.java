@@ -0,0 +1,204 @@
+package ai.preferred.cerebro.hnsw;
+
+import ai.preferred.cerebro.handler.VecDoubleHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import ai.preferred.cerebro.handler.VecHandler;
+
+import java.lang.reflect.Array;
+
+/**
+ * The vectors of {@link LeafLayout#QUANTIZED}: the codes of a
+ * {@link ScalarQuantizer}, one byte per element laid one vector after
+ * another in a single page unless too large for one array, which the graph
+ * is searched with, next to the exact vectors, which the results are
+ * ranked with.
+ * </br>
+ * For the handlers {@link VecHandler#isDotProductBased()}, the query is
+ * folded into the quantizer once per search, see {@link #prepare(Object, ProductQuantizer.Table)}:
+ * its elements times the steps become int weights, so that the dot product
+ * with a node is an offset plus a scale times the sum of the weights times
+ * the codes, summed with ints, and the squared norms of the nodes are kept
+ * exact. The weights are bounded so that the sum never overflows. Other
+ * handlers get the distance to the decoded codes.
+ *
+ * @param <TVector> float[] or double[]
+ */
+final class QuantizedVectorSlab<TVector> extends VectorSlab<TVector> {
+    //largest weight, the sum of the products of the codes then fitting in an int for any length
+    private static final int MAX_WEIGHT = Short.MAX_VALUE;
+
+    private final VecHandler<TVector> handler;
+    private final VectorSlab<TVector> exact;
+    private final ScalarQuantizer quantizer;
+    private final boolean dotProduct;
+    private final float[] squaredNorms;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    private byte[][] codePages;
+
+    /**
+     * The query of the thread folded into the quantizer.
+     */
+    private final class Scratch {
+        final int[] weights = new int[quantizer.dimensions()];
+        final float[] decodedFloats = new float[quantizer.dimensions()];
+        final double[] decodedDoubles = new double[quantizer.dimensions()];
+        Object query;
+        double offset;
+        double scale;
+        double squaredNorm;
+    }
+
+    /**
+     * @param exact the slab of the exact vectors, of the same capacity
+     * @param quantizer fitted to the vectors of the leaf
+     */
+    QuantizedVectorSlab(VecHandler<TVector> handler, VectorSlab<TVector> exact, ScalarQuantizer quantizer,
+                        int capacity) {
+        super(capacity, false);
+        if (!(handler instanceof VecFloatHandler) && !(handler instanceof VecDoubleHandler))
+            throw new IllegalArgumentException("Quantized leaves need a VecFloatHandler or a VecDoubleHandler, got "
+                    + handler.getClass().getName());
+        this.handler = handler;
+        this.exact = exact;
+        this.quantizer = quantizer;
+        this.dotProduct = handler.isDotProductBased();
+        this.squaredNorms = new float[capacity];
+    }
+
+    @Override
+    void set(int id, TVector vector) {
+        int length = Array.getLength(vector);
+        if (length != quantizer.dimensions())
+            throw new IllegalArgumentException("The quantizer is for vectors of " + quantizer.dimensions()
+                    + " elements, got " + length);
+        exact.set(id, vector);
+        ensurePage(id, length);
+        byte[] page = codePages[id >>> pageBits];
+        int offset = (id & pageMask) * dimensions;
+        double squaredNorm = 0;
+        if (vector instanceof float[]) {
+            float[] floats = (float[]) vector;
+            quantizer.encode(floats, page, offset);
+            for (float x : floats)
+                squaredNorm += x * x;
+        }
+        else {
+            double[] doubles = (double[]) vector;
+            quantizer.encode(doubles, page, offset);
+            for (double x : doubles)
+                squaredNorm += x * x;
+        }
+        squaredNorms[id] = (float) squaredNorm;
+    }
+
+    @Override
+    TVector get(int id) {
+        return exact.get(id);
+    }
+
+    /**
+     * Fold the query into the quantizer: the dot product of the query
+     * with a node being the sum of q[i] * (min[i] + step[i] * code[i]),
+     * the offset is the sum of q[i] * min[i] and q[i] * step[i] is
+     * rounded to scale times an int weight.
+     */
+    @Override
+    void prepare(TVector query, ProductQuantizer.Table table) {
+        fold(query, scratch.get());
+    }
+
+    private void fold(Object query, Scratch scratch) {
+        scratch.query = query;
+        if (!dotProduct)
+            return;
+        int length = quantizer.dimensions();
+        double offset = 0;
+        double squaredNorm = 0;
+        double largest = 0;
+        for (int i = 0; i < length; i++) {
+            double q = element(query, i);
+            offset += q * quantizer.min[i];
+            squaredNorm += q * q;
+            largest = Math.max(largest, Math.abs(q * quantizer.step[i]));
+        }
+        int maxWeight = (int) Math.min(MAX_WEIGHT, Integer.MAX_VALUE / ((long) ScalarQuantizer.LEVELS * Math.max(1, length)));
+        double scale = largest == 0 ? 0 : largest / maxWeight;
+        int[] weights = scratch.weights;
+        for (int i = 0; i < length; i++) {
+            weights[i] = scale == 0 ? 0 : (int) Math.round(element(query, i) * quantizer.step[i] / scale);
+        }
+        scratch.offset = offset;
+        scratch.scale = scale;
+        scratch.squaredNorm = squaredNorm;
+    }
+
+    private static double element(Object vector, int i) {
+        return vector instanceof float[] ? ((float[]) vector)[i] : ((double[]) vector)[i];
+    }
+
+    /**
+     * @return the distance of the query to the codes of the node
+     */
+    @Override
+    float distance(TVector query, int id) {
+        Scratch scratch = this.scratch.get();
+        if (scratch.query != query)
+            fold(query, scratch);
+        byte[] page = codePages[id >>> pageBits];
+        int offset = (id & pageMask) * dimensions;
+        if (dotProduct) {
+            int sum = dot(scratch.weights, page, offset);
+            return (float) handler.distanceFromDotProduct(scratch.offset + scratch.scale * sum,
+                    scratch.squaredNorm, squaredNorms[id]);
+        }
+        if (handler instanceof VecFloatHandler) {
+            quantizer.decode(page, offset, scratch.decodedFloats);
+            return (float) ((VecFloatHandler) handler).distance((float[]) query, 0, scratch.decodedFloats, 0, dimensions);
+        }
+        quantizer.decode(page, offset, scratch.decodedDoubles);
+        return (float) ((VecDoubleHandler) handler).distance((double[]) query, 0, scratch.decodedDoubles, 0, dimensions);
+    }
+
+    /**
+     * @return the sum of the weights times the codes from offset on
+     */
+    private static int dot(int[] weights, byte[] codes, int offset) {
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i] * (codes[offset + i] & 0xFF);
+        }
+        return sum;
+    }
+
+    @Override
+    float distance(int id1, int id2) {
+        return exact.distance(id1, id2);
+    }
+
+    @Override
+    boolean approximate() {
+        return true;
+    }
+
+    @Override
+    void exactDistances(TVector query, int[] ids, int count, float[] distances) {
+        for (int i = 0; i < count; i++) {
+            distances[i] = exact.distance(query, ids[i]);
+        }
+    }
+
+    @Override
+    void createPages(int numPages) {
+        codePages = new byte[numPages][];
+    }
+
+    @Override
+    boolean hasPage(int page) {
+        return codePages[page] != null;
+    }
+
+    @Override
+    void allocatePage(int page, int length) {
+        codePages[page] = new byte[length];
+    }
+}
@@ -0,0 +1,125 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Snapshot of where the leaves of a {@link HnswIndexSearcher} live, taken by
+ * {@link HnswIndexSearcher#getResidencyStats()}, see
+ * {@link SearcherConfiguration#setMemoryBudget(long)}.
+ */
+public class ResidencyStats {
+    /**
+     * Where a leaf lives.
+     */
+    public enum State {
+        /**
+         * Not searched yet, and so not loaded.
+         */
+        UNLOADED,
+        /**
+         * Loaded in the layout of the searcher.
+         */
+        RESIDENT,
+        /**
+         * Searched from its mapped leaf file, only the connections
+         * of its upper layers being held in memory.
+         */
+        MAPPED
+    }
+
+    private final State[] states;
+    private final long[] queries;
+    private final long[] residentBytes;
+    private final long memoryBudget;
+    private final long loads;
+    private final long demotions;
+    private final long promotions;
+
+    ResidencyStats(State[] states, long[] queries, long[] residentBytes, long memoryBudget,
+                   long loads, long demotions, long promotions) {
+        this.states = states;
+        this.queries = queries;
+        this.residentBytes = residentBytes;
+        this.memoryBudget = memoryBudget;
+        this.loads = loads;
+        this.demotions = demotions;
+        this.promotions = promotions;
+    }
+
+    public int numLeaves() {
+        return states.length;
+    }
+
+    public State state(int leafNum) {
+        return states[leafNum];
+    }
+
+    /**
+     * @return the number of queries that searched the leaf since the searcher was opened
+     */
+    public long queries(int leafNum) {
+        return queries[leafNum];
+    }
+
+    /**
+     * @return the memory the leaf is accounted for against the budget,
+     * 0 unless it is resident
+     */
+    public long residentBytes(int leafNum) {
+        return residentBytes[leafNum];
+    }
+
+    /**
+     * @return the memory all the resident leaves are accounted for
+     */
+    public long residentBytes() {
+        long total = 0;
+        for (long bytes : residentBytes) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return the memory budget of the searcher, 0 if there is none
+     */
+    public long memoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of leaves loaded the first time they were searched
+     */
+    public long loads() {
+        return loads;
+    }
+
+    /**
+     * @return the number of times a resident leaf was mapped to make room for a hotter one
+     */
+    public long demotions() {
+        return demotions;
+    }
+
+    /**
+     * @return the number of times a mapped leaf was made resident for being searched often
+     */
+    public long promotions() {
+        return promotions;
+    }
+
+    public int count(State state) {
+        int count = 0;
+        for (State s : states) {
+            if (s == state)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "ResidencyStats{resident=" + count(State.RESIDENT) + ", mapped=" + count(State.MAPPED)
+                + ", unloaded=" + count(State.UNLOADED) + ", residentBytes=" + residentBytes()
+                + ", memoryBudget=" + memoryBudget + ", loads=" + loads + ", demotions=" + demotions
+                + ", promotions=" + promotions + "}";
+    }
+}
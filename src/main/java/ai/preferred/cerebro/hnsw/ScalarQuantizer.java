@@ -0,0 +1,177 @@
+package ai.preferred.cerebro.hnsw;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Maps every element of a vector to one byte, by splitting the range
+ * between the smallest and the largest value taken by each dimension into
+ * 255 equal steps. A vector then takes a quarter of its float[] size and
+ * is decoded back to within half a step of each of its elements.
+ */
+final class ScalarQuantizer {
+    static final int LEVELS = 255;
+
+    final float[] min;
+    final float[] step;
+
+    ScalarQuantizer(float[] min, float[] step) {
+        this.min = min;
+        this.step = step;
+    }
+
+    /**
+     * @param min the smallest value of each dimension
+     * @param max the largest value of each dimension
+     */
+    static ScalarQuantizer fromRange(float[] min, float[] max) {
+        float[] step = new float[min.length];
+        for (int i = 0; i < min.length; i++) {
+            step[i] = (max[i] - min[i]) / LEVELS;
+        }
+        return new ScalarQuantizer(min.clone(), step);
+    }
+
+    /**
+     * @return the quantizer fitted to the range of the vectors of the first nodeCount nodes of a leaf
+     */
+    static ScalarQuantizer fit(LeafStorage<?> source, int nodeCount) {
+        Range range = new Range();
+        for (int id = 0; id < nodeCount; id++) {
+            if (source.contains(id))
+                range.add(source.vector(id));
+        }
+        return range.quantizer();
+    }
+
+    /**
+     * The smallest and largest value of each dimension over the float[]
+     * or double[] vectors added.
+     */
+    static final class Range {
+        private float[] min = new float[0];
+        private float[] max = new float[0];
+        private boolean empty = true;
+
+        void add(Object vector) {
+            if (vector instanceof float[])
+                add((float[]) vector);
+            else if (vector instanceof double[])
+                add((double[]) vector);
+            else
+                throw new IllegalArgumentException("Only float[] and double[] vectors are quantized, got "
+                        + vector.getClass().getName());
+        }
+
+        private void add(float[] vector) {
+            start(vector.length);
+            for (int i = 0; i < vector.length; i++) {
+                min[i] = Math.min(min[i], vector[i]);
+                max[i] = Math.max(max[i], vector[i]);
+            }
+        }
+
+        private void add(double[] vector) {
+            start(vector.length);
+            for (int i = 0; i < vector.length; i++) {
+                min[i] = Math.min(min[i], (float) vector[i]);
+                max[i] = Math.max(max[i], (float) vector[i]);
+            }
+        }
+
+        private void start(int dimensions) {
+            if (empty) {
+                min = new float[dimensions];
+                max = new float[dimensions];
+                Arrays.fill(min, Float.POSITIVE_INFINITY);
+                Arrays.fill(max, Float.NEGATIVE_INFINITY);
+                empty = false;
+            }
+            else if (dimensions != min.length)
+                throw new IllegalArgumentException("Expected vectors of " + min.length + " elements, got " + dimensions);
+        }
+
+        ScalarQuantizer quantizer() {
+            return fromRange(min, max);
+        }
+    }
+
+    int dimensions() {
+        return min.length;
+    }
+
+    void encode(float[] vector, byte[] codes, int offset) {
+        for (int i = 0; i < min.length; i++) {
+            codes[offset + i] = code(vector[i], i);
+        }
+    }
+
+    void encode(double[] vector, byte[] codes, int offset) {
+        for (int i = 0; i < min.length; i++) {
+            codes[offset + i] = code((float) vector[i], i);
+        }
+    }
+
+    private byte code(float value, int i) {
+        int code = step[i] == 0 ? 0 : Math.round((value - min[i]) / step[i]);
+        return (byte) Math.max(0, Math.min(LEVELS, code));
+    }
+
+    void decode(byte[] codes, int offset, float[] vector) {
+        for (int i = 0; i < min.length; i++) {
+            vector[i] = min[i] + step[i] * (codes[offset + i] & 0xFF);
+        }
+    }
+
+    void decode(byte[] codes, int offset, double[] vector) {
+        for (int i = 0; i < min.length; i++) {
+            vector[i] = min[i] + step[i] * (codes[offset + i] & 0xFF);
+        }
+    }
+
+    /**
+     * Write the smallest value and the step of each dimension, next to
+     * the file then moved over it.
+     */
+    void save(File file) {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        Kryo kryo = new Kryo();
+        kryo.register(float[].class);
+        try (Output output = new Output(new FileOutputStream(temp.toFile()))) {
+            kryo.writeObject(output, min);
+            kryo.writeObject(output, step);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static ScalarQuantizer load(File file) {
+        Kryo kryo = new Kryo();
+        kryo.register(float[].class);
+        try (Input input = new Input(new FileInputStream(file))) {
+            float[] min = kryo.readObject(input, float[].class);
+            float[] step = kryo.readObject(input, float[].class);
+            return new ScalarQuantizer(min, step);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package ai.preferred.cerebro.hnsw;
+
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+
+/**
+ * Scratch state reused by every layer search run on one thread: the
+ * candidate heaps, the visited sets, the buffer neighbor lists are
+ * copied into and the buffers used by the writers to select neighbors.
+ * It also holds the per-leaf results of the query searched by the
+ * thread while they get merged. Once the buffers have grown to fit the
+ * largest search, searching no longer allocates.
+ * </br>
+ * A context must never be shared between threads, get the one owned
+ * by the current thread from {@link ParentHnsw#getSearchContext()}.
+ */
+final class SearchContext {
+    private static final int INITIAL_CAPACITY = 64;
+
+    //nodes whose neighbors are yet to be checked, closest on top
+    final CandidateMinHeap frontier = new CandidateMinHeap(INITIAL_CAPACITY);
+    //result of the last layer search, farthest on top
+    final CandidateMaxHeap topCandidates = new CandidateMaxHeap(INITIAL_CAPACITY);
+    //the k best of the top candidates, for searches stopping once they settle
+    final CandidateMaxHeap resultCandidates = new CandidateMaxHeap(INITIAL_CAPACITY);
+    //used by the writers to re-select the connections of a neighbor
+    final CandidateMaxHeap pruneCandidates = new CandidateMaxHeap(INITIAL_CAPACITY);
+
+    //visited set for searches visiting few nodes compared to the leaf size
+    private final HashVisitedSet hashVisitedSet = new HashVisitedSet(INITIAL_CAPACITY);
+    //visited set for all the other searches, grown to the largest leaf searched
+    private EpochVisitedSet epochVisitedSet;
+
+    //connections dropped while re-selecting the connections of a neighbor
+    final IntArrayList pruned = new IntArrayList();
+
+    //bound shared by the leaves searched for the query of this thread
+    final SharedBound sharedBound = new SharedBound();
+
+    //closest centroids of a clustered index, to pick the leaves to search
+    final CandidateMaxHeap closestCentroids = new CandidateMaxHeap(INITIAL_CAPACITY);
+
+    //dot products of the query of this thread with the centroids of a product quantizer
+    private ProductQuantizer.Table productQuantizerTable;
+
+    //shared state of the searches this thread coordinates with helper threads
+    private ParallelBeamSearch parallelBeamSearch;
+
+    //leaves ordered by their best result not yet merged
+    final CandidateMinHeap mergeHeads = new CandidateMinHeap(INITIAL_CAPACITY);
+
+    int[] neighbours = new int[INITIAL_CAPACITY];
+    int[] selected = new int[INITIAL_CAPACITY];
+    int[] pruneSelected = new int[INITIAL_CAPACITY];
+
+    //results of every leaf for the query being searched by this thread
+    long[] leafIds = new long[INITIAL_CAPACITY];
+    float[] leafDistances = new float[INITIAL_CAPACITY];
+    int[] leafCounts = new int[INITIAL_CAPACITY];
+    int[] mergeCursors = new int[INITIAL_CAPACITY];
+    //neighbors expanded by this thread during a parallel beam search
+    int[] expandIds = new int[INITIAL_CAPACITY];
+    float[] expandDistances = new float[INITIAL_CAPACITY];
+    //the leaves searched for the query, in the order of their result slots
+    int[] probedLeaves = new int[INITIAL_CAPACITY];
+    //candidates ranked again with their exact distances
+    int[] rerankIds = new int[INITIAL_CAPACITY];
+    float[] rerankDistances = new float[INITIAL_CAPACITY];
+
+    /**
+     * @param expectedVisits the number of nodes the search is expected to visit
+     * @return the hash visited set, grown to avoid rehashing during the search
+     */
+    VisitedSet hashVisitedSet(int expectedVisits) {
+        hashVisitedSet.ensureExpectedSize(expectedVisits);
+        return hashVisitedSet;
+    }
+
+    /**
+     * @param capacity exclusive upper bound of the ids of the leaf to be searched
+     * @return the epoch visited set, grown to hold ids up to capacity
+     */
+    VisitedSet epochVisitedSet(int capacity) {
+        if (epochVisitedSet == null)
+            epochVisitedSet = new EpochVisitedSet(capacity);
+        else
+            epochVisitedSet.ensureCapacity(capacity);
+        return epochVisitedSet;
+    }
+
+    /**
+     * @param size the number of neighbors about to be copied
+     * @return the neighbor buffer, grown to hold at least size ids
+     */
+    int[] neighbourBuffer(int size) {
+        if (neighbours.length < size)
+            neighbours = new int[Math.max(size, neighbours.length << 1)];
+        return neighbours;
+    }
+
+    int[] selectedBuffer(int size) {
+        if (selected.length < size)
+            selected = new int[Math.max(size, selected.length << 1)];
+        return selected;
+    }
+
+    int[] pruneSelectedBuffer(int size) {
+        if (pruneSelected.length < size)
+            pruneSelected = new int[Math.max(size, pruneSelected.length << 1)];
+        return pruneSelected;
+    }
+
+    long[] leafIdBuffer(int size) {
+        if (leafIds.length < size)
+            leafIds = new long[Math.max(size, leafIds.length << 1)];
+        return leafIds;
+    }
+
+    float[] leafDistanceBuffer(int size) {
+        if (leafDistances.length < size)
+            leafDistances = new float[Math.max(size, leafDistances.length << 1)];
+        return leafDistances;
+    }
+
+    int[] leafCountBuffer(int size) {
+        if (leafCounts.length < size)
+            leafCounts = new int[Math.max(size, leafCounts.length << 1)];
+        return leafCounts;
+    }
+
+    int[] mergeCursorBuffer(int size) {
+        if (mergeCursors.length < size)
+            mergeCursors = new int[Math.max(size, mergeCursors.length << 1)];
+        return mergeCursors;
+    }
+
+    int[] probedLeafBuffer(int size) {
+        if (probedLeaves.length < size)
+            probedLeaves = new int[Math.max(size, probedLeaves.length << 1)];
+        return probedLeaves;
+    }
+
+    ParallelBeamSearch parallelBeamSearch() {
+        if (parallelBeamSearch == null)
+            parallelBeamSearch = new ParallelBeamSearch();
+        return parallelBeamSearch;
+    }
+
+    int[] expandIdBuffer(int size) {
+        if (expandIds.length < size)
+            expandIds = new int[Math.max(size, expandIds.length << 1)];
+        return expandIds;
+    }
+
+    float[] expandDistanceBuffer(int size) {
+        if (expandDistances.length < size)
+            expandDistances = new float[Math.max(size, expandDistances.length << 1)];
+        return expandDistances;
+    }
+
+    int[] rerankIdBuffer(int size) {
+        if (rerankIds.length < size)
+            rerankIds = new int[Math.max(size, rerankIds.length << 1)];
+        return rerankIds;
+    }
+
+    float[] rerankDistanceBuffer(int size) {
+        if (rerankDistances.length < size)
+            rerankDistances = new float[Math.max(size, rerankDistances.length << 1)];
+        return rerankDistances;
+    }
+
+    /**
+     * @return the table of the context filled with the dot products of the query
+     */
+    ProductQuantizer.Table productQuantizerTable(ProductQuantizer quantizer, Object query) {
+        if (productQuantizerTable == null || productQuantizerTable.quantizer != quantizer)
+            productQuantizerTable = quantizer.newTable();
+        quantizer.fill(productQuantizerTable, query);
+        return productQuantizerTable;
+    }
+}
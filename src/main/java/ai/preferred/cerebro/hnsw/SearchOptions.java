@@ -0,0 +1,131 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.lang.reflect.Array;
+
+/**
+ * Per-query settings of a search, overriding those of the index for a
+ * single call to {@link HnswIndexSearcher#search(Object, int, long[], float[], SearchOptions)}.
+ * An instance can be reused for any number of queries but must not be
+ * modified while a search using it is running.
+ * </br>
+ * The default instance changes nothing: the ef of the index, no budget,
+ * no early termination and the whole vectors.
+ */
+public class SearchOptions {
+
+    int ef;
+    int maxDistanceComputations;
+    int patience;
+    int prefixDimensions;
+
+    /**
+     * Sets the size of the dynamic list of nearest neighbors used during this
+     * search, see {@link HnswConfiguration#setEf(int)}. As with the index ef,
+     * at least k candidates are always kept.
+     *
+     * @param ef the size of the dynamic list, 0 to use the ef of the index
+     */
+    public void setEf(int ef) {
+        if (ef < 0)
+            throw new IllegalArgumentException("ef must not be negative");
+        this.ef = ef;
+    }
+
+    /**
+     * Caps the number of distances computed while searching the base layers,
+     * split evenly between the leaves searched. A search running out of its
+     * budget returns the best results found so far, which bounds the latency
+     * of the hardest queries.
+     *
+     * @param maxDistanceComputations the budget of the query, 0 for no budget
+     */
+    public void setMaxDistanceComputations(int maxDistanceComputations) {
+        if (maxDistanceComputations < 0)
+            throw new IllegalArgumentException("Distance computation budget must not be negative");
+        this.maxDistanceComputations = maxDistanceComputations;
+    }
+
+    /**
+     * Makes the search stop once its k best results have not improved for
+     * this many expanded candidates in a row. Easy queries settle on their
+     * results early and stop long before exhausting a large ef, while hard
+     * ones keep improving and go on, so a large ef with some patience costs
+     * less on average than a fixed ef of the same recall.
+     *
+     * @param patience the number of expansions without improvement to stop
+     *                 after, 0 to only stop when ef is exhausted
+     */
+    public void setPatience(int patience) {
+        if (patience < 0)
+            throw new IllegalArgumentException("Patience must not be negative");
+        this.patience = patience;
+    }
+
+    /**
+     * Makes the search go through the graph with the distances of the first
+     * prefixDimensions elements of the query and of the vectors only, then
+     * rank the ef candidates found with the distances of the whole vectors.
+     * For vectors trained for their leading elements to carry most of the
+     * signal, as Matryoshka embeddings are, each distance of the search then
+     * costs prefixDimensions out of the length of the vectors for about the
+     * same neighbors, a larger ef making up for the prefixes ranking them
+     * less well. The distances of the prefixes are computed in place by the
+     * handler, see {@link ai.preferred.cerebro.handler.VecFloatHandler#distance(float[], int, float[], int, int)},
+     * so only for the layouts holding the elements of float[] or double[]
+     * vectors: {@link LeafLayout#NODES}, {@link LeafLayout#COLUMNAR},
+     * {@link LeafLayout#OFF_HEAP}, {@link LeafLayout#MAPPED} and
+     * {@link LeafLayout#COMPRESSED}. The leaves
+     * do not prune each other's search with their distances, which do not
+     * compare across prefixes.
+     *
+     * @param prefixDimensions the number of leading elements, 0 or at least
+     *                         the length of the vectors to search with all of them
+     */
+    public void setPrefixDimensions(int prefixDimensions) {
+        if (prefixDimensions < 0)
+            throw new IllegalArgumentException("Prefix dimensions must not be negative");
+        this.prefixDimensions = prefixDimensions;
+    }
+
+    public int getEf() {
+        return ef;
+    }
+
+    public int getMaxDistanceComputations() {
+        return maxDistanceComputations;
+    }
+
+    public int getPatience() {
+        return patience;
+    }
+
+    public int getPrefixDimensions() {
+        return prefixDimensions;
+    }
+
+    /**
+     * @return the size of the dynamic list for k results on a leaf whose ef is defaultEf
+     */
+    int ef(int defaultEf, int k) {
+        return Math.max(ef > 0 ? ef : defaultEf, k);
+    }
+
+    /**
+     * @return the number of leading elements of the query to search with,
+     * 0 for all of them
+     */
+    int prefix(Object query) {
+        if (prefixDimensions == 0 || prefixDimensions >= Array.getLength(query))
+            return 0;
+        return prefixDimensions;
+    }
+
+    /**
+     * @return the share of the budget of one of numLeaves leaves searched, 0 for no budget
+     */
+    int maxDistances(int numLeaves) {
+        if (maxDistanceComputations == 0)
+            return 0;
+        return Math.max(1, maxDistanceComputations / numLeaves);
+    }
+}
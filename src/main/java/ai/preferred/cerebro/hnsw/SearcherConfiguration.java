@@ -0,0 +1,217 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Class containing the runtime settings of a {@link HnswIndexSearcher}.
+ * Unlike {@link HnswConfiguration} nothing here is saved with the index,
+ * the same index can be loaded with different settings.
+ */
+public class SearcherConfiguration {
+    static final long DEFAULT_DISK_CACHE_BYTES = 64L << 20;
+
+    LeafScheduler scheduler;
+    float leafPruningSlack = Float.POSITIVE_INFINITY;
+    int leafProbes = 0;
+    float leafProbeSlack = Float.POSITIVE_INFINITY;
+    int maxIntraLeafWorkers = 4;
+    long intraLeafThreshold = 50_000_000L;
+    LeafLayout leafLayout = LeafLayout.NODES;
+    long memoryBudget = 0;
+    boolean lazyLoading = false;
+    long diskCacheBytes = DEFAULT_DISK_CACHE_BYTES;
+    boolean productQuantizationRerank = false;
+    boolean binaryRerank = true;
+
+    /**
+     * Sets how the searches of the leaves are spread over threads. By default
+     * the searcher fans out to a pool of its own with as many threads as
+     * there are leaves or cores, whichever is more. A scheduler passed here
+     * is closed together with the searcher.
+     *
+     * @param scheduler the strategy running the leaf searches
+     */
+    public void setScheduler(LeafScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public float getLeafPruningSlack() {
+        return leafPruningSlack;
+    }
+
+    /**
+     * Sets how aggressively the leaves prune each other. While a query is
+     * searched the leaves share the best known bound of the distance of
+     * the k-th result, and a leaf stops expanding once its candidates are
+     * farther than the bound plus slack times its magnitude. 0 prunes
+     * right at the bound, larger values give back recall for more distance
+     * computations and {@link Float#POSITIVE_INFINITY}, the default, turns
+     * pruning off. A slack of 0.3 leaves the recall of an index whose
+     * leaves all hold part of the results practically unchanged, while
+     * leaves far away from the query are cut short.
+     *
+     * @param leafPruningSlack the relative margin added to the shared bound
+     */
+    public void setLeafPruningSlack(float leafPruningSlack) {
+        if (!(leafPruningSlack >= 0))
+            throw new IllegalArgumentException("Leaf pruning slack must not be negative");
+        this.leafPruningSlack = leafPruningSlack;
+    }
+
+    /**
+     * Sets the number of leaves of a clustered index searched for each
+     * query, those with the closest centroids, see
+     * {@link HnswConfiguration#setClustered(boolean)}. Ignored by indexes
+     * that are not clustered, which always search every leaf.
+     *
+     * @param leafProbes the maximum number of leaves searched for each query,
+     *                   0 to search them all (the default)
+     */
+    public void setLeafProbes(int leafProbes) {
+        if (leafProbes < 0)
+            throw new IllegalArgumentException("Number of leaf probes must not be negative");
+        this.leafProbes = leafProbes;
+    }
+
+    /**
+     * Makes the number of leaves searched adapt to each query: out of the
+     * leaves picked by {@link #setLeafProbes(int)}, only those whose centroid
+     * is at most slack times farther than the closest centroid are searched.
+     * A query deep inside a cluster then searches a single leaf, while one
+     * lying between clusters searches all the leaves around it. By default
+     * slack is {@link Float#POSITIVE_INFINITY}, which always searches as many
+     * leaves as set by {@link #setLeafProbes(int)}.
+     *
+     * @param leafProbeSlack the relative margin over the distance to the closest centroid
+     */
+    public void setLeafProbeSlack(float leafProbeSlack) {
+        if (!(leafProbeSlack >= 0))
+            throw new IllegalArgumentException("Leaf probe slack must not be negative");
+        this.leafProbeSlack = leafProbeSlack;
+    }
+
+    /**
+     * Sets the maximum number of threads searching the base layer of a single
+     * leaf together. Threads left idle by a query searching fewer leaves than
+     * the scheduler has threads help search the leaves that are large enough,
+     * see {@link #setIntraLeafThreshold(long)}, which cuts the latency of high
+     * ef queries on indexes made of a few large leaves. Under load the
+     * {@link HybridScheduler} and the {@link CallerRunsScheduler} never hand
+     * out helpers.
+     *
+     * @param maxIntraLeafWorkers the maximum number of threads per leaf,
+     *                            1 to always search a leaf on a single thread
+     */
+    public void setMaxIntraLeafWorkers(int maxIntraLeafWorkers) {
+        if (maxIntraLeafWorkers < 1)
+            throw new IllegalArgumentException("Number of intra-leaf workers must be positive");
+        this.maxIntraLeafWorkers = maxIntraLeafWorkers;
+    }
+
+    /**
+     * Sets how large a search must be to be split between threads: a leaf is
+     * searched by several threads only if max(ef, k) times its number of
+     * nodes reaches the threshold. Below it, handing work over between
+     * threads costs more than it saves. Defaults to 50M, e.g. ef = 100 on
+     * a leaf of 500K nodes.
+     *
+     * @param intraLeafThreshold the minimum value of ef times the leaf size
+     */
+    public void setIntraLeafThreshold(long intraLeafThreshold) {
+        this.intraLeafThreshold = intraLeafThreshold;
+    }
+
+    /**
+     * Sets how the loaded leaves lay out their nodes in memory, see
+     * {@link LeafLayout}. Defaults to {@link LeafLayout#NODES}, one object
+     * per node. {@link LeafLayout#COLUMNAR} takes less memory and searches
+     * faster, {@link LeafLayout#OFF_HEAP} keeps the leaves out of the heap
+     * until the searcher is closed.
+     *
+     * @param leafLayout the layout of the nodes of every leaf
+     */
+    public void setLeafLayout(LeafLayout leafLayout) {
+        this.leafLayout = leafLayout;
+    }
+
+    /**
+     * Sets how much memory the leaves loaded in the layout of the searcher
+     * may take. Leaves are then loaded the first time they are searched,
+     * and those that do not fit are searched from their mapped leaf file,
+     * see {@link LeafLayout#MAPPED}, keeping only the connections of their
+     * upper layers on the heap. The mapped files missing are written next
+     * to the index when the searcher is opened, an index in a read-only
+     * directory needs them written beforehand with
+     * {@link HnswIndexSearcher#writeMappedLeaves(String)}. As queries come
+     * in, the leaves searched most often are kept in memory in place of the
+     * colder ones, which {@link HnswIndexSearcher#getResidencyStats()}
+     * keeps track of.
+     * A leaf is accounted for as the size of the files it is loaded from.
+     * With {@link LeafLayout#OFF_HEAP}, the memory of the leaves mapped
+     * in their place is only given back when the searcher is closed.
+     * By default there is no budget and every leaf is loaded in memory.
+     * Ignored if the layout is {@link LeafLayout#MAPPED}, {@link LeafLayout#DISK}
+     * or {@link LeafLayout#PRODUCT_QUANTIZED}.
+     *
+     * @param memoryBudget the number of bytes, 0 for no limit
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0)
+            throw new IllegalArgumentException("Memory budget must not be negative");
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets whether the leaves are loaded the first time they are searched
+     * rather than when the searcher is opened, which opens large indexes
+     * at once and never loads the leaves of a clustered index no query
+     * gets close to. Always the case with a memory budget, see
+     * {@link #setMemoryBudget(long)}. Off by default.
+     *
+     * @param lazyLoading whether to load the leaves on first access
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+    }
+
+    /**
+     * Sets how much memory each leaf of {@link LeafLayout#DISK} takes to
+     * cache the blocks of vectors it reads from disk. The results of a
+     * query are ranked with the vectors of a few dozen candidates, which
+     * queries close to each other share. Defaults to 64MB.
+     *
+     * @param diskCacheBytes the number of bytes per leaf, at least one block is cached
+     */
+    public void setDiskCacheBytes(long diskCacheBytes) {
+        if (diskCacheBytes < 0)
+            throw new IllegalArgumentException("Disk cache size must not be negative");
+        this.diskCacheBytes = diskCacheBytes;
+    }
+
+    /**
+     * Sets whether the leaves of {@link LeafLayout#PRODUCT_QUANTIZED} rank
+     * the candidates they found again with the exact distances to their
+     * vectors, read from the mapped leaf files written by
+     * {@link HnswIndexSearcher#writeMappedLeaves(String)}. A file is only
+     * mapped the first time results are ranked with it, and only the pages
+     * of the candidates are read. Off by default, the results then being
+     * ranked with their estimated distances.
+     *
+     * @param productQuantizationRerank whether to rank the results with the vectors
+     */
+    public void setProductQuantizationRerank(boolean productQuantizationRerank) {
+        this.productQuantizationRerank = productQuantizationRerank;
+    }
+
+    /**
+     * Sets whether the leaves of {@link LeafLayout#BINARY} rank the
+     * candidates they found again with the exact distances to their
+     * vectors, kept in memory next to their signs. The candidates ranked
+     * are the ef kept by the search, raising ef for a query oversamples
+     * them. On by default, the results otherwise being ranked with the
+     * distances estimated from the signs, which many vectors share.
+     *
+     * @param binaryRerank whether to rank the results with the vectors
+     */
+    public void setBinaryRerank(boolean binaryRerank) {
+        this.binaryRerank = binaryRerank;
+    }
+}
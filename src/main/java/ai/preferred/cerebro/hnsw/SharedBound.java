@@ -0,0 +1,59 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upper bound of the distance between a query and its k-th nearest
+ * neighbor, shared by the searches of all the leaves of the index.
+ * Every leaf publishes the distance of the farthest of its current
+ * candidates once it has enough of them, and stops expanding as soon
+ * as none of its candidates can beat the bound anymore, instead of
+ * exploring regions other leaves have already beaten.
+ * </br>
+ * The distance is kept as an int whose ordering matches the ordering of
+ * the floats, so that lowering it only takes a compare-and-set.
+ */
+final class SharedBound {
+    private final AtomicInteger bound = new AtomicInteger(toSortable(Float.POSITIVE_INFINITY));
+    private float slack;
+
+    /**
+     * Start a new query.
+     * @param slack relative margin added to the bound before pruning,
+     *              trading distance computations for recall
+     */
+    void reset(float slack) {
+        this.slack = slack;
+        bound.set(toSortable(Float.POSITIVE_INFINITY));
+    }
+
+    /**
+     * Lower the bound to distance if it is closer than the current one.
+     */
+    void offer(float distance) {
+        int sortable = toSortable(distance);
+        int current;
+        while (sortable < (current = bound.get())) {
+            if (bound.compareAndSet(current, sortable))
+                return;
+        }
+    }
+
+    /**
+     * @return the distance a candidate must not exceed to be worth expanding
+     */
+    float get() {
+        float distance = fromSortable(bound.get());
+        return distance + slack * Math.abs(distance);
+    }
+
+    //flip the magnitude bits of negative floats so that they sort as ints
+    private static int toSortable(float distance) {
+        int bits = Float.floatToIntBits(distance);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    private static float fromSortable(int sortable) {
+        return Float.intBitsToFloat(sortable ^ ((sortable >> 31) & 0x7fffffff));
+    }
+}
@@ -0,0 +1,241 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The {@link IdLookup} saved with an index, as the external ids sorted
+ * followed by their global ids in the same order. The file is little endian:
+ * <pre>
+ *     int magic, int version, long count,
+ *     long[count] external ids, long[count] global ids
+ * </pre>
+ * Version 1 files, written before ids were longs, hold an int count
+ * followed by an unused int, and ints instead of longs.
+ * </br>
+ * Searchers map it and binary search the external ids, which takes no
+ * heap and shares the page cache between JVMs, writers read it back into
+ * a {@link StripedIdLookup}.
+ */
+final class SortedIdLookup implements IdLookup {
+    static final int MAGIC = 0x4B4C4449; //"IDLK"
+    static final int VERSION = 2;
+    private static final int HEADER_BYTES = 16;
+    //the ids are mapped in regions of 1GB
+    private static final int REGION_BITS = 30;
+    private static final int REGION_MASK = (1 << REGION_BITS) - 1;
+
+    private final long count;
+    //log2 of the bytes of an id, 3 for longs and 2 for the ints of version 1
+    private final int idShift;
+    private final ByteBuffer[] keys;
+    private final ByteBuffer[] values;
+
+    SortedIdLookup(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, file);
+            idShift = idShift(header);
+            count = count(header);
+            keys = map(channel, HEADER_BYTES);
+            values = map(channel, HEADER_BYTES + (count << idShift));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+        if (header.hasRemaining() || header.getInt(0) != MAGIC)
+            throw new IllegalArgumentException(file + " is not an id lookup file");
+        int version = header.getInt(4);
+        if (version < 1 || version > VERSION)
+            throw new IllegalArgumentException(file + " is of version " + version
+                    + ", only versions up to " + VERSION + " are supported");
+        if (channel.size() != HEADER_BYTES + 2 * (count(header) << idShift(header)))
+            throw new IllegalArgumentException(file + " is truncated");
+        return header;
+    }
+
+    private static int idShift(ByteBuffer header) {
+        return header.getInt(4) == 1 ? 2 : 3;
+    }
+
+    private static long count(ByteBuffer header) {
+        return header.getInt(4) == 1 ? header.getInt(8) : header.getLong(8);
+    }
+
+    private ByteBuffer[] map(FileChannel channel, long start) throws IOException {
+        long length = count << idShift;
+        ByteBuffer[] regions = new ByteBuffer[(int) ((length + REGION_MASK) >>> REGION_BITS)];
+        for (int i = 0; i < regions.length; i++) {
+            long first = (long) i << REGION_BITS;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + first,
+                    Math.min(1L << REGION_BITS, length - first)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return regions;
+    }
+
+    private long get(ByteBuffer[] regions, long index) {
+        long position = index << idShift;
+        ByteBuffer region = regions[(int) (position >>> REGION_BITS)];
+        int offset = (int) (position & REGION_MASK);
+        return idShift == 3 ? region.getLong(offset) : region.getInt(offset);
+    }
+
+    @Override
+    public long get(long externalId) {
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long key = get(keys, middle);
+            if (key < externalId)
+                low = middle + 1;
+            else if (key > externalId)
+                high = middle - 1;
+            else
+                return get(values, middle);
+        }
+        return NO_ID;
+    }
+
+    @Override
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Save a lookup, written next to the file then moved over it. The
+     * sorted stripes of the lookup are merged as they are written, the
+     * external ids and the global ids going to their own part of the file.
+     */
+    static void write(StripedIdLookup lookup, File file) {
+        long[][][] stripes = lookup.sortedStripes();
+        long count = 0;
+        for (long[][] stripe : stripes) {
+            count += stripe[0].length;
+        }
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer keyBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer valueBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            keyBuffer.putInt(MAGIC).putInt(VERSION).putLong(count);
+            long keyPosition = 0;
+            long valuePosition = HEADER_BYTES + count * Long.BYTES;
+
+            //heap of the stripes, keyed by their smallest external id not yet written
+            int[] cursors = new int[stripes.length];
+            int[] heap = new int[stripes.length];
+            int heapSize = 0;
+            for (int i = 0; i < stripes.length; i++) {
+                if (stripes[i][0].length > 0)
+                    heap[heapSize++] = i;
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--)
+                siftDown(heap, heapSize, i, stripes, cursors);
+            while (heapSize > 0) {
+                int stripe = heap[0];
+                if (!keyBuffer.hasRemaining())
+                    keyPosition = flush(channel, keyBuffer, keyPosition);
+                if (!valueBuffer.hasRemaining())
+                    valuePosition = flush(channel, valueBuffer, valuePosition);
+                keyBuffer.putLong(stripes[stripe][0][cursors[stripe]]);
+                valueBuffer.putLong(stripes[stripe][1][cursors[stripe]]);
+                if (++cursors[stripe] == stripes[stripe][0].length)
+                    heap[0] = heap[--heapSize];
+                siftDown(heap, heapSize, 0, stripes, cursors);
+            }
+            flush(channel, keyBuffer, keyPosition);
+            flush(channel, valueBuffer, valuePosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int i, long[][][] stripes, int[] cursors) {
+        while (true) {
+            int smallest = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < heapSize; child++) {
+                if (head(stripes, cursors, heap[child]) < head(stripes, cursors, heap[smallest]))
+                    smallest = child;
+            }
+            if (smallest == i)
+                return;
+            int swapped = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = swapped;
+            i = smallest;
+        }
+    }
+
+    private static long head(long[][][] stripes, int[] cursors, int stripe) {
+        return stripes[stripe][0][cursors[stripe]];
+    }
+
+    /**
+     * @return the position following the bytes written
+     */
+    private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+        return position;
+    }
+
+    /**
+     * Read a saved lookup back into a map that can be changed.
+     */
+    static StripedIdLookup read(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, file);
+            int idShift = idShift(header);
+            long count = count(header);
+            StripedIdLookup lookup = new StripedIdLookup(count);
+            ByteBuffer keyBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer valueBuffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            //the external ids are read a chunk at a time alongside their global ids
+            int chunk = keyBuffer.capacity() >>> idShift;
+            for (long first = 0; first < count; first += chunk) {
+                int length = (int) Math.min(chunk, count - first);
+                read(channel, keyBuffer, HEADER_BYTES + (first << idShift), length << idShift);
+                read(channel, valueBuffer, HEADER_BYTES + ((count + first) << idShift), length << idShift);
+                for (int i = 0; i < length; i++) {
+                    if (idShift == 3)
+                        lookup.put(keyBuffer.getLong(i << 3), valueBuffer.getLong(i << 3));
+                    else
+                        lookup.put(keyBuffer.getInt(i << 2), valueBuffer.getInt(i << 2));
+                }
+            }
+            return lookup;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position, int bytes) throws IOException {
+        buffer.clear();
+        buffer.limit(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of the id lookup file");
+        }
+        buffer.flip();
+    }
+}
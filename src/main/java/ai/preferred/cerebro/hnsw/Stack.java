@@ -1,98 +0,0 @@
-package ai.preferred.cerebro.hnsw;
-
-import java.util.EmptyStackException;
-import java.util.Vector;
-
-/**
- * Same as the class {@link java.util.Stack} but support constructor
- * with initial capacity and is not synchronized so a bit faster.
- * @param <E>
- */
-public class Stack<E> extends Vector<E> {
-    public Stack(int initialCapacity) {
-        super(initialCapacity);
-    }
-    /**
-     * Pushes an item onto the top of this stack. This has exactly
-     * the same effect as:
-     * <blockquote><pre>
-     * addElement(item)</pre></blockquote>
-     *
-     * @param   item   the item to be pushed onto this stack.
-     * @return  the {@code item} argument.
-     * @see     java.util.Vector#addElement
-     */
-    public E push(E item) {
-        addElement(item);
-
-        return item;
-    }
-
-    /**
-     * Removes the object at the top of this stack and returns that
-     * object as the value of this function.
-     *
-     * @return  The object at the top of this stack (the last item
-     *          of the {@code Vector} object).
-     * @throws EmptyStackException  if this stack is empty.
-     */
-    public E pop() {
-        E obj;
-        int len = size();
-
-        obj = peek();
-        removeElementAt(len - 1);
-
-        return obj;
-    }
-
-    /**
-     * Looks at the object at the top of this stack without removing it
-     * from the stack.
-     *
-     * @return  the object at the top of this stack (the last item
-     *          of the {@code Vector} object).
-     * @throws  EmptyStackException  if this stack is empty.
-     */
-    public E peek() {
-        int     len = size();
-
-        if (len == 0)
-            throw new EmptyStackException();
-        return elementAt(len - 1);
-    }
-
-    /**
-     * Tests if this stack is empty.
-     *
-     * @return  {@code true} if and only if this stack contains
-     *          no items; {@code false} otherwise.
-     */
-    public boolean empty() {
-        return size() == 0;
-    }
-
-    /**
-     * Returns the 1-based position where an object is on this stack.
-     * If the object {@code o} occurs as an item in this stack, this
-     * method returns the distance from the top of the stack of the
-     * occurrence nearest the top of the stack; the topmost item on the
-     * stack is considered to be at distance {@code 1}. The {@code equals}
-     * method is used to compare {@code o} to the
-     * items in this stack.
-     *
-     * @param   o   the desired object.
-     * @return  the 1-based position from the top of the stack where
-     *          the object is located; the return value {@code -1}
-     *          indicates that the object is not on the stack.
-     */
-    public int search(Object o) {
-        int i = lastIndexOf(o);
-
-        if (i >= 0) {
-            return size() - i;
-        }
-        return -1;
-    }
-
-}
@@ -0,0 +1,238 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.util.Arrays;
+
+/**
+ * The {@link IdLookup} of the writers: {@link #STRIPES} open addressing
+ * tables of primitive longs, each guarded by its own monitor, so that the
+ * threads inserting into the leaves seldom wait on each other. An id goes
+ * to the stripe picked by the high bits of its hash, and is looked for
+ * from the slot picked by the low bits with linear probing. Removals shift
+ * the following entries back, so there are no tombstones to clean up.
+ * </br>
+ * Takes 16 bytes per slot with a load factor of at most 3/4, against the
+ * two boxed ids and the entry of a {@link java.util.concurrent.ConcurrentHashMap}.
+ * A stripe holds up to 2^30 slots, so the map scales to tens of billions of ids.
+ */
+final class StripedIdLookup implements IdLookup {
+    private static final int STRIPE_BITS = 6;
+    static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int MIN_STRIPE_CAPACITY = 16;
+    private static final int MAX_STRIPE_CAPACITY = 1 << 30;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    StripedIdLookup() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize the number of ids the map is sized for, it grows past it as needed
+     */
+    StripedIdLookup(long expectedSize) {
+        int perStripe = (int) Math.min(expectedSize * 4 / 3 / STRIPES + 1, MAX_STRIPE_CAPACITY);
+        int capacity = Math.max(MIN_STRIPE_CAPACITY, Integer.highestOneBit(perStripe - 1) << 1);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    //finalizer of murmur3, spreading consecutive ids over stripes and slots
+    private static long hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private Stripe stripe(long hash) {
+        return stripes[(int) (hash >>> (64 - STRIPE_BITS))];
+    }
+
+    @Override
+    public long get(long externalId) {
+        long hash = hash(externalId);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            return stripe.get(externalId, (int) hash);
+        }
+    }
+
+    /**
+     * @return the global id the external id was mapped to before, {@link #NO_ID} if none
+     */
+    long put(long externalId, long globalId) {
+        long hash = hash(externalId);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            return stripe.put(externalId, globalId, (int) hash);
+        }
+    }
+
+    /**
+     * @return the global id the external id was mapped to, {@link #NO_ID} if none
+     */
+    long remove(long externalId) {
+        long hash = hash(externalId);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            return stripe.remove(externalId, (int) hash);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return for each stripe, its external ids sorted followed by their
+     * global ids in the same order, for {@link SortedIdLookup} to merge
+     */
+    long[][][] sortedStripes() {
+        long[][][] sorted = new long[STRIPES][][];
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = stripes[i];
+            synchronized (stripe) {
+                sorted[i] = stripe.sorted();
+            }
+        }
+        return sorted;
+    }
+
+    private static final class Stripe {
+        //marks free slots, an external id equal to it is kept aside
+        private static final long FREE = Long.MIN_VALUE;
+
+        private long[] keys;
+        private long[] values;
+        private int mask;
+        private int count;
+        private boolean hasFreeKey;
+        private long freeKeyValue;
+
+        Stripe(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, FREE);
+            values = new long[capacity];
+            mask = capacity - 1;
+        }
+
+        int size() {
+            return count + (hasFreeKey ? 1 : 0);
+        }
+
+        long get(long key, int hash) {
+            if (key == FREE)
+                return hasFreeKey ? freeKeyValue : NO_ID;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long k = keys[slot];
+                if (k == key)
+                    return values[slot];
+                if (k == FREE)
+                    return NO_ID;
+            }
+        }
+
+        long put(long key, long value, int hash) {
+            if (key == FREE) {
+                long previous = hasFreeKey ? freeKeyValue : NO_ID;
+                hasFreeKey = true;
+                freeKeyValue = value;
+                return previous;
+            }
+            int slot = hash & mask;
+            for (; keys[slot] != FREE; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    long previous = values[slot];
+                    values[slot] = value;
+                    return previous;
+                }
+            }
+            if (count == MAX_STRIPE_CAPACITY / 4 * 3)
+                throw new IllegalStateException("Too many ids for the lookup");
+            keys[slot] = key;
+            values[slot] = value;
+            if (++count > (mask + 1) / 4 * 3)
+                grow();
+            return NO_ID;
+        }
+
+        private void grow() {
+            if (keys.length == MAX_STRIPE_CAPACITY)
+                return;
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            allocate(keys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                long key = oldKeys[i];
+                if (key == FREE)
+                    continue;
+                int slot = (int) hash(key) & mask;
+                while (keys[slot] != FREE)
+                    slot = (slot + 1) & mask;
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+
+        long remove(long key, int hash) {
+            if (key == FREE) {
+                long previous = hasFreeKey ? freeKeyValue : NO_ID;
+                hasFreeKey = false;
+                return previous;
+            }
+            int slot = hash & mask;
+            while (keys[slot] != key) {
+                if (keys[slot] == FREE)
+                    return NO_ID;
+                slot = (slot + 1) & mask;
+            }
+            long previous = values[slot];
+            //shift back the entries that probed past the freed slot
+            int gap = slot;
+            for (int next = (gap + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+                int home = (int) hash(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+            }
+            keys[gap] = FREE;
+            count--;
+            return previous;
+        }
+
+        long[][] sorted() {
+            long[] sortedKeys = new long[size()];
+            int position = 0;
+            //FREE is the smallest long, so it stays first once sorted
+            if (hasFreeKey)
+                sortedKeys[position++] = FREE;
+            for (long key : keys) {
+                if (key != FREE)
+                    sortedKeys[position++] = key;
+            }
+            Arrays.sort(sortedKeys);
+            long[] sortedValues = new long[sortedKeys.length];
+            for (int i = 0; i < sortedKeys.length; i++) {
+                sortedValues[i] = get(sortedKeys[i], (int) hash(sortedKeys[i]));
+            }
+            return new long[][]{sortedKeys, sortedValues};
+        }
+    }
+}
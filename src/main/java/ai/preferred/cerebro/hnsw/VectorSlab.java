@@ -0,0 +1,162 @@
+package ai.preferred.cerebro.hnsw;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The vectors of a {@link ColumnarLeafStorage}, all of the same length,
+ * laid one after another in pages indexed by internal id. A leaf loaded
+ * for searching fits in a single page unless it is too large for one
+ * array, a leaf being written takes a page of {@link #GROWABLE_PAGE_BITS}
+ * vectors at a time.
+ * </br>
+ * The length of the vectors, and so the size of the pages, is only known
+ * once the first vector comes in.
+ *
+ * @param <TVector> the type of the vectors
+ */
+abstract class VectorSlab<TVector> {
+    static final int GROWABLE_PAGE_BITS = 12;
+    static final int MAX_PAGE_BITS = 30;
+
+    final int capacity;
+    private final boolean growable;
+    int dimensions;
+    int pageBits;
+    int pageMask;
+
+    VectorSlab(int capacity, boolean growable) {
+        this.capacity = capacity;
+        this.growable = growable;
+    }
+
+    /**
+     * Store the vector of a node, replacing the one of a removed node
+     * that had the same id.
+     */
+    abstract void set(int id, TVector vector);
+
+    /**
+     * @return a copy of the vector of a node, or the vector itself
+     * for slabs holding vectors by reference
+     */
+    abstract TVector get(int id);
+
+    /**
+     * Drop the vector of a removed node, for slabs holding vectors by reference.
+     */
+    void clear(int id) {
+    }
+
+    /**
+     * Release the memory held outside the heap, for slabs keeping their
+     * pages there. The slab must not be used afterwards.
+     */
+    void free() {
+    }
+
+    /**
+     * @return how much of the limit on the size of a page one vector
+     * of the given length takes, by default its number of elements
+     */
+    int pageStride(int dimensions) {
+        return dimensions;
+    }
+
+    /**
+     * Called by every thread about to compute the distances of a query to
+     * the nodes, before the first one, for storages preparing the query.
+     * The same array may be passed again holding another query.
+     * @param table the dot products of the query with the centroids of the
+     *              {@link ProductQuantizer} of the index, filled once for
+     *              every leaf searched, null if there is none
+     */
+    void prepare(TVector query, ProductQuantizer.Table table) {
+    }
+
+    abstract float distance(TVector query, int id);
+
+    /**
+     * @return the distance of the first length elements of the query to
+     * the first length elements of the vector of the node, read in place
+     * @throws UnsupportedOperationException for slabs not holding the elements themselves
+     */
+    float prefixDistance(TVector query, int id, int length) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not compute distances "
+                + "of prefixes of the vectors");
+    }
+
+    abstract float distance(int id1, int id2);
+
+    /**
+     * @return whether {@link #distance(Object, int)} only estimates the
+     * distance, the results of a search then being ranked again with
+     * {@link #exactDistances(Object, int[], int, float[])}
+     */
+    boolean approximate() {
+        return false;
+    }
+
+    /**
+     * Compute the exact distances of the query to the first count nodes of ids.
+     */
+    void exactDistances(TVector query, int[] ids, int count, float[] distances) {
+        for (int i = 0; i < count; i++) {
+            distances[i] = distance(query, ids[i]);
+        }
+    }
+
+    /**
+     * Allocate the page directory once the length of the vectors is known.
+     * @param numPages the number of pages covering the capacity
+     */
+    abstract void createPages(int numPages);
+
+    abstract boolean hasPage(int page);
+
+    abstract void allocatePage(int page, int length);
+
+    /**
+     * Take pages already filled, such as the regions of a mapped file,
+     * instead of allocating them as vectors come in.
+     * @param dimensions the length of the vectors
+     * @param buffers one buffer per page, of {@link LeafStorage#pageBits(int, int, int)}
+     *                bits of ids for a stride of {@link #pageStride(int)}
+     */
+    final synchronized void attach(int dimensions, ByteBuffer[] buffers) {
+        this.dimensions = dimensions;
+        pageBits = LeafStorage.pageBits(capacity, pageStride(dimensions), MAX_PAGE_BITS);
+        pageMask = (1 << pageBits) - 1;
+        createPages(buffers.length);
+        for (int page = 0; page < buffers.length; page++) {
+            attachPage(page, buffers[page]);
+        }
+    }
+
+    /**
+     * Use a buffer as a page, for slabs keeping their pages outside the heap.
+     */
+    void attachPage(int page, ByteBuffer buffer) {
+        throw new UnsupportedOperationException("The pages of this slab are arrays");
+    }
+
+    /**
+     * Make sure the page of an id exists, to be called before
+     * storing its vector.
+     * @param length the length of the vector about to be stored
+     */
+    final synchronized void ensurePage(int id, int length) {
+        if (dimensions == 0) {
+            if (length == 0)
+                throw new IllegalArgumentException("Vectors must not be empty");
+            dimensions = length;
+            pageBits = LeafStorage.pageBits(capacity, pageStride(length), growable ? GROWABLE_PAGE_BITS : MAX_PAGE_BITS);
+            pageMask = (1 << pageBits) - 1;
+            createPages((int) ((capacity + (1L << pageBits) - 1) >>> pageBits));
+        }
+        else if (length != dimensions)
+            throw new IllegalArgumentException("Expected vectors of " + dimensions + " elements, got " + length);
+        int page = id >>> pageBits;
+        if (!hasPage(page))
+            allocatePage(page, LeafStorage.pageLength(capacity, pageBits, page, dimensions));
+    }
+}
@@ -0,0 +1,29 @@
+package ai.preferred.cerebro.hnsw;
+
+/**
+ * Set of internal node ids already reached during a layer search.
+ * Implementations differ in how the cost of {@link #clear()} relates
+ * to the capacity of the leaf, see {@link LeafSegment#useHashVisitedSet(int)}
+ * for how one is chosen.
+ */
+interface VisitedSet {
+
+    /**
+     * Mark the node as visited.
+     *
+     * @param id internal id of the node
+     * @return true if the node had not been visited before
+     */
+    boolean visit(int id);
+
+    /**
+     * @param id internal id of the node
+     * @return true if the node has been visited
+     */
+    boolean isVisited(int id);
+
+    /**
+     * Forget all the visited nodes, to be called once a search is done.
+     */
+    void clear();
+}
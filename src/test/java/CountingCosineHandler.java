@@ -0,0 +1,34 @@
+import ai.preferred.cerebro.handler.VecFloatHandler;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cosine handler counting how many distances it computes, for the tests
+ * measuring the work a search does. Indexes built with it load it back
+ * by name, so it has to be a top level class.
+ */
+public class CountingCosineHandler extends VecFloatHandler {
+    public static final LongAdder COMPUTATIONS = new LongAdder();
+
+    @Override
+    public double distance(float[] a, float[] b) {
+        return distance(a, 0, b, 0, a.length);
+    }
+
+    @Override
+    public double distance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        COMPUTATIONS.increment();
+        float dot = 0.0f;
+        float nru = 0.0f;
+        float nrv = 0.0f;
+        for (int i = 0; i < length; i++) {
+            float x = a[aOffset + i];
+            float y = b[bOffset + i];
+            dot += x * y;
+            nru += x * x;
+            nrv += y * y;
+        }
+        float similarity = dot / (float) (Math.sqrt(nru) * Math.sqrt(nrv));
+        return 1 - similarity;
+    }
+}
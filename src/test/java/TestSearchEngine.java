@@ -0,0 +1,1501 @@
+import ai.preferred.cerebro.handler.Bf16CosineHandler;
+import ai.preferred.cerebro.handler.FloatCosineHandler;
+import ai.preferred.cerebro.handler.Fp16CosineHandler;
+import ai.preferred.cerebro.handler.HammingHandler;
+import ai.preferred.cerebro.handler.VecFloatHandler;
+import ai.preferred.cerebro.hnsw.*;
+import org.apache.lucene.search.TopDocs;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Tests of the search engine running on generated data, these do not
+ * need the data sets at {@link TestConst}.
+ */
+public class TestSearchEngine {
+    private static final int DIMS = 50;
+    private static final int TOP_K = 20;
+
+    private static String manyLeavesIndexDir;
+
+    private static HnswConfiguration configuration() {
+        HnswConfiguration configuration = new HnswConfiguration(new FloatCosineHandler(), 10_000);
+        configuration.setM(10);
+        configuration.setEf(40);
+        configuration.setEfConstruction(100);
+        return configuration;
+    }
+
+    /**
+     * Index of 8K vectors spread over 16 leaves, built once for all tests.
+     */
+    private static synchronized String manyLeavesIndex() throws Exception {
+        if (manyLeavesIndexDir == null) {
+            HnswConfiguration configuration = configuration();
+            configuration.setMaxItemLeaf(500);
+            manyLeavesIndexDir = Utils.buildIndex(Utils.randomFloatVectors(8_000, DIMS, 42), configuration, true);
+        }
+        return manyLeavesIndexDir;
+    }
+
+    /**
+     * Once the scratch state of the searching thread has warmed up,
+     * searching a leaf into caller-supplied buffers must not allocate.
+     */
+    @Test
+    public void testSteadyStateSearchDoesNotAllocate() throws Exception {
+        float[][] vecs = Utils.randomFloatVectors(5_000, DIMS, 42);
+        float[][] queries = Utils.randomFloatVectors(200, DIMS, 7);
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(Utils.buildIndex(vecs, configuration(), false))) {
+            LeafSegmentSearcher<float[]> leaf = index.getLeaf(0);
+
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+            for (int round = 0; round < 20; round++)
+                for (float[] query : queries)
+                    leaf.findNearest(query, TOP_K, ids, distances);
+
+            com.sun.management.ThreadMXBean threadBean =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            //the first call may allocate on its own
+            threadBean.getThreadAllocatedBytes(threadId);
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            int rounds = 10;
+            for (int round = 0; round < rounds; round++)
+                for (float[] query : queries)
+                    leaf.findNearest(query, TOP_K, ids, distances);
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            System.out.println("Bytes allocated per query: " + (double) allocated / (rounds * queries.length));
+            Assert.assertEquals(0, allocated / (rounds * queries.length));
+        }
+    }
+
+    /**
+     * Low ef searches use a hash visited set while high ef ones use an
+     * epoch-stamped array, both have to find the same neighbors as before.
+     */
+    @Test
+    public void testRecall() throws Exception {
+        FloatCosineHandler handler = new FloatCosineHandler();
+        float[][] vecs = Utils.randomFloatVectors(5_000, DIMS, 42);
+        float[][] queries = Utils.randomFloatVectors(100, DIMS, 7);
+        int[][] expected = new int[queries.length][];
+        for (int i = 0; i < queries.length; i++)
+            expected[i] = Utils.bruteForceTopK(handler, vecs, queries[i], TOP_K);
+
+        int[] efs = {10, 40};
+        double[] minRecalls = {0.6, 0.75};
+        for (int e = 0; e < efs.length; e++) {
+            HnswConfiguration configuration = configuration();
+            configuration.setEf(efs[e]);
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(Utils.buildIndex(vecs, configuration, false))) {
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                double totalHit = 0;
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.getLeaf(0).findNearest(queries[q], TOP_K, ids, distances);
+                    for (int i = 1; i < count; i++)
+                        Assert.assertTrue(distances[i - 1] <= distances[i]);
+                    totalHit += Utils.overlap(expected[q], ids, count);
+                }
+                double recall = totalHit / (queries.length * TOP_K);
+                System.out.println("ef = " + efs[e] + ", recall@" + TOP_K + ": " + recall);
+                Assert.assertTrue(recall > minRecalls[e]);
+            }
+        }
+    }
+
+    /**
+     * Contention benchmark: many client threads querying an index made of
+     * many small leaves at the same time. Each query fans out to every leaf,
+     * nothing but the CPU should limit how many run concurrently.
+     */
+    @Test
+    public void testConcurrentClients() throws Exception {
+        int clients = 64;
+        float[][] queries = Utils.randomFloatVectors(clients * 50, DIMS, 7);
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(manyLeavesIndex())) {
+            for (float[] query : queries)
+                index.search(query, TOP_K);
+
+            double[] stats = runClients(index, queries, clients);
+            System.out.println(clients + " clients, " + queries.length + " queries over 16 leaves, "
+                    + Runtime.getRuntime().availableProcessors() + " cores");
+            System.out.println("Throughput: " + (int) stats[0] + " queries/s");
+            System.out.println("Average latency: " + stats[1] + " ms");
+        }
+    }
+
+    /**
+     * Benchmark of every scheduling mode, with a single client measuring
+     * the latency of an idle searcher and with many clients measuring
+     * the throughput of a loaded one. All modes return the same results.
+     */
+    @Test
+    public void testSchedulingModes() throws Exception {
+        float[][] queries = Utils.randomFloatVectors(1_600, DIMS, 7);
+        long[] expectedIds = new long[TOP_K];
+        long[] ids = new long[TOP_K];
+        float[] distances = new float[TOP_K];
+
+        String[] names = {"fan-out", "shared fan-out", "caller-runs", "hybrid", "virtual threads"};
+        for (String name : names) {
+            LeafScheduler scheduler;
+            switch (name) {
+                case "fan-out": scheduler = new FanOutScheduler(16); break;
+                case "shared fan-out": scheduler = FanOutScheduler.shared(); break;
+                case "caller-runs": scheduler = CallerRunsScheduler.INSTANCE; break;
+                case "hybrid": scheduler = new HybridScheduler(new FanOutScheduler(16)); break;
+                default:
+                    if (!FanOutScheduler.isVirtualThreadSupported()) {
+                        System.out.println(name + ": not supported by this JDK");
+                        continue;
+                    }
+                    scheduler = FanOutScheduler.virtualThreads();
+            }
+            //without pruning, so that results do not depend on the order leaves finish in
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(manyLeavesIndex(), withScheduler(scheduler))) {
+                for (float[] query : queries)
+                    index.search(query, TOP_K, ids, distances);
+
+                long begin = System.nanoTime();
+                for (float[] query : queries)
+                    index.search(query, TOP_K, ids, distances);
+                double idleLatency = (System.nanoTime() - begin) / 1e6 / queries.length;
+                double[] loaded = runClients(index, queries, 32);
+                System.out.println(name + ": 1 client " + idleLatency + " ms/query, 32 clients "
+                        + (int) loaded[0] + " queries/s at " + loaded[1] + " ms/query");
+
+                try (HnswIndexSearcher<float[]> reference = new HnswIndexSearcher<>(manyLeavesIndex(),
+                        withScheduler(CallerRunsScheduler.INSTANCE))) {
+                    for (int q = 0; q < 50; q++) {
+                        int count = index.search(queries[q], TOP_K, ids, distances);
+                        Assert.assertEquals(count, reference.search(queries[q], TOP_K, expectedIds, distances));
+                        Assert.assertArrayEquals(expectedIds, ids);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A task failing comes back as it was thrown, once every other task
+     * is done, whichever thread ran it.
+     */
+    @Test
+    public void testSchedulerFailures() throws Exception {
+        FanOutScheduler scheduler = new FanOutScheduler(4);
+        try {
+            for (boolean cooperatively : new boolean[]{false, true}) {
+                AtomicInteger done = new AtomicInteger();
+                try {
+                    IntConsumer task = taskNum -> {
+                        if (taskNum == 0)
+                            throw new AssertionError("task 0");
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        done.incrementAndGet();
+                    };
+                    if (cooperatively)
+                        scheduler.runCooperatively(4, task);
+                    else
+                        scheduler.run(4, task);
+                    Assert.fail("Task 0 failed");
+                } catch (AssertionError e) {
+                    Assert.assertEquals("task 0", e.getMessage());
+                }
+                //helpers only skipped if the caller claims them before they start
+                Assert.assertTrue(cooperatively || done.get() == 3);
+                int finished = done.get();
+                Thread.sleep(200);
+                Assert.assertEquals(finished, done.get());
+            }
+
+            try {
+                scheduler.run(4, taskNum -> {
+                    if (taskNum == 2)
+                        throw new IllegalStateException("task 2");
+                });
+                Assert.fail("Task 2 failed");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("task 2", e.getMessage());
+            }
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    private static SearcherConfiguration withScheduler(LeafScheduler scheduler) {
+        SearcherConfiguration searcherConfiguration = new SearcherConfiguration();
+        searcherConfiguration.setScheduler(scheduler);
+        searcherConfiguration.setLeafPruningSlack(Float.POSITIVE_INFINITY);
+        return searcherConfiguration;
+    }
+
+    private static SearcherConfiguration withoutPruning() {
+        SearcherConfiguration searcherConfiguration = new SearcherConfiguration();
+        searcherConfiguration.setLeafPruningSlack(Float.POSITIVE_INFINITY);
+        return searcherConfiguration;
+    }
+
+    /**
+     * Search the queries split between many client threads all starting at once.
+     * @return the throughput in queries per second and the average latency in ms
+     */
+    private static double[] runClients(HnswIndexSearcher<float[]> index, float[][] queries, int clients)
+            throws InterruptedException {
+        int queriesPerClient = queries.length / clients;
+        AtomicInteger fullResults = new AtomicInteger();
+        AtomicLong totalLatency = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            int first = c * queriesPerClient;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int q = first; q < first + queriesPerClient; q++) {
+                        long begin = System.nanoTime();
+                        TopDocs res = index.search(queries[q], TOP_K);
+                        totalLatency.addAndGet(System.nanoTime() - begin);
+                        if (res.scoreDocs.length == TOP_K)
+                            fullResults.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        int searched = clients * queriesPerClient;
+        Assert.assertEquals(searched, fullResults.get());
+        return new double[]{searched / seconds, totalLatency.get() / 1e6 / searched};
+    }
+
+    /**
+     * The merged results of all the leaves have to be the k closest of the
+     * union of every leaf's results, and be the same through the primitive
+     * and the lucene API.
+     */
+    @Test
+    public void testMergeLeafResults() throws Exception {
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(manyLeavesIndex(), withoutPruning())) {
+            float[][] queries = Utils.randomFloatVectors(50, DIMS, 7);
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+            long[] leafIds = new long[16 * TOP_K];
+            float[] leafDistances = new float[16 * TOP_K];
+            for (float[] query : queries) {
+                int count = index.search(query, TOP_K, ids, distances);
+                Assert.assertEquals(TOP_K, count);
+
+                int total = 0;
+                for (int leaf = 0; leaf < 16; leaf++)
+                    total += index.getLeaf(leaf).findNearest(query, TOP_K, leafIds, leafDistances, total);
+                float[] allDistances = Arrays.copyOf(leafDistances, total);
+                Arrays.sort(allDistances);
+                for (int i = 0; i < count; i++)
+                    Assert.assertEquals(allDistances[i], distances[i], 0);
+
+                TopDocs res = index.search(query, TOP_K);
+                Assert.assertEquals(count, res.scoreDocs.length);
+                for (int i = 0; i < count; i++)
+                    Assert.assertEquals(ids[i], res.scoreDocs[i].doc);
+            }
+        }
+    }
+
+    /**
+     * Benchmark of searching a batch of queries at once against calling
+     * search in a loop, both have to return the same results.
+     */
+    @Test
+    public void testBatchThroughput() throws Exception {
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(manyLeavesIndex(), withoutPruning())) {
+            float[][] queries = Utils.randomFloatVectors(2_000, DIMS, 7);
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+
+            //warm up
+            index.searchBatch(queries, TOP_K);
+            for (float[] query : queries)
+                index.search(query, TOP_K, ids, distances);
+
+            long begin = System.nanoTime();
+            for (int q = 0; q < queries.length; q++)
+                index.search(queries[q], TOP_K, ids, distances);
+            double loopSeconds = (System.nanoTime() - begin) / 1e9;
+
+            begin = System.nanoTime();
+            BatchResults results = index.searchBatch(queries, TOP_K);
+            double batchSeconds = (System.nanoTime() - begin) / 1e9;
+
+            System.out.println("search() in a loop: " + (int) (queries.length / loopSeconds) + " queries/s");
+            System.out.println("searchBatch(): " + (int) (queries.length / batchSeconds) + " queries/s");
+
+            for (int q = 0; q < queries.length; q++) {
+                int count = index.search(queries[q], TOP_K, ids, distances);
+                Assert.assertEquals(count, results.count(q));
+                for (int i = 0; i < count; i++)
+                    Assert.assertEquals(ids[i], results.id(q, i));
+            }
+        }
+    }
+
+    /**
+     * Leaves pruning each other with the shared bound of the k-th distance
+     * have to compute fewer distances, while keeping the recall close to
+     * the one of leaves searching on their own. Most of the saving comes
+     * from leaves far away from the query, so the data is clustered with
+     * one cluster per leaf.
+     */
+    @Test
+    public void testSharedPruningBound() throws Exception {
+        float[][] vecs = Utils.clusteredFloatVectors(8_000, DIMS, 16, 0.1f, 1, 42);
+        float[][] queries = Utils.clusteredFloatVectors(200, DIMS, 16, 0.1f, 1, 7);
+        HnswConfiguration configuration = new HnswConfiguration(new CountingCosineHandler(), 500);
+        configuration.setM(10);
+        configuration.setEf(40);
+        configuration.setEfConstruction(100);
+        String clusteredIndexDir = Utils.buildIndex(vecs, configuration, true);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(new FloatCosineHandler(), vecs, queries[q], TOP_K);
+
+        float[] slacks = {Float.POSITIVE_INFINITY, 0.3f, 0.0f};
+        for (boolean fanOut : new boolean[]{false, true}) {
+            double[] unpruned = null;
+            for (float slack : slacks) {
+                //closed together with the searcher
+                LeafScheduler scheduler = fanOut ? new FanOutScheduler(16) : CallerRunsScheduler.INSTANCE;
+                double[] stats = pruningStats(clusteredIndexDir, scheduler, slack, queries, expected);
+                System.out.println(scheduler.getClass().getSimpleName() + ", slack " + slack + ": "
+                        + (int) stats[0] + " distances/query, recall@" + TOP_K + " " + stats[1]);
+                if (unpruned == null) {
+                    unpruned = stats;
+                } else {
+                    Assert.assertTrue(stats[0] < unpruned[0] * 0.75);
+                    Assert.assertTrue(stats[1] > unpruned[1] - 0.01);
+                }
+            }
+        }
+
+        //on uniform data every leaf holds part of the results, a slack of
+        //0.3 must keep the recall where it was
+        queries = Utils.randomFloatVectors(200, DIMS, 7);
+        vecs = Utils.randomFloatVectors(8_000, DIMS, 42);
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(new FloatCosineHandler(), vecs, queries[q], TOP_K);
+        double unprunedRecall = pruningStats(manyLeavesIndex(), CallerRunsScheduler.INSTANCE,
+                Float.POSITIVE_INFINITY, queries, expected)[1];
+        double recall = pruningStats(manyLeavesIndex(), CallerRunsScheduler.INSTANCE,
+                slacks[1], queries, expected)[1];
+        System.out.println("Uniform data, recall@" + TOP_K + " " + unprunedRecall + " without pruning, "
+                + recall + " with a slack of " + slacks[1]);
+        Assert.assertTrue(recall > unprunedRecall - 0.01);
+    }
+
+    /**
+     * @return the distances computed per query, only counted by indexes using
+     * {@link CountingCosineHandler}, and the recall against expected
+     */
+    private static double[] pruningStats(String indexDir, LeafScheduler scheduler, float slack,
+                                         float[][] queries, int[][] expected) {
+        SearcherConfiguration searcherConfiguration = new SearcherConfiguration();
+        searcherConfiguration.setScheduler(scheduler);
+        searcherConfiguration.setLeafPruningSlack(slack);
+        return pruningStats(indexDir, searcherConfiguration, queries, expected);
+    }
+
+    private static double[] pruningStats(String indexDir, SearcherConfiguration searcherConfiguration,
+                                         float[][] queries, int[][] expected) {
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+
+            CountingCosineHandler.COMPUTATIONS.reset();
+            double totalHit = 0;
+            for (int q = 0; q < queries.length; q++) {
+                int count = index.search(queries[q], TOP_K, ids, distances);
+                totalHit += Utils.overlap(expected[q], ids, count);
+            }
+            return new double[]{(double) CountingCosineHandler.COMPUTATIONS.sum() / queries.length,
+                    totalHit / (queries.length * TOP_K)};
+        }
+    }
+
+    /**
+     * A clustered index routes every item to the leaf of its nearest centroid,
+     * so that probing the few leaves closest to a query finds nearly all the
+     * results searching every leaf finds, for a fraction of the distances.
+     */
+    @Test
+    public void testClusteredLeaves() throws Exception {
+        float[][] vecs = Utils.clusteredFloatVectors(16_000, DIMS, 32, 0.1f, 1, 42);
+        float[][] queries = Utils.clusteredFloatVectors(200, DIMS, 32, 0.1f, 1, 7);
+        HnswConfiguration configuration = new HnswConfiguration(new CountingCosineHandler(), 500);
+        configuration.setM(10);
+        configuration.setEf(40);
+        configuration.setEfConstruction(100);
+        configuration.setClustered(true);
+        String indexDir = Utils.buildIndex(vecs, configuration, false);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(new FloatCosineHandler(), vecs, queries[q], TOP_K);
+
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir)) {
+            Assert.assertTrue(index.getConfiguration().isClustered());
+            //16K items filling leaves of 500 up to 80%
+            int total = 0;
+            for (int leafNum = 0; leafNum < 40; leafNum++) {
+                Assert.assertTrue(index.getLeaf(leafNum).size() <= 500);
+                total += index.getLeaf(leafNum).size();
+            }
+            Assert.assertEquals(vecs.length, total);
+        }
+
+        String[] names = {"every leaf", "every leaf, pruned", "4 leaves", "adaptive, up to 8 leaves"};
+        double[] everyLeaf = null;
+        for (int mode = 0; mode < names.length; mode++) {
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            if (mode > 0)
+                searcherConfiguration.setLeafPruningSlack(0.3f);
+            if (mode == 2)
+                searcherConfiguration.setLeafProbes(4);
+            if (mode == 3) {
+                searcherConfiguration.setLeafProbes(8);
+                searcherConfiguration.setLeafProbeSlack(2f);
+            }
+            long begin = System.nanoTime();
+            double[] stats = pruningStats(indexDir, searcherConfiguration, queries, expected);
+            double millis = (System.nanoTime() - begin) / 1e6 / queries.length;
+            System.out.println("Clustered index, " + names[mode] + ": " + (int) stats[0] + " distances/query, "
+                    + millis + " ms/query, recall@" + TOP_K + " " + stats[1]);
+            if (mode == 0)
+                everyLeaf = stats;
+            else
+                Assert.assertTrue(stats[1] > everyLeaf[1] - 0.02);
+            if (mode >= 2)
+                Assert.assertTrue(stats[0] < everyLeaf[0] / 3);
+        }
+    }
+
+    /**
+     * Updates of the ids of a clustered index take the place of the nodes
+     * they replace, in the leaves holding them, also once every leaf is full.
+     */
+    @Test
+    public void testClusteredUpdatesInFullLeaves() throws Exception {
+        float[][] vecs = Utils.clusteredFloatVectors(200, DIMS, 2, 0.1f, 1, 42);
+        float[][] updates = Utils.clusteredFloatVectors(200, DIMS, 2, 0.1f, 1, 7);
+        HnswConfiguration configuration = new HnswConfiguration(new FloatCosineHandler(), 100);
+        configuration.setM(10);
+        configuration.setEf(40);
+        configuration.setEfConstruction(100);
+        configuration.setClustered(true);
+        String indexDir = Files.createTempDirectory("hnsw_test").toString();
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, indexDir);
+        //160 items train 2 centroids, the next 40 fill both leaves up
+        List<Item<float[]>> first = new ArrayList<>();
+        List<Item<float[]>> second = new ArrayList<>();
+        for (int i = 0; i < vecs.length; i++)
+            (i % 100 < 80 ? first : second).add(new Item<>(i, vecs[i]));
+        writer.addAll(first);
+        writer.addAll(second);
+        Assert.assertEquals(vecs.length, writer.size());
+
+        List<Item<float[]>> updated = new ArrayList<>();
+        for (int i = 0; i < updates.length; i++)
+            updated.add(new Item<>(i, updates[i]));
+        writer.addAll(updated);
+        Assert.assertEquals(vecs.length, writer.size());
+        writer.save();
+
+        //every leaf holds the updates of the ids it held, in place of their old vectors
+        boolean[] found = new boolean[updates.length];
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, withScheduler(CallerRunsScheduler.INSTANCE))) {
+            for (int leafNum = 0; leafNum < 2; leafNum++) {
+                LeafSegmentSearcher<float[]> leaf = index.getLeaf(leafNum);
+                Assert.assertEquals(100, leaf.size());
+                for (int internalId = 0; internalId < leaf.getNodeCount(); internalId++) {
+                    float[] vector = leaf.getVector(internalId).get();
+                    int i = 0;
+                    while (i < updates.length && !Arrays.equals(updates[i], vector))
+                        i++;
+                    Assert.assertTrue(i < updates.length);
+                    found[i] = true;
+                }
+            }
+        }
+        for (boolean f : found)
+            Assert.assertTrue(f);
+    }
+
+    /**
+     * A large leaf searched by several threads at once has to find as good
+     * neighbors as one searched by a single thread, also with many clients
+     * competing for the threads.
+     */
+    @Test
+    public void testIntraLeafParallelSearch() throws Exception {
+        float[][] vecs = Utils.randomFloatVectors(10_000, DIMS, 42);
+        float[][] queries = Utils.randomFloatVectors(200, DIMS, 7);
+        HnswConfiguration configuration = configuration();
+        configuration.setEf(100);
+        String indexDir = Utils.buildIndex(vecs, configuration, false);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(new FloatCosineHandler(), vecs, queries[q], TOP_K);
+
+        double[] recalls = new double[2];
+        for (int mode = 0; mode < 2; mode++) {
+            SearcherConfiguration searcherConfiguration = new SearcherConfiguration();
+            searcherConfiguration.setScheduler(new FanOutScheduler(4));
+            if (mode == 0)
+                searcherConfiguration.setMaxIntraLeafWorkers(1);
+            else
+                searcherConfiguration.setIntraLeafThreshold(0);
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                double totalHit = 0;
+                long begin = System.nanoTime();
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.search(queries[q], TOP_K, ids, distances);
+                    for (int i = 1; i < count; i++)
+                        Assert.assertTrue(distances[i - 1] <= distances[i]);
+                    totalHit += Utils.overlap(expected[q], ids, count);
+                }
+                double millis = (System.nanoTime() - begin) / 1e6 / queries.length;
+                recalls[mode] = totalHit / (queries.length * TOP_K);
+                double[] loaded = runClients(index, queries, 8);
+                System.out.println((mode == 0 ? "Single thread" : "4 threads") + " per leaf: "
+                        + millis + " ms/query, recall@" + TOP_K + " " + recalls[mode] + ", 8 clients "
+                        + (int) loaded[0] + " queries/s at " + loaded[1] + " ms/query");
+            }
+        }
+        Assert.assertTrue(recalls[1] > recalls[0] - 0.01);
+    }
+
+    /**
+     * Per-query options: a budget of distance computations has to cap the
+     * work of every query, and stopping once the top k settles has to cost
+     * less than running a fixed ef to its end. Prints the recall/latency
+     * curve of both policies.
+     */
+    @Test
+    public void testSearchOptions() throws Exception {
+        float[][] vecs = Utils.randomFloatVectors(10_000, DIMS, 42);
+        float[][] queries = Utils.randomFloatVectors(200, DIMS, 7);
+        HnswConfiguration configuration = new HnswConfiguration(new CountingCosineHandler(), 10_000);
+        configuration.setM(10);
+        configuration.setEf(40);
+        configuration.setEfConstruction(100);
+        String indexDir = Utils.buildIndex(vecs, configuration, false);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(new FloatCosineHandler(), vecs, queries[q], TOP_K);
+
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, withScheduler(CallerRunsScheduler.INSTANCE))) {
+            SearchOptions options = new SearchOptions();
+            //warm up
+            optionStats(index, options, queries, expected);
+            for (int ef : new int[]{20, 40, 80, 160, 320}) {
+                options.setEf(ef);
+                double[] stats = optionStats(index, options, queries, expected);
+                System.out.println("ef " + ef + ": " + (int) stats[0] + " distances/query, "
+                        + stats[2] + " ms/query, recall@" + TOP_K + " " + stats[1]);
+            }
+            double[] fixed = optionStats(index, options, queries, expected);
+            for (int patience : new int[]{5, 10, 20, 40}) {
+                options.setPatience(patience);
+                double[] stats = optionStats(index, options, queries, expected);
+                System.out.println("ef 320, patience " + patience + ": " + (int) stats[0] + " distances/query, "
+                        + stats[2] + " ms/query, recall@" + TOP_K + " " + stats[1]);
+                Assert.assertTrue(stats[0] < fixed[0]);
+            }
+
+            options.setPatience(0);
+            options.setMaxDistanceComputations(300);
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+            for (float[] query : queries) {
+                CountingCosineHandler.COMPUTATIONS.reset();
+                int count = index.search(query, TOP_K, ids, distances, options);
+                Assert.assertTrue(count > 0);
+                for (int i = 1; i < count; i++)
+                    Assert.assertTrue(distances[i - 1] <= distances[i]);
+                //the budget only covers the base layer
+                Assert.assertTrue(CountingCosineHandler.COMPUTATIONS.sum() <= 300 + 100);
+            }
+        }
+    }
+
+    /**
+     * @return the distances computed per query, the recall against expected
+     * and the milliseconds per query
+     */
+    private static double[] optionStats(HnswIndexSearcher<float[]> index, SearchOptions options,
+                                        float[][] queries, int[][] expected) {
+        long[] ids = new long[TOP_K];
+        float[] distances = new float[TOP_K];
+        CountingCosineHandler.COMPUTATIONS.reset();
+        double totalHit = 0;
+        long begin = System.nanoTime();
+        for (int q = 0; q < queries.length; q++) {
+            int count = index.search(queries[q], TOP_K, ids, distances, options);
+            totalHit += Utils.overlap(expected[q], ids, count);
+        }
+        double millis = (System.nanoTime() - begin) / 1e6 / queries.length;
+        return new double[]{(double) CountingCosineHandler.COMPUTATIONS.sum() / queries.length,
+                totalHit / (queries.length * TOP_K), millis};
+    }
+
+    /**
+     * Both leaf layouts, whether used to write or to search an index, have
+     * to give the same results. Prints the heap taken by the loaded leaves
+     * and the search speed of each layout.
+     */
+    @Test
+    public void testLeafLayouts() throws Exception {
+        float[][] vecs = Utils.randomFloatVectors(20_000, DIMS, 42);
+        float[][] queries = Utils.randomFloatVectors(500, DIMS, 7);
+        LeafLayout[] writerLayouts = {LeafLayout.NODES, LeafLayout.COLUMNAR};
+        String[] indexDirs = new String[writerLayouts.length];
+        for (int i = 0; i < writerLayouts.length; i++) {
+            HnswConfiguration configuration = configuration();
+            configuration.setMaxItemLeaf(20_000);
+            configuration.setLeafLayout(writerLayouts[i]);
+            indexDirs[i] = Utils.buildIndex(vecs, configuration, true);
+            //the second index gets its connections compressed on disk
+            HnswIndexSearcher.writeMappedLeaves(indexDirs[i], i == 1);
+            System.out.println("mapped leaf file" + (i == 1 ? " with compressed adjacency: " : ": ")
+                    + new File(indexDirs[i], "0_mapped.bin").length() / vecs.length + " bytes/node");
+        }
+        try {
+            configuration().setLeafLayout(LeafLayout.OFF_HEAP);
+            Assert.fail("Writers cannot keep their leaves off-heap");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        //the layouts searching with the exact vectors, disk leaves are tested on their own
+        LeafLayout[] layouts = {LeafLayout.NODES, LeafLayout.COLUMNAR, LeafLayout.OFF_HEAP,
+                LeafLayout.MAPPED, LeafLayout.COMPRESSED};
+        long[][][] found = new long[layouts.length][queries.length][TOP_K];
+        long[] heaps = new long[layouts.length];
+        for (LeafLayout layout : layouts) {
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            searcherConfiguration.setLeafLayout(layout);
+            long heapBefore = usedHeap();
+            long openBegin = System.nanoTime();
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDirs[0], searcherConfiguration)) {
+                double openMillis = (System.nanoTime() - openBegin) / 1e6;
+                heaps[layout.ordinal()] = usedHeap() - heapBefore;
+                float[] distances = new float[TOP_K];
+                for (int round = 0; round < 5; round++)
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, found[layout.ordinal()][0], distances);
+                long begin = System.nanoTime();
+                for (int q = 0; q < queries.length; q++)
+                    Assert.assertEquals(TOP_K, index.search(queries[q], TOP_K, found[layout.ordinal()][q], distances));
+                double millis = (System.nanoTime() - begin) / 1e6 / queries.length;
+                System.out.println(layout + " layout: opened in " + openMillis + " ms, "
+                        + heaps[layout.ordinal()] / vecs.length + " bytes/node on heap, " + millis + " ms/query");
+
+                //the index written with the other layout holds the same graph
+                try (HnswIndexSearcher<float[]> other = new HnswIndexSearcher<>(indexDirs[1], searcherConfiguration)) {
+                    long[] ids = new long[TOP_K];
+                    for (int q = 0; q < queries.length; q++) {
+                        other.search(queries[q], TOP_K, ids, distances);
+                        Assert.assertArrayEquals(found[layout.ordinal()][q], ids);
+                    }
+                }
+            }
+        }
+        for (LeafLayout layout : layouts)
+            for (int q = 0; q < queries.length; q++)
+                Assert.assertArrayEquals(found[0][q], found[layout.ordinal()][q]);
+        //what is left on the heap is the lookup of the ids, not the leaves
+        Assert.assertTrue(heaps[LeafLayout.OFF_HEAP.ordinal()] < heaps[LeafLayout.COLUMNAR.ordinal()] / 2);
+        Assert.assertTrue(heaps[LeafLayout.MAPPED.ordinal()] < heaps[LeafLayout.COLUMNAR.ordinal()] / 2);
+    }
+
+    /**
+     * Disk leaves search the graph with quantized vectors and rank the
+     * candidates with the vectors read from disk, which finds about as
+     * many of the true neighbors as searching the vectors in memory, with
+     * exact distances, a fraction of the heap and the reads bounded by
+     * the candidates ranked.
+     */
+    @Test
+    public void testDiskLeaves() throws Exception {
+        FloatCosineHandler handler = new FloatCosineHandler();
+        //vectors long enough for their codes to take much less than the graph
+        float[][] vecs = Utils.randomFloatVectors(10_000, 128, 42);
+        float[][] queries = Utils.randomFloatVectors(200, 128, 7);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(handler, vecs, queries[q], TOP_K);
+        HnswConfiguration configuration = configuration();
+        configuration.setMaxItemLeaf(10_000);
+        String indexDir = Utils.buildIndex(vecs, configuration, true);
+        HnswIndexSearcher.writeDiskLeaves(indexDir, true);
+        System.out.println("disk files: " + new File(indexDir, "0_graph.bin").length() / vecs.length
+                + " bytes/node of graph, " + new File(indexDir, "0_disk.bin").length() / vecs.length
+                + " bytes/node of codes and vectors");
+
+        String[] names = {"columnar", "disk, 256KB cache", "disk, 64MB cache"};
+        double[] recalls = new double[names.length];
+        long[] heaps = new long[names.length];
+        for (int mode = 0; mode < names.length; mode++) {
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            if (mode > 0)
+                searcherConfiguration.setLeafLayout(LeafLayout.DISK);
+            if (mode == 1)
+                searcherConfiguration.setDiskCacheBytes(256 << 10);
+            long heapBefore = usedHeap();
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+                heaps[mode] = usedHeap() - heapBefore;
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                for (float[] query : queries)
+                    index.search(query, TOP_K, ids, distances);
+                long bytesBefore = index.getDiskBytesRead();
+                double hits = 0;
+                long begin = System.nanoTime();
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.search(queries[q], TOP_K, ids, distances);
+                    hits += Utils.overlap(expected[q], ids, count);
+                    //the distances are those of the vectors, not of their codes
+                    Assert.assertEquals(handler.distance(queries[q], vecs[(int) ids[0]]), distances[0], 1e-5);
+                    for (int i = 1; i < count; i++)
+                        Assert.assertTrue(distances[i - 1] <= distances[i]);
+                }
+                double millis = (System.nanoTime() - begin) / 1e6 / queries.length;
+                long bytesPerQuery = (index.getDiskBytesRead() - bytesBefore) / queries.length;
+                recalls[mode] = hits / (queries.length * TOP_K);
+                System.out.println(names[mode] + ": recall@" + TOP_K + " " + recalls[mode] + ", "
+                        + (int) (1000 / millis) + " queries/s, " + bytesPerQuery + " bytes read/query, "
+                        + heaps[mode] / vecs.length + " bytes/node on heap");
+                if (mode == 0)
+                    Assert.assertEquals(0, bytesPerQuery);
+                //at most a block for each of the ef candidates ranked
+                Assert.assertTrue(bytesPerQuery <= 40 * 4096);
+                if (mode == 2)
+                    //every block was cached by the first pass
+                    Assert.assertEquals(0, bytesPerQuery);
+            }
+        }
+        Assert.assertTrue(recalls[1] > recalls[0] - 0.02);
+        Assert.assertEquals(recalls[1], recalls[2], 1e-9);
+        Assert.assertTrue(heaps[1] < heaps[0] / 2);
+    }
+
+    /**
+     * Quantized leaves search the graph with one byte per element and rank
+     * the candidates with the exact vectors, which finds about as many of
+     * the true neighbors as searching the vectors themselves, with exact
+     * distances. The range of the vectors is saved the first time the
+     * leaves are loaded quantized.
+     */
+    @Test
+    public void testQuantizedLeaves() throws Exception {
+        FloatCosineHandler handler = new FloatCosineHandler();
+        float[][] vecs = Utils.randomFloatVectors(10_000, 128, 42);
+        float[][] queries = Utils.randomFloatVectors(500, 128, 7);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(handler, vecs, queries[q], TOP_K);
+        HnswConfiguration configuration = configuration();
+        configuration.setMaxItemLeaf(10_000);
+        String indexDir = Utils.buildIndex(vecs, configuration, true);
+        File quantFile = new File(indexDir, "0_quant.o");
+        Assert.assertFalse(quantFile.exists());
+
+        LeafLayout[] layouts = {LeafLayout.COLUMNAR, LeafLayout.QUANTIZED};
+        double[] recalls = new double[layouts.length];
+        for (int mode = 0; mode < layouts.length; mode++) {
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            searcherConfiguration.setLeafLayout(layouts[mode]);
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                for (int round = 0; round < 3; round++)
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances);
+                double hits = 0;
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.search(queries[q], TOP_K, ids, distances);
+                    hits += Utils.overlap(expected[q], ids, count);
+                    //the distances are those of the vectors, not of their codes
+                    Assert.assertEquals(handler.distance(queries[q], vecs[(int) ids[0]]), distances[0], 1e-5);
+                    for (int i = 1; i < count; i++)
+                        Assert.assertTrue(distances[i - 1] <= distances[i]);
+                }
+                recalls[mode] = hits / (queries.length * TOP_K);
+                //the fastest of a few rounds, the others being slowed down by whatever else runs
+                double millis = Double.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    long begin = System.nanoTime();
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances);
+                    millis = Math.min(millis, (System.nanoTime() - begin) / 1e6 / queries.length);
+                }
+                System.out.println(layouts[mode] + " layout: recall@" + TOP_K + " " + recalls[mode] + ", "
+                        + (int) (1000 / millis) + " queries/s");
+            }
+        }
+        Assert.assertTrue(quantFile.exists());
+        Assert.assertTrue(recalls[1] > recalls[0] - 0.02);
+    }
+
+    /**
+     * Product quantized leaves search the graph with a few lookups per node
+     * in a table of the query computed once for all the leaves, taking a
+     * fraction of the heap of the vectors. Ranking the candidates again with
+     * the vectors of the mapped leaf files gives back most of the recall
+     * lost to the quantization, and exact distances.
+     */
+    @Test
+    public void testProductQuantizedLeaves() throws Exception {
+        FloatCosineHandler handler = new FloatCosineHandler();
+        float[][] vecs = Utils.clusteredFloatVectors(10_000, 128, 50, 0.3f, 42, 42);
+        float[][] queries = Utils.clusteredFloatVectors(300, 128, 50, 0.3f, 42, 7);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(handler, vecs, queries[q], TOP_K);
+        HnswConfiguration configuration = configuration();
+        configuration.setMaxItemLeaf(2_500);
+        String indexDir = Utils.buildIndex(vecs, configuration, true);
+        SearcherConfiguration untrained = withScheduler(CallerRunsScheduler.INSTANCE);
+        untrained.setLeafLayout(LeafLayout.PRODUCT_QUANTIZED);
+        try {
+            new HnswIndexSearcher<float[]>(indexDir, untrained);
+            Assert.fail("The quantizer has to be trained first");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        long begin = System.nanoTime();
+        HnswIndexSearcher.trainProductQuantizer(indexDir, 64, 5_000);
+        System.out.println("product quantizer trained in " + (System.nanoTime() - begin) / 1_000_000 + " ms");
+        HnswIndexSearcher.writeMappedLeaves(indexDir);
+
+        String[] names = {"columnar", "product quantized", "product quantized, reranked"};
+        double[] recalls = new double[names.length];
+        long[] heaps = new long[names.length];
+        for (int mode = 0; mode < names.length; mode++) {
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            if (mode > 0)
+                searcherConfiguration.setLeafLayout(LeafLayout.PRODUCT_QUANTIZED);
+            searcherConfiguration.setProductQuantizationRerank(mode == 2);
+            long heapBefore = usedHeap();
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+                heaps[mode] = usedHeap() - heapBefore;
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                for (int round = 0; round < 3; round++)
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances);
+                double hits = 0;
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.search(queries[q], TOP_K, ids, distances);
+                    hits += Utils.overlap(expected[q], ids, count);
+                    if (mode != 1)
+                        Assert.assertEquals(handler.distance(queries[q], vecs[(int) ids[0]]), distances[0], 1e-5);
+                    for (int i = 1; i < count; i++)
+                        Assert.assertTrue(distances[i - 1] <= distances[i]);
+                }
+                recalls[mode] = hits / (queries.length * TOP_K);
+                //the fastest of a few rounds, the others being slowed down by whatever else runs
+                double millis = Double.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    begin = System.nanoTime();
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances);
+                    millis = Math.min(millis, (System.nanoTime() - begin) / 1e6 / queries.length);
+                }
+                System.out.println(names[mode] + ": recall@" + TOP_K + " " + recalls[mode] + ", "
+                        + (int) (1000 / millis) + " queries/s, " + heaps[mode] / vecs.length + " bytes/node on heap");
+            }
+        }
+        Assert.assertTrue(recalls[2] > recalls[1]);
+        Assert.assertTrue(recalls[2] > recalls[0] - 0.05);
+        Assert.assertTrue(heaps[1] < heaps[0] / 2);
+    }
+
+    /**
+     * Binary leaves search the graph with the Hamming distances of the
+     * signs of the vectors. Ranking the candidates again with the vectors
+     * gives back much of the recall the signs lose, and more of it the more
+     * candidates are kept.
+     */
+    @Test
+    public void testBinaryLeaves() throws Exception {
+        FloatCosineHandler handler = new FloatCosineHandler();
+        float[][] vecs = Utils.clusteredFloatVectors(10_000, 128, 50, 0.3f, 42, 42);
+        float[][] queries = Utils.clusteredFloatVectors(300, 128, 50, 0.3f, 42, 7);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(handler, vecs, queries[q], TOP_K);
+        HnswConfiguration configuration = configuration();
+        configuration.setMaxItemLeaf(2_500);
+        String indexDir = Utils.buildIndex(vecs, configuration, true);
+
+        String[] names = {"columnar", "binary", "binary, reranked", "binary, reranked with ef 160"};
+        double[] recalls = new double[names.length];
+        for (int mode = 0; mode < names.length; mode++) {
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            if (mode > 0)
+                searcherConfiguration.setLeafLayout(LeafLayout.BINARY);
+            searcherConfiguration.setBinaryRerank(mode >= 2);
+            SearchOptions options = new SearchOptions();
+            if (mode == 3)
+                options.setEf(160);
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                for (int round = 0; round < 3; round++)
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances, options);
+                double hits = 0;
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.search(queries[q], TOP_K, ids, distances, options);
+                    hits += Utils.overlap(expected[q], ids, count);
+                    if (mode != 1)
+                        Assert.assertEquals(handler.distance(queries[q], vecs[(int) ids[0]]), distances[0], 1e-5);
+                    for (int i = 1; i < count; i++)
+                        Assert.assertTrue(distances[i - 1] <= distances[i]);
+                }
+                recalls[mode] = hits / (queries.length * TOP_K);
+                //the fastest of a few rounds, the others being slowed down by whatever else runs
+                double millis = Double.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    long begin = System.nanoTime();
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances, options);
+                    millis = Math.min(millis, (System.nanoTime() - begin) / 1e6 / queries.length);
+                }
+                System.out.println(names[mode] + ": recall@" + TOP_K + " " + recalls[mode] + ", "
+                        + (int) (1000 / millis) + " queries/s");
+            }
+        }
+        Assert.assertTrue(recalls[2] > recalls[1]);
+        Assert.assertTrue(recalls[3] > recalls[2]);
+    }
+
+    /**
+     * Vectors binary to begin with are searched as long[] with the Hamming
+     * distance, 64 bits in each element.
+     */
+    @Test
+    public void testHammingHandler() throws Exception {
+        HammingHandler handler = new HammingHandler();
+        Random random = new Random(42);
+        long[][] vecs = new long[3_000][4];
+        for (long[] vec : vecs)
+            for (int i = 0; i < vec.length; i++)
+                vec[i] = random.nextLong();
+        Assert.assertEquals(Long.bitCount(vecs[0][0] ^ vecs[1][0]) + Long.bitCount(vecs[0][1] ^ vecs[1][1])
+                + Long.bitCount(vecs[0][2] ^ vecs[1][2]) + Long.bitCount(vecs[0][3] ^ vecs[1][3]),
+                handler.distance(vecs[0], vecs[1]), 0);
+        HnswConfiguration configuration = new HnswConfiguration(handler, 10_000);
+        configuration.setM(10);
+        configuration.setEf(40);
+        configuration.setEfConstruction(100);
+        configuration.setMaxItemLeaf(1_000);
+        String indexDir = Utils.buildIndex(vecs, configuration, true);
+
+        try (HnswIndexSearcher<long[]> index = new HnswIndexSearcher<>(indexDir,
+                withScheduler(CallerRunsScheduler.INSTANCE))) {
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+            double hits = 0;
+            for (int q = 0; q < 100; q++) {
+                //a vector with a few of its bits flipped
+                long[] query = vecs[q * 30].clone();
+                query[0] ^= 0b1011L;
+                int count = index.search(query, TOP_K, ids, distances);
+                Assert.assertEquals(q * 30, ids[0]);
+                Assert.assertEquals(3, distances[0], 0);
+                hits += Utils.overlap(Utils.bruteForceTopK(handler, vecs, query, TOP_K), ids, count);
+            }
+            System.out.println("hamming: recall@" + TOP_K + " " + hits / (100 * TOP_K));
+        }
+    }
+
+    /**
+     * Vectors kept as fp16 or bf16 take half the memory and files of
+     * floats, the float queries finding about the same neighbors.
+     */
+    @Test
+    public void testHalfFloatHandlers() throws Exception {
+        Fp16CosineHandler fp16 = new Fp16CosineHandler();
+        Bf16CosineHandler bf16 = new Bf16CosineHandler();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            float x = (float) random.nextGaussian() * 100;
+            Assert.assertEquals(x, fp16.toFloat(fp16.toHalf(x)), Math.abs(x) * 0x1p-11f + 0x1p-24f);
+            Assert.assertEquals(x, bf16.toFloat(bf16.toHalf(x)), Math.abs(x) * 0x1p-8f);
+        }
+        Assert.assertEquals(65504f, fp16.toFloat(fp16.toHalf(65504f)), 0);
+        Assert.assertEquals(Float.POSITIVE_INFINITY, fp16.toFloat(fp16.toHalf(65520f)), 0);
+        Assert.assertEquals(0x1p-24f, fp16.toFloat(fp16.toHalf(0x1p-24f)), 0);
+        Assert.assertTrue(Float.isNaN(fp16.toFloat(fp16.toHalf(Float.NaN))));
+        Assert.assertEquals(1e30f, bf16.toFloat(bf16.toHalf(1e30f)), 1e30f * 0x1p-8f);
+        Assert.assertTrue(Float.isNaN(bf16.toFloat(bf16.toHalf(Float.NaN))));
+
+        FloatCosineHandler handler = new FloatCosineHandler();
+        float[][] vecs = Utils.clusteredFloatVectors(10_000, 128, 50, 0.3f, 42, 42);
+        float[][] queries = Utils.clusteredFloatVectors(300, 128, 50, 0.3f, 42, 7);
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(handler, vecs, queries[q], TOP_K);
+
+        VecFloatHandler[] handlers = {handler, fp16, bf16};
+        double[] recalls = new double[handlers.length];
+        long[] heaps = new long[handlers.length];
+        long[] fileBytes = new long[handlers.length];
+        for (int h = 0; h < handlers.length; h++) {
+            HnswConfiguration configuration = new HnswConfiguration(handlers[h], 10_000);
+            configuration.setM(10);
+            configuration.setEf(40);
+            configuration.setEfConstruction(100);
+            String indexDir = Utils.buildIndex(vecs, configuration, true);
+            fileBytes[h] = new File(indexDir, "0_vecs.o").length();
+            //the halves are kept as such in the slabs of the columnar leaves
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            searcherConfiguration.setLeafLayout(LeafLayout.COLUMNAR);
+            long heapBefore = usedHeap();
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+                heaps[h] = usedHeap() - heapBefore;
+                Assert.assertArrayEquals(vecs[1], index.getLeaf(0).getVector(1).get(),
+                        h == 0 ? 0 : h == 1 ? 1e-3f : 1e-2f);
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                for (int round = 0; round < 3; round++)
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances);
+                double hits = 0;
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.search(queries[q], TOP_K, ids, distances);
+                    hits += Utils.overlap(expected[q], ids, count);
+                }
+                recalls[h] = hits / (queries.length * TOP_K);
+                //the fastest of a few rounds, the others being slowed down by whatever else runs
+                double millis = Double.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    long begin = System.nanoTime();
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances);
+                    millis = Math.min(millis, (System.nanoTime() - begin) / 1e6 / queries.length);
+                }
+                System.out.println(handlers[h].getClass().getSimpleName() + ": recall@" + TOP_K + " " + recalls[h]
+                        + ", " + (int) (1000 / millis) + " queries/s, " + heaps[h] / vecs.length
+                        + " bytes/node on heap, " + fileBytes[h] / vecs.length + " bytes/node in the vector file");
+            }
+        }
+        for (int h = 1; h < handlers.length; h++) {
+            Assert.assertTrue(recalls[h] > recalls[0] - 0.02);
+            Assert.assertTrue(fileBytes[h] < fileBytes[0] * 0.55);
+            //the graph stays the same size
+            Assert.assertTrue(heaps[h] < heaps[0] * 0.75);
+        }
+    }
+
+    /**
+     * Searching the graph with the leading elements of vectors carrying
+     * most of their signal finds about the same neighbors as the whole
+     * vectors, the ef candidates being ranked with all of their elements.
+     */
+    @Test
+    public void testPrefixDimensions() throws Exception {
+        FloatCosineHandler handler = new FloatCosineHandler();
+        float[][] vecs = Utils.clusteredFloatVectors(10_000, 256, 50, 0.3f, 42, 42);
+        float[][] queries = Utils.clusteredFloatVectors(300, 256, 50, 0.3f, 42, 7);
+        //the leading elements spread the most, as those of Matryoshka embeddings
+        for (float[][] vectors : new float[][][]{vecs, queries})
+            for (float[] vector : vectors)
+                for (int i = 0; i < vector.length; i++)
+                    vector[i] /= 1 + i / 16f;
+        int[][] expected = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++)
+            expected[q] = Utils.bruteForceTopK(handler, vecs, queries[q], TOP_K);
+        String indexDir = Utils.buildIndex(vecs, configuration(), true);
+
+        int[] prefixes = {32, 64, 128, 0};
+        double[] recalls = new double[prefixes.length];
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir,
+                withScheduler(CallerRunsScheduler.INSTANCE))) {
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+            SearchOptions[] options = new SearchOptions[prefixes.length];
+            //every prefix warmed up before any is timed, the kernels being compiled along the way
+            for (int p = 0; p < prefixes.length; p++) {
+                options[p] = new SearchOptions();
+                options[p].setPrefixDimensions(prefixes[p]);
+                for (int round = 0; round < 3; round++)
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances, options[p]);
+            }
+            for (int p = 0; p < prefixes.length; p++) {
+                double hits = 0;
+                for (int q = 0; q < queries.length; q++) {
+                    int count = index.search(queries[q], TOP_K, ids, distances, options[p]);
+                    hits += Utils.overlap(expected[q], ids, count);
+                    //the distances of the whole vectors
+                    Assert.assertEquals(handler.distance(queries[q], vecs[(int) ids[0]]), distances[0], 1e-5);
+                    for (int i = 1; i < count; i++)
+                        Assert.assertTrue(distances[i - 1] <= distances[i]);
+                }
+                recalls[p] = hits / (queries.length * TOP_K);
+                //the fastest of a few rounds, the others being slowed down by whatever else runs
+                double millis = Double.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    long begin = System.nanoTime();
+                    for (float[] query : queries)
+                        index.search(query, TOP_K, ids, distances, options[p]);
+                    millis = Math.min(millis, (System.nanoTime() - begin) / 1e6 / queries.length);
+                }
+                System.out.println((prefixes[p] == 0 ? 256 : prefixes[p]) + " of 256 dimensions: recall@" + TOP_K
+                        + " " + recalls[p] + ", " + (int) (1000 / millis) + " queries/s");
+            }
+        }
+        Assert.assertTrue(recalls[2] > recalls[0]);
+        Assert.assertTrue(recalls[2] > recalls[3] - 0.05);
+
+        SearcherConfiguration quantized = withScheduler(CallerRunsScheduler.INSTANCE);
+        quantized.setLeafLayout(LeafLayout.QUANTIZED);
+        SearchOptions options = new SearchOptions();
+        options.setPrefixDimensions(64);
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, quantized)) {
+            index.search(queries[0], TOP_K, new long[TOP_K], new float[TOP_K], options);
+            Assert.fail("Quantized leaves do not hold the elements of the vectors");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+    }
+
+    /**
+     * The lookup saved by a writer maps every external id still in the
+     * index to the node holding its vector, and nothing else. External ids
+     * past the range of ints come back unchanged from every layout.
+     */
+    @Test
+    public void testIdLookup() throws Exception {
+        final long firstId = 1L << 40;
+        float[][] vecs = Utils.randomFloatVectors(3_000, DIMS, 42);
+        HnswConfiguration configuration = configuration();
+        configuration.setMaxItemLeaf(1_000);
+        configuration.setEnableRemove(true);
+        configuration.setLowMemoryMode(true);
+        String indexDir = Files.createTempDirectory("hnsw_test").toString();
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, indexDir);
+        List<Item<float[]>> items = new ArrayList<>();
+        for (int i = 0; i < vecs.length; i++)
+            items.add(new Item<>(firstId + i, vecs[i]));
+        writer.singleSegmentAddAll(items, Runtime.getRuntime().availableProcessors(), (done, max) -> {}, 1_000);
+        for (int i = 0; i < vecs.length; i += 7)
+            writer.removeOnExternalID(firstId + i);
+        Assert.assertEquals(vecs.length - (vecs.length + 6) / 7, writer.getLookup().size());
+        writer.save();
+        HnswIndexSearcher.writeMappedLeaves(indexDir);
+
+        for (LeafLayout layout : new LeafLayout[]{LeafLayout.COLUMNAR, LeafLayout.MAPPED}) {
+            SearcherConfiguration searcherConfiguration = withScheduler(CallerRunsScheduler.INSTANCE);
+            searcherConfiguration.setLeafLayout(layout);
+            try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, searcherConfiguration)) {
+                IdLookup lookup = index.getLookup();
+                Assert.assertEquals(writer.getLookup().size(), lookup.size());
+                for (int i = 0; i < vecs.length; i++) {
+                    long globalId = lookup.get(firstId + i);
+                    if (i % 7 == 0) {
+                        Assert.assertEquals(IdLookup.NO_ID, globalId);
+                        continue;
+                    }
+                    Assert.assertTrue(lookup.contains(firstId + i));
+                    float[] vector = index.getLeaf((int) (globalId / 1_000)).getVector((int) (globalId % 1_000)).get();
+                    Assert.assertArrayEquals(vecs[i], vector, 0);
+                }
+                Assert.assertFalse(lookup.contains(firstId - 1));
+                Assert.assertFalse(lookup.contains(firstId + vecs.length));
+
+                long[] ids = new long[TOP_K];
+                float[] distances = new float[TOP_K];
+                int count = index.search(vecs[1], TOP_K, ids, distances);
+                Assert.assertTrue(count > 0);
+                Assert.assertEquals(firstId + 1, ids[0]);
+                for (int r = 0; r < count; r++)
+                    Assert.assertTrue(lookup.contains(ids[r]));
+                try {
+                    index.search(vecs[1], TOP_K);
+                    Assert.fail("Lucene's int documents cannot hold the ids");
+                } catch (ArithmeticException expected) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A writer holding few items takes memory for those items, not for
+     * the capacity of its leaves.
+     */
+    @Test
+    public void testElasticLeafCapacity() throws Exception {
+        float[][] vecs = Utils.randomFloatVectors(10_000, DIMS, 42);
+        List<Item<float[]>> items = new ArrayList<>();
+        for (int i = 0; i < vecs.length; i++)
+            items.add(new Item<>(i, vecs[i]));
+        for (LeafLayout layout : new LeafLayout[]{LeafLayout.NODES, LeafLayout.COLUMNAR}) {
+            for (boolean lowMemoryMode : new boolean[]{false, true}) {
+                //the default capacity of 2M items per leaf
+                HnswConfiguration configuration = new HnswConfiguration(new FloatCosineHandler());
+                configuration.setM(10);
+                configuration.setEfConstruction(100);
+                configuration.setEnableRemove(true);
+                configuration.setLowMemoryMode(lowMemoryMode);
+                configuration.setLeafLayout(layout);
+                long heapBefore = usedHeap();
+                HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration,
+                        Files.createTempDirectory("hnsw_test").toString());
+                if (lowMemoryMode)
+                    writer.singleSegmentAddAll(items, Runtime.getRuntime().availableProcessors(), (done, max) -> {}, 1_000);
+                else
+                    writer.addAll(items, Runtime.getRuntime().availableProcessors(), (done, max) -> {}, 1_000);
+                long bytesPerItem = (usedHeap() - heapBefore) / vecs.length;
+                System.out.println(layout + (lowMemoryMode ? " low memory" : "") + " writer: "
+                        + bytesPerItem + " bytes/item on heap");
+                //the vector and connections of an item take well under 1KB,
+                //the slots of a whole leaf spread over 10K items take more
+                Assert.assertTrue(bytesPerItem < 1_200);
+                Assert.assertEquals(vecs.length, writer.size());
+            }
+        }
+    }
+
+    /**
+     * A searcher with a memory budget loads the leaves as they are first
+     * searched, maps those that do not fit and keeps the hottest ones in
+     * memory, all the while finding the same results as one holding
+     * every leaf.
+     */
+    @Test
+    public void testLeafResidency() throws Exception {
+        float[][] vecs = Utils.clusteredFloatVectors(8_000, DIMS, 16, 0.1f, 1, 42);
+        //queries from every cluster in turn, the first ones all from the same cluster
+        float[][] queries = Utils.clusteredFloatVectors(320, DIMS, 16, 0.1f, 1, 7);
+        HnswConfiguration configuration = configuration();
+        configuration.setMaxItemLeaf(500);
+        configuration.setClustered(true);
+        String indexDir = Utils.buildIndex(vecs, configuration, false);
+
+        SearcherConfiguration reference = withScheduler(CallerRunsScheduler.INSTANCE);
+        reference.setLeafProbes(2);
+        long[][] expected = new long[queries.length][TOP_K];
+        long leafBytes;
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, reference)) {
+            float[] distances = new float[TOP_K];
+            for (int q = 0; q < queries.length; q++)
+                index.search(queries[q], TOP_K, expected[q], distances);
+            ResidencyStats stats = index.getResidencyStats();
+            Assert.assertEquals(stats.numLeaves(), stats.count(ResidencyStats.State.RESIDENT));
+            Assert.assertEquals(0, stats.memoryBudget());
+        }
+        SearcherConfiguration unlimited = withScheduler(CallerRunsScheduler.INSTANCE);
+        unlimited.setLeafProbes(2);
+        unlimited.setMemoryBudget(Long.MAX_VALUE);
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, unlimited)) {
+            for (int leafNum = 0; leafNum < index.getResidencyStats().numLeaves(); leafNum++)
+                index.getLeaf(leafNum);
+            ResidencyStats stats = index.getResidencyStats();
+            leafBytes = stats.residentBytes() / stats.numLeaves();
+        }
+
+        SearcherConfiguration budgeted = withScheduler(CallerRunsScheduler.INSTANCE);
+        budgeted.setLeafProbes(2);
+        budgeted.setMemoryBudget(4 * leafBytes);
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir, budgeted)) {
+            ResidencyStats opened = index.getResidencyStats();
+            Assert.assertEquals(opened.numLeaves(), opened.count(ResidencyStats.State.UNLOADED));
+            Assert.assertEquals(0, opened.loads());
+            //the files of the leaves to map are written up front, not by the searches
+            for (int leafNum = 0; leafNum < opened.numLeaves(); leafNum++)
+                Assert.assertTrue(new File(indexDir, leafNum + "_mapped.bin").exists());
+
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+            for (int q = 0; q < queries.length; q++) {
+                index.search(queries[q], TOP_K, ids, distances);
+                Assert.assertArrayEquals(expected[q], ids);
+            }
+            ResidencyStats cold = index.getResidencyStats();
+            System.out.println("after a pass over every cluster: " + cold);
+            Assert.assertTrue(cold.residentBytes() <= cold.memoryBudget());
+            Assert.assertTrue(cold.count(ResidencyStats.State.MAPPED) > 0);
+            Assert.assertEquals(cold.numLeaves() - cold.count(ResidencyStats.State.UNLOADED), cold.loads());
+
+            //the last leaves searched were mapped, a burst of queries
+            //on them has them take the place of the first ones
+            int hotQueries = 20;
+            for (int round = 0; round < 100; round++) {
+                for (int q = queries.length - hotQueries; q < queries.length; q++) {
+                    index.search(queries[q], TOP_K, ids, distances);
+                    Assert.assertArrayEquals(expected[q], ids);
+                }
+            }
+            //the leaves are promoted by the thread of the residency
+            ResidencyStats hot = index.getResidencyStats();
+            for (int wait = 0; wait < 100 && hot.promotions() == 0; wait++) {
+                Thread.sleep(50);
+                hot = index.getResidencyStats();
+            }
+            System.out.println("after a burst on one cluster: " + hot);
+            Assert.assertTrue(hot.residentBytes() <= hot.memoryBudget());
+            Assert.assertTrue(hot.promotions() > 0);
+            Assert.assertTrue(hot.demotions() > 0);
+            int hottest = 0;
+            for (int leafNum = 0; leafNum < hot.numLeaves(); leafNum++) {
+                if (hot.queries(leafNum) > hot.queries(hottest))
+                    hottest = leafNum;
+            }
+            Assert.assertEquals(ResidencyStats.State.RESIDENT, hot.state(hottest));
+
+            //results do not change with the leaves moving around
+            for (int q = 0; q < queries.length; q++) {
+                index.search(queries[q], TOP_K, ids, distances);
+                Assert.assertArrayEquals(expected[q], ids);
+            }
+        }
+    }
+
+    /**
+     * The 16 leaves of an index are saved and loaded in parallel, their
+     * nodes streamed to and from the files. A writer loaded back holds the
+     * items left along with the ids freed by those removed, and a searcher
+     * finds what it saves.
+     */
+    @Test
+    public void testParallelSaveAndLoad() throws Exception {
+        final int numLeaves = 16;
+        final int leafSize = 500;
+        float[][] vecs = Utils.randomFloatVectors(numLeaves * leafSize, DIMS, 42);
+        HnswConfiguration configuration = configuration();
+        configuration.setMaxItemLeaf(leafSize);
+        configuration.setEnableRemove(true);
+        configuration.setLowMemoryMode(true);
+        String indexDir = Files.createTempDirectory("hnsw_test").toString();
+        HnswIndexWriter<float[]> writer = new HnswIndexWriter<>(configuration, indexDir);
+        List<Item<float[]>> items = new ArrayList<>();
+        for (int i = 0; i < vecs.length; i++)
+            items.add(new Item<>(i, vecs[i]));
+        writer.singleSegmentAddAll(items, Runtime.getRuntime().availableProcessors(), (done, max) -> {}, 1_000);
+        for (int i = 0; i < vecs.length; i += 10)
+            writer.removeOnExternalID(i);
+
+        long live = usedHeap();
+        resetPeakHeap();
+        long begin = System.nanoTime();
+        writer.save();
+        System.out.printf("save of %d leaves: %.1f ms, peak heap %d KB above the live %d KB%n", numLeaves,
+                (System.nanoTime() - begin) / 1e6, (peakHeap() - live) / 1024, live / 1024);
+        for (int leafNum = 0; leafNum < numLeaves; leafNum++)
+            Assert.assertTrue(new File(indexDir, leafNum + "_outconns.o").exists());
+
+        live = usedHeap();
+        resetPeakHeap();
+        begin = System.nanoTime();
+        HnswIndexWriter<float[]> loaded = new HnswIndexWriter<>(indexDir);
+        System.out.printf("writer load of %d leaves: %.1f ms, peak heap %d KB above the live %d KB%n", numLeaves,
+                (System.nanoTime() - begin) / 1e6, (peakHeap() - live) / 1024, live / 1024);
+        Assert.assertEquals(writer.size(), loaded.size());
+        //items added to the last leaf, full before the removals, go in the ids they freed
+        List<Item<float[]>> readded = new ArrayList<>();
+        for (int i = vecs.length - 10; readded.size() < 25; i -= 10)
+            readded.add(new Item<>(i, vecs[i]));
+        loaded.singleSegmentAddAll(readded, Runtime.getRuntime().availableProcessors(), (done, max) -> {}, 1_000);
+        Assert.assertEquals(writer.size() + readded.size(), loaded.size());
+        for (int i = 1; i < vecs.length; i += 10)
+            loaded.removeOnExternalID(i);
+        loaded.save();
+        Assert.assertFalse(new File(indexDir, numLeaves + "_config.o").exists());
+
+        live = usedHeap();
+        resetPeakHeap();
+        begin = System.nanoTime();
+        try (HnswIndexSearcher<float[]> index = new HnswIndexSearcher<>(indexDir,
+                withScheduler(CallerRunsScheduler.INSTANCE))) {
+            System.out.printf("searcher load of %d leaves: %.1f ms, peak heap %d KB above the live %d KB%n", numLeaves,
+                    (System.nanoTime() - begin) / 1e6, (peakHeap() - live) / 1024, live / 1024);
+            long[] ids = new long[TOP_K];
+            float[] distances = new float[TOP_K];
+            int found = 0;
+            int queries = 0;
+            for (int q = 0; q < vecs.length; q += 7) {
+                int count = index.search(vecs[q], TOP_K, ids, distances);
+                for (int r = 0; r < count; r++)
+                    Assert.assertNotEquals(1, ids[r] % 10);
+                boolean removedForGood = q % 10 == 1 || (q % 10 == 0 && q < vecs.length - 10 * readded.size());
+                if (!removedForGood) {
+                    queries++;
+                    if (count > 0 && ids[0] == q)
+                        found++;
+                }
+            }
+            Assert.assertTrue(found > queries * 0.95);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        //some of what the previous steps let go of is only collected a few
+        //hundred milliseconds later, once the threads tidying up got to it
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * @return the sum of the highest use of every heap pool since {@link #resetPeakHeap()}, garbage included
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
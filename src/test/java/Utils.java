@@ -1,15 +1,112 @@
+import ai.preferred.cerebro.handler.VecHandler;
+import ai.preferred.cerebro.hnsw.HnswConfiguration;
+import ai.preferred.cerebro.hnsw.HnswIndexWriter;
 import ai.preferred.cerebro.hnsw.IndexUtils;
 import ai.preferred.cerebro.handler.DoubleCosineHandler;
 import ai.preferred.cerebro.handler.FloatCosineHandler;
+import ai.preferred.cerebro.hnsw.Item;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 public class Utils {
 
+    /**
+     * Generate vectors with uniformly distributed non-negative features,
+     * used by the tests that do not rely on the data sets at {@link TestConst}.
+     */
+    public static float[][] randomFloatVectors(int n, int nFeatures, long seed) {
+        Random random = new Random(seed);
+        float[][] vecs = new float[n][nFeatures];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < nFeatures; j++)
+                vecs[i][j] = random.nextFloat();
+        return vecs;
+    }
+
+    /**
+     * Generate vectors scattered around random centers, the vectors of each
+     * center being consecutive so that an index filling one leaf at a time
+     * ends up with one cluster per leaf when the leaf capacity is n / numClusters.
+     * @param centerSeed seed of the centers, vectors generated with the same
+     *                   centerSeed belong to the same clusters
+     */
+    public static float[][] clusteredFloatVectors(int n, int nFeatures, int numClusters, float spread,
+                                                  long centerSeed, long seed) {
+        Random random = new Random(seed);
+        float[][] centers = randomFloatVectors(numClusters, nFeatures, centerSeed);
+        float[][] vecs = new float[n][nFeatures];
+        for (int i = 0; i < n; i++) {
+            float[] center = centers[(int) ((long) i * numClusters / n)];
+            for (int j = 0; j < nFeatures; j++)
+                vecs[i][j] = center[j] - 0.5f + spread * (float) random.nextGaussian();
+        }
+        return vecs;
+    }
+
+    /**
+     * Build and save an index of the given vectors, with ids being
+     * the vectors' position in the array, into a new temporary directory.
+     * @param lowMemoryMode fill up one leaf at a time, creating a new leaf
+     *                      every time configuration's maximum leaf capacity is reached
+     * @return the directory of the index
+     */
+    public static <TVector> String buildIndex(TVector[] vecs, HnswConfiguration configuration, boolean lowMemoryMode)
+            throws IOException, InterruptedException {
+        String indexDir = Files.createTempDirectory("hnsw_test").toString();
+        List<Item<TVector>> vecList = new ArrayList<>(vecs.length);
+        for (int i = 0; i < vecs.length; i++) {
+            vecList.add(new Item<>(i, vecs[i]));
+        }
+        configuration.setLowMemoryMode(lowMemoryMode);
+        HnswIndexWriter<TVector> index = new HnswIndexWriter<>(configuration, indexDir);
+        if (lowMemoryMode)
+            index.singleSegmentAddAll(vecList, Runtime.getRuntime().availableProcessors(), (done, max) -> {}, 1_000);
+        else
+            index.addAll(vecList, Runtime.getRuntime().availableProcessors(), (done, max) -> {}, 1_000);
+        index.save();
+        return indexDir;
+    }
+
+    /**
+     * @return the ids of the k vectors closest to the query, found by brute force
+     */
+    public static <TVector> int[] bruteForceTopK(VecHandler<TVector> handler, TVector[] vecs, TVector query, int k) {
+        Integer[] ids = new Integer[vecs.length];
+        double[] distances = new double[vecs.length];
+        for (int i = 0; i < vecs.length; i++) {
+            ids[i] = i;
+            distances[i] = handler.distance(query, vecs[i]);
+        }
+        Arrays.sort(ids, (a, b) -> Double.compare(distances[a], distances[b]));
+        int[] top = new int[Math.min(k, vecs.length)];
+        for (int i = 0; i < top.length; i++)
+            top[i] = ids[i];
+        return top;
+    }
+
+    /**
+     * @return the number of ids in found that are also in expected
+     */
+    public static int overlap(int[] expected, long[] found, int foundCount) {
+        int hit = 0;
+        for (int i = 0; i < foundCount; i++)
+            for (int id : expected)
+                if (found[i] == id) {
+                    hit++;
+                    break;
+                }
+        return hit;
+    }
+
     public void convert_to_float() throws FileNotFoundException {
         String [] dataSizes = {"1M", "2M", "4M", "6M", "10M"};
         String sampleFile = "itemVec_";